@@ -0,0 +1,81 @@
+/**
+ * This file is part of PhotoDB - MySQL client/GUI for accessing photo databases
+ * 
+ * Copyright (C) 2014 by Michael Wang
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *   
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>. 
+ */
+package photo.db;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * A content-addressed store for the bytes of photos: each blob is stored
+ * under the (hex) SHA-256 of its contents, as computed by
+ * PhotoDB.computeContentHash(), so identical photos are stored once.
+ *
+ * PhotoDB uses a BlobStore (see PhotoDB.setBlobStore()) to keep only the
+ * metadata and content hash of each photo in the database. FileBlobStore
+ * keeps the blobs in a local (or mounted) directory; a store backed by an
+ * object storage service implements the same methods with the service's
+ * put/get/head/delete calls.
+ *
+ * Implementations must be thread-safe.
+ */
+public interface BlobStore
+{
+    /**
+     * @param hash The content hash of the blob
+     * @return <code>true</code> if the store has the blob
+     * @throws IOException If the store cannot be reached
+     */
+    boolean contains(String hash) throws IOException;
+
+    /**
+     * Stores the contents of <code>file</code> under <code>hash</code>, unless
+     * a blob with that hash is stored already. A blob must never be visible
+     * under its hash before it has been stored completely.
+     *
+     * @param hash The content hash of <code>file</code>
+     * @param file The file to store
+     * @throws IOException If the file cannot be stored
+     */
+    void put(String hash, File file) throws IOException;
+
+    /**
+     * @param hash The content hash of the blob
+     * @return A stream of the blob's contents
+     * @throws IOException If the blob does not exist or cannot be read
+     */
+    InputStream open(String hash) throws IOException;
+
+    /**
+     * Writes the blob to <code>file</code>, as directly as the store allows
+     * (e.g. without copying the bytes through the JVM heap).
+     *
+     * @param hash The content hash of the blob
+     * @param file The file to write
+     * @throws IOException If the blob does not exist or cannot be written
+     */
+    void copyTo(String hash, File file) throws IOException;
+
+    /**
+     * @param hash The content hash of the blob
+     * @return <code>true</code> if the blob existed and was deleted
+     * @throws IOException If the store cannot be reached
+     */
+    boolean delete(String hash) throws IOException;
+}
@@ -0,0 +1,167 @@
+/**
+ * This file is part of PhotoDB - MySQL client/GUI for accessing photo databases
+ * 
+ * Copyright (C) 2014 by Michael Wang
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *   
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>. 
+ */
+package photo.db;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * An InputStream over a range of numbered chunks (e.g. the chunks of a photo
+ * in PhotoDB's chunk table), which fetches the chunks ahead of the reader in
+ * parallel: up to <code>lookahead</code> chunks are being fetched (each by its
+ * own task on the executor) while the reader consumes the current one.
+ *
+ * The stream can start part of the way into the first chunk and end part of the
+ * way into the last one, for reading a byte range.
+ */
+public class ChunkInputStream extends InputStream
+{
+    private ChunkSource source;
+    private ExecutorService executor;
+    private int nextChunk, lastChunk, lookahead;
+
+    // Chunks being fetched, in order, and the one being read
+    private ArrayDeque<Future<byte[]>> pending;
+    private byte[] buf;
+    private int pos, skip;
+    private long remaining;
+
+    /**
+     * @param source Where the chunks are fetched from
+     * @param executor The executor to fetch them on
+     * @param firstChunk The first chunk to read
+     * @param lastChunk The last chunk to read (if less than firstChunk, the stream is empty)
+     * @param skip The number of bytes to skip at the start of the first chunk
+     * @param length The maximum number of bytes to read, or -1 to read to the end of the last chunk
+     * @param lookahead How many chunks to fetch at once (at least 1)
+     */
+    public ChunkInputStream(ChunkSource source, ExecutorService executor, int firstChunk, int lastChunk,
+                            int skip, long length, int lookahead)
+    {
+        this.source = source;
+        this.executor = executor;
+        this.nextChunk = firstChunk;
+        this.lastChunk = lastChunk;
+        this.skip = skip;
+        this.lookahead = Math.max(lookahead, 1);
+        remaining = (length < 0) ? Long.MAX_VALUE : length;
+        pending = new ArrayDeque<Future<byte[]>>();
+        fetchAhead();
+    }
+
+    public int read() throws IOException
+    {
+        if (!fill())
+            return -1;
+        remaining--;
+        return buf[pos++] & 0xff;
+    }
+
+    public int read(byte[] b, int off, int len) throws IOException
+    {
+        if (len == 0)
+            return 0;
+        if (!fill())
+            return -1;
+
+        int n = (int) Math.min(Math.min(len, buf.length - pos), remaining);
+        System.arraycopy(buf, pos, b, off, n);
+        pos += n;
+        remaining -= n;
+        return n;
+    }
+
+    public int available()
+    {
+        return (buf == null) ? 0 : (int) Math.min(buf.length - pos, remaining);
+    }
+
+    /**
+     * Cancels the chunks that are still being fetched.
+     */
+    public void close()
+    {
+        for (Future<byte[]> f : pending)
+            f.cancel(true);
+        pending.clear();
+        remaining = 0;
+    }
+
+    /**
+     * Makes sure there is something left to read in buf, moving on to the next
+     * chunk if needed.
+     *
+     * @return <code>false</code> at the end of the stream
+     */
+    private boolean fill() throws IOException
+    {
+        while (remaining > 0 && (buf == null || pos == buf.length))
+        {
+            Future<byte[]> next = pending.poll();
+            if (next == null)
+                return false;
+
+            try {
+                buf = next.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while fetching a chunk", e);
+            } catch (ExecutionException e) {
+                close();
+                throw new IOException("Error fetching a chunk", e.getCause());
+            }
+            pos = Math.min(skip, buf.length);
+            skip = 0;
+            fetchAhead();
+        }
+        return remaining > 0;
+    }
+
+    private void fetchAhead()
+    {
+        while (pending.size() < lookahead && nextChunk <= lastChunk)
+        {
+            final int chunk = nextChunk++;
+            pending.add(executor.submit(new Callable<byte[]>() {
+                public byte[] call() throws Exception
+                {
+                    return source.readChunk(chunk);
+                }
+            }));
+        }
+    }
+
+    /**
+     * Fetches the chunks of a ChunkInputStream.
+     */
+    public interface ChunkSource
+    {
+        /**
+         * @param chunk The number of the chunk
+         * @return The bytes of the chunk
+         * @throws Exception If the chunk cannot be fetched
+         */
+        byte[] readChunk(int chunk) throws Exception;
+    }
+}
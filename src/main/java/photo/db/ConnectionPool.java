@@ -0,0 +1,369 @@
+/**
+ * This file is part of PhotoDB - MySQL client/GUI for accessing photo databases
+ * 
+ * Copyright (C) 2014 by Michael Wang
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *   
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>. 
+ */
+package photo.db;
+
+import java.io.PrintWriter;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.sql.Statement;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import javax.sql.DataSource;
+
+/**
+ * A fixed-size pool of JDBC connections to one database URL.
+ *
+ * getConnection() leases a connection, waiting up to the lease timeout if all
+ * of them are in use, and closing the leased connection returns it to the pool
+ * (so it can be used like any other DataSource). Connections are opened lazily
+ * and, if they have been idle for longer than the validation interval, checked
+ * with Connection.isValid() before being leased again; broken ones are replaced.
+ *
+ * The pool itself is thread-safe, but each leased connection should only be used
+ * by one thread at a time. Statements and result sets made on a leased connection
+ * lead back to it (through getConnection() and getStatement()), never to the
+ * physical connection, which may be leased to another thread once it is returned.
+ */
+public class ConnectionPool implements DataSource
+{
+    private String url, user, password;
+    private int maxSize;
+    private long leaseTimeoutMs = 30000;
+    private long validateAfterMs = 5000;
+
+    // Idle connections, most recently used first, and the permits for leasing one
+    private LinkedBlockingDeque<PooledConnection> idle;
+    private Semaphore leases;
+    private volatile boolean closed;
+
+    /**
+     * @param url The JDBC URL of the database
+     * @param user The user to connect as
+     * @param password The password of the user
+     * @param maxSize The maximum number of connections that can be open (and leased) at once
+     */
+    public ConnectionPool(String url, String user, String password, int maxSize)
+    {
+        if (maxSize < 1)
+            throw new IllegalArgumentException("Pool size must be at least 1");
+
+        this.url = url;
+        this.user = user;
+        this.password = password;
+        this.maxSize = maxSize;
+        idle = new LinkedBlockingDeque<PooledConnection>();
+        leases = new Semaphore(maxSize, true);
+    }
+
+    /**
+     * Leases a connection from the pool; call close() on it to return it.
+     *
+     * @return The leased connection
+     * @throws SQLException If the pool is closed, no connection becomes available
+     * within the lease timeout, or a new connection cannot be opened
+     */
+    public Connection getConnection() throws SQLException
+    {
+        if (closed)
+            throw new SQLException("Connection pool is closed");
+
+        try {
+            if (!leases.tryAcquire(leaseTimeoutMs, TimeUnit.MILLISECONDS))
+                throw new SQLException("Timed out waiting for a connection (pool size " + maxSize + ")");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for a connection", e);
+        }
+
+        try {
+            PooledConnection pc;
+            while ((pc = idle.pollFirst()) != null)
+            {
+                if (System.currentTimeMillis() - pc.lastUsed < validateAfterMs || isValid(pc.conn, 2))
+                    return pc.lease();
+                closeQuietly(pc.conn);                                      //Broken - open a new one instead
+            }
+            return new PooledConnection(DriverManager.getConnection(url, user, password)).lease();
+        } catch (SQLException e) {
+            leases.release();
+            throw e;
+        } catch (RuntimeException e) {
+            leases.release();
+            throw e;
+        }
+    }
+
+    public Connection getConnection(String username, String password) throws SQLException
+    {
+        throw new SQLFeatureNotSupportedException("Pooled connections all use the same user");
+    }
+
+    /**
+     * Closes all idle connections and makes the pool refuse new leases.
+     * Connections that are leased are closed when they are returned.
+     */
+    public void close()
+    {
+        closed = true;
+        PooledConnection pc;
+        while ((pc = idle.pollFirst()) != null)
+            closeQuietly(pc.conn);
+    }
+
+    public int getMaxSize()
+    {
+        return maxSize;
+    }
+
+    /**
+     * Checks whether the database answers, without waiting for a lease: the least
+     * recently used idle connection is validated, or if there is none (or it is
+     * broken), a new connection is opened and closed again. The check holds a
+     * lease permit while it runs, so it never opens more than getMaxSize()
+     * connections along with the leased ones. If all of them are leased, the
+     * database is in use and counts as reachable; a lease that fails tells
+     * otherwise soon enough.
+     *
+     * @param timeoutSeconds How long to wait for the database to answer a validation
+     * @return <code>true</code> if the database answered
+     */
+    public boolean isReachable(int timeoutSeconds)
+    {
+        if (closed)
+            return false;
+        if (!leases.tryAcquire())
+            return true;
+
+        try {
+            PooledConnection pc = idle.pollLast();
+            if (pc != null)
+            {
+                if (isValid(pc.conn, timeoutSeconds))
+                {
+                    pc.lastUsed = System.currentTimeMillis();
+                    idle.offerLast(pc);
+                    return true;
+                }
+                closeQuietly(pc.conn);
+            }
+
+            Connection conn = DriverManager.getConnection(url, user, password);
+            try {
+                return isValid(conn, timeoutSeconds);
+            } finally {
+                closeQuietly(conn);
+            }
+        } catch (SQLException e) {
+            return false;
+        } finally {
+            leases.release();
+        }
+    }
+
+    /**
+     * @return The number of connections that are currently leased
+     */
+    public int getLeasedCount()
+    {
+        return maxSize - leases.availablePermits();
+    }
+
+    /**
+     * Sets how long getConnection() waits for a connection to be returned when
+     * all of them are leased.
+     */
+    public void setLeaseTimeout(long ms)
+    {
+        leaseTimeoutMs = ms;
+    }
+
+    /**
+     * Sets how long a connection can be idle before it is validated again on lease.
+     */
+    public void setValidationInterval(long ms)
+    {
+        validateAfterMs = ms;
+    }
+
+    public PrintWriter getLogWriter() throws SQLException
+    {
+        return DriverManager.getLogWriter();
+    }
+
+    public void setLogWriter(PrintWriter out) throws SQLException
+    {
+        DriverManager.setLogWriter(out);
+    }
+
+    public void setLoginTimeout(int seconds) throws SQLException
+    {
+        DriverManager.setLoginTimeout(seconds);
+    }
+
+    public int getLoginTimeout() throws SQLException
+    {
+        return DriverManager.getLoginTimeout();
+    }
+
+    public Logger getParentLogger() throws SQLFeatureNotSupportedException
+    {
+        throw new SQLFeatureNotSupportedException();
+    }
+
+    public <T> T unwrap(Class<T> iface) throws SQLException
+    {
+        if (iface.isInstance(this))
+            return iface.cast(this);
+        throw new SQLException("Not a wrapper for " + iface.getName());
+    }
+
+    public boolean isWrapperFor(Class<?> iface) throws SQLException
+    {
+        return iface.isInstance(this);
+    }
+
+    /**
+     * Returns a connection to the pool (or closes it, if it is broken or the
+     * pool has been closed) and frees its lease.
+     */
+    private void giveBack(PooledConnection pc)
+    {
+        try {
+            if (closed || pc.conn.isClosed())
+                closeQuietly(pc.conn);
+            else
+            {
+                if (!pc.conn.getAutoCommit())
+                {
+                    pc.conn.rollback();                                     //Don't leak a transaction to the next lease
+                    pc.conn.setAutoCommit(true);
+                }
+                pc.lastUsed = System.currentTimeMillis();
+                idle.offerFirst(pc);
+            }
+        } catch (SQLException e) {
+            closeQuietly(pc.conn);
+        } finally {
+            leases.release();
+        }
+    }
+
+    private static boolean isValid(Connection conn, int timeoutSeconds)
+    {
+        try {
+            return conn.isValid(timeoutSeconds);
+        } catch (SQLException e) {
+            return false;
+        }
+    }
+
+    private static void closeQuietly(Connection conn)
+    {
+        try {
+            conn.close();
+        } catch (SQLException e) { e.printStackTrace(); }
+    }
+
+    /**
+     * Returns <code>result</code>, the return value of a call whose declared return
+     * type is <code>type</code>, wrapped in a proxy if it is a Statement or a
+     * ResultSet, so that its getConnection() or getStatement() returns
+     * <code>parent</code> (the proxy that made it).
+     */
+    private static Object wrap(Object result, Class<?> type, final Object parent)
+    {
+        if (result == null || !(Statement.class.isAssignableFrom(type) || type == ResultSet.class))
+            return result;
+
+        final Object target = result;
+        return Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] { type }, new InvocationHandler() {
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable
+            {
+                String name = method.getName();
+                if ((name.equals("getConnection") || name.equals("getStatement")) && method.getParameterTypes().length == 0)
+                    return parent;
+                try {
+                    return wrap(method.invoke(target, args), method.getReturnType(), proxy);
+                } catch (InvocationTargetException e) {
+                    throw e.getCause();
+                }
+            }
+        });
+    }
+
+    /**
+     * A physical connection in the pool. Each lease hands out a new proxy of it
+     * whose close() returns the connection to the pool (once); all other calls
+     * go straight to the physical connection, with the statements they return
+     * wrapped by wrap().
+     */
+    private class PooledConnection
+    {
+        private Connection conn;
+        private long lastUsed;
+
+        public PooledConnection(Connection conn)
+        {
+            this.conn = conn;
+            lastUsed = System.currentTimeMillis();
+        }
+
+        public Connection lease()
+        {
+            return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(),
+                    new Class<?>[] { Connection.class }, new InvocationHandler() {
+                        private boolean returned;
+
+                        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable
+                        {
+                            String name = method.getName();
+                            if (name.equals("close"))
+                            {
+                                if (!returned)
+                                {
+                                    returned = true;
+                                    giveBack(PooledConnection.this);
+                                }
+                                return null;
+                            }
+                            if (name.equals("isClosed"))
+                                return returned || conn.isClosed();
+                            if (returned)
+                                throw new SQLException("Connection has been returned to the pool");
+
+                            try {
+                                return wrap(method.invoke(conn, args), method.getReturnType(), proxy);
+                            } catch (InvocationTargetException e) {
+                                throw e.getCause();
+                            }
+                        }
+                    });
+        }
+    }
+}
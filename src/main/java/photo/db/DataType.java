@@ -18,6 +18,10 @@
  */
 package photo.db;
 
+import java.io.File;
+import java.sql.Date;
+import java.sql.Time;
+import java.sql.Timestamp;
 import java.sql.Types;
 
 // Represents all supported data types - each enum represents the
@@ -25,15 +29,21 @@ import java.sql.Types;
 // obtained by calling getSqlType().
 public enum DataType
 {
-    INT(Types.INTEGER), BOOLEAN(Types.BOOLEAN), DOUBLE(Types.DOUBLE),
-    LONG(Types.BIGINT), STRING(Types.VARCHAR), DATE(Types.DATE),
-    TIME(Types.TIME), BIN_STREAM(Types.BLOB);
+    INT(Types.INTEGER, "INT", Integer.class), BOOLEAN(Types.BOOLEAN, "BOOLEAN", Boolean.class),
+    DOUBLE(Types.DOUBLE, "DOUBLE", Double.class), LONG(Types.BIGINT, "BIGINT", Long.class),
+    STRING(Types.VARCHAR, "VARCHAR(255)", String.class), DATE(Types.DATE, "DATE", Date.class),
+    TIME(Types.TIME, "TIME", Time.class), TIMESTAMP(Types.TIMESTAMP, "DATETIME", Timestamp.class),
+    BIN_STREAM(Types.BLOB, "LONGBLOB", File.class);
 
     private int sqlType;
+    private String sqlTypeName;
+    private Class<?> javaClass;
 
-    private DataType(int sqlType)
+    private DataType(int sqlType, String sqlTypeName, Class<?> javaClass)
     {
         this.sqlType = sqlType;
+        this.sqlTypeName = sqlTypeName;
+        this.javaClass = javaClass;
     }
     
     // Returns the SQL data type it is associated with
@@ -41,4 +51,16 @@ public enum DataType
     {
         return sqlType;
     }
+    
+    // Returns the (MySQL) type to declare a column of this type with
+    public String getSqlTypeName()
+    {
+        return sqlTypeName;
+    }
+    
+    // Returns the Java class that values of this type are passed to PhotoDB as
+    public Class<?> getJavaClass()
+    {
+        return javaClass;
+    }
 }
@@ -0,0 +1,133 @@
+/**
+ * This file is part of PhotoDB - MySQL client/GUI for accessing photo databases
+ * 
+ * Copyright (C) 2014 by Michael Wang
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *   
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>. 
+ */
+package photo.db;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * A BlobStore in a directory of the local file system (which may also be a
+ * network mount, or a stand-in for an object storage service).
+ *
+ * Blobs are sharded into two levels of subdirectories by the first four hex
+ * digits of their hash (e.g. <code>ab/cd/abcd...</code>), so no directory holds
+ * more than a few thousand files. A blob is written to a temporary file first
+ * and then renamed into place, so a blob that exists is always complete; and
+ * copies are made with FileChannel.transferTo(), which lets the OS copy the
+ * bytes without passing them through the JVM where it can.
+ */
+public class FileBlobStore implements BlobStore
+{
+    private File root;
+
+    /**
+     * Initializes a store in <code>root</code>, creating the directory if it
+     * does not exist.
+     *
+     * @param root The directory to store the blobs in
+     */
+    public FileBlobStore(File root)
+    {
+        this.root = root;
+        if (!root.exists())
+            root.mkdirs();
+    }
+
+    public boolean contains(String hash)
+    {
+        return getFile(hash).isFile();
+    }
+
+    public void put(String hash, File file) throws IOException
+    {
+        File blob = getFile(hash);
+        if (blob.isFile())
+            return;                                                         //Content-addressed, so it is the same
+
+        File dir = blob.getParentFile();
+        dir.mkdirs();
+        File temp = File.createTempFile(hash, ".tmp", dir);
+        try {
+            transfer(file, temp);
+            Files.move(temp.toPath(), blob.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            temp.delete();                                                  //Only still there if something failed
+        }
+    }
+
+    public InputStream open(String hash) throws IOException
+    {
+        return new FileInputStream(getFile(hash));
+    }
+
+    public void copyTo(String hash, File file) throws IOException
+    {
+        try {
+            transfer(getFile(hash), file);
+        } catch (IOException e) {
+            file.delete();                                                  //Don't leave half a copy behind
+            throw e;
+        }
+    }
+
+    public boolean delete(String hash)
+    {
+        return getFile(hash).delete();
+    }
+
+    /**
+     * Returns the file that the blob with <code>hash</code> is (or would be) stored in.
+     *
+     * @param hash The content hash of the blob; must be hexadecimal
+     * @return The file of the blob
+     */
+    public File getFile(String hash)
+    {
+        if (hash.length() < 4 || !hash.matches("[0-9a-fA-F]+"))
+            throw new IllegalArgumentException("Not a content hash: " + hash);
+
+        hash = hash.toLowerCase();
+        return new File(new File(new File(root, hash.substring(0, 2)), hash.substring(2, 4)), hash);
+    }
+
+    /**
+     * Copies <code>from</code> to <code>to</code> channel to channel.
+     */
+    private static void transfer(File from, File to) throws IOException
+    {
+        FileInputStream in = new FileInputStream(from);
+        FileOutputStream out = null;
+        try {
+            out = new FileOutputStream(to);
+            FileChannel src = in.getChannel(), dst = out.getChannel();
+            long size = src.size(), pos = 0;
+            while (pos < size)
+                pos += src.transferTo(pos, size - pos, dst);
+        } finally {
+            in.close();
+            if (out != null) out.close();
+        }
+    }
+}
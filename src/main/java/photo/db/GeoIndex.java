@@ -0,0 +1,315 @@
+/**
+ * This file is part of PhotoDB - MySQL client/GUI for accessing photo databases
+ * 
+ * Copyright (C) 2014 by Michael Wang
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *   
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>. 
+ */
+package photo.db;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+
+/**
+ * A client-side spatial index of where the photos were taken (see
+ * PhotoDB.setGeoColumns()), to find the photos in a bounding box or within a
+ * radius of a point without scanning every photo; see PhotoDB.findInBox() and
+ * PhotoDB.findNear().
+ *
+ * The globe is divided into a grid of cells of CELL_DEGREES by CELL_DEGREES,
+ * and each cell that has photos maps to their ordinals, kept as in
+ * SimilarityIndex: an int[] whose first element is the number of ordinals in it.
+ * A query looks up the cells that overlap its box and only checks the photos in
+ * those; for boxes that span more cells than there are photos, all photos are
+ * scanned instead. Removed photos are only marked as removed; their ordinals are
+ * dropped once a quarter of the ordinals are removed. All public methods are
+ * synchronized.
+ */
+public class GeoIndex
+{
+    private static final double CELL_DEGREES = 0.1;
+    private static final int ROWS = (int) Math.round(180 / CELL_DEGREES);
+    private static final int COLS = (int) Math.round(360 / CELL_DEGREES);
+    private static final int MIN_POSTINGS = 4;
+    private static final double EARTH_RADIUS_KM = 6371.0;
+
+    // Posting lists by cell (row * COLS + col): { size, ordinal, ordinal, ... }
+    private HashMap<Integer, int[]> cells;
+
+    // The position and the key (null if removed) of each ordinal, and the ordinal of each key
+    private double[] lats, lons;
+    private ArrayList<String> keys;
+    private HashMap<String, Integer> ordinals;
+    private BitSet removed;
+    private int numRemoved;
+
+    public GeoIndex()
+    {
+        cells = new HashMap<Integer, int[]>();
+        lats = new double[16];
+        lons = new double[16];
+        keys = new ArrayList<String>();
+        ordinals = new HashMap<String, Integer>();
+        removed = new BitSet();
+    }
+
+    /**
+     * Adds the photo with <code>key</code> to the index, replacing it if it is in
+     * the index already.
+     *
+     * @param key The unique key value of the photo
+     * @param lat The latitude of the photo, in degrees (-90 to 90)
+     * @param lon The longitude of the photo, in degrees (-180 to 180)
+     * @throws IllegalArgumentException If the position is not on the globe
+     */
+    public synchronized void add(Object key, double lat, double lon)
+    {
+        if (!(lat >= -90 && lat <= 90 && lon >= -180 && lon <= 180))
+            throw new IllegalArgumentException("Not a position: " + lat + ", " + lon);
+        String k = key.toString();
+        if (ordinals.containsKey(k))
+            remove(k);
+
+        int ordinal = keys.size();
+        if (ordinal == lats.length)
+        {
+            lats = Arrays.copyOf(lats, ordinal * 2);
+            lons = Arrays.copyOf(lons, ordinal * 2);
+        }
+        lats[ordinal] = lat;
+        lons[ordinal] = lon;
+        keys.add(k);
+        ordinals.put(k, ordinal);
+        addPosting(cell(row(lat), col(lon)), ordinal);
+    }
+
+    /**
+     * Removes the photo with <code>key</code> from the index, if it is in it.
+     *
+     * @param key The unique key value of the photo
+     */
+    public synchronized void remove(Object key)
+    {
+        Integer ordinal = ordinals.remove(key.toString());
+        if (ordinal == null)
+            return;
+
+        keys.set(ordinal, null);
+        removed.set(ordinal);
+        if (++numRemoved > keys.size() / 4)
+            compact();
+    }
+
+    /**
+     * Returns the keys of the photos in a bounding box, in the order they were
+     * added. If <code>west</code> is greater than <code>east</code>, the box
+     * crosses the 180th meridian.
+     *
+     * @param south The southern edge, in degrees of latitude
+     * @param west The western edge, in degrees of longitude
+     * @param north The northern edge, in degrees of latitude
+     * @param east The eastern edge, in degrees of longitude
+     * @return The keys of the photos in the box (edges included)
+     */
+    public synchronized String[] inBox(double south, double west, double north, double east)
+    {
+        BitSet matches = matchBox(south, west, north, east);
+        ArrayList<String> result = new ArrayList<String>();
+        for (int i = matches.nextSetBit(0); i >= 0; i = matches.nextSetBit(i + 1))
+            result.add(keys.get(i));
+        return result.toArray(new String[result.size()]);
+    }
+
+    /**
+     * Returns the keys of the photos within <code>radiusKm</code> kilometres of a
+     * point (along the surface of the earth), the closest first.
+     *
+     * @param lat The latitude of the point, in degrees
+     * @param lon The longitude of the point, in degrees
+     * @param radiusKm The radius, in kilometres
+     * @return The keys of the photos, by increasing distance
+     */
+    public synchronized String[] near(double lat, double lon, double radiusKm)
+    {
+        // The box around the circle, which takes all longitudes near the poles
+        double dLat = Math.toDegrees(radiusKm / EARTH_RADIUS_KM);
+        double south = Math.max(lat - dLat, -90), north = Math.min(lat + dLat, 90);
+        double west = -180, east = 180;
+        double cos = Math.cos(Math.toRadians(Math.max(Math.abs(south), Math.abs(north))));
+        if (north < 90 && south > -90 && dLat / cos < 180)
+        {
+            west = normalize(lon - dLat / cos);
+            east = normalize(lon + dLat / cos);
+        }
+
+        // Sort by (distance, ordinal), packed into longs: the bits of a non-negative
+        // float order as the float does
+        BitSet matches = matchBox(south, west, north, east);
+        long[] found = new long[matches.cardinality()];
+        int n = 0;
+        for (int i = matches.nextSetBit(0); i >= 0; i = matches.nextSetBit(i + 1))
+        {
+            double d = distanceKm(lat, lon, lats[i], lons[i]);
+            if (d <= radiusKm)
+                found[n++] = ((long) Float.floatToIntBits((float) d) << 32) | i;
+        }
+        Arrays.sort(found, 0, n);
+
+        String[] result = new String[n];
+        for (int i = 0; i < n; i++)
+            result[i] = keys.get((int) found[i]);
+        return result;
+    }
+
+    /**
+     * @return The position of the photo with <code>key</code> as { latitude,
+     * longitude }, or null if it is not in the index
+     */
+    public synchronized double[] getLocation(Object key)
+    {
+        Integer ordinal = ordinals.get(key.toString());
+        return (ordinal != null) ? new double[] { lats[ordinal], lons[ordinal] } : null;
+    }
+
+    /**
+     * @return The number of photos in the index
+     */
+    public synchronized int size()
+    {
+        return ordinals.size();
+    }
+
+    /**
+     * Returns the great-circle distance between two points, in kilometres.
+     */
+    public static double distanceKm(double lat1, double lon1, double lat2, double lon2)
+    {
+        double dLat = Math.toRadians(lat2 - lat1), dLon = Math.toRadians(lon2 - lon1);
+        double a = Math.sin(dLat / 2) * Math.sin(dLat / 2) + Math.cos(Math.toRadians(lat1))
+                * Math.cos(Math.toRadians(lat2)) * Math.sin(dLon / 2) * Math.sin(dLon / 2);
+        return 2 * EARTH_RADIUS_KM * Math.asin(Math.min(1, Math.sqrt(a)));
+    }
+
+    /**
+     * Returns the ordinals of the photos in a box (see inBox()).
+     */
+    private BitSet matchBox(double south, double west, double north, double east)
+    {
+        BitSet matches = new BitSet(keys.size());
+        if (south > north)
+            return matches;
+
+        boolean wraps = west > east;
+        int r0 = row(south), r1 = row(north), c0 = col(west), c1 = col(east);
+        long numCols = wraps ? COLS - c0 + c1 + 1 : c1 - c0 + 1;
+        if ((long) (r1 - r0 + 1) * numCols < keys.size())
+        {
+            for (int r = r0; r <= r1; r++)
+                for (long c = 0; c < numCols; c++)
+                {
+                    int[] list = cells.get(cell(r, (int) ((c0 + c) % COLS)));
+                    if (list != null)
+                        for (int i = 1; i <= list[0]; i++)
+                            if (inBox(list[i], south, west, north, east))
+                                matches.set(list[i]);
+                }
+        }
+        else
+        {
+            for (int i = 0; i < keys.size(); i++)
+                if (inBox(i, south, west, north, east))
+                    matches.set(i);
+        }
+        matches.andNot(removed);
+        return matches;
+    }
+
+    private boolean inBox(int ordinal, double south, double west, double north, double east)
+    {
+        double lat = lats[ordinal], lon = lons[ordinal];
+        if (lat < south || lat > north)
+            return false;
+        return (west <= east) ? lon >= west && lon <= east : lon >= west || lon <= east;
+    }
+
+    private static int row(double lat)
+    {
+        return Math.max(0, Math.min(ROWS - 1, (int) Math.floor((lat + 90) / CELL_DEGREES)));
+    }
+
+    private static int col(double lon)
+    {
+        return Math.max(0, Math.min(COLS - 1, (int) Math.floor((lon + 180) / CELL_DEGREES)));
+    }
+
+    private static int cell(int row, int col)
+    {
+        return row * COLS + col;
+    }
+
+    /**
+     * Returns <code>lon</code> moved into -180 to 180 degrees.
+     */
+    private static double normalize(double lon)
+    {
+        while (lon < -180)
+            lon += 360;
+        while (lon > 180)
+            lon -= 360;
+        return lon;
+    }
+
+    private void addPosting(int cell, int ordinal)
+    {
+        int[] list = cells.get(cell);
+        int size = (list != null) ? list[0] : 0;
+        if (list == null || size + 1 == list.length)
+        {
+            int[] grown = new int[Math.max(MIN_POSTINGS, list != null ? list.length * 2 : 0)];
+            if (list != null)
+                System.arraycopy(list, 0, grown, 0, size + 1);
+            list = grown;
+            cells.put(cell, list);
+        }
+        list[++size] = ordinal;
+        list[0] = size;
+    }
+
+    /**
+     * Renumbers the photos that are left so that removed ordinals are dropped
+     * from the positions and the posting lists.
+     */
+    private void compact()
+    {
+        ArrayList<String> kept = new ArrayList<String>(ordinals.size());
+        for (int i = 0; i < keys.size(); i++)
+            if (!removed.get(i))
+            {
+                lats[kept.size()] = lats[i];
+                lons[kept.size()] = lons[i];
+                ordinals.put(keys.get(i), kept.size());
+                kept.add(keys.get(i));
+            }
+
+        cells.clear();
+        for (int i = 0; i < kept.size(); i++)
+            addPosting(cell(row(lats[i]), col(lons[i])), i);
+
+        keys = kept;
+        removed.clear();
+        numRemoved = 0;
+    }
+}
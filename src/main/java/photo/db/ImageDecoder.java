@@ -0,0 +1,236 @@
+/**
+ * This file is part of PhotoDB - MySQL client/GUI for accessing photo databases
+ * 
+ * Copyright (C) 2014 by Michael Wang
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *   
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>. 
+ */
+package photo.db;
+
+import java.awt.Graphics2D;
+import java.awt.GraphicsConfiguration;
+import java.awt.GraphicsEnvironment;
+import java.awt.Transparency;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.MemoryCacheImageInputStream;
+
+/**
+ * Decodes images that are already in memory (e.g. thumbnails read from a
+ * ResultSet), in parallel on a ForkJoinPool.
+ *
+ * Compared to calling ImageIO.read() for every image, each worker thread keeps
+ * one ImageReader per format and reuses it, instead of looking up a new one in
+ * the SPI registry every time; images are read from memory, without ImageIO's
+ * temp-file cache; and decoded images are converted to the type of the screen
+ * (when there is one), so that drawing them needs no conversion.
+ *
+ * PhotoDBs share one decoder (see acquireShared()), whose pool is shut down
+ * once the last of them has released it.
+ */
+public class ImageDecoder
+{
+    // Readers of the current thread, by format name
+    private static final ThreadLocal<HashMap<String, ImageReader>> READERS =
+            new ThreadLocal<HashMap<String, ImageReader>>() {
+                protected HashMap<String, ImageReader> initialValue()
+                {
+                    return new HashMap<String, ImageReader>();
+                }
+            };
+
+    // The shared decoder, and the number of users that have not released it yet
+    private static ImageDecoder shared;
+    private static int sharedUsers;
+
+    private ForkJoinPool pool;
+
+    /**
+     * Initializes a new decoder with as many threads as there are processors.
+     */
+    public ImageDecoder()
+    {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * @param threads The number of images to decode in parallel
+     */
+    public ImageDecoder(int threads)
+    {
+        pool = new ForkJoinPool(threads);
+    }
+
+    /**
+     * Returns the decoder shared by all callers, creating it (with as many threads
+     * as there are processors) if no one is using it; call releaseShared() once
+     * it is no longer needed.
+     *
+     * @return The shared decoder
+     */
+    public static synchronized ImageDecoder acquireShared()
+    {
+        if (shared == null)
+            shared = new ImageDecoder();
+        sharedUsers++;
+        return shared;
+    }
+
+    /**
+     * Releases the shared decoder (see acquireShared()), and shuts it down if
+     * this was its last user.
+     */
+    public static synchronized void releaseShared()
+    {
+        if (sharedUsers == 0 || --sharedUsers > 0)
+            return;
+        shared.shutdown();
+        shared = null;
+    }
+
+    /**
+     * Queues <code>data</code> to be decoded; the returned Future returns the
+     * image, or null if it cannot be decoded (like ImageIO.read()). If the
+     * decoder has been shut down, the image is decoded on the calling thread.
+     *
+     * @param data The encoded image
+     * @return The Future of the decoded image
+     */
+    public Future<BufferedImage> submit(final byte[] data)
+    {
+        FutureTask<BufferedImage> task = new FutureTask<BufferedImage>(new Callable<BufferedImage>() {
+            public BufferedImage call() throws IOException
+            {
+                return decode(data);
+            }
+        });
+        try {
+            pool.execute(task);
+        } catch (RejectedExecutionException e) {
+            task.run();
+        }
+        return task;
+    }
+
+    /**
+     * Decodes <code>data</code> on the calling thread.
+     *
+     * @param data The encoded image
+     * @return The decoded image, or null if no reader supports its format
+     * @throws IOException If the image cannot be decoded
+     */
+    public static BufferedImage decode(byte[] data) throws IOException
+    {
+        ImageInputStream iis = new MemoryCacheImageInputStream(new ByteArrayInputStream(data));
+        try {
+            ImageReader reader = getReader(data, iis);
+            if (reader == null)
+                return null;
+
+            reader.setInput(iis, true, true);
+            try {
+                return toCompatibleImage(reader.read(0));
+            } finally {
+                reader.setInput(null);                                      //Keep the reader, but not the data
+            }
+        } finally {
+            iis.close();
+        }
+    }
+
+    /**
+     * Shuts down the worker threads; images that are queued are still decoded.
+     */
+    public void shutdown()
+    {
+        pool.shutdown();
+    }
+
+    /**
+     * Returns this thread's reader for the format of <code>data</code>, going
+     * through the SPI registry only the first time a format is seen.
+     */
+    private static ImageReader getReader(byte[] data, ImageInputStream iis)
+    {
+        HashMap<String, ImageReader> readers = READERS.get();
+        String format = sniffFormat(data);
+        ImageReader reader = (format != null) ? readers.get(format) : null;
+        if (reader != null)
+            return reader;
+
+        Iterator<ImageReader> it = (format != null) ? ImageIO.getImageReadersByFormatName(format)
+                                                    : ImageIO.getImageReaders(iis);
+        if (!it.hasNext())
+            return null;
+        reader = it.next();
+        if (format != null)
+            readers.put(format, reader);
+        return reader;
+    }
+
+    /**
+     * Returns the format name of <code>data</code> judging by its magic number,
+     * or null if it is none of the common photo formats.
+     */
+    private static String sniffFormat(byte[] data)
+    {
+        if (data.length < 4)
+            return null;
+
+        int b0 = data[0] & 0xff, b1 = data[1] & 0xff, b2 = data[2] & 0xff, b3 = data[3] & 0xff;
+        if (b0 == 0xff && b1 == 0xd8)
+            return "jpeg";
+        if (b0 == 0x89 && b1 == 'P' && b2 == 'N' && b3 == 'G')
+            return "png";
+        if (b0 == 'G' && b1 == 'I' && b2 == 'F')
+            return "gif";
+        if (b0 == 'B' && b1 == 'M')
+            return "bmp";
+        return null;
+    }
+
+    /**
+     * Converts <code>image</code> to the type of the default screen, if there is
+     * a screen and the types differ.
+     */
+    private static BufferedImage toCompatibleImage(BufferedImage image)
+    {
+        if (image == null || GraphicsEnvironment.isHeadless())
+            return image;
+
+        GraphicsConfiguration gc = GraphicsEnvironment.getLocalGraphicsEnvironment()
+                .getDefaultScreenDevice().getDefaultConfiguration();
+        int transparency = image.getColorModel().hasAlpha() ? Transparency.TRANSLUCENT : Transparency.OPAQUE;
+        if (image.getColorModel().equals(gc.getColorModel(transparency)))
+            return image;
+
+        BufferedImage compatible = gc.createCompatibleImage(image.getWidth(), image.getHeight(), transparency);
+        Graphics2D g2d = compatible.createGraphics();
+        g2d.drawImage(image, 0, 0, null);
+        g2d.dispose();
+        return compatible;
+    }
+}
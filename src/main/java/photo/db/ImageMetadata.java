@@ -0,0 +1,623 @@
+/**
+ * This file is part of PhotoDB - MySQL client/GUI for accessing photo databases
+ * 
+ * Copyright (C) 2014 by Michael Wang
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *   
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>. 
+ */
+package photo.db;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+
+/**
+ * The metadata of an image file that is worth storing in columns of its own:
+ * when and where (from the GPS tags) the photo was taken, the camera, the
+ * dimensions and orientation, and the IPTC caption and keywords; see read().
+ *
+ * JPEG and TIFF files are parsed directly: for a JPEG, only the segments before
+ * the compressed pixels are read (the EXIF block in APP1, the IPTC block in
+ * APP13, and the frame header for the dimensions); for a TIFF, only its IFDs.
+ * So reading the metadata takes a few KB of I/O and no decoding, however large
+ * the image is. For other formats, only the dimensions are read, from the image
+ * header via ImageIO.
+ */
+public class ImageMetadata
+{
+    private static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    // TIFF and EXIF tags
+    private static final int IMAGE_WIDTH = 0x0100, IMAGE_LENGTH = 0x0101, IMAGE_DESCRIPTION = 0x010E,
+                            MAKE = 0x010F, MODEL = 0x0110, ORIENTATION = 0x0112, DATE_TIME = 0x0132,
+                            EXIF_IFD = 0x8769, GPS_IFD = 0x8825, DATE_TIME_ORIGINAL = 0x9003,
+                            DATE_TIME_DIGITIZED = 0x9004;
+    // Tags of the GPS IFD
+    private static final int GPS_LATITUDE_REF = 1, GPS_LATITUDE = 2, GPS_LONGITUDE_REF = 3, GPS_LONGITUDE = 4;
+    // IPTC datasets of the application record (2)
+    private static final int IPTC_KEYWORDS = 25, IPTC_DATE_CREATED = 55, IPTC_TIME_CREATED = 60,
+                            IPTC_CAPTION = 120;
+
+    private Timestamp captureTime;
+    private String make, model;
+    private int width, height, orientation;
+    private Double latitude, longitude;
+    private String description;
+    private List<String> keywords = new ArrayList<String>();
+
+    // Capture times by source, in order of preference: EXIF original, EXIF digitized, IPTC, TIFF
+    private Timestamp[] times = new Timestamp[4];
+    private String iptcDate, iptcTime;
+
+    private ImageMetadata()
+    {
+    }
+
+    /**
+     * Reads the metadata of the image in <code>file</code> (see the class
+     * description). Fields that the file does not have are left empty.
+     *
+     * @param file The image file
+     * @return The metadata
+     * @throws IOException If the file cannot be read
+     */
+    public static ImageMetadata read(File file) throws IOException
+    {
+        ImageMetadata meta = new ImageMetadata();
+        byte[] magic = new byte[4];
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+
+        try {
+            int n = raf.read(magic);
+            if (n >= 2 && (magic[0] & 0xff) == 0xFF && (magic[1] & 0xff) == 0xD8)
+                meta.readJpeg(file);
+            else if (n == 4 && ((magic[0] == 'I' && magic[1] == 'I' && magic[2] == 42 && magic[3] == 0)
+                                || (magic[0] == 'M' && magic[1] == 'M' && magic[2] == 0 && magic[3] == 42)))
+                meta.readTiff(new Tiff(raf, null, 0), true);
+            else
+                meta.readDimensions(file);
+        } finally {
+            raf.close();
+        }
+        meta.finish();
+        return meta;
+    }
+
+    /**
+     * @return When the photo was taken (EXIF DateTimeOriginal, or the best
+     * substitute), or null if unknown
+     */
+    public Timestamp getCaptureTime()
+    {
+        return captureTime;
+    }
+
+    /**
+     * @return The make and model of the camera (e.g. "Canon EOS 5D"), or null if unknown
+     */
+    public String getCamera()
+    {
+        if (model == null)
+            return make;
+        if (make == null || model.toLowerCase().startsWith(make.toLowerCase()))
+            return model;
+        return make + " " + model;
+    }
+
+    /**
+     * @return The width of the image as stored (i.e. before orientation), or 0 if unknown
+     */
+    public int getWidth()
+    {
+        return width;
+    }
+
+    /**
+     * @return The height of the image as stored (i.e. before orientation), or 0 if unknown
+     */
+    public int getHeight()
+    {
+        return height;
+    }
+
+    /**
+     * @return The EXIF orientation (1 = upright, 3 = upside down, 6 and 8 =
+     * rotated by 90 degrees; 2, 4, 5 and 7 are mirrored), or 0 if unknown
+     */
+    public int getOrientation()
+    {
+        return orientation;
+    }
+
+    /**
+     * @return The latitude where the photo was taken, in degrees (negative in the
+     * south), or null if it has no GPS position
+     */
+    public Double getLatitude()
+    {
+        return latitude;
+    }
+
+    /**
+     * @return The longitude where the photo was taken, in degrees (negative in
+     * the west), or null if it has no GPS position
+     */
+    public Double getLongitude()
+    {
+        return longitude;
+    }
+
+    /**
+     * @return The IPTC caption, or else the EXIF image description, or null
+     */
+    public String getDescription()
+    {
+        return description;
+    }
+
+    /**
+     * @return The IPTC keywords (empty if there are none)
+     */
+    public List<String> getKeywords()
+    {
+        return keywords;
+    }
+
+    /**
+     * Reads the markers of a JPEG up to the start of the compressed pixels.
+     */
+    private void readJpeg(File file) throws IOException
+    {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 8192));
+        try {
+            in.readUnsignedShort();                                            //SOI
+            while (true)
+            {
+                int marker = in.readUnsignedByte();
+                if (marker != 0xFF)
+                    return;                                                    //Not a marker - give up
+                marker = in.readUnsignedByte();
+                while (marker == 0xFF)                                        //Fill bytes
+                    marker = in.readUnsignedByte();
+                if (marker == 0xD8 || marker == 0x01 || (marker >= 0xD0 && marker <= 0xD7))
+                    continue;                                                //No length
+                if (marker == 0xDA || marker == 0xD9)
+                    return;                                                    //Start of scan/end of image
+
+                int length = in.readUnsignedShort() - 2;
+                if (length < 0)
+                    return;
+                boolean isSof = marker >= 0xC0 && marker <= 0xCF && marker != 0xC4 && marker != 0xC8 && marker != 0xCC;
+                if (marker == 0xE1 || marker == 0xED || isSof)
+                {
+                    byte[] segment = new byte[length];
+                    in.readFully(segment);
+                    if (marker == 0xE1)
+                        readExifSegment(segment);
+                    else if (marker == 0xED)
+                        readPhotoshopSegment(segment);
+                    else if (length >= 5)
+                    {
+                        height = ((segment[1] & 0xff) << 8) | (segment[2] & 0xff);
+                        width = ((segment[3] & 0xff) << 8) | (segment[4] & 0xff);
+                    }
+                }
+                else
+                    skipFully(in, length);
+            }
+        } catch (EOFException e) {
+            // Truncated file: keep what was read
+        } finally {
+            in.close();
+        }
+    }
+
+    private void readExifSegment(byte[] segment) throws IOException
+    {
+        if (segment.length < 14 || !new String(segment, 0, 6, ISO_8859_1).equals("Exif\u0000\u0000"))
+            return;                                                            //E.g. XMP, which also uses APP1
+        Tiff tiff = new Tiff(null, segment, 6);
+        if (tiff.readHeader())
+            readTiff(tiff, false);
+    }
+
+    /**
+     * Reads the IPTC block from the image resource blocks ("8BIM") of APP13.
+     */
+    private void readPhotoshopSegment(byte[] segment)
+    {
+        String id = "Photoshop 3.0\u0000";
+        if (segment.length < id.length() || !new String(segment, 0, id.length(), ISO_8859_1).equals(id))
+            return;
+
+        int pos = id.length();
+        while (pos + 12 <= segment.length && new String(segment, pos, 4, ISO_8859_1).equals("8BIM"))
+        {
+            int resource = u16(segment, pos + 4);
+            int nameLength = segment[pos + 6] & 0xff;
+            pos += 6 + ((nameLength + 2) & ~1);                                //Pascal string, padded to even
+            if (pos + 4 > segment.length)
+                return;
+            int size = (int) u32(segment, pos);
+            pos += 4;
+            if (size < 0 || pos + size > segment.length)
+                return;
+            if (resource == 0x0404)
+                readIptc(segment, pos, pos + size);
+            pos += (size + 1) & ~1;
+        }
+    }
+
+    private void readIptc(byte[] data, int pos, int end)
+    {
+        Charset charset = ISO_8859_1;
+        while (pos + 5 <= end && data[pos] == 0x1C)
+        {
+            int record = data[pos + 1] & 0xff, dataset = data[pos + 2] & 0xff;
+            int size = u16(data, pos + 3);
+            pos += 5;
+            if ((size & 0x8000) != 0 || pos + size > end)
+                return;                                                        //Extended datasets are not used for text
+            String value = new String(data, pos, size, charset).trim();
+            pos += size;
+
+            if (record == 1 && dataset == 90 && value.equals("\u001B%G"))
+                charset = UTF_8;                                            //Coded character set
+            else if (record == 2 && dataset == IPTC_CAPTION && !value.isEmpty())
+                description = value;
+            else if (record == 2 && dataset == IPTC_KEYWORDS && !value.isEmpty())
+                keywords.add(value);
+            else if (record == 2 && dataset == IPTC_DATE_CREATED)
+                iptcDate = value;
+            else if (record == 2 && dataset == IPTC_TIME_CREATED)
+                iptcTime = value;
+        }
+    }
+
+    /**
+     * Reads IFD0 of <code>tiff</code> and the EXIF and GPS IFDs it points to. The
+     * dimensions are taken from IFD0 for a TIFF file only, since those of a
+     * JPEG's EXIF block describe its thumbnail or are often wrong.
+     */
+    private void readTiff(Tiff tiff, boolean isTiffFile) throws IOException
+    {
+        if (isTiffFile && !tiff.readHeader())
+            return;
+
+        long exifIfd = 0, gpsIfd = 0;
+        for (long entry : tiff.entries(tiff.firstIfd))
+        {
+            int tag = tiff.tag(entry);
+            if (tag == MAKE)
+                make = tiff.string(entry);
+            else if (tag == MODEL)
+                model = tiff.string(entry);
+            else if (tag == ORIENTATION)
+                orientation = (int) tiff.number(entry);
+            else if (tag == IMAGE_DESCRIPTION && description == null)
+                description = tiff.string(entry);
+            else if (tag == DATE_TIME)
+                times[3] = parseExifTime(tiff.string(entry));
+            else if (tag == EXIF_IFD)
+                exifIfd = tiff.number(entry);
+            else if (tag == GPS_IFD)
+                gpsIfd = tiff.number(entry);
+            else if (tag == IMAGE_WIDTH && isTiffFile)
+                width = (int) tiff.number(entry);
+            else if (tag == IMAGE_LENGTH && isTiffFile)
+                height = (int) tiff.number(entry);
+        }
+
+        if (exifIfd > 0)
+            for (long entry : tiff.entries(exifIfd))
+            {
+                int tag = tiff.tag(entry);
+                if (tag == DATE_TIME_ORIGINAL)
+                    times[0] = parseExifTime(tiff.string(entry));
+                else if (tag == DATE_TIME_DIGITIZED)
+                    times[1] = parseExifTime(tiff.string(entry));
+            }
+
+        if (gpsIfd > 0)
+            readGps(tiff, gpsIfd);
+    }
+
+    /**
+     * Reads the position from the GPS IFD at <code>ifd</code>: each coordinate is
+     * three rationals (degrees, minutes, seconds) and a reference ("N" or "S",
+     * "E" or "W") that gives its sign.
+     */
+    private void readGps(Tiff tiff, long ifd) throws IOException
+    {
+        String latRef = null, lonRef = null;
+        double[] lat = null, lon = null;
+        for (long entry : tiff.entries(ifd))
+        {
+            int tag = tiff.tag(entry);
+            if (tag == GPS_LATITUDE_REF)
+                latRef = tiff.string(entry);
+            else if (tag == GPS_LATITUDE)
+                lat = tiff.rationals(entry);
+            else if (tag == GPS_LONGITUDE_REF)
+                lonRef = tiff.string(entry);
+            else if (tag == GPS_LONGITUDE)
+                lon = tiff.rationals(entry);
+        }
+        if (lat == null || lon == null || lat.length < 3 || lon.length < 3)
+            return;
+
+        double latitude = lat[0] + lat[1] / 60 + lat[2] / 3600;
+        double longitude = lon[0] + lon[1] / 60 + lon[2] / 3600;
+        if ("S".equalsIgnoreCase(latRef))
+            latitude = -latitude;
+        if ("W".equalsIgnoreCase(lonRef))
+            longitude = -longitude;
+        if (Double.isNaN(latitude) || Double.isNaN(longitude) || Math.abs(latitude) > 90 || Math.abs(longitude) > 180)
+            return;                                                            //E.g. a 0/0 rational of a GPS without a fix
+        this.latitude = latitude;
+        this.longitude = longitude;
+    }
+
+    /**
+     * Reads just the dimensions from the header of an image in another format.
+     */
+    private void readDimensions(File file) throws IOException
+    {
+        ImageInputStream iis = ImageIO.createImageInputStream(file);
+        if (iis == null)
+            return;
+        ImageReader reader = null;
+
+        try {
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(iis);
+            if (!readers.hasNext())
+                return;                                                        //Not an image
+            reader = readers.next();
+            reader.setInput(iis, true, true);
+            width = reader.getWidth(0);
+            height = reader.getHeight(0);
+        } finally {
+            if (reader != null) reader.dispose();
+            iis.close();
+        }
+    }
+
+    /**
+     * Picks the capture time from the times that were found, and cleans up the
+     * strings.
+     */
+    private void finish()
+    {
+        if (iptcDate != null && iptcDate.matches("\\d{8}"))
+        {
+            String time = (iptcTime != null && iptcTime.matches("\\d{6}.*")) ? iptcTime : "000000";
+            times[2] = parseExifTime(iptcDate.substring(0, 4) + ":" + iptcDate.substring(4, 6) + ":"
+                    + iptcDate.substring(6, 8) + " " + time.substring(0, 2) + ":" + time.substring(2, 4) + ":"
+                    + time.substring(4, 6));
+        }
+        for (Timestamp time : times)
+            if (captureTime == null)
+                captureTime = time;
+
+        make = clean(make);
+        model = clean(model);
+        description = clean(description);
+    }
+
+    /**
+     * Parses an EXIF date and time ("yyyy:MM:dd HH:mm:ss"), or returns null if
+     * it is not one (e.g. the "0000:00:00 00:00:00" of cameras whose clock was not set).
+     */
+    private static Timestamp parseExifTime(String s)
+    {
+        if (s == null || !s.matches("\\d{4}:\\d{2}:\\d{2} \\d{2}:\\d{2}:\\d{2}.*") || s.startsWith("0000"))
+            return null;
+        try {
+            return Timestamp.valueOf(s.substring(0, 4) + "-" + s.substring(5, 7) + "-" + s.substring(8, 19));
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    private static String clean(String s)
+    {
+        if (s == null)
+            return null;
+        s = s.replace('\u0000', ' ').trim();
+        return s.isEmpty() ? null : s;
+    }
+
+    private static void skipFully(DataInputStream in, int n) throws IOException
+    {
+        while (n > 0)
+        {
+            int skipped = (int) in.skip(n);
+            if (skipped <= 0)
+            {
+                in.readByte();                                                //Throws EOFException at the end
+                skipped = 1;
+            }
+            n -= skipped;
+        }
+    }
+
+    private static int u16(byte[] b, int pos)
+    {
+        return ((b[pos] & 0xff) << 8) | (b[pos + 1] & 0xff);
+    }
+
+    private static long u32(byte[] b, int pos)
+    {
+        return ((long) u16(b, pos) << 16) | u16(b, pos + 2);
+    }
+
+    /**
+     * A TIFF structure (a TIFF file, or the EXIF block of a JPEG), read from a
+     * file or from an array in which it starts at <code>base</code>. Offsets are
+     * relative to the start of the structure, as in TIFF.
+     */
+    private static class Tiff
+    {
+        private static final int MAX_ENTRIES = 1000;
+
+        private RandomAccessFile raf;
+        private byte[] data;
+        private int base;
+        private boolean little;
+        private long length;
+        long firstIfd;
+
+        Tiff(RandomAccessFile raf, byte[] data, int base) throws IOException
+        {
+            this.raf = raf;
+            this.data = data;
+            this.base = base;
+            length = (raf != null) ? raf.length() : data.length - base;
+        }
+
+        /**
+         * Reads the byte order and the offset of the first IFD, and returns whether
+         * they are valid.
+         */
+        boolean readHeader() throws IOException
+        {
+            if (length < 8)
+                return false;
+            byte[] header = read(0, 8);
+            if (header[0] != header[1] || (header[0] != 'I' && header[0] != 'M'))
+                return false;
+            little = header[0] == 'I';
+            firstIfd = u32(4);
+            return firstIfd >= 8 && firstIfd < length;
+        }
+
+        /**
+         * Returns the offsets of the (12 byte) entries of the IFD at <code>ifd</code>.
+         */
+        List<Long> entries(long ifd) throws IOException
+        {
+            ArrayList<Long> entries = new ArrayList<Long>();
+            if (ifd + 2 > length)
+                return entries;
+            int count = Math.min(u16(ifd), MAX_ENTRIES);
+            for (int i = 0; i < count && ifd + 2 + (i + 1) * 12 <= length; i++)
+                entries.add(ifd + 2 + i * 12);
+            return entries;
+        }
+
+        int tag(long entry) throws IOException
+        {
+            return u16(entry);
+        }
+
+        /**
+         * Returns the (first) value of a BYTE, SHORT or LONG entry.
+         */
+        long number(long entry) throws IOException
+        {
+            switch (u16(entry + 2))
+            {
+                case 1:
+                    return read(entry + 8, 1)[0] & 0xff;
+                case 3:
+                    return u16(entry + 8);
+                case 4:
+                    return u32(entry + 8);
+                default:
+                    return 0;
+            }
+        }
+
+        /**
+         * Returns the values of a RATIONAL entry (or null if it is not one), as
+         * doubles; a zero denominator gives NaN.
+         */
+        double[] rationals(long entry) throws IOException
+        {
+            long count = u32(entry + 4);
+            if (u16(entry + 2) != 5 || count > 16)
+                return null;
+            long pos = u32(entry + 8);
+            if (pos + count * 8 > length)
+                return null;
+            double[] values = new double[(int) count];
+            for (int i = 0; i < values.length; i++)
+            {
+                long denominator = u32(pos + i * 8 + 4);
+                values[i] = (denominator != 0) ? (double) u32(pos + i * 8) / denominator : Double.NaN;
+            }
+            return values;
+        }
+
+        /**
+         * Returns the value of an ASCII entry, or null if it is not one.
+         */
+        String string(long entry) throws IOException
+        {
+            int type = u16(entry + 2);
+            long count = u32(entry + 4);
+            if (type != 2 || count > 64 * 1024)
+                return null;
+            long pos = (count <= 4) ? entry + 8 : u32(entry + 8);
+            if (pos + count > length)
+                return null;
+            byte[] b = read(pos, (int) count);
+            int end = 0;
+            while (end < b.length && b[end] != 0)
+                end++;
+            return new String(b, 0, end, ISO_8859_1);
+        }
+
+        private int u16(long pos) throws IOException
+        {
+            byte[] b = read(pos, 2);
+            return little ? ((b[1] & 0xff) << 8) | (b[0] & 0xff) : ((b[0] & 0xff) << 8) | (b[1] & 0xff);
+        }
+
+        private long u32(long pos) throws IOException
+        {
+            long a = u16(pos), b = u16(pos + 2);
+            return little ? (b << 16) | a : (a << 16) | b;
+        }
+
+        private byte[] read(long pos, int n) throws IOException
+        {
+            if (pos < 0 || pos + n > length)
+                throw new EOFException("Offset outside of the TIFF structure");
+            byte[] b = new byte[n];
+            if (raf != null)
+            {
+                raf.seek(pos);
+                raf.readFully(b);
+            }
+            else
+                System.arraycopy(data, base + (int) pos, b, 0, n);
+            return b;
+        }
+    }
+}
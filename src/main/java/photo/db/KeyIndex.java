@@ -0,0 +1,231 @@
+/**
+ * This file is part of PhotoDB - MySQL client/GUI for accessing photo databases
+ * 
+ * Copyright (C) 2014 by Michael Wang
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *   
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>. 
+ */
+package photo.db;
+
+import java.util.Arrays;
+
+/**
+ * A client-side membership index over the unique keys of a table, so that
+ * PhotoDB can tell whether a key is "definitely new" without a round trip.
+ *
+ * Keys are reduced to 64-bit fingerprints (of their String value), which are
+ * kept in a Bloom filter in front of a sorted long[] set. A key whose fingerprint
+ * is in neither is definitely not in the table (as of when the index was last
+ * updated); a key whose fingerprint is found MAY be in the table, since two keys
+ * can share a fingerprint, so the database still has the final say for those.
+ * The set keeps one fingerprint per key, duplicates included, so that removing
+ * a key never drops the fingerprint of another key it collides with.
+ *
+ * Added fingerprints are buffered and merged into the sorted set in batches,
+ * so bulk imports do not pay for an array copy per key. All public methods
+ * are synchronized, since PhotoDB may insert and delete from several threads.
+ */
+public class KeyIndex
+{
+    // Bits per key and number of hash functions, for a ~1% false positive rate
+    private static final int BITS_PER_KEY = 10;
+    private static final int NUM_HASHES = 7;
+    private static final int MIN_BITS = 1024;
+    private static final int MAX_PENDING = 1024;
+
+    // Bloom filter, and the number of keys it was sized for
+    private long[] bits;
+    private int numBits;
+    private int capacity;
+
+    // Sorted fingerprints (one per key), and the unsorted fingerprints that have yet to be merged in
+    private long[] keys;
+    private int size;
+    private long[] pending;
+    private int numPending;
+
+    public KeyIndex()
+    {
+        this(new Object[0]);
+    }
+
+    /**
+     * Initializes a new index containing all of <code>keyValues</code>
+     * (e.g. as returned by <code>PhotoDB.getAllUniqueKeys()</code>).
+     *
+     * @param keyValues The unique key values to index; null values are skipped
+     */
+    public KeyIndex(Object[] keyValues)
+    {
+        keys = new long[Math.max(keyValues.length, 16)];
+        pending = new long[MAX_PENDING];
+        for (Object key : keyValues)
+            if (key != null)
+                keys[size++] = fingerprint(key);
+        Arrays.sort(keys, 0, size);
+
+        rebuildFilter(size);
+    }
+
+    /**
+     * Returns whether <code>key</code> may be in the table. If this returns
+     * false, the key is definitely not in the table.
+     *
+     * @param key The unique key value to look up
+     * @return <code>false</code> if <code>key</code> is definitely new,
+     * <code>true</code> if it may already exist
+     */
+    public synchronized boolean mightContain(Object key)
+    {
+        long fp = fingerprint(key);
+        if (!filterContains(fp))
+            return false;
+
+        for (int i = 0; i < numPending; i++)
+            if (pending[i] == fp)
+                return true;
+        return Arrays.binarySearch(keys, 0, size, fp) >= 0;
+    }
+
+    /**
+     * Adds <code>key</code> to the index; call this (once) after the key has
+     * been inserted into the table.
+     *
+     * @param key The unique key value that was inserted
+     */
+    public synchronized void add(Object key)
+    {
+        long fp = fingerprint(key);
+        pending[numPending++] = fp;
+        if (numPending == MAX_PENDING)
+            mergePending();
+
+        // Resize the filter once it holds twice the keys it was sized for
+        if (size + numPending > 2 * capacity)
+        {
+            mergePending();
+            rebuildFilter(size);
+        }
+        else
+            filterAdd(fp);
+    }
+
+    /**
+     * Removes <code>key</code> from the index; call this (once) after the key
+     * has been deleted from the table. Only one copy of its fingerprint is
+     * removed, so keys that share it are still found. The Bloom filter keeps its
+     * bits (it cannot delete), which costs nothing but a binary search for the
+     * removed key.
+     *
+     * @param key The unique key value that was deleted
+     */
+    public synchronized void remove(Object key)
+    {
+        mergePending();
+        int i = Arrays.binarySearch(keys, 0, size, fingerprint(key));
+        if (i < 0)
+            return;
+
+        System.arraycopy(keys, i + 1, keys, i, size - i - 1);
+        size--;
+    }
+
+    /**
+     * @return The number of keys in the index
+     */
+    public synchronized int size()
+    {
+        return size + numPending;
+    }
+
+    /**
+     * Returns a 64-bit FNV-1a hash of the String value of <code>key</code>,
+     * so that keys of any DataType can be indexed.
+     */
+    static long fingerprint(Object key)
+    {
+        String str = key.toString();
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < str.length(); i++)
+        {
+            h ^= str.charAt(i);
+            h *= 0x100000001b3L;
+        }
+
+        // Final mix so that the low and high halves are both well distributed
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    private boolean filterContains(long fp)
+    {
+        int h1 = (int) fp, h2 = (int) (fp >>> 32);
+        for (int i = 0; i < NUM_HASHES; i++)
+        {
+            int bit = ((h1 + i * h2) & Integer.MAX_VALUE) % numBits;
+            if ((bits[bit >>> 6] & (1L << bit)) == 0)
+                return false;
+        }
+        return true;
+    }
+
+    private void filterAdd(long fp)
+    {
+        int h1 = (int) fp, h2 = (int) (fp >>> 32);
+        for (int i = 0; i < NUM_HASHES; i++)
+        {
+            int bit = ((h1 + i * h2) & Integer.MAX_VALUE) % numBits;
+            bits[bit >>> 6] |= 1L << bit;
+        }
+    }
+
+    /**
+     * Resizes the Bloom filter for <code>expected</code> keys and re-adds all
+     * fingerprints in the sorted set (pending ones must be merged first).
+     */
+    private void rebuildFilter(int expected)
+    {
+        capacity = Math.max(expected, MIN_BITS / BITS_PER_KEY);
+        numBits = capacity * BITS_PER_KEY;
+        bits = new long[(numBits + 63) / 64];
+        for (int i = 0; i < size; i++)
+            filterAdd(keys[i]);
+    }
+
+    /**
+     * Sorts the pending fingerprints and merges them into the sorted set.
+     */
+    private void mergePending()
+    {
+        if (numPending == 0)
+            return;
+
+        Arrays.sort(pending, 0, numPending);
+        long[] merged = new long[Math.max(keys.length, size + numPending)];
+        int i = 0, j = 0, k = 0;
+        while (i < size || j < numPending)
+        {
+            if (j == numPending || (i < size && keys[i] <= pending[j]))
+                merged[k++] = keys[i++];
+            else
+                merged[k++] = pending[j++];
+        }
+
+        keys = merged;
+        size = k;
+        numPending = 0;
+    }
+}
@@ -0,0 +1,100 @@
+/**
+ * This file is part of PhotoDB - MySQL client/GUI for accessing photo databases
+ * 
+ * Copyright (C) 2014 by Michael Wang
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *   
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>. 
+ */
+package photo.db;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Perceptual hashes of images, as stored in the perceptual hash column of
+ * PhotoDB (see PhotoDB.setPerceptualHashColumn()).
+ *
+ * The hash is a dHash: the image is reduced to 9x8 cells of average brightness,
+ * and each of the 64 bits tells whether a cell is darker than its neighbour to
+ * the right. Since it only depends on the coarse gradients of the image, resaves,
+ * resizes and small edits of a photo (and the frames of a burst) get hashes that
+ * differ in a few bits, while unrelated photos differ in about half of them; see
+ * distance().
+ */
+public class PerceptualHash
+{
+    private static final int COLS = 9, ROWS = 8;
+    // The size that images are decoded at before they are hashed (see compute(File))
+    private static final int DECODE_SIZE = 256;
+
+    private PerceptualHash()
+    {
+    }
+
+    /**
+     * Decodes the image in <code>file</code> at a reduced size (see
+     * PhotoDB.readSubsampled()) and returns its hash.
+     *
+     * @param file The image file
+     * @return The hash of the image
+     * @throws IOException If the file cannot be read or is not a supported image
+     */
+    public static long compute(File file) throws IOException
+    {
+        return compute(PhotoDB.readSubsampled(file, DECODE_SIZE, DECODE_SIZE));
+    }
+
+    /**
+     * @param image The image to hash, at any size (e.g. a thumbnail)
+     * @return The hash of the image
+     */
+    public static long compute(BufferedImage image)
+    {
+        int w = image.getWidth(), h = image.getHeight();
+        double[] sums = new double[COLS * ROWS];
+        int[] counts = new int[COLS * ROWS];
+        int[] row = new int[w];
+
+        // Average the brightness of the pixels in each cell
+        for (int y = 0; y < h; y++)
+        {
+            image.getRGB(0, y, w, 1, row, 0, w);
+            int cellRow = y * ROWS / h * COLS;
+            for (int x = 0; x < w; x++)
+            {
+                int rgb = row[x], cell = cellRow + x * COLS / w;
+                sums[cell] += 0.299 * ((rgb >> 16) & 0xff) + 0.587 * ((rgb >> 8) & 0xff) + 0.114 * (rgb & 0xff);
+                counts[cell]++;
+            }
+        }
+        for (int i = 0; i < sums.length; i++)
+            sums[i] /= Math.max(counts[i], 1);                                //Images under 9x8 leave cells empty
+
+        long hash = 0;
+        for (int y = 0; y < ROWS; y++)
+            for (int x = 0; x < COLS - 1; x++)
+                hash = (hash << 1) | (sums[y * COLS + x] < sums[y * COLS + x + 1] ? 1 : 0);
+        return hash;
+    }
+
+    /**
+     * Returns the number of bits in which two hashes differ (0-64). Copies of the
+     * same photo are usually within 5 or so, and similar shots within 10-12.
+     */
+    public static int distance(long a, long b)
+    {
+        return Long.bitCount(a ^ b);
+    }
+}
@@ -20,26 +20,50 @@ package photo.db;
 
 import java.awt.Graphics2D;
 import java.awt.Image;
+import java.awt.Rectangle;
 import java.awt.image.BufferedImage;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.sql.Connection;
-import java.sql.DriverManager;
+import java.sql.DatabaseMetaData;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Statement;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Deflater;
 
 import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
 
 public class PhotoDB
 {
@@ -49,28 +73,89 @@ public class PhotoDB
     private String dbName;
     private String tableName;
     private String user, password;
-    protected Connection conn;
+    // Every operation leases its own connection from the pool, so PhotoDB can be used from several threads
+    protected volatile ConnectionPool pool;
+    private int poolSize = 4;
+    
+    // Read replicas ("host:port"), their router, and when this PhotoDB last wrote to the primary
+    private String[] readHostnames = new String[0];
+    protected volatile ReplicaRouter readers;
+    private volatile long lastWrite;
+    private static final long READ_AFTER_WRITE_MS = 5000;
 
     // Array that stores column order, Hashmap that stores column names & type
     private String[] columnNames;
     private HashMap<String, DataType> columnTypes;
+    // The table that stores the BIN_STREAM columns, keyed by the unique key, or null if they are in tableName
+    private String blobTable;
     
-    // Retrieved photos & properties
-    private File[] currPhotos;
-    private Properties[] currProps;
+    // Retrieved photos & properties (merged from all shards in ShardedPhotoDB)
+    protected volatile File[] currPhotos;
+    protected volatile Properties[] currProps;
+    // The number of rows of updateRows() that are sent to the database at a time
+    private static final int UPDATE_BATCH_SIZE = 1000;
     // Cached photos from getSpecificPhoto(), and whether the cache has completed or not
-    private ArrayList<File> cachedPhotos;
-    private HashMap<File, Boolean> cachedDone;
-    private ArrayList<StreamWriter> streamWriters;
+    private List<File> cachedPhotos;
+    private Map<File, Boolean> cachedDone;
+    private List<StreamWriter> streamWriters;
+    private ConcurrentHashMap<File, Object> writeLocks;
+    // Decodes thumbnails in parallel; the decoder shared by all PhotoDBs (see ImageDecoder.acquireShared())
+    // while connected
+    private volatile ImageDecoder decoder;
     // Path where ALL retrieved/cached photos are stored
     private String photoPath = "photodb_local";
     
     // The column of the unique key, to identify each row entry
     private int uniqueKey;
+    // The column storing the SHA-256 of the image bytes, or -1 if rows are not deduplicated
+    private int hashKey = -1;
+    // Local index of the unique keys in the table, loaded by getAllUniqueKeys()
+    private volatile KeyIndex keyIndex;
+    // The free text columns to search, and their inverted index, loaded by retrievePhotoPropertiesOnly()
+    private int[] searchColumns = new int[0];
+    private volatile SearchIndex searchIndex;
+    // The column storing the perceptual hash of each image, or -1, and the index of the hashes,
+    // loaded by retrievePhotoPropertiesOnly()
+    private int phashKey = -1;
+    private volatile SimilarityIndex similarityIndex;
+    // The columns storing where each photo was taken, or -1, and their spatial index,
+    // loaded by retrievePhotoPropertiesOnly()
+    private int latKey = -1, lonKey = -1;
+    private volatile GeoIndex geoIndex;
+    // The date column to count the photos by, or -1, and the counts, loaded by retrievePhotoPropertiesOnly()
+    private int timelineKey = -1;
+    private volatile Timeline timeline;
+    // The column storing the non-destructive edits of each photo (see PhotoEdits), or -1
+    private int editsKey = -1;
+    // The table that stores the images in chunks of chunkSize bytes, keyed by (unique key, chunk #), or null
+    private String chunkTable;
+    private int chunkSize = 1 << 20;
+    // The chunk # of the row that describes the upload of an image (see uploadChunks())
+    private static final int MANIFEST_CHUNK = -1;
+    // Chunks are fetched on connections of their own, so readers that hold a connection can't starve them;
+    // like other reads, from the read replicas (on pools of their own as well) if there are any
+    private volatile ConnectionPool chunkPool;
+    private volatile ReplicaRouter chunkReaders;
+    private ExecutorService chunkFetcher;
+    // Where the image bytes are kept instead of the database (by content hash), or null
+    private BlobStore blobStore;
+    private boolean deleteUnreferencedBlobs = true;
+    // Deletes the blobs of deleted rows once no row has referred to them for BLOB_GRACE_MS
+    private ScheduledExecutorService blobCollector;
+    private static final long BLOB_GRACE_MS = 60000;
+    // The column storing the StorageCodec of each row's image bytes, or -1 if images are never compressed
+    private int codecKey = -1;
+    private int compressionLevel = Deflater.DEFAULT_COMPRESSION;
+    private double maxCompressedRatio = 0.9;
+    // The table that stores the tags and albums of the photos as (unique key, KIND, NAME) rows, or null,
+    // their bitmap index, loaded by loadTags(), and how many changes to the index are written at once
+    private String tagTable;
+    private volatile TagIndex tagIndex;
+    private int tagBatchSize = 500;
     
     // Private default values for the table schema
     private static final String[] DEFAULT_COL_NAMES = { "INDEX", "FILENAME", "FORMAT", "DESCRIPTION",
-                            "SIZE", "DATE", "IMAGE", "THUMB" };
+                            "SIZE", "DATE", "IMAGE", "THUMB", "HASH" };
     private static final HashMap<String, DataType> DEFAULT_COL_TYPES;
 
     static
@@ -84,11 +169,13 @@ public class PhotoDB
         DEFAULT_COL_TYPES.put(DEFAULT_COL_NAMES[5], DataType.DATE);
         DEFAULT_COL_TYPES.put(DEFAULT_COL_NAMES[6], DataType.BIN_STREAM);
         DEFAULT_COL_TYPES.put(DEFAULT_COL_NAMES[7], DataType.BIN_STREAM);
+        DEFAULT_COL_TYPES.put(DEFAULT_COL_NAMES[8], DataType.STRING);
     }
 
     public PhotoDB(String hostname)
     {
         this(hostname, DEFAULT_COL_NAMES, DEFAULT_COL_TYPES, 0);
+        hashKey = 8;
     }
 
     /**
@@ -125,7 +212,7 @@ public class PhotoDB
         this.uniqueKey = uniqueKey;
         
         dbHostname = hostname;
-        conn = null;
+        pool = null;
         
         // If the temp directory does not exist, create it
         File tempDir = new File(photoPath);
@@ -140,6 +227,21 @@ public class PhotoDB
      * getPhotoThumbs(), getAllUniqueKeys()) will throw IllegalStateExceptions
      * if this method is not called first.
      *
+     * Connecting sets up a pool of (at most) getPoolSize() connections, one of
+     * which is opened right away to check the settings. Each of the methods above
+     * leases a connection from the pool for as long as it runs, so they can be
+     * called from several threads at once.
+     *
+     * If read replicas have been set (see setReadHostnames()), a pool of the same
+     * size is also set up for each of them. The read-only methods (retrieve*(),
+     * getSpecificPhoto(), getPhotoFile(), getPhotoThumbnails(), getAllUniqueKeys())
+     * then lease from a replica (see ReplicaRouter), while insertRow(), deleteRow()
+     * and ensureContentHashColumn() always use the primary, and so does
+     * getAllUniqueKeys(), since insertRow() relies on the keys it reads. For a few
+     * seconds after each write, reads go to the primary as well, so that they see
+     * the write even if the replicas lag behind. Replicas are not checked here; the
+     * ReplicaRouter probes them in the background, and skips the ones that are down.
+     *
      * The photo cache for getSpecificPhoto() is also reset per connection
      * (although if deletePhotoDirectory() is not called, those files will
      * remain and be available for use by getSpecificPhoto()).
@@ -148,32 +250,119 @@ public class PhotoDB
      */
     public void connect() throws SQLException
     {
-        if (conn != null)
-            conn.close();
+        disconnect();
 
-        cachedPhotos = new ArrayList<File>();
-        cachedDone = new HashMap<File, Boolean>();
-        streamWriters = new ArrayList<StreamWriter>();
-        conn = DriverManager.getConnection(dbURLStart + dbHostname + "/" + dbName, user, password);
+        cachedPhotos = Collections.synchronizedList(new ArrayList<File>());
+        cachedDone = new ConcurrentHashMap<File, Boolean>();
+        streamWriters = Collections.synchronizedList(new ArrayList<StreamWriter>());
+        writeLocks = new ConcurrentHashMap<File, Object>();
+        keyIndex = null;
+        searchIndex = null;
+        similarityIndex = null;
+        geoIndex = null;
+        timeline = null;
+        tagIndex = null;
+        
+        ConnectionPool newPool = new ConnectionPool(getDatabaseURL(dbHostname), user, password, poolSize);
+        newPool.getConnection().close();                                    //Fail here if the settings are wrong
+        
+        if (readHostnames.length > 0)
+        {
+            ConnectionPool[] replicas = new ConnectionPool[readHostnames.length];
+            for (int i = 0; i < replicas.length; i++)
+                replicas[i] = new ConnectionPool(getDatabaseURL(readHostnames[i]), user, password, poolSize);
+            readers = new ReplicaRouter(replicas, newPool);
+        }
+        chunkPool = new ConnectionPool(getDatabaseURL(dbHostname), user, password, poolSize);
+        if (chunkTable != null && readHostnames.length > 0)
+        {
+            ConnectionPool[] replicas = new ConnectionPool[readHostnames.length];
+            for (int i = 0; i < replicas.length; i++)
+                replicas[i] = new ConnectionPool(getDatabaseURL(readHostnames[i]), user, password, poolSize);
+            chunkReaders = new ReplicaRouter(replicas, chunkPool);
+        }
+        chunkFetcher = Executors.newFixedThreadPool(poolSize, new ThreadFactory() {
+            public Thread newThread(Runnable r)
+            {
+                Thread t = new Thread(r, "PhotoDB chunk fetcher");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        blobCollector = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r)
+            {
+                Thread t = new Thread(r, "PhotoDB blob collector");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        decoder = ImageDecoder.acquireShared();
+        pool = newPool;
     }
     
     /**
-     *  Manually disconnect from database and sets the current connection
-     *  to null.
+     *  Manually disconnect from database: closes the connection pool (and those
+     *  of the read replicas) and sets it to null. Connections still leased by running operations are closed
+     *  when those operations finish. Tag changes that have not been written yet
+     *  (see syncTags()) are written first.
      *  
-     *  @throws SQLException If there is an error disconnecting from the database
+     *  @throws SQLException If there is an error disconnecting from the database,
+     *  or writing the tag changes (the pools are closed all the same)
      */
     public void disconnect() throws SQLException
     {
-        if (conn != null)
-            conn.close();
-        conn = null;
+        try {
+            if (pool != null)
+                syncTags();
+        } finally {
+            if (pool != null)
+                pool.close();
+            pool = null;
+            if (readers != null)
+                readers.close();
+            readers = null;
+            if (chunkFetcher != null)
+                chunkFetcher.shutdownNow();
+            chunkFetcher = null;
+            if (blobCollector != null)
+                blobCollector.shutdownNow();                                //Blobs still in their grace period are kept
+            blobCollector = null;
+            if (chunkReaders != null)
+                chunkReaders.close();
+            chunkReaders = null;
+            if (chunkPool != null)
+                chunkPool.close();
+            chunkPool = null;
+            if (decoder != null)
+                ImageDecoder.releaseShared();                               //Thumbnails still being read are decoded in place
+            decoder = null;
+        }
     }
     
     /**
      * Inserts a row containing <code>data[]</code> into the database as long
      * as the row's unique key does not already exist in the database. Returns
      * true if the insertion was successful, and false if not.
+     *
+     * Once getAllUniqueKeys() has been called, the unique key is first looked up
+     * in a local KeyIndex; the database is only asked whether the key exists if
+     * the index says it might (i.e. for possible collisions). Keys inserted by
+     * other clients (or threads) since then are not in the index, so in the end
+     * the primary key of the table decides: an INSERT that fails with a duplicate
+     * key also makes this method return false, so two inserts of the same key
+     * can never both succeed.
+     *
+     * If a content hash column has been set (see setContentHashColumn()), the
+     * SHA-256 of the image file is computed (if <code>data[]</code> does not
+     * already contain it) and stored with the row. If a row with the same hash
+     * already exists, the image bytes are NOT uploaded again; the new row stores
+     * a null image and refers to the existing bytes through its hash instead.
+     * 
+     * Likewise, if a perceptual hash column has been set (see
+     * setPerceptualHashColumn()), the perceptual hash of the image is computed
+     * (unless <code>data[]</code> already contains it) and stored with the row;
+     * it is left null if the image cannot be decoded.
      * 
      * @param data The array of data to be inserted.
      * The index of each object in data[] should correspond to the column in columnNames
@@ -187,6 +376,7 @@ public class PhotoDB
      *      DataType.STRING     =       String
      *      DataType.DATE       =       java.sql.Date
      *      DataType.TIME       =       java.sql.Time
+     *      DataType.TIMESTAMP  =       java.sql.Timestamp
      *      DataType.BIN_STREAM =       java.io.File
      * 
      * @return <code>true</code> if <code>data[]</code> is inserted properly, <code>false</code>
@@ -195,44 +385,166 @@ public class PhotoDB
      */
     public boolean insertRow(Object[] data) throws SQLException
     {
-        if (conn == null)
+        return insertDescribedRow(data) != null;
+    }
+    
+    /**
+     * Inserts the row like insertRow(), but returns a copy of <code>data[]</code>
+     * with the perceptual hash and the location read from the image filled in,
+     * for the local indexes of a caller that keeps its own (see ShardedPhotoDB).
+     * 
+     * @param data The array of data to be inserted; see insertRow()
+     * @return The row with what was read from its image, or null if the unique
+     * key value in <code>data[]</code> already exists in the database
+     * @throws SQLException If there is an error executing the query
+     */
+    protected Object[] insertDescribedRow(Object[] data) throws SQLException
+    {
+        if (pool == null)
             throw new IllegalStateException("Not connected to any database");
         
         // Check if the unique key value in <code>data</code> already exists
         // somewhere in the database
-        String check = "SELECT * FROM " + tableName + " WHERE `" + columnNames[uniqueKey] + "`=?";
-        PreparedStatement stmt = null, stmtCheck = null;
+        String check = "SELECT 1 FROM " + tableName + " WHERE `" + columnNames[uniqueKey] + "`=?";
+        PreparedStatement stmtCheck = null;
+        File compressed = null;
+        Object[] described;
+        Connection conn = borrowConnection();
         
         try {
-            stmtCheck = conn.prepareStatement(check);
-            stmtCheck.setObject(1, data[uniqueKey], columnTypes.get(columnNames[uniqueKey]).getSqlType());
-            ResultSet rs = stmtCheck.executeQuery();
-
-            // If the ResultSet contains a row, then don't insert anything
-            if (rs.next())
-                return false;
-
-            // Now insert the row since checking is done
-            String query = "INSERT INTO " + tableName + " VALUES (?";
-            for (int i = 0; i < columnNames.length - 1; i++)
-                query += ", ?";
-            query += ")";
+            // A key that is definitely new needs no round trip
+            KeyIndex index = keyIndex;
+            if (index == null || index.mightContain(data[uniqueKey]))
+            {
+                stmtCheck = conn.prepareStatement(check);
+                stmtCheck.setObject(1, data[uniqueKey], columnTypes.get(columnNames[uniqueKey]).getSqlType());
+                ResultSet rs = stmtCheck.executeQuery();
 
-            stmt = conn.prepareStatement(query);
+                // If the ResultSet contains a row, then don't insert anything
+                if (rs.next())
+                    return null;
+            }
+            
+            // Hash what the image looks like, for findSimilar(), while the image is still there
+            int imageCol = getImageColumn();
+            if (phashKey != -1 && imageCol != -1 && data[imageCol] instanceof File && data[phashKey] == null)
+            {
+                data = data.clone();
+                try {
+                    data[phashKey] = PerceptualHash.compute((File) data[imageCol]);
+                } catch (IOException e) { e.printStackTrace(); }                //Not an image that can be decoded
+            }
+            
+            // Read where the photo was taken from its GPS tags, for findNear()
+            if (latKey != -1 && imageCol != -1 && data[imageCol] instanceof File && data[latKey] == null
+                    && data[lonKey] == null)
+            {
+                data = data.clone();
+                try {
+                    ImageMetadata meta = ImageMetadata.read((File) data[imageCol]);
+                    data[latKey] = meta.getLatitude();
+                    data[lonKey] = meta.getLongitude();
+                } catch (IOException e) { e.printStackTrace(); }
+            }
+            described = data;
+            
+            // Don't send the image bytes if identical bytes are already stored,
+            // and never send them if they are kept in the blob store
+            if (hashKey != -1 && imageCol != -1 && data[imageCol] instanceof File)
+            {
+                data = data.clone();
+                if (data[hashKey] == null)
+                {
+                    try {
+                        data[hashKey] = computeContentHash((File) data[imageCol]);
+                    } catch (IOException e) {
+                        throw new SQLException("Error reading " + data[imageCol], e);
+                    }
+                }
+                if (blobStore != null)
+                {
+                    try {
+                        blobStore.put(data[hashKey].toString(), (File) data[imageCol]);
+                    } catch (IOException e) {
+                        throw new SQLException("Error storing the image in the blob store", e);
+                    }
+                    data[imageCol] = null;
+                }
+                else if (chunkTable == null && containsContentHash(conn, data[hashKey].toString()))
+                    data[imageCol] = null;                                    //Row becomes a reference
+            }
 
-            for (int i = 0; i < columnNames.length; i++)
+            // Upload the image in chunks first, so the row only appears once it is complete
+            if (chunkTable != null && imageCol != -1 && data[imageCol] instanceof File)
+            {
+                File file = (File) data[imageCol];
+                try {
+                    String hash = (hashKey != -1 && data[hashKey] != null) ? data[hashKey].toString()
+                            : computeContentHash(file);
+                    uploadChunks(conn, data[uniqueKey], file, hash);
+                } catch (IOException e) {
+                    throw new SQLException("Error reading " + file, e);
+                } catch (SQLException e) {
+                    if (!isDuplicateKey(e))
+                        throw e;
+                    return null;                                            //Someone else is inserting the key
+                }
+                data = data.clone();
+                data[imageCol] = null;
+            }
+            
+            // Compress the image bytes that go into the table, if a trial shows it is worth it
+            if (codecKey != -1)
             {
-                // i + 1 for arg2, since setX starts at 1 (not 0 like arrays)
-                setPrepStatementParam(stmt, i + 1, columnTypes.get(columnNames[i]), data[i]);
+                data = data.clone();
+                data[codecKey] = Integer.valueOf(StorageCodec.NONE);
+                if (imageCol != -1 && data[imageCol] instanceof File)
+                {
+                    try {
+                        compressed = StorageCodec.compress((File) data[imageCol], compressionLevel, maxCompressedRatio);
+                    } catch (IOException e) {
+                        throw new SQLException("Error compressing the image", e);
+                    }
+                    if (compressed != null)
+                    {
+                        data[imageCol] = compressed;
+                        data[codecKey] = Integer.valueOf(StorageCodec.DEFLATE);
+                    }
+                }
+            }
+            
+            // Now insert the row since checking is done; with a BLOB table, the
+            // BLOBs go into a row of their own there, in the same transaction
+            if (blobTable != null)
+                conn.setAutoCommit(false);
+            try {
+                insertColumns(conn, tableName, getTableColumns(false), data);
+                if (blobTable != null)
+                {
+                    insertColumns(conn, blobTable, getTableColumns(true), data);
+                    conn.commit();
+                }
+            } catch (SQLException e) {
+                if (!isDuplicateKey(e))
+                    throw e;
+                
+                // Someone else inserted the key since it was checked (the transaction, if any, is rolled back on close())
+                if (index != null && !index.mightContain(data[uniqueKey]))
+                    index.add(data[uniqueKey]);
+                return null;
             }
-            stmt.execute();    
+            lastWrite = System.currentTimeMillis();
+            if (index != null)
+                index.add(data[uniqueKey]);
+            addToLocalIndexes(data);
         } catch (SQLException ex) { throw ex; }
         finally {
-            if (stmt != null) stmt.close();
-            if (stmtCheck != null) stmt.close();
+            if (stmtCheck != null) stmtCheck.close();
+            if (compressed != null) compressed.delete();
+            conn.close();
         }
 
-        return true;
+        return described;
     }
     
     /**
@@ -248,24 +560,225 @@ public class PhotoDB
      */
     public boolean deleteRow(Object uniqueKeyValue) throws SQLException
     {
-        if (conn == null)
+        if (pool == null)
             throw new IllegalStateException("Not connected to any database");
         
         PreparedStatement stmt = null;
         String query = "DELETE FROM " + tableName + " WHERE `" + columnNames[uniqueKey]    + "`=?";
+        Connection conn = borrowConnection();
         
         try {
+            // The blob of the row is deleted from the blob store along with the last row using it
+            String blobHash = null;
+            if (blobStore != null && hashKey != -1 && deleteUnreferencedBlobs)
+                blobHash = getContentHash(conn, uniqueKeyValue);
+            
+            if (blobTable != null || chunkTable != null || tagTable != null)
+                conn.setAutoCommit(false);                                    //All rows or none
+            
+            // Hand the image bytes over to a referencing row before they are deleted
+            if (hashKey != -1 && getImageColumn() != -1)
+                transferContentReference(conn, uniqueKeyValue);
+            
             // Begin deletion
             stmt = conn.prepareStatement(query);
             stmt.setObject(1, uniqueKeyValue, columnTypes.get(columnNames[uniqueKey]).getSqlType());
+            int deleted = stmt.executeUpdate();
+            
+            for (String table : new String[] { blobTable, chunkTable, tagTable })
+            {
+                if (table == null)
+                    continue;
+                stmt.close();
+                stmt = conn.prepareStatement("DELETE FROM " + table + " WHERE `" + columnNames[uniqueKey] + "`=?");
+                stmt.setObject(1, uniqueKeyValue, columnTypes.get(columnNames[uniqueKey]).getSqlType());
+                stmt.executeUpdate();
+            }
+            if (blobTable != null || chunkTable != null || tagTable != null)
+                conn.commit();
             
-            if (stmt.executeUpdate() == 1)                                    //Since only attempt to delete one row
+            if (deleted == 1)                                                //Since only attempt to delete one row
+            {
+                lastWrite = System.currentTimeMillis();
+                if (blobHash != null)
+                    scheduleBlobDeletion(blobHash);
+                KeyIndex index = keyIndex;
+                if (index != null)
+                    index.remove(uniqueKeyValue);
+                removeFromLocalIndexes(uniqueKeyValue);
                 return true;
+            }
             else
                 return false;
         } catch (SQLException ex) { throw ex; }
         finally {
             if (stmt != null) stmt.close();
+            conn.close();
+        }
+    }
+
+    /**
+     * Sets the columns in <code>values</code> of the rows with
+     * <code>uniqueKeyValues</code>, e.g. to caption many photos at once, without
+     * touching their other columns (and so without re-sending any images). All
+     * rows are updated with one batched UPDATE in one transaction, so either all
+     * of them change or none do.
+     * 
+     * Afterwards the properties from retrievePhotoPropertiesOnly() and the local
+     * indexes built from them (search, similarity, geo and timeline) are updated
+     * to match. The unique key, the content hash and codec columns and
+     * BIN_STREAM columns cannot be updated.
+     * 
+     * @param uniqueKeyValues The unique key values of the rows to update
+     * @param values The new value of each column to change, by column name, with
+     * the types of insertRow(); a null value sets the column to NULL
+     * @return The number of rows that were found and updated
+     * @throws SQLException If there is an error executing the update
+     * @throws IllegalArgumentException If a column does not exist or cannot be updated
+     */
+    public int updateRows(Object[] uniqueKeyValues, Map<String, Object> values) throws SQLException
+    {
+        if (pool == null)
+            throw new IllegalStateException("Not connected to any database");
+        int[] columns = updateColumns(values);
+        if (uniqueKeyValues.length == 0 || columns.length == 0)
+            return 0;
+        
+        String query = "UPDATE " + tableName + " SET ";
+        for (int i = 0; i < columns.length; i++)
+            query += (i > 0 ? ", `" : "`") + columnNames[columns[i]] + "`=?";
+        query += " WHERE `" + columnNames[uniqueKey] + "`=?";
+        
+        int updated = 0;
+        PreparedStatement stmt = null;
+        Connection conn = borrowConnection();
+        
+        try {
+            conn.setAutoCommit(false);
+            stmt = conn.prepareStatement(query);
+            for (int i = 0; i < columns.length; i++)                        //The same for every row
+            {
+                String col = columnNames[columns[i]];
+                setPrepStatementParam(stmt, i + 1, col, columnTypes.get(col), values.get(col));
+            }
+            
+            DataType keyType = columnTypes.get(columnNames[uniqueKey]);
+            for (int i = 0; i < uniqueKeyValues.length; i++)
+            {
+                stmt.setObject(columns.length + 1, uniqueKeyValues[i], keyType.getSqlType());
+                stmt.addBatch();
+                if ((i + 1) % UPDATE_BATCH_SIZE == 0 || i == uniqueKeyValues.length - 1)
+                    for (int count : stmt.executeBatch())
+                        updated += (count == Statement.SUCCESS_NO_INFO) ? 1 : count;
+            }
+            conn.commit();
+            lastWrite = System.currentTimeMillis();
+        } catch (SQLException ex) { throw ex; }                             //The pool rolls back on close
+        finally {
+            if (stmt != null) stmt.close();
+            conn.close();
+        }
+        
+        updateLocalProperties(uniqueKeyValues, values);
+        return updated;
+    }
+    
+    /**
+     * Returns <code>length</code> bytes of the image of the row with
+     * <code>uniqueKeyValue</code>, starting at byte <code>offset</code>, without
+     * transferring the rest: only the chunks that overlap the range are fetched
+     * (in parallel) for images stored in chunks, and the database cuts out the
+     * range of images stored in the table. Images stored elsewhere (e.g. in the
+     * blob store) or compressed are streamed up to the end of the range.
+     * 
+     * @param uniqueKeyValue The value of the unique key of the photo
+     * @param offset The first byte to read
+     * @param length The number of bytes to read (fewer are read at the end of the image)
+     * @return A stream of the range, or null if there is no such photo or image
+     * @throws SQLException If there is an error executing the query
+     */
+    public InputStream getPhotoRange(Object uniqueKeyValue, long offset, long length) throws SQLException
+    {
+        if (pool == null)
+            throw new IllegalStateException("Not connected to any database");
+        if (offset < 0 || length < 0)
+            throw new IllegalArgumentException("Offset and length must not be negative");
+        
+        if (chunkTable != null)
+        {
+            InputStream in;
+            Connection conn = borrowReadConnection();
+            try {
+                in = openChunks(conn, uniqueKeyValue, offset, length);
+            } finally {
+                conn.close();
+            }
+            if (in != null)
+                return in;
+        }
+        
+        int imageCol = getImageColumn();
+        if (imageCol == -1)
+            return null;
+        String image = column("m", imageCol);
+        String query = "SELECT SUBSTRING(" + image + ", ?, ?), " + (hashKey != -1 ? column("m", hashKey) : "NULL")
+                + ", " + (codecKey != -1 ? column("m", codecKey) : "NULL") + " FROM " + rowSource("m", true) + " WHERE m.`" + columnNames[uniqueKey] + "`=?";
+        PreparedStatement stmt = null;
+        Connection conn = borrowReadConnection();
+        
+        try {
+            stmt = conn.prepareStatement(query);
+            stmt.setLong(1, offset + 1);                                    //SUBSTRING() starts at 1
+            stmt.setLong(2, length);
+            stmt.setObject(3, uniqueKeyValue, columnTypes.get(columnNames[uniqueKey]).getSqlType());
+            ResultSet rs = stmt.executeQuery();
+            if (!rs.next())
+                return null;
+            InputStream in = rs.getBinaryStream(1);
+            if (rs.getInt(3) == StorageCodec.NONE && (in != null || rs.getObject(2) == null))
+                return in;
+            stmt.close();
+            
+            // The bytes are elsewhere or compressed, so stream the whole image and cut out the range here
+            stmt = conn.prepareStatement(selectRows(true) + " WHERE m.`" + columnNames[uniqueKey] + "`=?");
+            stmt.setObject(1, uniqueKeyValue, columnTypes.get(columnNames[uniqueKey]).getSqlType());
+            rs = stmt.executeQuery();
+            in = rs.next() ? getImageStream(rs, imageCol + 1) : null;
+            return (in != null) ? new RangeInputStream(in, offset, length) : null;
+        } catch (SQLException ex) { throw ex; }
+        catch (IOException e) {
+            throw new SQLException("Error skipping to the start of the range", e);
+        } finally {
+            if (stmt != null) stmt.close();
+            conn.close();
+        }
+    }
+    
+    /**
+     * Counts the rows in the table (e.g. to know how many pages of
+     * getPhotoThumbnails(offset, count, keys) there are).
+     * 
+     * @return The number of rows in the table
+     * @throws SQLException If there is an error executing the query
+     */
+    public int getRowCount() throws SQLException
+    {
+        if (pool == null)
+            throw new IllegalStateException("Not connected to any database");
+        
+        PreparedStatement stmt = null;
+        String query = "SELECT COUNT(*) FROM " + tableName;
+        Connection conn = borrowReadConnection();
+        
+        try {
+            stmt = conn.prepareStatement(query);
+            ResultSet rs = stmt.executeQuery();
+            rs.next();
+            return rs.getInt(1);
+        } catch (SQLException ex) { throw ex; }
+        finally {
+            if (stmt != null) stmt.close();
+            conn.close();
         }
     }
 
@@ -278,13 +791,14 @@ public class PhotoDB
      */
     public void retrievePhotos() throws SQLException
     {
-        if (conn == null)
+        if (pool == null)
             throw new IllegalStateException("Not connected to any database");
                 
         PreparedStatement stmt = null;
-        String query = "SELECT * FROM " + tableName;
+        String query = selectRows(true);
         ArrayList<File> paths = new ArrayList<File>();
         ArrayList<Properties> props = new ArrayList<Properties>();
+        Connection conn = borrowReadConnection();
         
         try {
             stmt = conn.prepareStatement(query);
@@ -316,159 +830,490 @@ public class PhotoDB
         } catch (SQLException ex) { throw ex; }
         finally {
             if (stmt != null) stmt.close();
+            conn.close();
         }
     }
     
     /**
-     * Basically retrievePhotos(), except it skips writing the images to disk
+     * Basically retrievePhotos(), except it skips writing the images to disk.
+     * 
+     * This also (re)builds the local SearchIndex over the columns set by
+     * setSearchColumns() (if any), which search() uses, and the SimilarityIndex
+     * of the perceptual hash column (if any), which findSimilar() uses; both are
+     * kept up to date by insertRow() and deleteRow() from then on.
      * 
      * @throws SQLException If there is an error executing the query
      */
     public void retrievePhotoPropertiesOnly() throws SQLException
     {
-        if (conn == null)
+        if (pool == null)
             throw new IllegalStateException("Not connected to any database");
                 
         PreparedStatement stmt = null;
-        String query = "SELECT * FROM " + tableName;
+        String query = selectRows(false);                                    //Leaves the BLOBs alone
         ArrayList<Properties> props = new ArrayList<Properties>();
+        Connection conn = borrowReadConnection();
         
         try {
             stmt = conn.prepareStatement(query);
             ResultSet rs = stmt.executeQuery();                        //Getting rows from table
 
             while (rs.next()) 
-            {
-                Properties tempProp = new Properties();
-
-                for (int i = 0; i < columnNames.length; i++)
-                {
-                    DataType type = columnTypes.get(columnNames[i]);
-
-                    //Skip BIN_STREAMs since they aren't properties
-                    if (type == DataType.BIN_STREAM)
-                        continue;
-
-                    Object obj = getResultSetParam(rs, i + 1, columnTypes.get(columnNames[i]));
-                    if (obj != null)
-                        tempProp.setProperty(columnNames[i], obj.toString());
-                }
-                props.add(tempProp);
-            }
+                props.add(readProperties(rs));
 
             currProps = props.toArray(new Properties[props.size()]);
+            indexProperties(currProps);
         } catch (SQLException ex) { throw ex; }
         finally {
             if (stmt != null) stmt.close();
+            conn.close();
         }
     }
-
+    
     /**
-     * Can only be called if retrievePhotos() has been called >=1 time
+     * Searches the columns set by setSearchColumns() (e.g. FILENAME and
+     * DESCRIPTION) for the photos that contain a word starting with each word of
+     * <code>text</code>, without querying the database; see SearchIndex.search().
      * 
-     * @return Image[] array, which contains photos that have been previously
-     * written to disk, or null if the retrieve photos can not be read (error)
+     * @param text The words to search for, as typed
+     * @return The unique key values (as Strings) of the matching photos, in the
+     * order of the table as it was retrieved
+     * @throws IllegalStateException If no search columns are set, or
+     * retrievePhotoPropertiesOnly() has not been called since connecting
      */
-    public Image[] getRetrievedPhotos()
+    public String[] search(String text)
     {
-        Image[] imgs = new Image[currPhotos.length];
-        
-        try {
-            for (int i = 0; i < imgs.length; i++)
-                imgs[i] = ImageIO.read(currPhotos[i]);
-        } catch (IOException e) {
-            e.printStackTrace();
-            return null;
-        }
+        SearchIndex index = searchIndex;
+        if (index == null)
+            throw new IllegalStateException("The search index has not been loaded");
+        return index.search(text);
+    }
+    
+    /**
+     * Finds the photos that look like the photo with <code>uniqueKeyValue</code>
+     * (resaves, resizes, burst frames), i.e. whose perceptual hashes differ from
+     * its hash in at most <code>maxDistance</code> bits, without querying the
+     * database; see SimilarityIndex.
+     * 
+     * @param uniqueKeyValue The unique key value of the photo
+     * @param maxDistance The largest distance (see PerceptualHash.distance()), e.g. 10
+     * @return The unique key values (as Strings) of the other photos, the most
+     * similar first; empty if the photo has no hash
+     * @throws IllegalStateException If no perceptual hash column is set, or
+     * retrievePhotoPropertiesOnly() has not been called since connecting
+     */
+    public String[] findSimilar(Object uniqueKeyValue, int maxDistance)
+    {
+        SimilarityIndex index = loadedSimilarityIndex();
+        Long hash = index.getHash(uniqueKeyValue);
+        if (hash == null)
+            return new String[0];
         
-        return imgs;
+        ArrayList<String> similar = new ArrayList<String>(Arrays.asList(index.search(hash, maxDistance)));
+        similar.remove(uniqueKeyValue.toString());
+        return similar.toArray(new String[similar.size()]);
     }
     
     /**
-     * (The unique key must be properly set in order for this method to work.)
-     * Based on the <code>uniqueKeyValue</code>, selects a row whose unique key value
-     * matches that value, and caches and returns the photo stored in that row.
-     *
-     * This ALSO caches the photo in the photo directory similarly to retrievePhotos().
-     * However, unlike retrievePhotos(), the file-writing is asynchronous so the image
-     * can be viewed before the stream writer finishes writing.
-     *
-     * Notes on the caching: this method will first determine if retrievePhotos() has been
-     * called. If it has, it will use those photos and not cache anything. If not,
-     * it will determine whether the requested photo has already been cached during this connection,
-     * and use that cache if it has. Otherwise, it will attempt to cache the file
-     * to disk. (If a file with the same name already exists in the temp directory, it
-     * will return an Image object of that file.)
+     * Finds the photos that look like the image in <code>file</code>, e.g. to
+     * warn before uploading a near-duplicate; see findSimilar(Object, int).
      * 
-     * @param uniqueKeyValue The value of the unique key for the photo that is
-     * intended to be retrieved.
-     * @return An <code>Image</code> that corresponds to the uniqueKeyValue, or null
-     * if there is no such image or an exception is thrown
+     * @param file The image file
+     * @param maxDistance The largest distance (see PerceptualHash.distance())
+     * @return The unique key values (as Strings) of the photos, the most similar first
+     * @throws IOException If the file cannot be read or is not a supported image
+     * @throws IllegalStateException If no perceptual hash column is set, or
+     * retrievePhotoPropertiesOnly() has not been called since connecting
      */
-    public Image getSpecificPhoto(Object uniqueKeyValue)
+    public String[] findSimilar(File file, int maxDistance) throws IOException
+    {
+        SimilarityIndex index = loadedSimilarityIndex();
+        return index.search(PerceptualHash.compute(file), maxDistance);
+    }
+    
+    /**
+     * Finds the photos that were taken in a bounding box, without querying the
+     * database; see GeoIndex. If <code>west</code> is greater than
+     * <code>east</code>, the box crosses the 180th meridian.
+     * 
+     * @param south The southern edge, in degrees of latitude
+     * @param west The western edge, in degrees of longitude
+     * @param north The northern edge, in degrees of latitude
+     * @param east The eastern edge, in degrees of longitude
+     * @return The unique key values (as Strings) of the photos in the box
+     * @throws IllegalStateException If no geo columns are set, or
+     * retrievePhotoPropertiesOnly() has not been called since connecting
+     */
+    public String[] findInBox(double south, double west, double north, double east)
+    {
+        return loadedGeoIndex().inBox(south, west, north, east);
+    }
+    
+    /**
+     * Finds the photos that were taken within <code>radiusKm</code> kilometres
+     * of a point, without querying the database; see GeoIndex.
+     * 
+     * @param lat The latitude of the point, in degrees
+     * @param lon The longitude of the point, in degrees
+     * @param radiusKm The radius, in kilometres
+     * @return The unique key values (as Strings) of the photos, the closest first
+     * @throws IllegalStateException If no geo columns are set, or
+     * retrievePhotoPropertiesOnly() has not been called since connecting
+     */
+    public String[] findNear(double lat, double lon, double radiusKm)
+    {
+        return loadedGeoIndex().near(lat, lon, radiusKm);
+    }
+    
+    /**
+     * Returns a new, empty query over the metadata of the table, to be filtered
+     * and sorted by the database; see PhotoQuery.
+     * 
+     * @return The query, which matches all rows until conditions are added
+     */
+    public PhotoQuery query()
     {
-        if (conn == null)
+        return new PhotoQuery(this);
+    }
+    
+    /**
+     * Like retrievePhotoPropertiesOnly(), but only for the rows that match
+     * <code>query</code>, in its order; the results are returned rather than
+     * kept for getRetrievedPhotoProperties().
+     * 
+     * @param query The query to run (see query())
+     * @return The properties of the matching rows
+     * @throws SQLException If there is an error executing the query
+     */
+    public Properties[] retrievePhotoProperties(PhotoQuery query) throws SQLException
+    {
+        if (pool == null)
             throw new IllegalStateException("Not connected to any database");
-                
-        Image image = null;
+        
         PreparedStatement stmt = null;
-        String query = "SELECT * FROM " + tableName + " WHERE `"                        //Table name has to be hardcoded
-                + columnNames[uniqueKey] + "`=?";                                        //Can't insert column name as param, so it's here
+        ArrayList<Properties> props = new ArrayList<Properties>();
+        Object[] params = query.getParameters();
+        int[] paramColumns = query.getParameterColumns();
+        Connection conn = borrowReadConnection();
         
         try {
-            stmt = conn.prepareStatement(query);
-            stmt.setObject(1, uniqueKeyValue, columnTypes.get(columnNames[uniqueKey]).getSqlType());
+            stmt = conn.prepareStatement(query.getSql());
+            for (int i = 0; i < params.length; i++)
+            {
+                String col = columnNames[paramColumns[i]];
+                setPrepStatementParam(stmt, i + 1, col, columnTypes.get(col), params[i]);
+            }
             ResultSet rs = stmt.executeQuery();
-            
-            if (!rs.next())
-                return null;
-            
-            // Get the filename first
-            String filename = rs.getObject(uniqueKey + 1).toString();
-            File file = new File(photoPath + "\\" + filename);
-
+            while (rs.next())
+                props.add(readProperties(rs));
+        } catch (SQLException ex) { throw ex; }
+        finally {
+            if (stmt != null) stmt.close();
+            conn.close();
+        }
+        
+        return props.toArray(new Properties[props.size()]);
+    }
+    
+    /**
+     * Returns the index that would let the database answer <code>query</code>
+     * without scanning the table (see PhotoQuery.getIndexColumns()), if the table
+     * does not have it yet. An existing index serves the query if it starts with
+     * the same columns; the columns compared for equality may be in any order.
+     * 
+     * @param query The query to check
+     * @return The CREATE INDEX statement for the missing index, or null if the
+     * table already has a suitable index (or the query needs none)
+     * @throws SQLException If there is an error reading the indexes of the table
+     */
+    public String recommendIndex(PhotoQuery query) throws SQLException
+    {
+        if (pool == null)
+            throw new IllegalStateException("Not connected to any database");
+        
+        String[] wanted = query.getIndexColumns();
+        if (wanted.length == 0)
+            return null;
+        
+        // The columns of each index of the table, in order
+        HashMap<String, ArrayList<String>> indexes = new HashMap<String, ArrayList<String>>();
+        Connection conn = borrowReadConnection();
+        try {
+            ResultSet rs = conn.getMetaData().getIndexInfo(null, null, tableName, false, true);
+            while (rs.next())
+            {
+                String name = rs.getString("INDEX_NAME");
+                if (name == null)
+                    continue;
+                if (!indexes.containsKey(name))
+                    indexes.put(name, new ArrayList<String>());
+                ArrayList<String> cols = indexes.get(name);
+                int pos = rs.getShort("ORDINAL_POSITION");
+                while (cols.size() < pos)
+                    cols.add(null);
+                cols.set(pos - 1, rs.getString("COLUMN_NAME"));
+            }
+            rs.close();
+        } catch (SQLException ex) { throw ex; }
+        finally {
+            conn.close();
+        }
+        
+        int equalities = query.getEqualityColumnCount();
+        for (ArrayList<String> cols : indexes.values())
+            if (indexServes(cols, wanted, equalities))
+                return null;
+        
+        String name = "", columns = "";
+        for (int i = 0; i < wanted.length; i++)
+        {
+            name += wanted[i] + "_";
+            columns += (i > 0 ? ", `" : "`") + wanted[i] + "`";
+        }
+        name = (name.length() > 60 ? name.substring(0, 60) : name) + "idx";   //MySQL names are at most 64 characters
+        return "CREATE INDEX `" + name + "` ON " + tableName + " (" + columns + ")";
+    }
+    
+    /**
+     * Creates the index recommended for <code>query</code> by recommendIndex(),
+     * if the table does not have a suitable one yet.
+     * 
+     * @param query The query to create an index for
+     * @return <code>true</code> if an index was created, <code>false</code> if
+     * none was needed
+     * @throws SQLException If there is an error reading the indexes or creating one
+     */
+    public boolean createIndex(PhotoQuery query) throws SQLException
+    {
+        String create = recommendIndex(query);
+        if (create == null)
+            return false;
+        
+        PreparedStatement stmt = null;
+        Connection conn = borrowConnection();
+        try {
+            stmt = conn.prepareStatement(create);
+            stmt.execute();
+            lastWrite = System.currentTimeMillis();
+        } catch (SQLException ex) { throw ex; }
+        finally {
+            if (stmt != null) stmt.close();
+            conn.close();
+        }
+        return true;
+    }
+    
+    /**
+     * Reads all rows of the tag table (see setTagTable()) into a new TagIndex, so
+     * that photos can be selected by tags and albums, and counted per tag, without
+     * querying the database; see TagIndex. Changes to the previous index that
+     * have not been written yet are written first.
+     * 
+     * @return The tag index, which is also returned by getTagIndex() from now on
+     * @throws SQLException If there is an error reading (or writing) the tag table
+     */
+    public TagIndex loadTags() throws SQLException
+    {
+        if (tagTable == null)
+            throw new IllegalStateException("No tag table has been set");
+        syncTags();
+        
+        TagIndex index = new TagIndex();
+        for (TagIndex.Change row : readTagRows(null))
+            index.load(row.kind, row.name, row.key);
+        tagIndex = index;
+        return index;
+    }
+    
+    /**
+     * Tags the photo with <code>uniqueKeyValue</code> with the tag (or adds it to
+     * the album) <code>name</code>. The tag index is updated right away, and the
+     * tag table in batches of the batch size of setTagTable() (or by syncTags()).
+     * 
+     * @param uniqueKeyValue The unique key value of the photo
+     * @param kind TagIndex.TAG or TagIndex.ALBUM
+     * @param name The name of the tag or album
+     * @return <code>true</code> if the photo did not have the tag yet
+     * @throws SQLException If there is an error writing a batch of changes
+     * @throws IllegalStateException If loadTags() has not been called since connecting
+     */
+    public boolean tagPhoto(Object uniqueKeyValue, int kind, String name) throws SQLException
+    {
+        TagIndex index = loadedTags();
+        boolean changed = index.add(kind, name, uniqueKeyValue);
+        if (changed && index.getPendingCount() >= tagBatchSize)
+            syncTags();
+        return changed;
+    }
+    
+    /**
+     * Removes the tag (or album) <code>name</code> from the photo with
+     * <code>uniqueKeyValue</code>; see tagPhoto().
+     * 
+     * @return <code>true</code> if the photo had the tag
+     * @throws SQLException If there is an error writing a batch of changes
+     * @throws IllegalStateException If loadTags() has not been called since connecting
+     */
+    public boolean untagPhoto(Object uniqueKeyValue, int kind, String name) throws SQLException
+    {
+        TagIndex index = loadedTags();
+        boolean changed = index.remove(kind, name, uniqueKeyValue);
+        if (changed && index.getPendingCount() >= tagBatchSize)
+            syncTags();
+        return changed;
+    }
+    
+    /**
+     * Writes the changes made to the tag index since it was last synced to the
+     * tag table, in one transaction. If that fails, the changes are kept, to be
+     * written by the next call.
+     * 
+     * @return The number of changes written
+     * @throws SQLException If there is an error writing the changes
+     */
+    public int syncTags() throws SQLException
+    {
+        TagIndex index = tagIndex;
+        if (index == null)
+            return 0;
+        
+        List<TagIndex.Change> changes = index.takePending();
+        if (changes.isEmpty())
+            return 0;
+        try {
+            writeTagChanges(changes);
+        } catch (SQLException e) {
+            index.putBack(changes);
+            throw e;
+        } catch (RuntimeException e) {
+            index.putBack(changes);
+            throw e;
+        }
+        return changes.size();
+    }
+
+    /**
+     * Can only be called if retrievePhotos() has been called >=1 time
+     * 
+     * @return Image[] array, which contains photos that have been previously
+     * written to disk, or null if the retrieve photos can not be read (error)
+     */
+    public Image[] getRetrievedPhotos()
+    {
+        File[] photos = currPhotos;
+        Image[] imgs = new Image[photos.length];
+        
+        try {
+            for (int i = 0; i < imgs.length; i++)
+                imgs[i] = ImageIO.read(photos[i]);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+        
+        return imgs;
+    }
+    
+    /**
+     * (The unique key must be properly set in order for this method to work.)
+     * Based on the <code>uniqueKeyValue</code>, selects a row whose unique key value
+     * matches that value, and caches and returns the photo stored in that row.
+     *
+     * This ALSO caches the photo in the photo directory similarly to retrievePhotos().
+     * However, unlike retrievePhotos(), the file-writing is asynchronous so the image
+     * can be viewed before the stream writer finishes writing.
+     *
+     * Notes on the caching: this method will first determine if retrievePhotos() has been
+     * called. If it has, it will use those photos and not cache anything. If not,
+     * it will determine whether the requested photo has already been cached during this connection,
+     * and use that cache if it has. Otherwise, it will attempt to cache the file
+     * to disk. (If a file with the same name already exists in the temp directory, it
+     * will return an Image object of that file.)
+     * 
+     * @param uniqueKeyValue The value of the unique key for the photo that is
+     * intended to be retrieved.
+     * @return An <code>Image</code> that corresponds to the uniqueKeyValue, or null
+     * if there is no such image or an exception is thrown
+     */
+    public Image getSpecificPhoto(Object uniqueKeyValue)
+    {
+        if (pool == null)
+            throw new IllegalStateException("Not connected to any database");
+                
+        Image image = null;
+        PreparedStatement stmt = null;
+        String query = selectRows(true) + " WHERE m.`"                                //Table name has to be hardcoded
+                + columnNames[uniqueKey] + "`=?";                                        //Can't insert column name as param, so it's here
+        Connection conn = null;
+        
+        try {
+            conn = borrowReadConnection();
+            stmt = conn.prepareStatement(query);
+            stmt.setObject(1, uniqueKeyValue, columnTypes.get(columnNames[uniqueKey]).getSqlType());
+            ResultSet rs = stmt.executeQuery();
+            
+            if (!rs.next())
+                return null;
+            
+            // Get the filename first
+            String filename = rs.getObject(uniqueKey + 1).toString();
+            File file = new File(photoPath + "\\" + filename);
+
             // If for some reason retrievePhotos() was called, use currPhotos
             // -- Note: For this to work, the filename for the temp file should be
             //        the same as in getPrepStatementParam()
-            if (currPhotos != null && currPhotos.length > 0)
-                for (File f : currPhotos)
+            File[] photos = currPhotos;
+            if (photos != null && photos.length > 0)
+                for (File f : photos)
                     if (file.equals(f))
                         return ImageIO.read(file);
             
             // Now check if the file had been cached by THIS method and the thread writing
             // it is no longer alive
-            if (cachedPhotos.contains(file) && cachedDone.get(file))
+            if (cachedPhotos.contains(file) && Boolean.TRUE.equals(cachedDone.get(file)))
                 return ImageIO.read(file);
             // If file's not in either of those arrays, then attempt to cache it
             else
             {
-                InputStream in = null;
-                int index = 1;                                                //Init at 1
+                int index = getImageColumn() + 1;                            //Init at 1
+                InputStream in = getImageStream(rs, index);
+                if (in == null)
+                    return null;
                 
-                for (int i = 0; i < columnNames.length; i++)
+                // Start writing the image from a copy of the stream IFF a thread doesn't already exist to write it,
+                // so that the image (which may come from chunks or a blob store) is only fetched once
+                // If the file already exists, the thread will terminate immediately
+                boolean write;
+                synchronized (cachedPhotos)
                 {
-                    String colName = columnNames[i];
-                    DataType type = columnTypes.get(colName);
-                    if (type == DataType.BIN_STREAM && colName.toLowerCase().indexOf("thumb") == -1)
+                    write = !cachedPhotos.contains(file);
+                    if (write)
                     {
-                        index += i;
-                        break;
+                        cachedDone.put(file, false);
+                        cachedPhotos.add(file);                                //Add if already existed on disk or not
                     }
                 }
-                // Start writing the image using a separate InputStream IFF a thread doesn't already exist to write it
-                // If the file already exists, the thread will terminate immediately
-                if (!cachedPhotos.contains(file))
+                if (write)
                 {
-                    StreamWriter sw = new StreamWriter(rs.getBinaryStream(index), file);
+                    ByteArrayOutputStream os = new ByteArrayOutputStream();
+                    byte[] buf = new byte[8192];
+                    int n;
+                    try {
+                        while ((n = in.read(buf)) != -1)
+                            os.write(buf, 0, n);
+                    } finally {
+                        in.close();
+                    }
+                    byte[] bytes = os.toByteArray();
+                    in = new ByteArrayInputStream(bytes);
+                    
+                    StreamWriter sw = new StreamWriter(new ByteArrayInputStream(bytes), file);
+                    streamWriters.add(sw);
                     Thread t = new Thread(sw);
                     t.start();
-                    cachedDone.put(file, false);
-                    streamWriters.add(sw);
-                    cachedPhotos.add(file);                                    //Add if already existed on disk or not
                 }
                 
                 // Read the image
-                in = rs.getBinaryStream(index);
                 image = ImageIO.read(in);
             }
         } catch (Exception e ) {
@@ -476,7 +1321,8 @@ public class PhotoDB
             return null;
         } finally {
             try {
-                stmt.close();
+                if (stmt != null) stmt.close();
+                if (conn != null) conn.close();
             } catch (SQLException e) { e.printStackTrace(); }
         }
 
@@ -484,147 +1330,1876 @@ public class PhotoDB
     }
     
     /**
-     * ASSUMING that the database contains thumbnail images AND a table column
-     * contains the substring "thumb" in upper or lowercase (or a mix), this method
-     * returns an array of those thumbnail images in the order that they were inserted.
+     * (The unique key must be properly set in order for this method to work.)
+     * Like getSpecificPhoto(), except that the photo is decoded at a lower resolution
+     * if it is larger than it needs to be to fill <code>maxWidth</code> x <code>maxHeight</code>,
+     * which saves most of the memory (and decoding time) for photos that are displayed
+     * much smaller than their full size. See readSubsampled() for details.
      *
-     * Use this in conjunction with getSpecificPhoto() and retrievePhotoPropertiesOnly(),
-     * or use retrievePhotos() by itself.
+     * The photo is cached the same way as with getPhotoFile(), and decoded from the cache.
      * 
-     * @return The array of thumbnail images in the database, or null if the database
-     * query fails to execute
+     * @param uniqueKeyValue The value of the unique key for the photo that is
+     * intended to be retrieved.
+     * @param maxWidth The width the photo will be displayed at (at most)
+     * @param maxHeight The height the photo will be displayed at (at most)
+     * @return An <code>Image</code> that corresponds to the uniqueKeyValue, or null
+     * if there is no such image or an exception is thrown
      */
-    public Image[] getPhotoThumbnails()
+    public Image getSpecificPhoto(Object uniqueKeyValue, int maxWidth, int maxHeight)
     {
-        if (conn == null)
-            throw new IllegalStateException("Not connected to any database");
-                
-        ArrayList<Image> thumbs = new ArrayList<Image>();
-        PreparedStatement stmt = null;
+        File file = getPhotoFile(uniqueKeyValue);
+        if (file == null)
+            return null;
         
-        // Same as in getSpecificPhoto(), except you want the thumbnail
-        // and ALL rows are selected through the query
-        String thumbCol = "";
-        for (String colName : columnNames)
-        {
-            DataType type = columnTypes.get(colName);
-            if (type == DataType.BIN_STREAM && colName.toLowerCase().indexOf("thumb") > -1)
-            {
-                thumbCol = colName;
-                break;
-            }
+        try {
+            return readSubsampled(file, maxWidth, maxHeight);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
         }
-        String query = "SELECT `" + thumbCol + "` FROM " + tableName;
+    }
+    
+    /**
+     * (The unique key must be properly set in order for this method to work.)
+     * Like getSpecificPhoto(uniqueKeyValue, maxWidth, maxHeight), but with
+     * <code>edits</code> applied. The original is cached as by getPhotoFile() and
+     * only its crop is decoded; the edited photo is then cached in the photo
+     * directory as well, as a PNG (so it is not compressed twice) named by the
+     * content hash of the photo (or its unique key if there is no hash column),
+     * the version of the edits and the size, so that it is only rendered once and
+     * the original is never rewritten. Like the other cached photos, renderings
+     * only last for the session: they are deleted by disconnect(), and one left
+     * behind by a crash is rendered again (and then deleted as well).
+     * 
+     * @param uniqueKeyValue The value of the unique key for the photo that is
+     * intended to be retrieved.
+     * @param edits The edits of the photo (see getEditsColumn())
+     * @param maxWidth The width the edited photo will be displayed at (at most)
+     * @param maxHeight The height the edited photo will be displayed at (at most)
+     * @return The edited photo, or null if there is no such photo or an exception
+     * is thrown
+     */
+    public Image getEditedPhoto(Object uniqueKeyValue, PhotoEdits edits, int maxWidth, int maxHeight)
+    {
+        if (edits.isEmpty())
+            return getSpecificPhoto(uniqueKeyValue, maxWidth, maxHeight);
+        if (pool == null)
+            throw new IllegalStateException("Not connected to any database");
         
+        Connection conn = null;
         try {
-            stmt = conn.prepareStatement(query);
-            ResultSet rs = stmt.executeQuery();
-    
-            while (rs.next())
+            String hash = null;
+            if (hashKey != -1)
             {
-                InputStream in = rs.getBinaryStream(1);
-                thumbs.add(ImageIO.read(in));
+                conn = borrowReadConnection();
+                hash = getContentHash(conn, uniqueKeyValue);
+                conn.close();
+                conn = null;
+            }
+            String base = photoPath + "\\edited_" + (hash != null ? hash : uniqueKeyValue.toString()) + "_"
+                    + edits.getVersion() + "_" + maxWidth + "x" + maxHeight;
+            File rendered = new File(base + ".png"), temp = new File(base + ".tmp");
+            if (cachedPhotos.contains(rendered) && Boolean.TRUE.equals(cachedDone.get(rendered)))
+                return ImageIO.read(rendered);
+            
+            File file = getPhotoFile(uniqueKeyValue);
+            if (file == null)
+                return null;
+            boolean turned = edits.isTransposed();                            //Then the crop is shown sideways
+            BufferedImage image = edits.transform(readSubsampled(file, turned ? maxHeight : maxWidth,
+                                                    turned ? maxWidth : maxHeight, edits.getCrop()));
+            
+            // Written under a temporary name first, so that a rendering that exists is complete
+            try {
+                if (ImageIO.write(image, "png", temp) && (temp.renameTo(rendered) || rendered.exists()))
+                {
+                    cachedDone.put(rendered, true);
+                    synchronized (cachedPhotos)
+                    {
+                        if (!cachedPhotos.contains(rendered))
+                            cachedPhotos.add(rendered);                        //Deleted with the other cached photos
+                    }
+                }
+            } catch (IOException e) { e.printStackTrace(); }                    //Just not cached
+            finally {
+                temp.delete();
             }
+            return image;
         } catch (Exception e) {
             e.printStackTrace();
             return null;
         } finally {
             try {
-                stmt.close();
+                if (conn != null) conn.close();
             } catch (SQLException e) { e.printStackTrace(); }
         }
-
-        return thumbs.toArray(new Image[thumbs.size()]);
     }
     
     /**
-     * Deletes all files that have been retrieved or cached by PhotoDB in the
-     * photo path directory that was set before, and deletes the directory as
-     * well if there are no other files present. Also, all StreamWriters are
-     * stopped so files can be unlocked for deletion.
+     * Decodes the image in <code>file</code>, keeping only every nth pixel (in each
+     * direction) for the largest n that still leaves the image at least as large as
+     * <code>maxWidth</code> x <code>maxHeight</code> in one dimension. n is chosen from
+     * the dimensions in the image header, before any pixels are decoded, and is
+     * increased further if the decoded image would not fit into half of the heap
+     * that is currently free.
      * 
-     * Note that if the photo directory is changed after caching/retrieval,
-     * the files cached and retrieved prior to the change will not be deleted.
+     * @param file The image file to decode
+     * @param maxWidth The width the image will be displayed at (at most)
+     * @param maxHeight The height the image will be displayed at (at most)
+     * @return The decoded image
+     * @throws IOException If the file cannot be read or is not a supported image
      */
-    public void deletePhotoDirectory()
+    public static BufferedImage readSubsampled(File file, int maxWidth, int maxHeight) throws IOException
     {
-        File tempDir = new File(photoPath);
-        if (tempDir.exists())
-        {
-            if (streamWriters != null)
-                for (StreamWriter sw : streamWriters)
-                    sw.kill();                                                //Works because it's in a different thread :)
-            if (currPhotos != null)
-                for (File f : currPhotos)
-                    f.delete();    
-            if (cachedPhotos != null)
-                for (File f : cachedPhotos)
-                    f.delete();
-
-            tempDir.delete();
-        }
+        return readSubsampled(file, maxWidth, maxHeight, null);
     }
-
-// ----- GETTERS AND SETTERS for fields ----- //
-
+    
     /**
-     * Returns a COPY of the column names that have been set,
-     * and which should match the current table schema.
+     * Like readSubsampled(file, maxWidth, maxHeight), but only decodes a region of
+     * the image (e.g. the crop of PhotoEdits), which is what has to fill
+     * <code>maxWidth</code> x <code>maxHeight</code>. The rest of the image is
+     * skipped, so a small crop of a large photo keeps its detail.
      * 
-     * @return a copy of the column names used by this PhotoDB
+     * @param file The image file to decode
+     * @param maxWidth The width the region will be displayed at (at most)
+     * @param maxHeight The height the region will be displayed at (at most)
+     * @param region The region as { x, y, width, height } in fractions of the
+     * image (see PhotoEdits.getCrop()), or null for all of it
+     * @return The decoded region
+     * @throws IOException If the file cannot be read or is not a supported image
      */
-    public String[] getColumnNames()
+    public static BufferedImage readSubsampled(File file, int maxWidth, int maxHeight, double[] region)
+            throws IOException
     {
-        String[] cols = new String[columnNames.length];
-        for (int i = 0; i < cols.length; i++)
-            cols[i] = columnNames[i];
+        ImageInputStream iis = ImageIO.createImageInputStream(file);
+        if (iis == null)
+            throw new IOException("Cannot open " + file);
+        ImageReader reader = null;
         
-        return columnNames;
+        try {
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(iis);
+            if (!readers.hasNext())
+                throw new IOException("No image reader for " + file);
+            reader = readers.next();
+            reader.setInput(iis, true, true);
+            
+            int w = reader.getWidth(0), h = reader.getHeight(0);
+            ImageReadParam param = reader.getDefaultReadParam();
+            if (region != null)
+            {
+                Rectangle source = new Rectangle(Math.min((int) (region[0] * w), w - 1),
+                                                Math.min((int) (region[1] * h), h - 1), 0, 0);
+                source.width = (int) Math.max(1, Math.min(w - source.x, Math.round(region[2] * w)));
+                source.height = (int) Math.max(1, Math.min(h - source.y, Math.round(region[3] * h)));
+                param.setSourceRegion(source);
+                w = source.width;
+                h = source.height;
+            }
+            int factor = Math.max(1, Math.min(w / Math.max(maxWidth, 1), h / Math.max(maxHeight, 1)));
+            
+            // Cap the decoded pixels (at 4 bytes each) to half of the free heap
+            Runtime rt = Runtime.getRuntime();
+            long free = rt.maxMemory() - (rt.totalMemory() - rt.freeMemory());
+            while ((long) (w / factor) * (h / factor) * 4 > free / 2 && factor < Math.max(w, h))
+                factor++;
+            
+            param.setSourceSubsampling(factor, factor, 0, 0);
+            return reader.read(0, param);
+        } finally {
+            if (reader != null) reader.dispose();
+            iis.close();
+        }
     }
     
     /**
-     * Returns a COPY of the mappings of column names and data types
+     * (The unique key must be properly set in order for this method to work.)
+     * Makes sure the photo whose unique key is <code>uniqueKeyValue</code> is cached
+     * in the photo directory, and returns the cached file WITHOUT decoding it. Unlike
+     * getSpecificPhoto(), the file is written synchronously, so it is complete when
+     * this method returns. Use this for photos that are too large to decode whole,
+     * e.g. to read them region by region with a <code>TiledImage</code>.
      * 
-     * @return Hash<String, DataType> of the column names and data types
+     * @param uniqueKeyValue The value of the unique key for the photo that is
+     * intended to be retrieved.
+     * @return The cached file of the photo, or null if there is no such photo or
+     * an exception is thrown
      */
-    public HashMap<String, DataType> getColumnTypes()
+    public File getPhotoFile(Object uniqueKeyValue)
     {
-        HashMap<String, DataType> hash = new HashMap<String, DataType>();
-        for (Map.Entry<String, DataType> entry : hash.entrySet())
-            hash.put(entry.getKey(), entry.getValue());
+        if (pool == null)
+            throw new IllegalStateException("Not connected to any database");
         
-        return columnTypes;
-    }
-    
-    public String getPhotoDirectory()
-    {
-        return photoPath;
-    }
-    
-    /**
+        PreparedStatement stmt = null;
+        String query = selectRows(true) + " WHERE m.`" + columnNames[uniqueKey] + "`=?";
+        Connection conn = null;
+        
+        try {
+            conn = borrowReadConnection();
+            stmt = conn.prepareStatement(query);
+            stmt.setObject(1, uniqueKeyValue, columnTypes.get(columnNames[uniqueKey]).getSqlType());
+            ResultSet rs = stmt.executeQuery();
+            
+            if (!rs.next())
+                return null;
+            
+            // Same file as in getSpecificPhoto(), so either method can use the other's cache
+            String filename = rs.getObject(uniqueKey + 1).toString();
+            File file = new File(photoPath + "\\" + filename);
+            File[] photos = currPhotos;
+            if (photos != null)
+                for (File f : photos)
+                    if (file.equals(f))
+                        return file;
+            
+            // Only one thread writes a given file at a time
+            Object lock = new Object(), prevLock = writeLocks.putIfAbsent(file, lock);
+            synchronized (prevLock != null ? prevLock : lock)
+            {
+                if (cachedPhotos.contains(file) && Boolean.TRUE.equals(cachedDone.get(file)))
+                    return file;
+                
+                // Write the file here (a StreamWriter from getSpecificPhoto() may still be
+                // writing it, so stop it and start over rather than wait for it to finish)
+                if (cachedPhotos.contains(file))
+                {
+                    StreamWriter writer = null;
+                    synchronized (streamWriters)
+                    {
+                        for (StreamWriter sw : streamWriters)
+                            if (sw.file.equals(file))
+                                writer = sw;
+                    }
+                    if (writer != null)
+                    {
+                        writer.kill();
+                        writer.awaitExit();
+                    }
+                    file.delete();
+                }
+                writeImage(rs, getImageColumn() + 1, file);
+                
+                cachedDone.put(file, true);
+                synchronized (cachedPhotos)
+                {
+                    if (!cachedPhotos.contains(file))
+                        cachedPhotos.add(file);
+                }
+                return file;
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+            return null;
+        } finally {
+            try {
+                if (stmt != null) stmt.close();
+                if (conn != null) conn.close();
+            } catch (SQLException e) { e.printStackTrace(); }
+        }
+    }
+    
+    /**
+     * ASSUMING that the database contains thumbnail images AND a table column
+     * contains the substring "thumb" in upper or lowercase (or a mix), this method
+     * returns an array of those thumbnail images in the order that they were inserted.
+     *
+     * Use this in conjunction with getSpecificPhoto() and retrievePhotoPropertiesOnly(),
+     * or use retrievePhotos() by itself.
+     *
+     * Thumbnails are decoded in parallel (see <code>ImageDecoder</code>) while the
+     * rest of the rows are still being read. If there is an edits column, each
+     * thumbnail is returned with the edits of its photo applied (the stored
+     * thumbnail is always of the original).
+     * 
+     * @return The array of thumbnail images in the database, or null if the database
+     * query fails to execute
+     */
+    public Image[] getPhotoThumbnails()
+    {
+        if (pool == null)
+            throw new IllegalStateException("Not connected to any database");
+                
+        ArrayList<Image> thumbs = new ArrayList<Image>();
+        PreparedStatement stmt = null;
+        
+        // Same as in getSpecificPhoto(), except you want the thumbnail
+        // and ALL rows are selected through the query
+        if (getThumbColumn() == -1)
+            return null;
+        String query = "SELECT " + column("m", getThumbColumn()) + ", " + (editsKey != -1 ? column("m", editsKey) : "NULL")
+                + " FROM " + rowSource("m", true);
+        Connection conn = null;
+        
+        try {
+            conn = borrowReadConnection();
+            stmt = conn.prepareStatement(query);
+            ResultSet rs = stmt.executeQuery();
+            ArrayList<Future<BufferedImage>> decoded = new ArrayList<Future<BufferedImage>>();
+            ArrayList<String> edits = new ArrayList<String>();
+            ImageDecoder decoder = this.decoder;                            //Still usable after a disconnect()
+            if (decoder == null)
+                throw new IllegalStateException("Not connected to any database");
+    
+            while (rs.next())
+            {
+                byte[] data = rs.getBytes(1);
+                decoded.add(data != null ? decoder.submit(data) : null);
+                edits.add(rs.getString(2));
+            }
+            for (int i = 0; i < decoded.size(); i++)
+                thumbs.add(decoded.get(i) != null ? applyEdits(decoded.get(i).get(), edits.get(i)) : null);
+        } catch (ExecutionException e) {
+            e.getCause().printStackTrace();
+            return null;
+        } catch (Exception e) {
+            e.printStackTrace();
+            return null;
+        } finally {
+            try {
+                if (stmt != null) stmt.close();
+                if (conn != null) conn.close();
+            } catch (SQLException e) { e.printStackTrace(); }
+        }
+
+        return thumbs.toArray(new Image[thumbs.size()]);
+    }
+    
+    /**
+     * Like getPhotoThumbnails(), but only returns the thumbnails of <code>count</code>
+     * rows starting at row <code>offset</code>, along with their unique keys, so that
+     * a large table can be loaded in pages (e.g. several pages at once on different
+     * threads). The rows are ordered by the unique key, so that pages read by
+     * different queries (on different connections) neither overlap nor skip rows.
+     * 
+     * @param offset The first row to return the thumbnail of (the first row is 0)
+     * @param count The maximum number of thumbnails to return
+     * @param keys A list that the unique keys of the returned thumbnails are
+     * added to, in the same order as the thumbnails
+     * @return The array of thumbnail images in the page, or null if the database
+     * query fails to execute
+     */
+    public Image[] getPhotoThumbnails(int offset, int count, List<Object> keys)
+    {
+        if (pool == null)
+            throw new IllegalStateException("Not connected to any database");
+        
+        ArrayList<Image> thumbs = new ArrayList<Image>();
+        PreparedStatement stmt = null;
+        if (getThumbColumn() == -1)
+            return null;
+        String query = "SELECT m.`" + columnNames[uniqueKey] + "`, " + column("m", getThumbColumn()) + ", "
+                + (editsKey != -1 ? column("m", editsKey) : "NULL") + " FROM " + rowSource("m", true)
+                + " ORDER BY m.`" + columnNames[uniqueKey] + "` LIMIT ?, ?";
+        Connection conn = null;
+        
+        try {
+            conn = borrowReadConnection();
+            stmt = conn.prepareStatement(query);
+            stmt.setInt(1, offset);
+            stmt.setInt(2, count);
+            ResultSet rs = stmt.executeQuery();
+            ArrayList<Future<BufferedImage>> decoded = new ArrayList<Future<BufferedImage>>();
+            ArrayList<String> edits = new ArrayList<String>();
+            ImageDecoder decoder = this.decoder;                            //Still usable after a disconnect()
+            if (decoder == null)
+                throw new IllegalStateException("Not connected to any database");
+            
+            while (rs.next())
+            {
+                keys.add(rs.getObject(1));
+                byte[] data = rs.getBytes(2);
+                decoded.add(data != null ? decoder.submit(data) : null);
+                edits.add(rs.getString(3));
+            }
+            for (int i = 0; i < decoded.size(); i++)
+                thumbs.add(decoded.get(i) != null ? applyEdits(decoded.get(i).get(), edits.get(i)) : null);
+        } catch (ExecutionException e) {
+            e.getCause().printStackTrace();
+            return null;
+        } catch (Exception e) {
+            e.printStackTrace();
+            return null;
+        } finally {
+            try {
+                if (stmt != null) stmt.close();
+                if (conn != null) conn.close();
+            } catch (SQLException e) { e.printStackTrace(); }
+        }
+        
+        return thumbs.toArray(new Image[thumbs.size()]);
+    }
+    
+    /**
+     * (The unique key must be properly set in order for this method to work.)
+     * Returns the thumbnail of the photo with <code>uniqueKeyValue</code>, with its
+     * edits applied as in getPhotoThumbnails(), e.g. to refresh it after its edits
+     * have been changed.
+     * 
+     * @param uniqueKeyValue The value of the unique key of the photo
+     * @return The thumbnail, or null if there is no such photo or thumbnail, or
+     * an exception is thrown
+     */
+    public Image getPhotoThumbnail(Object uniqueKeyValue)
+    {
+        if (pool == null)
+            throw new IllegalStateException("Not connected to any database");
+        if (getThumbColumn() == -1)
+            return null;
+        
+        PreparedStatement stmt = null;
+        String query = "SELECT " + column("m", getThumbColumn()) + ", " + (editsKey != -1 ? column("m", editsKey) : "NULL")
+                + " FROM " + rowSource("m", true) + " WHERE m.`" + columnNames[uniqueKey] + "`=?";
+        Connection conn = null;
+        
+        try {
+            conn = borrowReadConnection();
+            stmt = conn.prepareStatement(query);
+            stmt.setObject(1, uniqueKeyValue, columnTypes.get(columnNames[uniqueKey]).getSqlType());
+            ResultSet rs = stmt.executeQuery();
+            
+            byte[] data = rs.next() ? rs.getBytes(1) : null;
+            return (data != null) ? applyEdits(ImageDecoder.decode(data), rs.getString(2)) : null;
+        } catch (Exception e) {
+            e.printStackTrace();
+            return null;
+        } finally {
+            try {
+                if (stmt != null) stmt.close();
+                if (conn != null) conn.close();
+            } catch (SQLException e) { e.printStackTrace(); }
+        }
+    }
+    
+    /**
+     * Returns <code>image</code> with <code>edits</code> (a value of the edits
+     * column) applied; edits that cannot be parsed are printed and ignored.
+     */
+    private static BufferedImage applyEdits(BufferedImage image, String edits)
+    {
+        if (image == null || edits == null)
+            return image;
+        try {
+            return PhotoEdits.parse(edits).apply(image);
+        } catch (IllegalArgumentException e) {
+            e.printStackTrace();
+            return image;
+        }
+    }
+    
+    /**
+     * Deletes all files that have been retrieved or cached by PhotoDB in the
+     * photo path directory that was set before, and deletes the directory as
+     * well if there are no other files present. Also, all StreamWriters are
+     * stopped so files can be unlocked for deletion.
+     * 
+     * Note that if the photo directory is changed after caching/retrieval,
+     * the files cached and retrieved prior to the change will not be deleted.
+     */
+    public void deletePhotoDirectory()
+    {
+        File tempDir = new File(photoPath);
+        if (tempDir.exists())
+        {
+            if (streamWriters != null)
+                synchronized (streamWriters)
+                {
+                    for (StreamWriter sw : streamWriters)
+                        sw.kill();                                            //Works because it's in a different thread :)
+                }
+            File[] photos = currPhotos;
+            if (photos != null)
+                for (File f : photos)
+                    f.delete();    
+            if (cachedPhotos != null)
+                synchronized (cachedPhotos)
+                {
+                    for (File f : cachedPhotos)
+                        f.delete();
+                }
+
+            tempDir.delete();
+        }
+    }
+
+    /**
+     * Makes sure the table has the content hash column set by setContentHashColumn(),
+     * along with an index on it so that duplicate lookups in insertRow() do not
+     * scan the table. If the column does not exist, it is added (as CHAR(64), i.e.
+     * a hex-encoded SHA-256) with the index; existing rows keep a null hash and are
+     * simply never deduplicated against. If no hash column is set, this method
+     * does nothing.
+     * 
+     * @throws SQLException If there is an error reading or altering the table
+     */
+    public void ensureContentHashColumn() throws SQLException
+    {
+        if (pool == null)
+            throw new IllegalStateException("Not connected to any database");
+        if (hashKey == -1)
+            return;
+        
+        String hashCol = columnNames[hashKey];
+        PreparedStatement stmt = null;
+        Connection conn = borrowConnection();
+        
+        try {
+            DatabaseMetaData meta = conn.getMetaData();
+            ResultSet rs = meta.getColumns(null, null, tableName, hashCol);
+            boolean hasColumn = rs.next();
+            rs.close();
+            
+            boolean hasIndex = false;
+            rs = meta.getIndexInfo(null, null, tableName, false, true);
+            while (rs.next() && !hasIndex)
+                hasIndex = hashCol.equalsIgnoreCase(rs.getString("COLUMN_NAME"));
+            rs.close();
+            
+            if (hasColumn && hasIndex)
+                return;
+            
+            String query = "ALTER TABLE " + tableName;
+            if (!hasColumn)
+                query += " ADD COLUMN `" + hashCol + "` CHAR(64) NULL,";
+            query += " ADD INDEX `" + hashCol + "_idx` (`" + hashCol + "`)";
+            
+            stmt = conn.prepareStatement(query);
+            stmt.execute();
+            lastWrite = System.currentTimeMillis();                            //Until the replicas have the column too
+        } catch (SQLException ex) { throw ex; }
+        finally {
+            if (stmt != null) stmt.close();
+            conn.close();
+        }
+    }
+    
+    /**
+     * Makes sure the table has the codec column set by setCodecColumn(). If the
+     * column does not exist, it is added (as a TINYINT that defaults to
+     * StorageCodec.NONE, since existing rows are not compressed). If no codec
+     * column is set, this method does nothing.
+     * 
+     * @throws SQLException If there is an error reading or altering the table
+     */
+    public void ensureCodecColumn() throws SQLException
+    {
+        if (pool == null)
+            throw new IllegalStateException("Not connected to any database");
+        if (codecKey == -1)
+            return;
+        
+        String codecCol = columnNames[codecKey];
+        PreparedStatement stmt = null;
+        Connection conn = borrowConnection();
+        
+        try {
+            ResultSet rs = conn.getMetaData().getColumns(null, null, tableName, codecCol);
+            boolean hasColumn = rs.next();
+            rs.close();
+            if (hasColumn)
+                return;
+            
+            stmt = conn.prepareStatement("ALTER TABLE " + tableName + " ADD COLUMN `" + codecCol
+                    + "` TINYINT NOT NULL DEFAULT " + StorageCodec.NONE);
+            stmt.execute();
+            lastWrite = System.currentTimeMillis();
+        } catch (SQLException ex) { throw ex; }
+        finally {
+            if (stmt != null) stmt.close();
+            conn.close();
+        }
+    }
+    
+    /**
+     * Makes sure the table has the perceptual hash column set by
+     * setPerceptualHashColumn(). If the column does not exist, it is added (as a
+     * BIGINT NULL); existing rows get their hashes from fillPerceptualHashes().
+     * The column needs no index, since it is only searched locally. If no
+     * perceptual hash column is set, this method does nothing.
+     * 
+     * @throws SQLException If there is an error reading or altering the table
+     */
+    public void ensurePerceptualHashColumn() throws SQLException
+    {
+        if (pool == null)
+            throw new IllegalStateException("Not connected to any database");
+        if (phashKey == -1)
+            return;
+        
+        String phashCol = columnNames[phashKey];
+        PreparedStatement stmt = null;
+        Connection conn = borrowConnection();
+        
+        try {
+            ResultSet rs = conn.getMetaData().getColumns(null, null, tableName, phashCol);
+            boolean hasColumn = rs.next();
+            rs.close();
+            if (hasColumn)
+                return;
+            
+            stmt = conn.prepareStatement("ALTER TABLE " + tableName + " ADD COLUMN `" + phashCol + "` BIGINT NULL");
+            stmt.execute();
+            lastWrite = System.currentTimeMillis();
+        } catch (SQLException ex) { throw ex; }
+        finally {
+            if (stmt != null) stmt.close();
+            conn.close();
+        }
+    }
+    
+    /**
+     * Makes sure the table has every column of columnNames (except those stored
+     * in the BLOB table), adding those it lacks (as NULL columns, so existing rows
+     * simply have no value for them) in one ALTER TABLE. This lets columns be
+     * added to the schema of an existing database, e.g. the metadata columns that
+     * are filled from ImageMetadata. Indexes are not added; see createIndex().
+     * 
+     * @throws SQLException If there is an error reading or altering the table
+     */
+    public void ensureColumns() throws SQLException
+    {
+        if (pool == null)
+            throw new IllegalStateException("Not connected to any database");
+        
+        PreparedStatement stmt = null;
+        Connection conn = borrowConnection();
+        
+        try {
+            HashSet<String> existing = new HashSet<String>();
+            ResultSet rs = conn.getMetaData().getColumns(null, null, tableName, null);
+            while (rs.next())
+                existing.add(rs.getString("COLUMN_NAME").toLowerCase());
+            rs.close();
+            
+            String query = "";
+            for (int i : getTableColumns(false))
+                if (!existing.contains(columnNames[i].toLowerCase()))
+                {
+                    String def = columnDefinitions(new int[] { i });
+                    query += (query.isEmpty() ? "ALTER TABLE " + tableName : ",") + " ADD COLUMN "
+                            + def.substring(0, def.length() - 2);
+                }
+            if (query.isEmpty())
+                return;
+            
+            stmt = conn.prepareStatement(query);
+            stmt.execute();
+            lastWrite = System.currentTimeMillis();
+        } catch (SQLException ex) { throw ex; }
+        finally {
+            if (stmt != null) stmt.close();
+            conn.close();
+        }
+    }
+    
+    /**
+     * Computes the perceptual hashes of the rows that have none (e.g. rows that
+     * were inserted before the column was added) from their thumbnails, so the
+     * images themselves are not downloaded, and stores them. Rows whose thumbnail
+     * cannot be decoded keep a null hash. Rows are read and updated
+     * <code>batchSize</code> at a time.
+     * 
+     * @param batchSize The number of rows to hash at a time
+     * @return The number of rows that were given a hash
+     * @throws SQLException If there is an error reading or updating the rows
+     */
+    public int fillPerceptualHashes(int batchSize) throws SQLException
+    {
+        if (pool == null)
+            throw new IllegalStateException("Not connected to any database");
+        if (batchSize < 1)
+            throw new IllegalArgumentException("Batch size must be at least 1");
+        if (phashKey == -1 || getThumbColumn() == -1)
+            return 0;
+        
+        String key = "`" + columnNames[uniqueKey] + "`", phash = "`" + columnNames[phashKey] + "`";
+        int keyType = columnTypes.get(columnNames[uniqueKey]).getSqlType();
+        String select = "SELECT m." + key + ", " + column("m", getThumbColumn()) + " FROM " + rowSource("m", true)
+                + " WHERE m." + phash + " IS NULL";
+        String page = " ORDER BY m." + key + " LIMIT ?";
+        PreparedStatement first = null, next = null, update = null;
+        Connection conn = borrowConnection();
+        int filled = 0;
+        
+        try {
+            // Page by key, since rows whose thumbnail cannot be decoded stay null
+            first = conn.prepareStatement(select + page);
+            next = conn.prepareStatement(select + " AND m." + key + ">?" + page);
+            update = conn.prepareStatement("UPDATE " + tableName + " SET " + phash + "=? WHERE " + key + "=?");
+            Object last = null;
+            int rows;
+            do {
+                PreparedStatement stmt = (last == null) ? first : next;
+                if (last != null)
+                    stmt.setObject(1, last, keyType);
+                stmt.setInt(last == null ? 1 : 2, batchSize);
+                ResultSet rs = stmt.executeQuery();
+                
+                rows = 0;
+                int updates = 0;
+                while (rs.next())
+                {
+                    rows++;
+                    last = rs.getObject(1);
+                    byte[] thumb = rs.getBytes(2);
+                    BufferedImage image = null;
+                    try {
+                        image = (thumb != null) ? ImageIO.read(new ByteArrayInputStream(thumb)) : null;
+                    } catch (IOException e) { e.printStackTrace(); }
+                    if (image == null)
+                        continue;
+                    
+                    long hash = PerceptualHash.compute(image);
+                    update.setLong(1, hash);
+                    update.setObject(2, last, keyType);
+                    update.addBatch();
+                    updates++;
+                    SimilarityIndex index = similarityIndex;
+                    if (index != null)
+                        index.add(last, hash);
+                }
+                if (updates > 0)
+                {
+                    update.executeBatch();
+                    filled += updates;
+                    lastWrite = System.currentTimeMillis();
+                }
+            } while (rows == batchSize);
+        } catch (SQLException ex) { throw ex; }
+        finally {
+            if (first != null) first.close();
+            if (next != null) next.close();
+            if (update != null) update.close();
+            conn.close();
+        }
+        return filled;
+    }
+    
+    /**
+     * Creates the table, and the BLOB, chunk and tag tables if they have been set
+     * (see setBlobTable(), setChunkTable(), setTagTable()), with the current
+     * schema, unless they already exist.
+     * The unique key is the primary key of both, and the content hash column
+     * (if any) is indexed.
+     * 
+     * @throws SQLException If there is an error creating the tables
+     */
+    public void createTables() throws SQLException
+    {
+        if (pool == null)
+            throw new IllegalStateException("Not connected to any database");
+        
+        String key = "PRIMARY KEY (`" + columnNames[uniqueKey] + "`)";
+        String query = "CREATE TABLE IF NOT EXISTS " + tableName + " (" + columnDefinitions(getTableColumns(false)) + key;
+        if (hashKey != -1)
+            query += ", INDEX `" + columnNames[hashKey] + "_idx` (`" + columnNames[hashKey] + "`)";
+        query += ")";
+        PreparedStatement stmt = null;
+        Connection conn = borrowConnection();
+        
+        try {
+            stmt = conn.prepareStatement(query);
+            stmt.execute();
+            if (blobTable != null)
+            {
+                stmt.close();
+                stmt = conn.prepareStatement("CREATE TABLE IF NOT EXISTS " + blobTable + " ("
+                        + columnDefinitions(getTableColumns(true)) + key + ")");
+                stmt.execute();
+            }
+            if (chunkTable != null)
+            {
+                stmt.close();
+                String keyCol = columnNames[uniqueKey];
+                stmt = conn.prepareStatement("CREATE TABLE IF NOT EXISTS " + chunkTable + " (`" + keyCol + "` "
+                        + columnTypes.get(keyCol).getSqlTypeName() + " NOT NULL, `CHUNK` INT NOT NULL, "
+                        + "`DATA` LONGBLOB NOT NULL, PRIMARY KEY (`" + keyCol + "`, `CHUNK`))");
+                stmt.execute();
+            }
+            if (tagTable != null)
+            {
+                stmt.close();
+                String keyCol = columnNames[uniqueKey];
+                stmt = conn.prepareStatement("CREATE TABLE IF NOT EXISTS " + tagTable + " (`" + keyCol + "` "
+                        + columnTypes.get(keyCol).getSqlTypeName() + " NOT NULL, `KIND` TINYINT NOT NULL, "
+                        + "`NAME` VARCHAR(255) NOT NULL, PRIMARY KEY (`" + keyCol + "`, `KIND`, `NAME`), "
+                        + "INDEX `KIND_NAME_idx` (`KIND`, `NAME`))");
+                stmt.execute();
+            }
+            lastWrite = System.currentTimeMillis();
+        } catch (SQLException ex) { throw ex; }
+        finally {
+            if (stmt != null) stmt.close();
+            conn.close();
+        }
+    }
+    
+    /**
+     * Moves the BIN_STREAM columns of a table that still stores them itself into
+     * the BLOB table (see setBlobTable(), which must be called first), creating
+     * the BLOB table if needed, and then drops them from the table.
+     * 
+     * The BLOBs are copied <code>batchSize</code> rows at a time, in the order of the
+     * unique key and each batch in a statement of its own, so that the table is not
+     * locked for the whole migration. Rows that have been copied already are skipped,
+     * so a migration that was interrupted can simply be run again. Until this method
+     * returns, the table should only be accessed by PhotoDBs without a BLOB table.
+     * 
+     * @param batchSize The number of rows to copy per statement
+     * @return The number of rows whose BLOBs were copied
+     * @throws SQLException If there is an error copying the BLOBs or dropping the columns
+     */
+    public int migrateToBlobTable(int batchSize) throws SQLException
+    {
+        if (pool == null)
+            throw new IllegalStateException("Not connected to any database");
+        if (blobTable == null)
+            throw new IllegalStateException("No BLOB table has been set");
+        
+        int[] blobCols = getTableColumns(true);
+        String key = "`" + columnNames[uniqueKey] + "`", cols = "", drop = "";
+        int keyType = columnTypes.get(columnNames[uniqueKey]).getSqlType();
+        PreparedStatement stmt = null;
+        Connection conn = borrowConnection();
+        int copied = 0;
+        
+        try {
+            // Only the BLOB columns that are still in the table are moved
+            DatabaseMetaData meta = conn.getMetaData();
+            for (int i : blobCols)
+            {
+                cols += (cols.isEmpty() ? "`" : ", `") + columnNames[i] + "`";
+                if (i == uniqueKey)
+                    continue;
+                
+                ResultSet rs = meta.getColumns(null, null, tableName, columnNames[i]);
+                if (rs.next())
+                    drop += (drop.isEmpty() ? " DROP COLUMN `" : ", DROP COLUMN `") + columnNames[i] + "`";
+                rs.close();
+            }
+            if (drop.isEmpty())
+                return 0;
+            
+            stmt = conn.prepareStatement("CREATE TABLE IF NOT EXISTS " + blobTable + " ("
+                    + columnDefinitions(blobCols) + "PRIMARY KEY (" + key + "))");
+            stmt.execute();
+            stmt.close();
+            
+            // Copy batch by batch: find the range of keys of the next batch, then copy that range
+            Object last = null;
+            while (true)
+            {
+                stmt = conn.prepareStatement("SELECT " + key + " FROM " + tableName
+                        + (last != null ? " WHERE " + key + ">?" : "") + " ORDER BY " + key + " LIMIT ?");
+                if (last != null)
+                    stmt.setObject(1, last, keyType);
+                stmt.setInt(last != null ? 2 : 1, batchSize);
+                ResultSet rs = stmt.executeQuery();
+                Object first = null;
+                int rows = 0;
+                for (; rs.next(); rows++)
+                {
+                    if (first == null)
+                        first = rs.getObject(1);
+                    last = rs.getObject(1);
+                }
+                stmt.close();
+                if (rows == 0)
+                    break;
+                
+                stmt = conn.prepareStatement("INSERT IGNORE INTO " + blobTable + " (" + cols + ") SELECT " + cols
+                        + " FROM " + tableName + " WHERE " + key + ">=? AND " + key + "<=?");
+                stmt.setObject(1, first, keyType);
+                stmt.setObject(2, last, keyType);
+                copied += stmt.executeUpdate();
+                stmt.close();
+                if (rows < batchSize)
+                    break;
+            }
+            
+            stmt = conn.prepareStatement("ALTER TABLE " + tableName + drop);
+            stmt.execute();
+            lastWrite = System.currentTimeMillis();
+        } catch (SQLException ex) { throw ex; }
+        finally {
+            if (stmt != null) stmt.close();
+            conn.close();
+        }
+        
+        return copied;
+    }
+    
+    /**
+     * Computes the SHA-256 of the contents of <code>file</code> by streaming it
+     * through a digest, so the file is never held in memory as a whole.
+     * 
+     * @param file The file to hash
+     * @return The hash as a lowercase hex String (64 characters)
+     * @throws IOException If the file cannot be read
+     */
+    public static String computeContentHash(File file) throws IOException
+    {
+        InputStream in = null;
+        
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-256");
+            in = new DigestInputStream(new FileInputStream(file), md);
+            byte[] buf = new byte[8192];
+            while (in.read(buf) != -1)
+                ;                                                            //Digest is updated as it is read
+            
+            StringBuilder sb = new StringBuilder();
+            for (byte b : md.digest())
+                sb.append(String.format("%02x", b & 0xff));
+            return sb.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);                                //Every JRE is required to provide SHA-256
+        } finally {
+            try {
+                if (in != null) in.close();
+            } catch (IOException e) { e.printStackTrace(); }
+        }
+    }
+    
+    /**
+     * Returns the image stream in the (index)th column of the current row of
+     * <code>rs</code>. If the row only references its bytes by content hash (i.e.
+     * the image was a duplicate on insertion), the stream of the row that
+     * actually stores those bytes is returned instead. Images that are stored in
+     * chunks are streamed from the chunk table, several chunks at a time (see
+     * ChunkInputStream), and those in the blob store from there. Compressed
+     * images are decompressed as they are read (see StorageCodec.decompress()).
+     * 
+     * @param rs The <code>ResultSet</code>, positioned on the row of the image
+     * @param index The column index of the image in the <code>ResultSet</code>
+     * @return The image stream, or null if there are no bytes for the row
+     * @throws SQLException If there is an error executing the query
+     */
+    protected InputStream getImageStream(ResultSet rs, int index) throws SQLException
+    {
+        InputStream in = rs.getBinaryStream(index);
+        if (in != null)
+            return (index - 1 == getImageColumn()) ? decompress(in, rs) : in;
+        
+        // Use the same connection as rs, which the calling thread has leased already
+        Connection conn = rs.getStatement().getConnection();
+        if (chunkTable != null && (in = openChunks(conn, rs.getObject(uniqueKey + 1), 0, -1)) != null)
+            return in;
+        if (hashKey == -1)
+            return null;
+        
+        Object hash = rs.getObject(hashKey + 1);
+        if (hash == null)
+            return null;
+        
+        try {
+            if (blobStore != null && blobStore.contains(hash.toString()))
+                return blobStore.open(hash.toString());
+        } catch (IOException e) {
+            throw new SQLException("Error reading the image from the blob store", e);
+        }
+        
+        PreparedStatement stmt = null;
+        String imageCol = column("m", index - 1);
+        String query = "SELECT " + imageCol + ", " + (codecKey != -1 ? column("m", codecKey) : "NULL") + " FROM "
+                + rowSource("m", true) + " WHERE " + column("m", hashKey) + "=? AND " + imageCol + " IS NOT NULL LIMIT 1";
+        
+        try {
+            stmt = conn.prepareStatement(query);
+            stmt.setString(1, hash.toString());
+            ResultSet refRs = stmt.executeQuery();
+            if (!refRs.next())
+                return null;
+            
+            // Read the bytes before the statement (and so refRs) is closed
+            return StorageCodec.decompress(new ByteArrayInputStream(refRs.getBytes(1)), refRs.getInt(2));
+        } catch (SQLException ex) { throw ex; }
+        finally {
+            if (stmt != null) stmt.close();
+        }
+    }
+
+    /**
+     * Wraps the image stream <code>in</code> of the current row of <code>rs</code>
+     * so that it is decompressed with the codec of the row.
+     */
+    private InputStream decompress(InputStream in, ResultSet rs) throws SQLException
+    {
+        return (codecKey != -1) ? StorageCodec.decompress(in, rs.getInt(codecKey + 1)) : in;
+    }
+
+    /**
+     * Returns the properties (the non-BIN_STREAM columns) of the current row of
+     * <code>rs</code>, which was selected by selectRows().
+     */
+    private Properties readProperties(ResultSet rs) throws SQLException
+    {
+        Properties props = new Properties();
+        for (int i = 0; i < columnNames.length; i++)
+        {
+            DataType type = columnTypes.get(columnNames[i]);
+
+            //Skip BIN_STREAMs since they aren't properties
+            if (type == DataType.BIN_STREAM)
+                continue;
+
+            Object obj = getResultSetParam(rs, i + 1, type);
+            if (obj != null)
+                props.setProperty(columnNames[i], obj.toString());
+        }
+        return props;
+    }
+    
+    /**
+     * Rebuilds the search index from the properties of all rows, if there are
+     * search columns, the similarity index, if there is a perceptual hash
+     * column, the geo index, if there are geo columns, and the timeline, if there
+     * is a timeline column.
+     */
+    protected void indexProperties(Properties[] props)
+    {
+        if (searchColumns.length > 0)
+        {
+            SearchIndex index = new SearchIndex();
+            String[] texts = new String[searchColumns.length];
+            for (Properties p : props)
+            {
+                for (int i = 0; i < searchColumns.length; i++)
+                    texts[i] = p.getProperty(columnNames[searchColumns[i]]);
+                index.add(p.getProperty(columnNames[uniqueKey]), texts);
+            }
+            searchIndex = index;
+        }
+        
+        if (phashKey != -1)
+        {
+            SimilarityIndex index = new SimilarityIndex();
+            for (Properties p : props)
+            {
+                String hash = p.getProperty(columnNames[phashKey]);
+                if (hash != null)
+                    index.add(p.getProperty(columnNames[uniqueKey]), Long.parseLong(hash));
+            }
+            similarityIndex = index;
+        }
+        
+        if (latKey != -1)
+        {
+            GeoIndex index = new GeoIndex();
+            for (Properties p : props)
+            {
+                String lat = p.getProperty(columnNames[latKey]), lon = p.getProperty(columnNames[lonKey]);
+                if (lat != null && lon != null)
+                    index.add(p.getProperty(columnNames[uniqueKey]), Double.parseDouble(lat), Double.parseDouble(lon));
+            }
+            geoIndex = index;
+        }
+        
+        if (timelineKey != -1)
+        {
+            Timeline counts = new Timeline();
+            for (Properties p : props)
+            {
+                String date = p.getProperty(columnNames[timelineKey]);
+                if (date != null)
+                    counts.add(p.getProperty(columnNames[uniqueKey]), date);
+            }
+            timeline = counts;
+        }
+    }
+    
+    /**
+     * Adds the row <code>data[]</code>, which has just been inserted, to the
+     * search, similarity and geo indexes and the timeline (those that have been
+     * loaded).
+     */
+    protected void addToLocalIndexes(Object[] data)
+    {
+        SearchIndex index = searchIndex;
+        if (index != null)
+        {
+            String[] texts = new String[searchColumns.length];
+            for (int i = 0; i < searchColumns.length; i++)
+                texts[i] = (data[searchColumns[i]] != null) ? data[searchColumns[i]].toString() : null;
+            index.add(data[uniqueKey], texts);
+        }
+        
+        SimilarityIndex similar = similarityIndex;
+        if (similar != null && data[phashKey] != null)
+            similar.add(data[uniqueKey], ((Number) data[phashKey]).longValue());
+        
+        GeoIndex geo = geoIndex;
+        if (geo != null && data[latKey] != null && data[lonKey] != null)
+            geo.add(data[uniqueKey], ((Number) data[latKey]).doubleValue(), ((Number) data[lonKey]).doubleValue());
+        
+        Timeline counts = timeline;
+        if (counts != null && data[timelineKey] != null)
+            counts.add(data[uniqueKey], data[timelineKey]);
+    }
+    
+    /**
+     * Removes the row with <code>uniqueKeyValue</code>, which has just been
+     * deleted (along with its tags), from the search, similarity, geo and tag indexes
+     * and the timeline (those that have been loaded).
+     */
+    protected void removeFromLocalIndexes(Object uniqueKeyValue)
+    {
+        SearchIndex index = searchIndex;
+        if (index != null)
+            index.remove(uniqueKeyValue);
+        SimilarityIndex similar = similarityIndex;
+        if (similar != null)
+            similar.remove(uniqueKeyValue);
+        GeoIndex geo = geoIndex;
+        if (geo != null)
+            geo.remove(uniqueKeyValue);
+        Timeline counts = timeline;
+        if (counts != null)
+            counts.remove(uniqueKeyValue);
+        TagIndex tags = tagIndex;
+        if (tags != null)
+            tags.removePhoto(uniqueKeyValue);
+    }
+    
+    /**
+     * Applies <code>values</code> (by column name), which have just been written
+     * to the rows with <code>uniqueKeyValues</code>, to the properties of those
+     * rows from retrievePhotoPropertiesOnly(), and re-indexes them in the search,
+     * similarity and geo indexes and the timeline (those that have been loaded).
+     * Rows that were inserted since the properties were retrieved are left alone.
+     */
+    protected void updateLocalProperties(Object[] uniqueKeyValues, Map<String, Object> values)
+    {
+        Properties[] props = getRetrievedPhotoProperties();
+        if (props == null)
+            return;
+        
+        HashSet<String> keys = new HashSet<String>();
+        for (Object key : uniqueKeyValues)
+            keys.add(key.toString());
+        String keyCol = columnNames[uniqueKey];
+        for (Properties p : props)
+        {
+            String key = p.getProperty(keyCol);
+            if (key == null || !keys.contains(key))
+                continue;
+            
+            for (Map.Entry<String, Object> entry : values.entrySet())
+            {
+                if (entry.getValue() != null)
+                    p.setProperty(entry.getKey(), entry.getValue().toString());
+                else
+                    p.remove(entry.getKey());
+            }
+            reindexProperties(key, p);
+        }
+    }
+    
+    /**
+     * Replaces the row with <code>key</code> in the loaded local indexes by its
+     * properties <code>p</code>, removing it from those it has no value for.
+     */
+    private void reindexProperties(String key, Properties p)
+    {
+        SearchIndex index = searchIndex;
+        if (index != null)
+        {
+            String[] texts = new String[searchColumns.length];
+            for (int i = 0; i < searchColumns.length; i++)
+                texts[i] = p.getProperty(columnNames[searchColumns[i]]);
+            index.add(key, texts);
+        }
+        
+        SimilarityIndex similar = similarityIndex;
+        if (similar != null)
+        {
+            String hash = p.getProperty(columnNames[phashKey]);
+            if (hash != null)
+                similar.add(key, Long.parseLong(hash));
+            else
+                similar.remove(key);
+        }
+        
+        GeoIndex geo = geoIndex;
+        if (geo != null)
+        {
+            String lat = p.getProperty(columnNames[latKey]), lon = p.getProperty(columnNames[lonKey]);
+            if (lat != null && lon != null)
+                geo.add(key, Double.parseDouble(lat), Double.parseDouble(lon));
+            else
+                geo.remove(key);
+        }
+        
+        Timeline counts = timeline;
+        if (counts != null)
+        {
+            String date = p.getProperty(columnNames[timelineKey]);
+            if (date != null)
+                counts.add(key, date);
+            else
+                counts.remove(key);
+        }
+    }
+    
+    /**
+     * Reads the rows of the tag table, as added Changes: all of them, or those
+     * of the photo with <code>uniqueKeyValue</code> if it is not null.
+     */
+    protected List<TagIndex.Change> readTagRows(Object uniqueKeyValue) throws SQLException
+    {
+        if (pool == null)
+            throw new IllegalStateException("Not connected to any database");
+        
+        String keyCol = columnNames[uniqueKey];
+        String query = "SELECT `" + keyCol + "`, `KIND`, `NAME` FROM " + tagTable;
+        if (uniqueKeyValue != null)
+            query += " WHERE `" + keyCol + "`=?";
+        ArrayList<TagIndex.Change> rows = new ArrayList<TagIndex.Change>();
+        PreparedStatement stmt = null;
+        Connection conn = (uniqueKeyValue != null) ? borrowConnection() : borrowReadConnection();
+        
+        try {
+            stmt = conn.prepareStatement(query);
+            if (uniqueKeyValue != null)
+                stmt.setObject(1, uniqueKeyValue, columnTypes.get(keyCol).getSqlType());
+            ResultSet rs = stmt.executeQuery();
+            while (rs.next())
+                rows.add(new TagIndex.Change(rs.getInt(2), rs.getString(3), rs.getObject(1), true));
+        } catch (SQLException ex) { throw ex; }
+        finally {
+            if (stmt != null) stmt.close();
+            conn.close();
+        }
+        return rows;
+    }
+    
+    /**
+     * Writes <code>changes</code> to the tag table in one transaction, with one
+     * batch of inserts and one of deletes.
+     */
+    protected void writeTagChanges(List<TagIndex.Change> changes) throws SQLException
+    {
+        if (pool == null)
+            throw new IllegalStateException("Not connected to any database");
+        if (changes.isEmpty())
+            return;
+        
+        String keyCol = columnNames[uniqueKey];
+        int keyType = columnTypes.get(keyCol).getSqlType();
+        PreparedStatement insert = null, delete = null;
+        Connection conn = borrowConnection();
+        
+        try {
+            conn.setAutoCommit(false);
+            insert = conn.prepareStatement("INSERT IGNORE INTO " + tagTable + " (`" + keyCol + "`, `KIND`, `NAME`) VALUES (?, ?, ?)");
+            delete = conn.prepareStatement("DELETE FROM " + tagTable + " WHERE `" + keyCol + "`=? AND `KIND`=? AND `NAME`=?");
+            for (TagIndex.Change c : changes)
+            {
+                PreparedStatement stmt = c.added ? insert : delete;
+                stmt.setObject(1, c.key, keyType);
+                stmt.setInt(2, c.kind);
+                stmt.setString(3, c.name);
+                stmt.addBatch();
+            }
+            insert.executeBatch();
+            delete.executeBatch();
+            conn.commit();
+            lastWrite = System.currentTimeMillis();
+        } catch (SQLException ex) { throw ex; }                             //The pool rolls back on close
+        finally {
+            if (insert != null) insert.close();
+            if (delete != null) delete.close();
+            conn.close();
+        }
+    }
+    
+    private SimilarityIndex loadedSimilarityIndex()
+    {
+        SimilarityIndex index = similarityIndex;
+        if (index == null)
+            throw new IllegalStateException("The similarity index has not been loaded");
+        return index;
+    }
+    
+    private GeoIndex loadedGeoIndex()
+    {
+        GeoIndex index = geoIndex;
+        if (index == null)
+            throw new IllegalStateException("The geo index has not been loaded");
+        return index;
+    }
+    
+    private TagIndex loadedTags()
+    {
+        TagIndex index = tagIndex;
+        if (index == null)
+            throw new IllegalStateException("The tag index has not been loaded");
+        return index;
+    }
+    
+    /**
+     * Returns whether the index with <code>columns</code> serves a query that
+     * wants the index <code>wanted</code>, whose first <code>equalities</code>
+     * columns may come in any order.
+     */
+    private static boolean indexServes(List<String> columns, String[] wanted, int equalities)
+    {
+        if (columns.size() < wanted.length)
+            return false;
+        
+        for (int i = 0; i < wanted.length; i++)
+        {
+            boolean found = false;
+            if (i < equalities)
+            {
+                for (int j = 0; j < equalities && !found; j++)
+                    found = wanted[j].equalsIgnoreCase(columns.get(i));
+            }
+            else
+                found = wanted[i].equalsIgnoreCase(columns.get(i));
+            if (!found)
+                return false;
+        }
+        return true;
+    }
+    
+    /**
+     * Returns whether a row storing the image bytes with <code>hash</code> exists.
+     */
+    private boolean containsContentHash(Connection conn, String hash) throws SQLException
+    {
+        PreparedStatement stmt = null;
+        String query = "SELECT 1 FROM " + rowSource("m", true) + " WHERE " + column("m", hashKey)
+                + "=? AND " + column("m", getImageColumn()) + " IS NOT NULL LIMIT 1";
+        
+        try {
+            stmt = conn.prepareStatement(query);
+            stmt.setString(1, hash);
+            return stmt.executeQuery().next();
+        } catch (SQLException ex) { throw ex; }
+        finally {
+            if (stmt != null) stmt.close();
+        }
+    }
+    
+    /**
+     * Returns the content hash of the row with <code>uniqueKeyValue</code>, or null
+     * if there is no such row or it has no hash.
+     */
+    private String getContentHash(Connection conn, Object uniqueKeyValue) throws SQLException
+    {
+        PreparedStatement stmt = null;
+        String query = "SELECT `" + columnNames[hashKey] + "` FROM " + tableName + " WHERE `"
+                + columnNames[uniqueKey] + "`=?";
+        
+        try {
+            stmt = conn.prepareStatement(query);
+            stmt.setObject(1, uniqueKeyValue, columnTypes.get(columnNames[uniqueKey]).getSqlType());
+            ResultSet rs = stmt.executeQuery();
+            return rs.next() ? rs.getString(1) : null;
+        } catch (SQLException ex) { throw ex; }
+        finally {
+            if (stmt != null) stmt.close();
+        }
+    }
+    
+    /**
+     * Deletes the blob with <code>hash</code> from the blob store BLOB_GRACE_MS
+     * from now, if no row refers to it then. It is not deleted right away, since
+     * an insertRow() (here or in another client) may have put() the same blob
+     * into the store and not inserted its row yet. Blobs whose grace period has
+     * not passed when PhotoDB disconnects are kept.
+     */
+    private void scheduleBlobDeletion(final String hash)
+    {
+        ScheduledExecutorService collector = blobCollector;
+        if (collector == null)
+            return;
+        
+        try {
+            collector.schedule(new Runnable() {
+                public void run()
+                {
+                    try {
+                        Connection conn = borrowConnection();
+                        try {
+                            deleteBlobIfUnreferenced(conn, hash);
+                        } finally {
+                            conn.close();
+                        }
+                    } catch (SQLException e) { e.printStackTrace(); }
+                }
+            }, BLOB_GRACE_MS, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // Disconnected in the meantime, so the blob is kept like those still in their grace period
+        }
+    }
+    
+    /**
+     * Deletes the blob with <code>hash</code> from the blob store if no row
+     * refers to it anymore. Failing to delete it only leaves an orphaned blob,
+     * so errors from the blob store are printed, not thrown.
+     */
+    private void deleteBlobIfUnreferenced(Connection conn, String hash) throws SQLException
+    {
+        PreparedStatement stmt = null;
+        String query = "SELECT 1 FROM " + tableName + " WHERE `" + columnNames[hashKey] + "`=? LIMIT 1";
+        
+        try {
+            stmt = conn.prepareStatement(query);
+            stmt.setString(1, hash);
+            if (!stmt.executeQuery().next())
+                blobStore.delete(hash);
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            if (stmt != null) stmt.close();
+        }
+    }
+    
+    /**
+     * Writes the image in column <code>index</code> of the current row of
+     * <code>rs</code> to <code>file</code> (unless the file exists), and waits until
+     * it is written. Images in the blob store are copied from there directly (see
+     * BlobStore.copyTo()); all others are written by a StreamWriter.
+     */
+    private void writeImage(ResultSet rs, int index, File file) throws SQLException, IOException
+    {
+        Object hash = (blobStore != null && hashKey != -1) ? rs.getObject(hashKey + 1) : null;
+        if (hash != null && rs.getBinaryStream(index) == null && blobStore.contains(hash.toString()))
+        {
+            if (!file.exists())
+                blobStore.copyTo(hash.toString(), file);
+            return;
+        }
+        
+        Thread t = new Thread(new StreamWriter(getImageStream(rs, index), file));
+        t.start();
+        try {
+            t.join();                                                        //Wait for this thread - not async
+        } catch (InterruptedException e) { e.printStackTrace(); }
+    }
+    
+    /**
+     * Uploads <code>file</code> into the chunk table under <code>uniqueKeyValue</code>,
+     * one chunk per statement, so that each chunk is committed as soon as it is sent
+     * (and <code>max_allowed_packet</code> only has to fit one chunk).
+     * 
+     * The upload first stores a manifest, the content hash and size of the file
+     * and the chunk size, as chunk MANIFEST_CHUNK. Chunks that a previous, failed
+     * upload committed are only kept (and not sent again) if its manifest is the
+     * same; chunks of another file, or of another chunk size, are deleted first.
+     * 
+     * @param hash The content hash of <code>file</code> (see computeContentHash())
+     */
+    private void uploadChunks(Connection conn, Object uniqueKeyValue, File file, String hash) throws SQLException
+    {
+        String key = "`" + columnNames[uniqueKey] + "`";
+        int keyType = columnTypes.get(columnNames[uniqueKey]).getSqlType();
+        String manifest = hash + " " + file.length() + " " + chunkSize;
+        PreparedStatement stmt = null;
+        InputStream in = null;
+        
+        try {
+            stmt = conn.prepareStatement("SELECT `DATA` FROM " + chunkTable + " WHERE " + key + "=? AND `CHUNK`=?");
+            stmt.setObject(1, uniqueKeyValue, keyType);
+            stmt.setInt(2, MANIFEST_CHUNK);
+            ResultSet rs = stmt.executeQuery();
+            boolean resume = rs.next() && manifest.equals(new String(rs.getBytes(1), "UTF-8"));
+            stmt.close();
+            
+            int done = 0;
+            if (resume)
+            {
+                // Resume after the last chunk that was committed
+                stmt = conn.prepareStatement("SELECT COUNT(*) FROM " + chunkTable + " WHERE " + key + "=? AND `CHUNK`>=0");
+                stmt.setObject(1, uniqueKeyValue, keyType);
+                rs = stmt.executeQuery();
+                rs.next();
+                done = rs.getInt(1);
+                stmt.close();
+            }
+            else
+            {
+                // Whatever is left under the key is not of this file
+                stmt = conn.prepareStatement("DELETE FROM " + chunkTable + " WHERE " + key + "=?");
+                stmt.setObject(1, uniqueKeyValue, keyType);
+                stmt.executeUpdate();
+                stmt.close();
+                
+                stmt = conn.prepareStatement("INSERT INTO " + chunkTable + " (" + key + ", `CHUNK`, `DATA`) VALUES (?, ?, ?)");
+                stmt.setObject(1, uniqueKeyValue, keyType);
+                stmt.setInt(2, MANIFEST_CHUNK);
+                stmt.setBytes(3, manifest.getBytes("UTF-8"));
+                stmt.executeUpdate();
+                stmt.close();
+            }
+            
+            in = new FileInputStream(file);
+            long toSkip = (long) done * chunkSize;
+            while (toSkip > 0)
+            {
+                long skipped = in.skip(toSkip);
+                if (skipped <= 0)
+                    break;
+                toSkip -= skipped;
+            }
+            
+            stmt = conn.prepareStatement("INSERT INTO " + chunkTable + " (" + key + ", `CHUNK`, `DATA`) VALUES (?, ?, ?)");
+            byte[] buf = new byte[chunkSize];
+            for (int chunk = done; ; chunk++)
+            {
+                int n = 0, c;
+                while (n < buf.length && (c = in.read(buf, n, buf.length - n)) != -1)
+                    n += c;
+                if (n == 0 && chunk > 0)
+                    break;                                                    //Ended on a chunk boundary
+                
+                stmt.setObject(1, uniqueKeyValue, keyType);
+                stmt.setInt(2, chunk);
+                stmt.setBytes(3, (n == buf.length) ? buf : Arrays.copyOf(buf, n));
+                stmt.executeUpdate();
+                if (n < buf.length)
+                    break;
+            }
+        } catch (IOException e) {
+            throw new SQLException("Error reading " + file, e);
+        } finally {
+            if (stmt != null) stmt.close();
+            try {
+                if (in != null) in.close();
+            } catch (IOException e) { e.printStackTrace(); }
+        }
+    }
+    
+    /**
+     * Returns a stream of <code>length</code> bytes (or all of them, if -1) of the
+     * image stored in chunks under <code>uniqueKeyValue</code>, starting at byte
+     * <code>offset</code>. Only the chunks in the range are fetched, up to
+     * getPoolSize() at a time, each on a connection of its own (see borrowChunkConnection()).
+     * A chunk that a replica does not have yet is fetched from the primary.
+     * 
+     * The number and size of the chunks are looked up on <code>conn</code>, which
+     * the caller has leased already (e.g. the connection of the row being read),
+     * so that this never waits for a second lease while holding one.
+     * 
+     * @param conn The connection to look up the chunks on
+     * @return The stream, or null if there are no chunks for the key
+     */
+    private InputStream openChunks(Connection conn, final Object uniqueKeyValue, long offset, long length)
+            throws SQLException
+    {
+        final String key = "`" + columnNames[uniqueKey] + "`";
+        final int keyType = columnTypes.get(columnNames[uniqueKey]).getSqlType();
+        int count, size;
+        PreparedStatement stmt = null;
+        
+        try {
+            // All chunks but the last have the same size, i.e. the largest one's
+            stmt = conn.prepareStatement("SELECT COUNT(*), MAX(LENGTH(`DATA`)) FROM " + chunkTable + " WHERE " + key
+                    + "=? AND `CHUNK`>=0");
+            stmt.setObject(1, uniqueKeyValue, keyType);
+            ResultSet rs = stmt.executeQuery();
+            rs.next();
+            count = rs.getInt(1);
+            size = Math.max(rs.getInt(2), 1);
+        } catch (SQLException ex) { throw ex; }
+        finally {
+            if (stmt != null) stmt.close();
+        }
+        if (count == 0)
+            return null;
+        
+        int first = (int) Math.min(offset / size, count);
+        int last = (length < 0) ? count - 1 : (int) Math.min((offset + length - 1) / size, count - 1);
+        ChunkInputStream.ChunkSource source = new ChunkInputStream.ChunkSource() {
+            public byte[] readChunk(int chunk) throws SQLException
+            {
+                byte[] data = readChunk(chunk, false);
+                if (data == null)                                           //A replica may not have caught up yet
+                    data = readChunk(chunk, true);
+                if (data == null)
+                    throw new SQLException("Chunk " + chunk + " of " + uniqueKeyValue + " is missing");
+                return data;
+            }
+            
+            private byte[] readChunk(int chunk, boolean fromPrimary) throws SQLException
+            {
+                PreparedStatement stmt = null;
+                Connection conn = borrowChunkConnection(fromPrimary);
+                try {
+                    stmt = conn.prepareStatement("SELECT `DATA` FROM " + chunkTable + " WHERE " + key + "=? AND `CHUNK`=?");
+                    stmt.setObject(1, uniqueKeyValue, keyType);
+                    stmt.setInt(2, chunk);
+                    ResultSet rs = stmt.executeQuery();
+                    return rs.next() ? rs.getBytes(1) : null;
+                } catch (SQLException ex) { throw ex; }
+                finally {
+                    if (stmt != null) stmt.close();
+                    conn.close();
+                }
+            }
+        };
+        
+        return new ChunkInputStream(source, chunkFetcher, first, last, (int) (offset - (long) first * size),
+                length, poolSize);
+    }
+    
+    /**
+     * If the row with <code>uniqueKeyValue</code> stores image bytes that other
+     * rows reference by hash, copies the bytes (server-side) into one of those
+     * rows (along with their codec), so that deleting this row does not leave
+     * the references dangling.
+     */
+    private void transferContentReference(Connection conn, Object uniqueKeyValue) throws SQLException
+    {
+        String key = columnNames[uniqueKey], imageCol = columnNames[getImageColumn()];
+        String imageTable = (blobTable != null) ? blobTable : tableName;
+        int keyType = columnTypes.get(key).getSqlType();
+        PreparedStatement stmt = null;
+        String query = "SELECT dst.`" + key + "` FROM " + rowSource("src", true) + ", " + rowSource("dst", true)
+                + " WHERE " + column("dst", hashKey) + "=" + column("src", hashKey) + " AND src.`" + key + "`=? AND "
+                + column("src", getImageColumn()) + " IS NOT NULL AND " + column("dst", getImageColumn()) + " IS NULL LIMIT 1";
+        
+        try {
+            stmt = conn.prepareStatement(query);
+            stmt.setObject(1, uniqueKeyValue, keyType);
+            ResultSet rs = stmt.executeQuery();
+            if (!rs.next())
+                return;                                                        //Nothing references this row
+            Object refKey = rs.getObject(1);
+            stmt.close();
+            
+            stmt = conn.prepareStatement("UPDATE " + imageTable + " dst, " + imageTable + " src SET dst.`"
+                    + imageCol + "`=src.`" + imageCol + "` WHERE dst.`" + key + "`=? AND src.`" + key + "`=?");
+            stmt.setObject(1, refKey, keyType);
+            stmt.setObject(2, uniqueKeyValue, keyType);
+            stmt.executeUpdate();
+            
+            // The bytes stay as they are, so the codec goes with them
+            if (codecKey != -1)
+            {
+                stmt.close();
+                String codecCol = columnNames[codecKey];
+                stmt = conn.prepareStatement("UPDATE " + tableName + " dst, " + tableName + " src SET dst.`"
+                        + codecCol + "`=src.`" + codecCol + "` WHERE dst.`" + key + "`=? AND src.`" + key + "`=?");
+                stmt.setObject(1, refKey, keyType);
+                stmt.setObject(2, uniqueKeyValue, keyType);
+                stmt.executeUpdate();
+            }
+        } catch (SQLException ex) { throw ex; }
+        finally {
+            if (stmt != null) stmt.close();
+        }
+    }
+    
+// ----- GETTERS AND SETTERS for fields ----- //
+
+    /**
+     * Returns a COPY of the column names that have been set,
+     * and which should match the current table schema.
+     * 
+     * @return a copy of the column names used by this PhotoDB
+     */
+    public String[] getColumnNames()
+    {
+        String[] cols = new String[columnNames.length];
+        for (int i = 0; i < cols.length; i++)
+            cols[i] = columnNames[i];
+        
+        return columnNames;
+    }
+    
+    /**
+     * Returns a COPY of the mappings of column names and data types
+     * 
+     * @return Hash<String, DataType> of the column names and data types
+     */
+    public HashMap<String, DataType> getColumnTypes()
+    {
+        HashMap<String, DataType> hash = new HashMap<String, DataType>();
+        for (Map.Entry<String, DataType> entry : hash.entrySet())
+            hash.put(entry.getKey(), entry.getValue());
+        
+        return columnTypes;
+    }
+    
+    public String getPhotoDirectory()
+    {
+        return photoPath;
+    }
+    
+    /**
      * Returns the (canonical) PATHS to the images, not the images themselves
      * 
      * @return A <code>File</code> array that represents all retrieved photos
      */
     public File[] getRetrievedPhotoPaths()
     {
-        return currPhotos;
+        return currPhotos;
+    }
+    
+    /**
+     * Can only be called if either retrievePhotos() or retrievePhotoPropertiesOnly() has been called >=1 time
+     * 
+     * @return A <code>Properties</code> array that represents the properties
+     * of all retrieved photos
+     */
+    public Properties[] getRetrievedPhotoProperties()                        
+    {
+        return currProps;
+    }
+    
+    public int getUniqueKey()
+    {
+        return uniqueKey;
+    }
+    
+    /**
+     * @return The hostname (and port) of the database
+     */
+    public String getHostname()
+    {
+        return dbHostname;
+    }
+    
+    public String getDBName()
+    {
+        return dbName;
+    }
+    
+    public String getTableName()
+    {
+        return tableName;
+    }
+    
+    public String getBlobTable()
+    {
+        return blobTable;
+    }
+    
+    public String getChunkTable()
+    {
+        return chunkTable;
+    }
+    
+    public int getChunkSize()
+    {
+        return chunkSize;
+    }
+    
+    public String getTagTable()
+    {
+        return tagTable;
+    }
+    
+    public int getTagBatchSize()
+    {
+        return tagBatchSize;
+    }
+    
+    /**
+     * @return The tag index (see loadTags()), or null if it has not been loaded
+     */
+    public TagIndex getTagIndex()
+    {
+        return tagIndex;
+    }
+    
+    public BlobStore getBlobStore()
+    {
+        return blobStore;
+    }
+    
+    public int getContentHashColumn()
+    {
+        return hashKey;
+    }
+    
+    public int[] getSearchColumns()
+    {
+        return searchColumns.clone();
+    }
+    
+    /**
+     * @return The search index (see search()), or null if it has not been loaded
+     */
+    public SearchIndex getSearchIndex()
+    {
+        return searchIndex;
+    }
+    
+    public int getPerceptualHashColumn()
+    {
+        return phashKey;
+    }
+    
+    /**
+     * @return The similarity index (see findSimilar()), or null if it has not been loaded
+     */
+    public SimilarityIndex getSimilarityIndex()
+    {
+        return similarityIndex;
+    }
+    
+    public int getLatitudeColumn()
+    {
+        return latKey;
+    }
+    
+    public int getLongitudeColumn()
+    {
+        return lonKey;
+    }
+    
+    /**
+     * @return The geo index (see findNear()), or null if it has not been loaded
+     */
+    public GeoIndex getGeoIndex()
+    {
+        return geoIndex;
+    }
+    
+    public int getTimelineColumn()
+    {
+        return timelineKey;
+    }
+    
+    public int getEditsColumn()
+    {
+        return editsKey;
+    }
+    
+    /**
+     * @return The number of photos per day, month and year (see
+     * setTimelineColumn()), or null if they have not been loaded
+     */
+    public Timeline getTimeline()
+    {
+        return timeline;
+    }
+    
+    public int getCodecColumn()
+    {
+        return codecKey;
+    }
+    
+    public int getCompressionLevel()
+    {
+        return compressionLevel;
     }
     
-    /**
-     * Can only be called if either retrievePhotos() or retrievePhotoPropertiesOnly() has been called >=1 time
-     * 
-     * @return A <code>Properties</code> array that represents the properties
-     * of all retrieved photos
-     */
-    public Properties[] getRetrievedPhotoProperties()                        
+    public double getMaxCompressedRatio()
     {
-        return currProps;
+        return maxCompressedRatio;
     }
     
-    public int getUniqueKey()
+    public int getPoolSize()
     {
-        return uniqueKey;
+        return poolSize;
+    }
+    
+    public String[] getReadHostnames()
+    {
+        return readHostnames.clone();
     }
     
     /**
@@ -635,6 +3210,12 @@ public class PhotoDB
      * Note that if the database is updated after this method is called, the array
      * will no longer be consistent with the entries in the database and this method
      * will have to be called again.
+     *
+     * This also (re)builds the local KeyIndex that insertRow() uses to skip
+     * checking the database for keys that are definitely new, and which is
+     * kept up to date by insertRow() and deleteRow() from then on. Since a key
+     * missing from it is trusted to be new, the keys are always read from the
+     * primary, never from a read replica that may lag behind.
      * 
      * @return An <code>Object</code> array of all the unique keys stored in the
      * database, or null if the database query fails to execute
@@ -642,14 +3223,16 @@ public class PhotoDB
     public Object[] getAllUniqueKeys()
     {
         // If there's no connection, return immediately
-        if (conn == null)
+        if (pool == null)
             throw new IllegalStateException("Not connected to any database");
         
         ArrayList<Object> objs = new ArrayList<Object>();
         PreparedStatement stmt = null;
         String query = "SELECT `" + columnNames[uniqueKey] + "` FROM " + tableName;
+        Connection conn = null;
 
         try {
+            conn = borrowConnection();
             stmt = conn.prepareStatement(query);
             ResultSet rs = stmt.executeQuery();
 
@@ -659,9 +3242,16 @@ public class PhotoDB
         } catch (SQLException e) {
             e.printStackTrace(); 
             return null;
+        } finally {
+            try {
+                if (stmt != null) stmt.close();
+                if (conn != null) conn.close();
+            } catch (SQLException e) { e.printStackTrace(); }
         }
 
-        return objs.toArray();
+        Object[] keys = objs.toArray();
+        keyIndex = new KeyIndex(keys);
+        return keys;
     }
     
     /**
@@ -697,6 +3287,246 @@ public class PhotoDB
         this.uniqueKey = uniqueKey;
     }
     
+    /**
+     * Sets the column which stores the SHA-256 (hex String) of each row's image,
+     * used to avoid storing identical image bytes twice; see insertRow(). The
+     * column must be of type DataType.STRING. A value of -1 turns deduplication off.
+     * 
+     * @param hashKey The column of the content hash, or -1
+     */
+    public void setContentHashColumn(int hashKey)
+    {
+        this.hashKey = hashKey;
+    }
+    
+    /**
+     * Sets the column which stores the perceptual hash of each row's image (see
+     * PerceptualHash), used by findSimilar() to find near-duplicates; see
+     * insertRow(). The column must be of type DataType.LONG; its index is built by
+     * the next retrievePhotoPropertiesOnly(). A value of -1 turns this off.
+     * 
+     * @param phashKey The column of the perceptual hash, or -1
+     */
+    public void setPerceptualHashColumn(int phashKey)
+    {
+        if (phashKey != -1 && columnTypes.get(columnNames[phashKey]) != DataType.LONG)
+            throw new IllegalArgumentException("Perceptual hash column must be LONG, not "
+                    + columnTypes.get(columnNames[phashKey]));
+        this.phashKey = phashKey;
+        if (phashKey == -1)
+            similarityIndex = null;
+    }
+    
+    /**
+     * Sets the columns which store the latitude and longitude (in degrees) where
+     * each row's photo was taken, used by findInBox() and findNear(); if both are
+     * null on insert, insertRow() reads them from the image's GPS tags (see
+     * ImageMetadata). The columns must be of type DataType.DOUBLE; their index is
+     * built by the next retrievePhotoPropertiesOnly(). Values of -1 turn this off.
+     * 
+     * @param latKey The column of the latitude, or -1
+     * @param lonKey The column of the longitude, or -1
+     */
+    public void setGeoColumns(int latKey, int lonKey)
+    {
+        if ((latKey == -1) != (lonKey == -1))
+            throw new IllegalArgumentException("Set both geo columns or neither");
+        for (int col : new int[] { latKey, lonKey })
+            if (col != -1 && columnTypes.get(columnNames[col]) != DataType.DOUBLE)
+                throw new IllegalArgumentException("Geo columns must be DOUBLE, not " + columnTypes.get(columnNames[col]));
+        this.latKey = latKey;
+        this.lonKey = lonKey;
+        if (latKey == -1)
+            geoIndex = null;
+    }
+    
+    /**
+     * Sets the date column whose photos are counted per day, month and year in
+     * the Timeline returned by getTimeline(), e.g. to draw a histogram of the
+     * library. The column must be of type DataType.DATE or DataType.TIMESTAMP;
+     * the counts are built by the next retrievePhotoPropertiesOnly(), and kept up
+     * to date on insert and delete. A value of -1 turns this off.
+     * 
+     * @param timelineKey The date column, or -1
+     */
+    public void setTimelineColumn(int timelineKey)
+    {
+        if (timelineKey != -1)
+        {
+            DataType type = columnTypes.get(columnNames[timelineKey]);
+            if (type != DataType.DATE && type != DataType.TIMESTAMP)
+                throw new IllegalArgumentException("Timeline column must be DATE or TIMESTAMP, not " + type);
+        }
+        this.timelineKey = timelineKey;
+        if (timelineKey == -1)
+            timeline = null;
+    }
+    
+    /**
+     * Sets the column that stores the non-destructive edits of each photo (see
+     * PhotoEdits), which are applied to the thumbnails by getPhotoThumbnails()
+     * and to the photo by getEditedPhoto(); the images themselves are never
+     * changed. The column must be of type DataType.STRING, and is changed like
+     * any other with updateRows(). A value of -1 turns this off.
+     * 
+     * @param editsKey The edits column, or -1
+     */
+    public void setEditsColumn(int editsKey)
+    {
+        if (editsKey != -1 && columnTypes.get(columnNames[editsKey]) != DataType.STRING)
+            throw new IllegalArgumentException("Edits column must be STRING, not " + columnTypes.get(columnNames[editsKey]));
+        this.editsKey = editsKey;
+    }
+    
+    /**
+     * Sets the free text columns (e.g. FILENAME and DESCRIPTION) that search()
+     * looks in; their index is built by the next retrievePhotoPropertiesOnly().
+     * The columns must not be of type DataType.BIN_STREAM. No columns turns
+     * searching off.
+     * 
+     * @param columns The columns to search
+     */
+    public void setSearchColumns(int... columns)
+    {
+        for (int column : columns)
+            if (columnTypes.get(columnNames[column]) == DataType.BIN_STREAM)
+                throw new IllegalArgumentException("Cannot search BIN_STREAM column " + columnNames[column]);
+        searchColumns = columns.clone();
+        if (columns.length == 0)
+            searchIndex = null;
+    }
+    
+    /**
+     * Sets the column which stores the codec of each row's image bytes (see
+     * StorageCodec), so that images that compress well are stored compressed;
+     * see setCompression(). The column must be of type DataType.INT, and its value
+     * is set by insertRow(), whatever is passed in. Only images stored in the
+     * table (or BLOB table) are compressed, not those in the chunk table or the
+     * blob store. A value of -1 turns compression off; rows that were stored
+     * compressed can then no longer be read.
+     * 
+     * @param codecKey The column of the codec, or -1
+     */
+    public void setCodecColumn(int codecKey)
+    {
+        this.codecKey = codecKey;
+    }
+    
+    /**
+     * Sets how insertRow() compresses images when a codec column is set. An
+     * image is only compressed if a trial on samples of it (see StorageCodec)
+     * compresses them to at most <code>maxRatio</code> of their size.
+     * 
+     * @param level The Deflater compression level (1-9, or Deflater.DEFAULT_COMPRESSION);
+     * higher levels save a little more space for a lot more CPU time
+     * @param maxRatio The largest compressed size, as a fraction of the original
+     * size, that is still worth storing compressed (default 0.9)
+     */
+    public void setCompression(int level, double maxRatio)
+    {
+        if (level != Deflater.DEFAULT_COMPRESSION && (level < 1 || level > 9))
+            throw new IllegalArgumentException("Invalid compression level: " + level);
+        compressionLevel = level;
+        maxCompressedRatio = maxRatio;
+    }
+    
+    /**
+     * Sets the maximum number of connections that PhotoDB opens at once, i.e. how
+     * many operations can run in parallel. Takes effect on the next connect().
+     * 
+     * @param poolSize The size of the connection pool (at least 1)
+     */
+    public void setPoolSize(int poolSize)
+    {
+        if (poolSize < 1)
+            throw new IllegalArgumentException("Pool size must be at least 1");
+        this.poolSize = poolSize;
+    }
+    
+    /**
+     * Sets the read replicas that read-only queries are routed to (see connect()).
+     * Takes effect on the next connect().
+     * 
+     * @param hostnames The "host:port" of each replica of the database; none to
+     * read from the primary only
+     */
+    public void setReadHostnames(String... hostnames)
+    {
+        readHostnames = hostnames.clone();
+    }
+    
+    /**
+     * Stores images in fixed-size chunks in a table of their own, one row per
+     * (unique key, chunk #), instead of in one BLOB per image; the image column of
+     * the row is left empty. Chunks are committed one at a time, so insertRow()
+     * can be called again after an upload failed part of the way and continues
+     * from the last committed chunk of the same file; and images are read with
+     * several chunks in flight at once (see getImageStream()), or in part with
+     * getPhotoRange(). Identical images are not deduplicated in the database in
+     * this mode: each row has chunks of its own, which deleteRow() deletes with it.
+     * 
+     * Rows whose images were stored before the chunk table was set are still read
+     * from the table. Use createTables() to create the chunk table.
+     * 
+     * @param chunkTable The name of the chunk table, or null to store images whole
+     * @param chunkSize The size of the chunks in bytes; must fit in <code>max_allowed_packet</code>
+     */
+    public void setChunkTable(String chunkTable, int chunkSize)
+    {
+        if (chunkSize < 1)
+            throw new IllegalArgumentException("Chunk size must be at least 1");
+        this.chunkTable = chunkTable;
+        this.chunkSize = chunkSize;
+    }
+    
+    /**
+     * Stores the tags and albums of the photos in <code>tagTable</code>, a
+     * many-to-many table of (unique key, KIND, NAME) rows that is indexed both
+     * ways: by photo (the primary key) and by tag (KIND, NAME). deleteRow()
+     * deletes the tags of the row along with it. Use createTables() to create the
+     * tag table, and loadTags() to load it into a TagIndex.
+     * 
+     * @param tagTable The name of the tag table, or null for no tags
+     * @param batchSize How many changes made with tagPhoto() and untagPhoto()
+     * are written to the tag table at once
+     */
+    public void setTagTable(String tagTable, int batchSize)
+    {
+        if (batchSize < 1)
+            throw new IllegalArgumentException("Batch size must be at least 1");
+        this.tagTable = tagTable;
+        this.tagBatchSize = batchSize;
+    }
+    
+    /**
+     * Keeps the image bytes in <code>blobStore</code>, under their content hash,
+     * instead of in the database, which then only stores the metadata, the
+     * thumbnail and the content hash of each photo. Requires a content hash
+     * column (see setContentHashColumn()); without one, this has no effect.
+     * 
+     * insertRow() puts the image into the store (if it is not there already), and
+     * the images of rows are read from the store when the database has no bytes
+     * for them, so rows inserted before the store was set keep working. When the
+     * last row using a blob is deleted, deleteRow() deletes the blob from the store
+     * a minute later, unless a new row has started using it by then.
+     * 
+     * @param blobStore The store to keep the images in, or null to keep them in the database
+     */
+    public void setBlobStore(BlobStore blobStore)
+    {
+        this.blobStore = blobStore;
+    }
+    
+    /**
+     * Sets whether deleteRow() deletes blobs from the blob store that no row in
+     * the table uses anymore; turn this off if other tables (e.g. other shards)
+     * share the store.
+     */
+    public void setDeleteUnreferencedBlobs(boolean delete)
+    {
+        deleteUnreferencedBlobs = delete;
+    }
+    
     public void setHostname(String hostname)
     {
         this.dbHostname = hostname;
@@ -712,6 +3542,23 @@ public class PhotoDB
         this.tableName = tableName;
     }
     
+    /**
+     * Stores the BIN_STREAM columns (the image and the thumbnail) in a table of
+     * their own, keyed by the unique key, instead of in the table, so that queries
+     * on the other columns (e.g. retrievePhotoPropertiesOnly(), getAllUniqueKeys())
+     * never touch the BLOB pages. The BLOB table is only joined when the bytes are
+     * needed; insertRow() and deleteRow() write both tables in one transaction.
+     * 
+     * Use createTables() to create new tables with this layout, and
+     * migrateToBlobTable() to move the BLOBs of an existing table.
+     * 
+     * @param blobTable The name of the BLOB table, or null to store the BLOBs in the table
+     */
+    public void setBlobTable(String blobTable)
+    {
+        this.blobTable = blobTable;
+    }
+    
     public void setUser(String user)
     {
         this.user = user;
@@ -733,6 +3580,18 @@ public class PhotoDB
      * @throws SQLException If object <code>datum</code> fails to be set
      */
     protected void setPrepStatementParam(PreparedStatement stmt, int index, DataType type, Object datum) throws SQLException
+    {
+        setPrepStatementParam(stmt, index, columnNames[index - 1], type, datum);
+    }
+    
+    /**
+     * Like setPrepStatementParam(stmt, index, type, datum), for statements whose
+     * parameters are not in the order of the columns.
+     * 
+     * @param column The name of the column that parameter <code>index</code> is for
+     */
+    protected void setPrepStatementParam(PreparedStatement stmt, int index, String column, DataType type,
+                                            Object datum) throws SQLException
     {
         // Datum may be null - just return immediately
         if (datum == null)
@@ -749,6 +3608,7 @@ public class PhotoDB
         case STRING:
         case DATE:
         case TIME:
+        case TIMESTAMP:
             stmt.setObject(index, datum, type.getSqlType());
             break;
         case BIN_STREAM:
@@ -759,7 +3619,7 @@ public class PhotoDB
                 
                 // Photo-specific - if a column name contains the substring "thumb",
                 // assume that it intends to store thumbnails
-                if (columnNames[index - 1].toLowerCase().indexOf("thumb") > -1)
+                if (column.toLowerCase().indexOf("thumb") > -1)
                 {
                     BufferedImage image = ImageIO.read(fis);
                     int w = image.getWidth() * 64 / image.getHeight(), h = 64;
@@ -813,21 +3673,21 @@ public class PhotoDB
             case DATE:
             case TIME:
                 return rs.getObject(index);
+            case TIMESTAMP:                //getObject() may return a LocalDateTime for DATETIME
+                return rs.getTimestamp(index);
             case BIN_STREAM:
                 // If it is the thumbnail column, don't write anything to disk return null
                 if (columnNames[index - 1].toLowerCase().indexOf("thumb") > -1)
                     return null;
                 
-                // Get the file and InputStream ready for the StreamWriter
                 String filename = rs.getObject(uniqueKey + 1).toString();
-                InputStream in = rs.getBinaryStream(index);
                 File file = new File(photoPath + "\\" + filename);
                 
-                Thread t = new Thread(new StreamWriter(in, file));
-                t.start();
                 try {
-                    t.join();                                                //Wait for this thread - not async
-                } catch (InterruptedException e) { e.printStackTrace(); }
+                    writeImage(rs, index, file);
+                } catch (IOException e) {
+                    throw new SQLException("Error writing " + file, e);
+                }
                 
                 return file;
             default:
@@ -835,6 +3695,252 @@ public class PhotoDB
         }
     }
 
+    /**
+     * Returns the JDBC URL of the database on <code>hostname</code> ("host" or
+     * "host:port"). Subclasses can override this to use another database that
+     * speaks the same SQL, e.g. an embedded one in tests.
+     * 
+     * @param hostname The primary's or a read replica's hostname
+     * @return The JDBC URL to connect to
+     */
+    protected String getDatabaseURL(String hostname)
+    {
+        return dbURLStart + hostname + "/" + dbName;
+    }
+    
+    /**
+     * Returns whether <code>e</code> was caused by inserting a key that already exists
+     * (MySQL's ER_DUP_ENTRY, or the standard SQLState of a unique violation).
+     */
+    private static boolean isDuplicateKey(SQLException e)
+    {
+        return e.getErrorCode() == 1062 || "23505".equals(e.getSQLState());
+    }
+    
+    /**
+     * Leases a connection from the pool; close() it to return it.
+     * 
+     * @return The leased connection
+     * @throws SQLException If no connection can be leased (see ConnectionPool.getConnection())
+     */
+    protected Connection borrowConnection() throws SQLException
+    {
+        ConnectionPool p = pool;
+        if (p == null)
+            throw new IllegalStateException("Not connected to any database");
+        return p.getConnection();
+    }
+    
+    /**
+     * Leases a connection for a read-only query: from a read replica, unless
+     * there are none or this PhotoDB has written to the primary within the last
+     * READ_AFTER_WRITE_MS (so that it reads its own writes); close() it to return it.
+     * 
+     * @return The leased connection
+     * @throws SQLException If no connection can be leased (see ReplicaRouter.getConnection())
+     */
+    protected Connection borrowReadConnection() throws SQLException
+    {
+        ReplicaRouter r = readers;
+        if (r == null || System.currentTimeMillis() - lastWrite < READ_AFTER_WRITE_MS)
+            return borrowConnection();
+        if (pool == null)
+            throw new IllegalStateException("Not connected to any database");
+        return r.getConnection();
+    }
+    
+    /**
+     * Leases a connection to fetch a chunk with, like borrowReadConnection() but
+     * from the chunk pools: a read replica's, unless there are none, this PhotoDB
+     * has written within the last READ_AFTER_WRITE_MS or <code>fromPrimary</code>
+     * is set, and chunkPool otherwise.
+     * 
+     * @param fromPrimary Whether to lease from the primary's chunkPool in any case
+     * @return The leased connection
+     * @throws SQLException If no connection can be leased
+     */
+    private Connection borrowChunkConnection(boolean fromPrimary) throws SQLException
+    {
+        ConnectionPool p = chunkPool;
+        if (p == null)
+            throw new IllegalStateException("Not connected to any database");
+        ReplicaRouter r = chunkReaders;
+        if (fromPrimary || r == null || System.currentTimeMillis() - lastWrite < READ_AFTER_WRITE_MS)
+            return p.getConnection();
+        return r.getConnection();
+    }
+    
+    /**
+     * Returns the column of the image, i.e. the first BIN_STREAM column that
+     * is not the thumbnail column, or -1 if there is none.
+     */
+    private int getImageColumn()
+    {
+        for (int i = 0; i < columnNames.length; i++)
+        {
+            String colName = columnNames[i];
+            if (columnTypes.get(colName) == DataType.BIN_STREAM && colName.toLowerCase().indexOf("thumb") == -1)
+                return i;
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the thumbnail column, i.e. the first BIN_STREAM column whose
+     * name contains "thumb", or -1 if there is none.
+     */
+    private int getThumbColumn()
+    {
+        for (int i = 0; i < columnNames.length; i++)
+        {
+            String colName = columnNames[i];
+            if (columnTypes.get(colName) == DataType.BIN_STREAM && colName.toLowerCase().indexOf("thumb") > -1)
+                return i;
+        }
+        return -1;
+    }
+    
+    /**
+     * Returns the columns (indices into columnNames) of the keys of
+     * <code>values</code>, for updateRows(), checking that they can be updated.
+     */
+    protected int[] updateColumns(Map<String, Object> values)
+    {
+        int[] columns = new int[values.size()];
+        int n = 0;
+        for (String col : values.keySet())
+        {
+            int i = Arrays.asList(columnNames).indexOf(col);
+            if (i == -1)
+                throw new IllegalArgumentException("No such column: " + col);
+            if (i == uniqueKey || i == hashKey || i == codecKey || columnTypes.get(col) == DataType.BIN_STREAM)
+                throw new IllegalArgumentException("Column cannot be updated: " + col);
+            columns[n++] = i;
+        }
+        return columns;
+    }
+    
+    /**
+     * Returns the columns (indices into columnNames) that are stored in the BLOB
+     * table if <code>blobs</code> is true - the unique key and the BIN_STREAM
+     * columns - or in the table otherwise: all of them if there is no BLOB table,
+     * else all but the BIN_STREAM columns.
+     */
+    private int[] getTableColumns(boolean blobs)
+    {
+        ArrayList<Integer> cols = new ArrayList<Integer>();
+        for (int i = 0; i < columnNames.length; i++)
+        {
+            boolean isBlob = columnTypes.get(columnNames[i]) == DataType.BIN_STREAM;
+            if (blobs ? (isBlob || i == uniqueKey) : (blobTable == null || !isBlob))
+                cols.add(i);
+        }
+        
+        int[] result = new int[cols.size()];
+        for (int i = 0; i < result.length; i++)
+            result[i] = cols.get(i);
+        return result;
+    }
+    
+    /**
+     * Returns column <code>i</code> qualified with the alias of the table that
+     * stores it, where <code>alias</code> is the alias given to rowSource().
+     */
+    private String column(String alias, int i)
+    {
+        boolean inBlobTable = blobTable != null && columnTypes.get(columnNames[i]) == DataType.BIN_STREAM;
+        return (inBlobTable ? alias + "_b" : alias) + ".`" + columnNames[i] + "`";
+    }
+    
+    /**
+     * Returns the table to select rows from, under <code>alias</code>; if there is
+     * a BLOB table and <code>withBlobs</code> is true, it is LEFT JOINed on the
+     * unique key (under <code>alias</code> + "_b"), so rows are still in the
+     * order of the table. Qualify the columns with column().
+     */
+    private String rowSource(String alias, boolean withBlobs)
+    {
+        String source = tableName + " " + alias;
+        if (blobTable != null && withBlobs)
+        {
+            String key = "`" + columnNames[uniqueKey] + "`";
+            source += " LEFT JOIN " + blobTable + " " + alias + "_b ON " + alias + "_b." + key + "=" + alias + "." + key;
+        }
+        return source;
+    }
+    
+    /**
+     * Returns a query that selects every column of the rows (under the alias
+     * <code>m</code>, so a WHERE clause can be appended), with each column in the
+     * same position as in columnNames - i.e. column <code>i</code> is read with
+     * getResultSetParam(rs, i + 1, ...), whether the BLOBs are in a BLOB table or not.
+     * 
+     * @param withBlobs Whether to select the BIN_STREAM columns; if not, NULL is
+     * selected in their place, so that no BLOB pages have to be read
+     * @return The SELECT query
+     */
+    protected String selectRows(boolean withBlobs)
+    {
+        String query = "SELECT ";
+        for (int i = 0; i < columnNames.length; i++)
+        {
+            if (i > 0)
+                query += ", ";
+            if (!withBlobs && columnTypes.get(columnNames[i]) == DataType.BIN_STREAM)
+                query += "NULL";
+            else
+                query += column("m", i);
+        }
+        return query + " FROM " + rowSource("m", withBlobs);
+    }
+    
+    /**
+     * Inserts <code>columns</code> (indices into columnNames) of <code>data[]</code>
+     * as a new row of <code>table</code>.
+     */
+    private void insertColumns(Connection conn, String table, int[] columns, Object[] data) throws SQLException
+    {
+        String query = "INSERT INTO " + table + " (", values = "";
+        for (int i = 0; i < columns.length; i++)
+        {
+            query += (i > 0 ? ", `" : "`") + columnNames[columns[i]] + "`";
+            values += (i > 0 ? ", ?" : "?");
+        }
+        query += ") VALUES (" + values + ")";
+        
+        PreparedStatement stmt = conn.prepareStatement(query);
+        try {
+            for (int i = 0; i < columns.length; i++)
+            {
+                String col = columnNames[columns[i]];
+                setPrepStatementParam(stmt, i + 1, col, columnTypes.get(col), data[columns[i]]);
+            }
+            stmt.execute();
+        } finally {
+            stmt.close();
+        }
+    }
+    
+    /**
+     * Returns the column definitions of <code>columns</code> for a CREATE TABLE.
+     */
+    private String columnDefinitions(int[] columns)
+    {
+        String defs = "";
+        for (int i : columns)
+        {
+            String type = columnTypes.get(columnNames[i]).getSqlTypeName();
+            if (i == hashKey)
+                type = "CHAR(64)";                                            //As in ensureContentHashColumn()
+            if (i == codecKey)
+                type = "TINYINT NOT NULL DEFAULT 0";                        //As in ensureCodecColumn()
+            else
+                type += (i == uniqueKey) ? " NOT NULL" : " NULL";
+            defs += "`" + columnNames[i] + "` " + type + ", ";
+        }
+        return defs;
+    }
+
     private BufferedImage resizeImage(Image img, int width, int height)
     {
         BufferedImage buff = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
@@ -845,6 +3951,52 @@ public class PhotoDB
         return buff;
     }
     
+    /**
+     * A stream of at most <code>length</code> bytes of another stream, starting
+     * <code>offset</code> bytes into it.
+     */
+    private static class RangeInputStream extends FilterInputStream
+    {
+        private long remaining;
+        
+        public RangeInputStream(InputStream in, long offset, long length) throws IOException
+        {
+            super(in);
+            remaining = length;
+            while (offset > 0)
+            {
+                long skipped = in.skip(offset);
+                if (skipped <= 0)
+                {
+                    if (in.read() == -1)
+                        break;                                                //Range starts past the end
+                    skipped = 1;
+                }
+                offset -= skipped;
+            }
+        }
+        
+        public int read() throws IOException
+        {
+            if (remaining <= 0)
+                return -1;
+            int c = in.read();
+            if (c != -1)
+                remaining--;
+            return c;
+        }
+        
+        public int read(byte[] b, int off, int len) throws IOException
+        {
+            if (remaining <= 0)
+                return -1;
+            int n = in.read(b, off, (int) Math.min(len, remaining));
+            if (n > 0)
+                remaining -= n;
+            return n;
+        }
+    }
+    
     /**
      * A minimalist file-writer implementing <code>Runnable</code> to be used
      * for asynchronous and/or synchronized file writes. This class provides the
@@ -854,7 +4006,8 @@ public class PhotoDB
     {
         private InputStream in;
         private File file;
-        private boolean doRun, isAlive;
+        private volatile boolean doRun, isAlive;
+        private boolean exited;
         
         public StreamWriter(InputStream in, File file)
         {
@@ -869,6 +4022,19 @@ public class PhotoDB
          * on itself after completion. Otherwise, this method does nothing.
          */
         public void run()
+        {
+            try {
+                write();
+            } finally {
+                synchronized (this)
+                {
+                    exited = true;
+                    notifyAll();
+                }
+            }
+        }
+        
+        private void write()
         {
             if (!file.exists())
             {
@@ -887,9 +4053,10 @@ public class PhotoDB
                         if (!doRun)
                             Thread.sleep(100);
                         else                                        //Entering here means the StreamWriter has either been
-                        {                                           //killed OR the file has finished writing, so set done
+                        {                                           //killed OR the file has finished writing
                             this.kill();
-                            cachedDone.put(file, true);    
+                            if (c == -1)                            //Only a complete file is done
+                                cachedDone.put(file, true);
                         }
                     }
                 } catch (Exception e) { e.printStackTrace(); }
@@ -934,5 +4101,17 @@ public class PhotoDB
         {
             isAlive = false;
         }
+        
+        /**
+         * Waits until run() has returned (e.g. after <code>kill()</code>), so that the
+         * file is no longer open for writing.
+         * 
+         * @throws InterruptedException If the waiting thread is interrupted
+         */
+        public synchronized void awaitExit() throws InterruptedException
+        {
+            while (!exited)
+                wait();
+        }
     }
 }
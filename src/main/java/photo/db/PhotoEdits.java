@@ -0,0 +1,340 @@
+/**
+ * This file is part of PhotoDB - MySQL client/GUI for accessing photo databases
+ * 
+ * Copyright (C) 2014 by Michael Wang
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *   
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>. 
+ */
+package photo.db;
+
+import java.awt.Graphics2D;
+import java.awt.Transparency;
+import java.awt.geom.AffineTransform;
+import java.awt.image.BufferedImage;
+
+/**
+ * The non-destructive edits of a photo (rotations, flips, a crop and EXIF
+ * orientation), kept as a short string in the edits column (see
+ * PhotoDB.setEditsColumn()) instead of in the image itself, so the original is
+ * never rewritten; they are applied when the photo is shown and when its
+ * thumbnail is fetched. PhotoEdits are immutable: each edit returns new edits.
+ *
+ * However many edits are made, they add up to a crop of the original, then a
+ * mirror image (or not), then 0-3 quarter turns clockwise, which is all that is
+ * stored: e.g. "crop:0.1,0,0.8,1;flip;rotate:90". The crop is kept in units of
+ * 1/10000th of the original, so it applies to the full photo and to its
+ * thumbnail alike. Two PhotoEdits with the same effect have the same string, and
+ * so the same getVersion(), which names the cached renderings of the photo.
+ */
+public class PhotoEdits
+{
+    // The units of the crop, per width or height of the original
+    private static final int UNIT = 10000;
+
+    public static final PhotoEdits NONE = new PhotoEdits(0, 0, UNIT, UNIT, false, 0);
+
+    // The crop, in units of the original; then whether it is mirrored; then the quarter turns clockwise
+    private final int x, y, w, h;
+    private final boolean mirrored;
+    private final int turns;
+
+    private PhotoEdits(int x, int y, int w, int h, boolean mirrored, int turns)
+    {
+        this.x = x;
+        this.y = y;
+        this.w = w;
+        this.h = h;
+        this.mirrored = mirrored;
+        this.turns = turns;
+    }
+
+    /**
+     * Parses edits in the form returned by toString(), or any list of the edits
+     * of edit().
+     *
+     * @param edits The edits, separated by ";"; null or "" for none
+     * @return The edits
+     * @throws IllegalArgumentException If an edit is not understood
+     */
+    public static PhotoEdits parse(String edits)
+    {
+        return NONE.edit(edits);
+    }
+
+    /**
+     * Applies a list of edits, separated by ";", after these, one at a time:
+     * "rotate:degrees" (clockwise, a multiple of 90), "flip" or "flip:h"
+     * (horizontally), "flip:v" (vertically), "crop:x,y,width,height" (in
+     * fractions of the edited photo) and "orient:n" (see normalizeOrientation()).
+     *
+     * @param edits The edits to apply; null or "" for none
+     * @return The edits with <code>edits</code> applied
+     * @throws IllegalArgumentException If an edit is not understood
+     */
+    public PhotoEdits edit(String edits)
+    {
+        PhotoEdits result = this;
+        if (edits == null)
+            return result;
+
+        for (String edit : edits.split(";"))
+        {
+            edit = edit.trim();
+            int colon = edit.indexOf(':');
+            String name = (colon == -1) ? edit : edit.substring(0, colon);
+            String arg = (colon == -1) ? "" : edit.substring(colon + 1).trim();
+            try {
+                if (name.isEmpty())
+                    continue;
+                else if (name.equals("rotate"))
+                    result = result.rotate(Integer.parseInt(arg));
+                else if (name.equals("flip") && (arg.isEmpty() || arg.equals("h") || arg.equals("v")))
+                    result = result.flip(!arg.equals("v"));
+                else if (name.equals("orient"))
+                    result = result.normalizeOrientation(Integer.parseInt(arg));
+                else if (name.equals("crop"))
+                {
+                    String[] values = arg.split(",");
+                    if (values.length != 4)
+                        throw new IllegalArgumentException("Not an edit: " + edit);
+                    result = result.crop(Double.parseDouble(values[0]), Double.parseDouble(values[1]),
+                                        Double.parseDouble(values[2]), Double.parseDouble(values[3]));
+                }
+                else
+                    throw new IllegalArgumentException("Not an edit: " + edit);
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Not an edit: " + edit);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @param degrees The angle to rotate by, clockwise; a multiple of 90
+     * @return These edits, then rotated
+     * @throws IllegalArgumentException If <code>degrees</code> is not a multiple of 90
+     */
+    public PhotoEdits rotate(int degrees)
+    {
+        if (degrees % 90 != 0)
+            throw new IllegalArgumentException("Can only rotate by multiples of 90 degrees, not " + degrees);
+        return new PhotoEdits(x, y, w, h, mirrored, ((turns + degrees / 90) % 4 + 4) % 4);
+    }
+
+    /**
+     * Flipping horizontally after k turns is the same as flipping before -k
+     * turns, and flipping vertically is flipping horizontally and turning twice.
+     *
+     * @param horizontal <code>true</code> to flip left to right, <code>false</code>
+     * to flip top to bottom
+     * @return These edits, then flipped
+     */
+    public PhotoEdits flip(boolean horizontal)
+    {
+        int newTurns = ((horizontal ? 0 : 2) - turns + 4) % 4;
+        return new PhotoEdits(x, y, w, h, !mirrored, newTurns);
+    }
+
+    /**
+     * @param cropX The left edge of the crop, as a fraction of the width of the edited photo
+     * @param cropY The top edge of the crop, as a fraction of the height of the edited photo
+     * @param cropW The width of the crop, as a fraction of the width of the edited photo
+     * @param cropH The height of the crop, as a fraction of the height of the edited photo
+     * @return These edits, then cropped
+     * @throws IllegalArgumentException If the crop is empty or not inside the photo
+     */
+    public PhotoEdits crop(double cropX, double cropY, double cropW, double cropH)
+    {
+        double eps = 0.5 / UNIT;
+        if (!(cropX >= 0 && cropY >= 0 && cropW > 0 && cropH > 0 && cropX + cropW <= 1 + eps && cropY + cropH <= 1 + eps))
+            throw new IllegalArgumentException("Not a crop: " + cropX + ", " + cropY + ", " + cropW + ", " + cropH);
+
+        // Turn the corners back into the (cropped) original, whose rectangle is then
+        // the crop within the current crop
+        double[] a = unedit(cropX, cropY), b = unedit(Math.min(cropX + cropW, 1), Math.min(cropY + cropH, 1));
+        int x0 = x + (int) Math.round(Math.min(a[0], b[0]) * w), x1 = x + (int) Math.round(Math.max(a[0], b[0]) * w);
+        int y0 = y + (int) Math.round(Math.min(a[1], b[1]) * h), y1 = y + (int) Math.round(Math.max(a[1], b[1]) * h);
+        x0 = Math.min(x0, UNIT - 1);
+        y0 = Math.min(y0, UNIT - 1);
+        return new PhotoEdits(x0, y0, Math.max(1, x1 - x0), Math.max(1, y1 - y0), mirrored, turns);
+    }
+
+    /**
+     * Replaces the rotation and flips by those that show a photo whose EXIF
+     * orientation is <code>orientation</code> upright; the crop is kept. Doing
+     * this twice is the same as doing it once.
+     *
+     * @param orientation The EXIF orientation of the original (1-8, see
+     * ImageMetadata.getOrientation()); other values are taken as 1 (upright)
+     * @return The normalized edits
+     */
+    public PhotoEdits normalizeOrientation(int orientation)
+    {
+        PhotoEdits upright = new PhotoEdits(x, y, w, h, false, 0);
+        switch (orientation)
+        {
+        case 2: return upright.flip(true);
+        case 3: return upright.rotate(180);
+        case 4: return upright.flip(false);
+        case 5: return upright.rotate(90).flip(true);                        //Transposed
+        case 6: return upright.rotate(90);
+        case 7: return upright.rotate(90).flip(false);                        //Transversed
+        case 8: return upright.rotate(270);
+        default: return upright;
+        }
+    }
+
+    /**
+     * @return Whether these edits change nothing
+     */
+    public boolean isEmpty()
+    {
+        return x == 0 && y == 0 && w == UNIT && h == UNIT && !mirrored && turns == 0;
+    }
+
+    /**
+     * @return Whether the edited photo is turned on its side, i.e. its width is
+     * (the cropped) height of the original
+     */
+    public boolean isTransposed()
+    {
+        return turns % 2 == 1;
+    }
+
+    /**
+     * @return The crop as { x, y, width, height } in fractions of the original
+     */
+    public double[] getCrop()
+    {
+        return new double[] { (double) x / UNIT, (double) y / UNIT, (double) w / UNIT, (double) h / UNIT };
+    }
+
+    /**
+     * @return A short name for these edits (the same for edits with the same
+     * effect), e.g. to name a cached rendering of them
+     */
+    public String getVersion()
+    {
+        return String.format("%08x", toString().hashCode());
+    }
+
+    /**
+     * Applies the edits to <code>image</code>, an image of the original (at any
+     * resolution).
+     *
+     * @param image The original image
+     * @return The edited image (<code>image</code> itself if there are no edits)
+     */
+    public BufferedImage apply(BufferedImage image)
+    {
+        if (x == 0 && y == 0 && w == UNIT && h == UNIT)
+            return transform(image);
+
+        int iw = image.getWidth(), ih = image.getHeight();
+        int px = Math.min((int) ((long) x * iw / UNIT), iw - 1), py = Math.min((int) ((long) y * ih / UNIT), ih - 1);
+        int pw = (int) Math.max(1, Math.min(iw - px, Math.round((double) w * iw / UNIT)));
+        int ph = (int) Math.max(1, Math.min(ih - py, Math.round((double) h * ih / UNIT)));
+        return transform(image.getSubimage(px, py, pw, ph));
+    }
+
+    /**
+     * Applies only the flip and the rotation to <code>image</code>, an image of
+     * the cropped original (e.g. decoded from the crop only).
+     *
+     * @param image The cropped original image
+     * @return The edited image (<code>image</code> itself if it needs no flip or rotation)
+     */
+    public BufferedImage transform(BufferedImage image)
+    {
+        if (!mirrored && turns == 0)
+            return image;
+
+        // Mirror (x -> W - x), then turn (x, y) -> (H - y, x) per quarter
+        int iw = image.getWidth(), ih = image.getHeight();
+        AffineTransform at;
+        if (turns == 1)
+            at = new AffineTransform(0, 1, -1, 0, ih, 0);
+        else if (turns == 2)
+            at = new AffineTransform(-1, 0, 0, -1, iw, ih);
+        else if (turns == 3)
+            at = new AffineTransform(0, -1, 1, 0, 0, iw);
+        else
+            at = new AffineTransform();
+        if (mirrored)
+            at.concatenate(new AffineTransform(-1, 0, 0, 1, iw, 0));
+
+        int type = image.getType();
+        if (type == BufferedImage.TYPE_CUSTOM)
+            type = (image.getTransparency() == Transparency.OPAQUE) ? BufferedImage.TYPE_INT_RGB
+                                                                    : BufferedImage.TYPE_INT_ARGB;
+        BufferedImage result = isTransposed() ? new BufferedImage(ih, iw, type) : new BufferedImage(iw, ih, type);
+        Graphics2D g2d = result.createGraphics();
+        g2d.drawImage(image, at, null);
+        g2d.dispose();
+        return result;
+    }
+
+    /**
+     * @return The edits as they are stored, e.g. "crop:0.1,0,0.8,1;flip;rotate:90";
+     * "" if there are none
+     */
+    public String toString()
+    {
+        String result = "";
+        if (x != 0 || y != 0 || w != UNIT || h != UNIT)
+            result += ";crop:" + units(x) + "," + units(y) + "," + units(w) + "," + units(h);
+        if (mirrored)
+            result += ";flip";
+        if (turns != 0)
+            result += ";rotate:" + turns * 90;
+        return result.isEmpty() ? result : result.substring(1);
+    }
+
+    public boolean equals(Object o)
+    {
+        return (o instanceof PhotoEdits) && toString().equals(o.toString());
+    }
+
+    public int hashCode()
+    {
+        return toString().hashCode();
+    }
+
+    /**
+     * Returns the point (in fractions of the cropped original) that ends up at
+     * (px, py) (in fractions of the edited photo): the turns are undone, with
+     * (x, y) -> (y, 1 - x) each, and then the mirror.
+     */
+    private double[] unedit(double px, double py)
+    {
+        for (int i = 0; i < turns; i++)
+        {
+            double t = px;
+            px = py;
+            py = 1 - t;
+        }
+        return new double[] { mirrored ? 1 - px : px, py };
+    }
+
+    /**
+     * Returns <code>units</code> as a fraction, e.g. "0.25" for 2500.
+     */
+    private static String units(int units)
+    {
+        if (units == UNIT)
+            return "1";
+        String s = String.format("0.%04d", units).replaceAll("0+$", "");
+        return s.equals("0.") ? "0" : s;
+    }
+}
@@ -23,32 +23,60 @@ import java.awt.Color;
 import java.awt.Component;
 import java.awt.Dimension;
 import java.awt.Graphics;
+import java.awt.Graphics2D;
+import java.awt.GraphicsConfiguration;
+import java.awt.GridLayout;
 import java.awt.Image;
+import java.awt.RenderingHints;
+import java.awt.Toolkit;
+import java.awt.Transparency;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.awt.event.ComponentAdapter;
 import java.awt.event.ComponentEvent;
 import java.awt.event.KeyEvent;
 import java.awt.event.KeyListener;
+import java.awt.event.MouseAdapter;
+import java.awt.event.MouseEvent;
+import java.awt.event.MouseWheelEvent;
+import java.awt.image.BufferedImage;
 import java.io.File;
+import java.io.IOException;
 import java.sql.Date;
 import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Properties;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import javax.swing.BorderFactory;
 import javax.swing.Box;
 import javax.swing.BoxLayout;
 import javax.swing.ImageIcon;
 import javax.swing.JButton;
+import javax.swing.JCheckBox;
+import javax.swing.JComboBox;
 import javax.swing.JFileChooser;
 import javax.swing.JLabel;
 import javax.swing.JOptionPane;
 import javax.swing.JPanel;
 import javax.swing.JScrollPane;
+import javax.swing.JTextField;
+import javax.swing.SwingUtilities;
+import javax.swing.SwingWorker;
+import javax.swing.Timer;
 import javax.swing.border.Border;
 import javax.swing.border.LineBorder;
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.DocumentListener;
 
 public class PhotoPanel extends JPanel
 {
@@ -65,6 +93,11 @@ public class PhotoPanel extends JPanel
     private Image[] thumbs;
     private JButton[] thumbButtons;
     private JScrollPane thumbScroll;
+    // The keys the buttons on thumbPanel were made for, in order, with the
+    // buttons and the space below each; those not in photoKeys are hidden
+    private Object[] paneKeys;
+    private JButton[] paneButtons;
+    private Component[] paneGaps;
     
     // Stores all unique keys for the photos
     private Object[] photoKeys;
@@ -75,15 +108,95 @@ public class PhotoPanel extends JPanel
     private ArrayList<Integer> multipleIndices;
     private boolean multipleSelected;
     
+    // The current photo scaled to the display size (and the photo it was scaled from),
+    // so repaints only have to blit it; and whether it was scaled at high quality.
+    // While the panel is being resized it is scaled quickly, and at high quality
+    // once resizeTimer fires, i.e. the resizing has settled.
+    private BufferedImage scaledPhoto;
+    private Image scaledSource;
+    private boolean scaledHighQuality;
+    private boolean resizing;
+    private Timer resizeTimer;
+    private final int RESIZE_SETTLE_MS = 200;
+    
+    // Photos with at least TILED_MIN_PIXELS pixels are not decoded whole, but shown
+    // as a TiledImage that can be zoomed (mouse wheel) and panned (dragging), with
+    // its visible tiles decoded on tileLoader. zoom is in display pixels per image
+    // pixel and (viewX, viewY) is the image pixel at the center of the display area.
+    // Tiles that could not be decoded are drawn as placeholders and not requested again.
+    private volatile TiledImage tiledPhoto;
+    private double zoom, viewX, viewY;
+    private ExecutorService tileLoader;
+    private HashSet<Long> pendingTiles, failedTiles;
+    private final Color FAILED_TILE = new Color(200, 200, 200);
+    private final long TILED_MIN_PIXELS = 50000000L;
+    private final int MAX_TILES = 256;
+    
+    // Photos are fetched and decoded on photoLoader (see loadPhoto()); photoRequest
+    // identifies the latest photo requested, so that older ones can be dropped.
+    // After SLOW_FETCHES photos in a row took more than SLOW_FETCH_MS to fetch, only
+    // thumbnails are shown (see setLoadFullPhotos()); slowFetches is only used on photoLoader.
+    private ExecutorService photoLoader;
+    private volatile int photoRequest;
+    private boolean loadFullPhotos = true;
+    private int slowFetches;
+    private final long SLOW_FETCH_MS = 4000;
+    private final int SLOW_FETCHES = 2;
+    
     // Whether PhotoPanel is connected to a database
     private boolean connected;
     
-    // All properties for the photo
-    private Properties[] photoProps;
-    private final int NUM_PROPS = 6;
-    // The same as default - just testing it out
+    // While connected, uploads are queued in a journal and inserted in the background (see
+    // UploadQueue); uploadStatus tells how far they are ("" if none are left), and uploadsShown
+    // how many had been inserted when the photos were last refreshed for them
+    private volatile UploadQueue uploads;
+    private String uploadStatus = "";
+    private int uploadsShown;
+    
+    // The properties, keys and thumbnail pages are all fetched at once on loader (see
+    // loadPhotoDisplay()), and displayLoad identifies the latest such load so that the
+    // results of older ones are dropped. All thumbnails of the load are kept in loadedThumbs
+    // by key, for pages that arrive before the keys do and for when a filter changes the pane.
+    private ExecutorService loader;
+    // Edits are applied on editor, one after the other, so each starts from the last (see transformPhotos())
+    private ExecutorService editor;
+    private int displayLoad;
+    private HashMap<String, Image> loadedThumbs;
+    private HashMap<String, Integer> keyIndices;
+    private final int THUMB_PAGE_SIZE = 100;
+    // When the current load started, and how long it took to show its first thumbnail (ms)
+    private long loadStart;
+    private long timeToFirstThumbnail = -1;
+    
+    // Sidebar to search, filter and sort the thumbnails (see showKeys()), all unique keys,
+    // the query of the filter that is applied (or null) and the keys that match it
+    private JPanel filterPanel;
+    // The number of photos per month, above the photo; clicking a month filters by it
+    private TimelinePanel timelinePanel;
+    private JTextField searchField;
+    private Timer searchTimer;
+    private final int SEARCH_DELAY_MS = 100;
+    private JComboBox<String> formatBox, sortBox;
+    private JTextField fromField, toField, minSizeField, maxSizeField, nearField;
+    private JCheckBox descendingBox;
+    private JButton applyButton, clearButton, indexButton, similarButton, nearbyButton;
+    private JLabel filterStatus;
+    private Object[] allKeys, filterKeys;
+    private PhotoQuery filter;
+    
+    // All properties for the photos, by (the String value of) their unique key
+    private HashMap<String, Properties> photoProps;
+    // The same as default, plus a perceptual hash for "Similar" and duplicate warnings,
+    // the metadata read from the files on upload (see ImageMetadata) and the edits (see PhotoEdits)
     private final String[] COL_NAMES = { "INDEX", "FILENAME", "FORMAT", "DESCRIPTION",
-                                "SIZE", "DATE", "IMAGE", "THUMB" };
+                                "SIZE", "DATE", "IMAGE", "THUMB", "HASH", "PHASH",
+                                "TAKEN", "CAMERA", "WIDTH", "HEIGHT", "ORIENTATION", "LAT", "LON", "EDITS" };
+    // How many bits the perceptual hashes of "similar" photos may differ in
+    private final int SIMILAR_DISTANCE = 10;
+    // The radius of "Nearby" if the near field gives none, in km
+    private final double NEARBY_KM = 1.0;
+    // The width of the STRING columns (see DataType.STRING), in characters
+    private final int MAX_TEXT_LENGTH = 255;
     private final HashMap<String, DataType> COL_TYPES;
 
     {
@@ -96,6 +209,16 @@ public class PhotoPanel extends JPanel
         COL_TYPES.put(COL_NAMES[5], DataType.DATE);
         COL_TYPES.put(COL_NAMES[6], DataType.BIN_STREAM);
         COL_TYPES.put(COL_NAMES[7], DataType.BIN_STREAM);
+        COL_TYPES.put(COL_NAMES[8], DataType.STRING);
+        COL_TYPES.put(COL_NAMES[9], DataType.LONG);
+        COL_TYPES.put(COL_NAMES[10], DataType.TIMESTAMP);
+        COL_TYPES.put(COL_NAMES[11], DataType.STRING);
+        COL_TYPES.put(COL_NAMES[12], DataType.INT);
+        COL_TYPES.put(COL_NAMES[13], DataType.INT);
+        COL_TYPES.put(COL_NAMES[14], DataType.INT);
+        COL_TYPES.put(COL_NAMES[15], DataType.DOUBLE);
+        COL_TYPES.put(COL_NAMES[16], DataType.DOUBLE);
+        COL_TYPES.put(COL_NAMES[17], DataType.STRING);
     }
     
     /**
@@ -113,6 +236,12 @@ public class PhotoPanel extends JPanel
         db.setColumnNames(COL_NAMES);
         db.setColumnTypes(COL_TYPES);
         db.setUniqueKey(1);                                                    //Let the unique key be the filename
+        db.setContentHashColumn(8);                                            //Identical images are stored once
+        db.setSearchColumns(1, 3);                                            //Search box looks in filename & description
+        db.setPerceptualHashColumn(9);
+        db.setGeoColumns(15, 16);
+        db.setTimelineColumn(5);                                            //Count the photos by DATE
+        db.setEditsColumn(17);                                                //Rotations, flips and crops
         connected = false;
         multipleIndices = new ArrayList<Integer>();
         multipleSelected = false;
@@ -128,32 +257,92 @@ public class PhotoPanel extends JPanel
         });
         addKeyListener(new SelectListener());
         
+        resizeTimer = new Timer(RESIZE_SETTLE_MS, new ActionListener() {
+            public void actionPerformed(ActionEvent e)
+            {
+                resizing = false;
+                repaint();                                                    //Rescale at high quality
+            }
+        });
+        resizeTimer.setRepeats(false);
+        
+        tileLoader = Executors.newSingleThreadExecutor();
+        photoLoader = Executors.newSingleThreadExecutor();
+        loader = Executors.newFixedThreadPool(db.getPoolSize());
+        editor = Executors.newSingleThreadExecutor();
+        pendingTiles = new HashSet<Long>();
+        failedTiles = new HashSet<Long>();
+        ZoomListener zl = new ZoomListener();
+        addMouseListener(zl);
+        addMouseMotionListener(zl);
+        addMouseWheelListener(zl);
+        
         initSouthPanel();
+        initFilterPanel();
     }
     
     /**
-     * Attempts to connect to the database, and then loads up the thumbnail
-     * pane with whatever thumbnails it retrieves from the database, and
-     * re-retrieves the properties as well. Will display an error and return
-     * false if the attempt to connect fails.
+     * Attempts to connect to the database in the background, and then loads up
+     * the thumbnail pane with whatever thumbnails it retrieves from the database,
+     * and re-retrieves the properties as well (see updatePhotoDisplay()). Will
+     * display an error if the attempt to connect fails.
      * 
-     * @return <code>true</code> if a connection is established, <code>false</code> if not
+     * This method returns right away; once connected, a "connected" property change
+     * (from false to true) is fired. Uploads that were queued but not inserted when
+     * the last connection to the table ended (even by a crash) are then inserted.
      */
-    public boolean connectToDB()
+    public void connectToDB()
     {
-        try {
-            db.connect();                                                        //Connect and initialize the thumbnail pane with photos
-        } catch (SQLException e) {
-            JOptionPane.showMessageDialog(this, "Error connecting to database. Check your settings.",
-                                            "Error", JOptionPane.ERROR_MESSAGE);
-            return false;
-        }
-        connected = true;
-        updatePhotoDisplay();
+        final long start = System.nanoTime();
         
-        left.setEnabled(true);                                                //Show image view and view the first photo
-        right.setEnabled(true);
-        return true;
+        new SwingWorker<UploadQueue, Void>() {
+            protected UploadQueue doInBackground() throws SQLException, IOException
+            {
+                db.connect();                                                //Connect and initialize the thumbnail pane with photos
+                db.ensureContentHashColumn();
+                db.ensurePerceptualHashColumn();
+                try {
+                    db.ensureColumns();                                        //Metadata columns of older databases
+                    db.createIndex(db.query().orderBy(COL_NAMES[10], false));    //To sort by capture time
+                } catch (SQLException e) {                                    //E.g. no ALTER or INDEX privilege
+                    e.printStackTrace();
+                }
+                return new UploadQueue(db, journalFile());
+            }
+            
+            protected void done()
+            {
+                try {
+                    uploads = get();
+                } catch (Exception e) {
+                    e.printStackTrace();
+                    JOptionPane.showMessageDialog(PhotoPanel.this, "Error connecting to database. Check your settings.",
+                                                    "Error", JOptionPane.ERROR_MESSAGE);
+                    return;
+                }
+                connected = true;
+                left.setEnabled(true);                                        //Show image view and view the first photo
+                right.setEnabled(true);
+                setFilterEnabled(true);
+                firePropertyChange("connected", false, true);
+                loadPhotoDisplay(start);
+                
+                uploadsShown = 0;
+                uploads.addListener(new UploadListener());
+                uploads.start();
+            }
+        }.execute();
+    }
+    
+    /**
+     * Returns the upload journal of the table connected to, in the photo
+     * directory. It is named by the host (and port), database and table, so that
+     * rows queued for one database are never inserted into another.
+     */
+    private File journalFile()
+    {
+        String name = db.getHostname() + "_" + db.getDBName() + "_" + db.getTableName();
+        return new File(db.getPhotoDirectory(), "uploads_" + name.replaceAll("[^A-Za-z0-9._-]", "_") + ".journal");
     }
     
     /**
@@ -166,6 +355,15 @@ public class PhotoPanel extends JPanel
      */
     public boolean disconnectFromDB()
     {
+        if (uploads != null)
+        {
+            try {
+                uploads.close();                                            //Returns right away; what is left is inserted on the next connect
+            } catch (IOException e) { e.printStackTrace(); }
+            uploads = null;
+            setUploadStatus("");
+        }
+        
         try {
             db.disconnect();
         } catch (SQLException e) {
@@ -175,8 +373,12 @@ public class PhotoPanel extends JPanel
         }
         
         connected = false;
+        displayLoad++;                                                        //Drop whatever is still loading
         left.setEnabled(false);
         right.setEnabled(false);
+        setFilterEnabled(false);
+        timelinePanel.setCounts(new TreeMap<String, Integer>());
+        firePropertyChange("connected", true, false);
         JOptionPane.showMessageDialog(this, "Successfully disconnected from database");
         return true;
     }
@@ -189,6 +391,11 @@ public class PhotoPanel extends JPanel
     public void dispose()
     {
         disconnectFromDB();
+        closeTiledPhoto();
+        tileLoader.shutdownNow();
+        photoLoader.shutdownNow();
+        loader.shutdownNow();
+        editor.shutdownNow();
         db.deletePhotoDirectory();
     }
     
@@ -197,47 +404,84 @@ public class PhotoPanel extends JPanel
      * and retrieves the correct properties from PhotoDB.
      * 
      * Whenever the database is updated, call this method to refresh the UI.
+     * The properties, unique keys and thumbnails are fetched in the background
+     * (see loadPhotoDisplay()), so this method returns right away.
      * If for some reason there is an SQLException retrieving the properties, an error
      * dialog pops displaying the error.
      */
     public void updatePhotoDisplay()
     {    
-        try {
-            retrievePropsFromDB();
-        } catch (SQLException e) {
-            e.printStackTrace();
-            JOptionPane.showMessageDialog(this, "Error retrieving properties from database",
-                                            "Error", JOptionPane.ERROR_MESSAGE);
-        }
-        initThumbPane();                                                    //Thumbpane after, since it also calls showPhoto()
+        loadPhotoDisplay(System.nanoTime());
+    }
+    
+    /**
+     * Returns how long it took from the start of the last (or current) load, i.e.
+     * connectToDB() or updatePhotoDisplay(), until its first thumbnail was shown.
+     * A "timeToFirstThumbnail" property change is also fired when it is known.
+     * 
+     * @return The time to the first thumbnail in milliseconds, or -1 if none has
+     * been shown yet
+     */
+    public long getTimeToFirstThumbnail()
+    {
+        return timeToFirstThumbnail;
     }
     
     /**
      * Upload photos from a specific folder (selected from the dialog) into the database.
-     * When the upload finishes, properties are updated and the thumbnail pane is
-     * refreshed automatically. 
+     * This returns as soon as the dialog closes: the files are read on loader and
+     * queued in the upload journal (see UploadQueue), which inserts them in the
+     * background. When the queue runs empty, properties are updated and the
+     * thumbnail pane is refreshed automatically; the progress until then is the
+     * "uploadStatus" property.
      */
     public void uploadPhotosIntoDB()
     {
+        final UploadQueue queue = uploads;
+        if (queue == null)
+            return;
+        
         JFileChooser chooser = new JFileChooser();
         chooser.setFileSelectionMode(JFileChooser.FILES_AND_DIRECTORIES);
         chooser.setMultiSelectionEnabled(true);
         int value = chooser.showDialog(this, "Upload");
         if (value == JFileChooser.APPROVE_OPTION)
         {
-            File[] files = chooser.getSelectedFiles();
-            for (File f : files)
-            {
-                if (f.isFile())
-                    loadFile(f);
-                else
-                    loadFolder(f);
-            }
-            updatePhotoDisplay();
+            final File[] files = chooser.getSelectedFiles();
+            loader.execute(new Runnable() {
+                public void run()
+                {
+                    for (File f : files)
+                    {
+                        if (f.isFile())
+                            loadFile(f, queue);
+                        else
+                            loadFolder(f, queue);
+                    }
+                }
+            });
         }
         // Do nothing if the dialog is canceled
     }
     
+    /**
+     * Returns how far the uploads are, e.g. "Uploading: 12 left", or "" if none
+     * are left. An "uploadStatus" property change is fired when it changes.
+     * 
+     * @return The status of the uploads
+     */
+    public String getUploadStatus()
+    {
+        return uploadStatus;
+    }
+    
+    private void setUploadStatus(String status)
+    {
+        String old = uploadStatus;
+        uploadStatus = status;
+        firePropertyChange("uploadStatus", old, status);
+    }
+    
     /**
      * Deletes the currently selected photo(s) from the database if the confirm
      * dialog is confirmed. When the selected photos have been deleted, the
@@ -270,6 +514,210 @@ public class PhotoPanel extends JPanel
         }
     }
 
+    /**
+     * Asks for a new description of the currently selected photo(s), and sets it
+     * with one batched update (see PhotoDB.updateRows()), which leaves the images
+     * and the other columns alone. The properties and the search index are updated
+     * locally, so nothing is reloaded.
+     */
+    public void editPhotosInDB()
+    {
+        if (currIndex == -1 || photoKeys == null)
+            return;
+        
+        LinkedHashSet<Object> keys = selectedKeys();
+        Properties current = (photoProps != null) ? photoProps.get(photoKeys[currIndex].toString()) : null;
+        String initial = (keys.size() == 1 && current != null) ? current.getProperty(COL_NAMES[3], "") : "";
+        Object text = JOptionPane.showInputDialog(this, "Description of " + keys.size() + " photo"
+                + (keys.size() == 1 ? "" : "s") + ":", "Edit Description", JOptionPane.PLAIN_MESSAGE, null, null, initial);
+        if (text == null)
+            return;                                                            //Canceled
+        
+        HashMap<String, Object> values = new HashMap<String, Object>();
+        values.put(COL_NAMES[3], text.toString().trim().isEmpty() ? "[none]" : text.toString().trim());
+        try {
+            db.updateRows(keys.toArray(), values);
+        } catch (SQLException e) {
+            e.printStackTrace();
+            JOptionPane.showMessageDialog(this, "Error updating the description(s) in the database",
+                    "Error", JOptionPane.ERROR_MESSAGE);
+            return;
+        }
+        updatePhotoProperties();
+        if (!searchField.getText().trim().isEmpty())
+            showKeys();                                                        //The search may match them now, or not
+    }
+    
+    /**
+     * Applies a non-destructive edit to the selected photos (or the current one):
+     * "rotate:90" or "rotate:-90", "flip:h" or "flip:v" (see PhotoEdits.edit()),
+     * "crop" (asks for the margins to trim), "orient" (shows each photo upright by
+     * its EXIF orientation) or "revert" (drops all edits). Only the edits column
+     * is updated, on editor; the thumbnails and the photo are then fetched again
+     * with the edits applied.
+     * 
+     * @param edit The edit to apply
+     */
+    public void transformPhotos(String edit)
+    {
+        if (currIndex == -1 || photoKeys == null || photoProps == null)
+            return;
+        
+        if (edit.equals("crop"))
+        {
+            Object margins = JOptionPane.showInputDialog(this, "Margins to trim, in % (left, top, right, bottom):",
+                    "Crop", JOptionPane.PLAIN_MESSAGE, null, null, "10, 10, 10, 10");
+            if (margins == null)
+                return;                                                        //Canceled
+            String[] m = margins.toString().split(",");
+            try {
+                if (m.length != 4)
+                    throw new IllegalArgumentException();
+                double left = Double.parseDouble(m[0].trim()) / 100, top = Double.parseDouble(m[1].trim()) / 100;
+                double right = Double.parseDouble(m[2].trim()) / 100, bottom = Double.parseDouble(m[3].trim()) / 100;
+                edit = "crop:" + left + "," + top + "," + (1 - left - right) + "," + (1 - top - bottom);
+                PhotoEdits.NONE.edit(edit);                                    //Check it before changing anything
+            } catch (IllegalArgumentException e) {
+                JOptionPane.showMessageDialog(this, "Cannot crop by " + margins, "Error", JOptionPane.ERROR_MESSAGE);
+                return;
+            }
+        }
+        
+        final LinkedHashSet<Object> keys = selectedKeys();
+        final HashMap<String, Properties> props = photoProps;
+        final String change = edit;
+        final int load = displayLoad;
+        editor.execute(new Runnable() {
+            public void run()
+            {
+                // The photos may have different edits before, and so after; update the photos
+                // that end up with the same edits together
+                HashMap<String, List<Object>> groups = new HashMap<String, List<Object>>();
+                for (Object key : keys)
+                {
+                    Properties p = props.get(key.toString());
+                    if (p == null)
+                        continue;
+                    PhotoEdits edits = photoEdits(p);
+                    if (change.equals("revert"))
+                        edits = PhotoEdits.NONE;
+                    else if (change.equals("orient"))
+                    {
+                        String orientation = p.getProperty(COL_NAMES[14], "1");
+                        edits = edits.normalizeOrientation(orientation.matches("\\d") ? Integer.parseInt(orientation) : 1);
+                    }
+                    else
+                        edits = edits.edit(change);
+                    
+                    if (!groups.containsKey(edits.toString()))
+                        groups.put(edits.toString(), new ArrayList<Object>());
+                    groups.get(edits.toString()).add(key);
+                }
+                
+                boolean failed = false;
+                try {
+                    for (String edits : groups.keySet())
+                    {
+                        HashMap<String, Object> values = new HashMap<String, Object>();
+                        values.put(COL_NAMES[17], edits.isEmpty() ? null : edits);
+                        db.updateRows(groups.get(edits).toArray(), values);
+                    }
+                } catch (SQLException e) {
+                    e.printStackTrace();
+                    failed = true;
+                }
+                
+                final boolean error = failed;
+                SwingUtilities.invokeLater(new Runnable() {
+                    public void run()
+                    {
+                        if (error)
+                            JOptionPane.showMessageDialog(PhotoPanel.this, "Error updating the edits in the database",
+                                                            "Error", JOptionPane.ERROR_MESSAGE);
+                        if (load != displayLoad || currIndex == -1)
+                            return;                                            //Disconnected or reloaded since
+                        
+                        // Whatever was updated (the properties were updated with the rows) is shown again
+                        refreshThumbnails(keys);
+                        loadPhoto(photoKeys[currIndex]);
+                        updatePhotoProperties();
+                        repaint();
+                    }
+                });
+            }
+        });
+    }
+    
+    /**
+     * Returns the keys of the photos in multipleIndices (each once) if there are
+     * any, or else the key of the current photo.
+     */
+    private LinkedHashSet<Object> selectedKeys()
+    {
+        LinkedHashSet<Object> keys = new LinkedHashSet<Object>();
+        for (int i : multipleIndices)
+            keys.add(photoKeys[i]);
+        if (keys.isEmpty())
+            keys.add(photoKeys[currIndex]);
+        return keys;
+    }
+    
+    /**
+     * Returns the edits of the photo with <code>key</code> from its properties;
+     * none if they have not been loaded or cannot be read.
+     */
+    private PhotoEdits photoEdits(Object key)
+    {
+        return photoEdits((photoProps != null) ? photoProps.get(key.toString()) : null);
+    }
+    
+    /**
+     * Returns the edits in the properties <code>p</code> of a photo (none if
+     * <code>p</code> is null).
+     */
+    private PhotoEdits photoEdits(Properties p)
+    {
+        try {
+            return PhotoEdits.parse(p != null ? p.getProperty(COL_NAMES[17]) : null);
+        } catch (IllegalArgumentException e) {
+            return PhotoEdits.NONE;
+        }
+    }
+    
+    /**
+     * Fetches the thumbnails of <code>keys</code> again on loader (e.g. after their
+     * edits changed), and shows them in place of the old ones, also as the current
+     * photo if only its thumbnail is shown.
+     */
+    private void refreshThumbnails(final Collection<Object> keys)
+    {
+        loader.execute(new Runnable() {
+            public void run()
+            {
+                for (final Object key : keys)
+                {
+                    final Image thumb = db.getPhotoThumbnail(key);
+                    if (thumb == null)
+                        continue;
+                    SwingUtilities.invokeLater(new Runnable() {
+                        public void run()
+                        {
+                            Integer index = (keyIndices != null) ? keyIndices.get(key.toString()) : null;
+                            boolean shown = index != null && index == currIndex && currPhoto != null
+                                            && currPhoto == thumbs[index];
+                            addThumbnail(key.toString(), thumb);
+                            if (shown)
+                            {
+                                currPhoto = thumb;
+                                repaint();
+                            }
+                        }
+                    });
+                }
+            }
+        });
+    }
+
     /**
      * Sets the current photo to the (index+1)th photo in the database;
      * draws a border around that photo's thumbnail; and calls repaint().
@@ -282,8 +730,9 @@ public class PhotoPanel extends JPanel
      */
     public void showPhoto(int index)                
     {        
-        // No need to continue if same picture is clicked on twice
-        if (index == currIndex)
+        // No need to continue if same picture is clicked on twice, or before the
+        // thumbnail pane has been loaded
+        if (index == currIndex || thumbButtons == null || thumbButtons.length == 0)
             return;
         
         int prevIndex = currIndex;
@@ -310,17 +759,19 @@ public class PhotoPanel extends JPanel
         setThumbnailBorder(currIndex, new LineBorder(Color.BLUE, 3));
         
         // Since the photo in the thumbnail array corresponds to the unique
-        // key in the primary keys array, call getSpecificPhoto with that key
+        // key in the primary keys array, load the photo with that key
         // by tracking the current index of the thumbnail array.
         if (connected)
-            currPhoto = db.getSpecificPhoto(photoKeys[currIndex]);
+            loadPhoto(photoKeys[currIndex]);
         updatePhotoProperties();
         repaint();
     }
     
-    public void updateDBSettings(String host, String dbName, String tableName, String user, String password)
+    public void updateDBSettings(String host, String dbName, String tableName, String user, String password,
+                                    String[] readHosts)
     {
         db.setHostname(host);
+        db.setReadHostnames(readHosts);
         db.setDBName(dbName);
         db.setTableName(tableName);
         db.setUser(user);
@@ -333,7 +784,7 @@ public class PhotoPanel extends JPanel
      * by cycling through them with all the column names, and thus they
      * will appear in that order.
      * 
-     * Note: retrievePropsFromDB() should be called before this to update
+     * Note: updatePhotoDisplay() should be called before this to update
      * PhotoPanel's properties or else they will not be consistent with the
      * thumbnails. This method, besides checking for null, has no way of
      * determining whether current properties are up-to-date or not.
@@ -343,28 +794,36 @@ public class PhotoPanel extends JPanel
         // If there are no properties stored, return (should only be possible if
         // retrievePhotosFromDB() encountered an exception)
         // Also disallow viewing properties if disconnected (despite being cached)
-        if (photoProps == null || !connected)
+        if (photoProps == null || !connected || currIndex == -1)
             return;
 
-        Properties currProp = photoProps[currIndex];
-        String[] values = new String[NUM_PROPS];
-        
-        int i = 0;
-        // Loop through each column name
-        for (String s : COL_NAMES)
-            if (currProp.getProperty(s) != null)                            //Store the property if it isn't null
-                values[i++] = currProp.getProperty(s);
+        Properties currProp = photoProps.get(photoKeys[currIndex].toString());
+        if (currProp == null)
+            return;
+        String[] values = new String[COL_NAMES.length];
+        for (int i = 0; i < COL_NAMES.length; i++)                            //Missing properties show as "-"
+            values[i] = currProp.getProperty(COL_NAMES[i], "-");
+        String dimensions = values[12].equals("-") ? "-" : values[12] + "x" + values[13];
+        String location = values[15].equals("-") ? "-" : values[15] + ", " + values[16];
         
         // Hard-coded properties format
         props.setText("<html><pre><b>Properties:</b> " + "<br>" + "Index: " + values[0] + "\t\tFilename: "
                         + values[1] + "<br>Format: " + values[2] + "\t\tSize: " + values[4] + " bytes<br>Date: "
-                        + values[5] + "\tDescription: " + values[3] + "</pre></html>");
+                        + values[5] + "\tDescription: " + values[3] + "<br>Taken: " + values[10] + "\tCamera: "
+                        + values[11] + "\tDimensions: " + dimensions + "<br>Location: " + location + "\tEdits: "
+                        + values[17] + "</pre></html>");
     }
     
     public void paintComponent(Graphics g)
     {
         super.paintComponent(g);
         
+        if (tiledPhoto != null && currIndex != -1)
+        {
+            paintTiledPhoto(g);
+            return;
+        }
+        
         // Don't bother if currPhoto == null (should only be possible after first initialization)
         if (currPhoto == null)
             return;
@@ -385,11 +844,330 @@ public class PhotoPanel extends JPanel
                 height = imageH * w / imageW;
                 width = w;
             }
-            g.drawImage(currPhoto, thumbScroll.getWidth() + (w + 10) / 2 - width / 2,
-                    (h + 10) / 2 - height / 2, width, height, this);
+            if (width <= 0 || height <= 0)
+                return;
+            
+            // Only rescale if the photo or its size changed, or if it was scaled
+            // quickly during a resize that has since settled
+            if (scaledPhoto == null || scaledSource != currPhoto || scaledPhoto.getWidth() != width
+                    || scaledPhoto.getHeight() != height || (!resizing && !scaledHighQuality))
+            {
+                scaledPhoto = scalePhoto(currPhoto, width, height, !resizing);
+                scaledSource = currPhoto;
+                scaledHighQuality = !resizing;
+            }
+            g.drawImage(scaledPhoto, thumbScroll.getWidth() + (w + 10) / 2 - width / 2,
+                    (h + 10) / 2 - height / 2, this);
+        }
+    }
+    
+    /**
+     * Scales <code>img</code> into an image compatible with the screen, so that
+     * drawing it is a plain copy. At high quality, downscaling is done in
+     * halving steps with bilinear interpolation (which is sharper than one big
+     * step); otherwise, it is done in one step with nearest-neighbour.
+     * 
+     * @param img The image to scale
+     * @param width The width to scale to
+     * @param height The height to scale to
+     * @param highQuality Whether to scale at high quality or as quickly as possible
+     * @return The scaled image
+     */
+    private BufferedImage scalePhoto(Image img, int width, int height, boolean highQuality)
+    {
+        int transparency = (img instanceof BufferedImage) ? ((BufferedImage) img).getTransparency() : Transparency.TRANSLUCENT;
+        Object interpolation = highQuality ? RenderingHints.VALUE_INTERPOLATION_BILINEAR
+                                            : RenderingHints.VALUE_INTERPOLATION_NEAREST_NEIGHBOR;
+        int currW = img.getWidth(this), currH = img.getHeight(this);
+        Image curr = img;
+        
+        do
+        {
+            // Halve each step (but not past the target size) at high quality; jump straight there otherwise
+            if (highQuality && currW / 2 >= width)
+                currW /= 2;
+            else
+                currW = width;
+            if (highQuality && currH / 2 >= height)
+                currH /= 2;
+            else
+                currH = height;
+            
+            BufferedImage step = createCompatibleImage(currW, currH, transparency);
+            Graphics2D g2d = step.createGraphics();
+            g2d.setRenderingHint(RenderingHints.KEY_INTERPOLATION, interpolation);
+            g2d.drawImage(curr, 0, 0, currW, currH, null);
+            g2d.dispose();
+            curr = step;
+        } while (currW != width || currH != height);
+        
+        return (BufferedImage) curr;
+    }
+    
+    private BufferedImage createCompatibleImage(int width, int height, int transparency)
+    {
+        GraphicsConfiguration gc = getGraphicsConfiguration();
+        if (gc != null)
+            return gc.createCompatibleImage(width, height, transparency);
+        return new BufferedImage(width, height, transparency == Transparency.OPAQUE ?
+                                BufferedImage.TYPE_INT_RGB : BufferedImage.TYPE_INT_ARGB);
+    }
+    
+    /**
+     * Draws the visible part of tiledPhoto at the current zoom. The top-level
+     * (single tile) overview is drawn first, so that the tiles of the current
+     * level that are still being decoded show up blurry rather than blank.
+     */
+    private void paintTiledPhoto(Graphics g)
+    {
+        int x0 = thumbScroll.getWidth() + 5, y0 = 5;
+        int w = getWidth() - thumbScroll.getWidth() - 10, h = getHeight() - south.getHeight() - 10;
+        Graphics2D g2d = (Graphics2D) g.create();
+        g2d.clipRect(x0, y0, w, h);
+        g2d.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+        
+        int top = tiledPhoto.getTopLevel();
+        drawTiles(g2d, top, x0, y0, w, h);
+        int level = tiledPhoto.getLevelForScale(zoom);
+        if (level != top)
+            drawTiles(g2d, level, x0, y0, w, h);
+        g2d.dispose();
+    }
+    
+    /**
+     * Draws the tiles of <code>level</code> that intersect the display area
+     * (x0, y0, w, h), and queues those that have not been decoded yet. Tiles that
+     * failed to decode are drawn as gray placeholders.
+     */
+    private void drawTiles(Graphics2D g2d, int level, int x0, int y0, int w, int h)
+    {
+        int span = TiledImage.TILE_SIZE << level;
+        int[] count = tiledPhoto.getTileCount(level);
+        int c0 = Math.max(0, (int) Math.floor((viewX - w / 2 / zoom) / span));
+        int c1 = Math.min(count[0] - 1, (int) Math.floor((viewX + w / 2 / zoom) / span));
+        int r0 = Math.max(0, (int) Math.floor((viewY - h / 2 / zoom) / span));
+        int r1 = Math.min(count[1] - 1, (int) Math.floor((viewY + h / 2 / zoom) / span));
+        
+        for (int r = r0; r <= r1; r++)
+        {
+            for (int c = c0; c <= c1; c++)
+            {
+                BufferedImage tile = tiledPhoto.getCachedTile(level, c, r);
+                boolean failed = (tile == null) && failedTiles.contains(tileKey(level, c, r));
+                if (tile == null && !failed)
+                {
+                    requestTile(level, c, r);
+                    continue;
+                }
+                
+                // Tile edges are rounded the same way for every tile, so there are no gaps
+                int tileW = failed ? Math.min(span, tiledPhoto.getWidth() - c * span) : tile.getWidth() * (1 << level);
+                int tileH = failed ? Math.min(span, tiledPhoto.getHeight() - r * span) : tile.getHeight() * (1 << level);
+                int dx1 = x0 + (int) Math.round(w / 2 + (c * span - viewX) * zoom);
+                int dy1 = y0 + (int) Math.round(h / 2 + (r * span - viewY) * zoom);
+                int dx2 = x0 + (int) Math.round(w / 2 + (c * span + tileW - viewX) * zoom);
+                int dy2 = y0 + (int) Math.round(h / 2 + (r * span + tileH - viewY) * zoom);
+                if (failed)
+                {
+                    g2d.setColor(FAILED_TILE);
+                    g2d.fillRect(dx1, dy1, dx2 - dx1, dy2 - dy1);
+                }
+                else
+                    g2d.drawImage(tile, dx1, dy1, dx2 - dx1, dy2 - dy1, null);
+            }
+        }
+    }
+    
+    /**
+     * Decodes the tile on tileLoader (unless it has already been queued) and
+     * repaints once it is decoded. The tile is skipped if the photo has
+     * changed by the time the loader gets to it. A tile that cannot be decoded
+     * is remembered in failedTiles, so that it is not requested again.
+     */
+    private void requestTile(final int level, final int col, final int row)
+    {
+        final Long key = tileKey(level, col, row);
+        if (!pendingTiles.add(key))
+            return;
+        
+        final TiledImage tiled = tiledPhoto;
+        tileLoader.execute(new Runnable() {
+            public void run()
+            {
+                boolean ok = true;
+                try {
+                    if (tiled == tiledPhoto)
+                        tiled.decodeTile(level, col, row);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    ok = false;
+                }
+                
+                final boolean decoded = ok;
+                SwingUtilities.invokeLater(new Runnable() {
+                    public void run()
+                    {
+                        if (tiled == tiledPhoto)
+                        {
+                            pendingTiles.remove(key);
+                            if (!decoded)
+                                failedTiles.add(key);
+                            repaint();
+                        }
+                    }
+                });
+            }
+        });
+    }
+    
+    /**
+     * Shows the photo with <code>uniqueKeyValue</code> progressively: its thumbnail
+     * (scaled up) is shown right away, while the photo itself is fetched and decoded
+     * on photoLoader and swapped in once it is ready. The photo is shown as a
+     * TiledImage if it is large (judging by the dimensions in its header), and as
+     * currPhoto, decoded at no more than screen resolution, otherwise.
+     * 
+     * A photo with edits (see PhotoEdits) is never tiled: it is rendered at no more
+     * than screen resolution by PhotoDB.getEditedPhoto(), which caches the result.
+     * 
+     * If loading full photos is turned off (e.g. on a slow connection), only the
+     * thumbnail is shown. It is turned off automatically if the last SLOW_FETCHES
+     * photos each took more than SLOW_FETCH_MS to fetch.
+     */
+    private void loadPhoto(final Object uniqueKeyValue)
+    {
+        closeTiledPhoto();
+        if (thumbs != null && currIndex < thumbs.length)
+            currPhoto = thumbs[currIndex];
+        
+        // Any photo still being loaded is superseded by this one
+        final int request = ++photoRequest;
+        if (!loadFullPhotos)
+            return;
+        
+        final PhotoEdits edits = photoEdits(uniqueKeyValue);
+        photoLoader.execute(new Runnable() {
+            public void run()
+            {
+                if (request != photoRequest)                                //Skip photos that were browsed past
+                    return;
+                
+                TiledImage tiled = null;
+                Image photo = null;
+                Dimension screen = Toolkit.getDefaultToolkit().getScreenSize();
+                long start = System.currentTimeMillis();
+                if (!edits.isEmpty())
+                    photo = db.getEditedPhoto(uniqueKeyValue, edits, screen.width, screen.height);
+                File file = edits.isEmpty() ? db.getPhotoFile(uniqueKeyValue) : null;
+                
+                // Stop at thumbnails if the connection is too slow for full photos
+                slowFetches = (System.currentTimeMillis() - start > SLOW_FETCH_MS) ? slowFetches + 1 : 0;
+                if (slowFetches >= SLOW_FETCHES)
+                {
+                    slowFetches = 0;
+                    SwingUtilities.invokeLater(new Runnable() {
+                        public void run()
+                        {
+                            setLoadFullPhotos(false);
+                        }
+                    });
+                }
+                if (file != null)
+                {
+                    try {
+                        tiled = new TiledImage(file, MAX_TILES);
+                        if ((long) tiled.getWidth() * tiled.getHeight() < TILED_MIN_PIXELS)
+                        {
+                            tiled.close();
+                            tiled = null;
+                            
+                            // The photo is never shown larger than the screen, so don't decode more than that
+                            photo = PhotoDB.readSubsampled(file, screen.width, screen.height);
+                        }
+                    } catch (IOException e) { e.printStackTrace(); }
+                }
+                
+                final TiledImage loadedTiled = tiled;
+                final Image loadedPhoto = photo;
+                SwingUtilities.invokeLater(new Runnable() {
+                    public void run()
+                    {
+                        if (request != photoRequest)
+                        {
+                            if (loadedTiled != null)
+                                loadedTiled.close();
+                            return;
+                        }
+                        
+                        if (loadedTiled != null)
+                        {
+                            tiledPhoto = loadedTiled;
+                            currPhoto = null;
+                            zoomToFit();
+                        }
+                        else if (loadedPhoto != null)
+                            currPhoto = loadedPhoto;
+                        repaint();
+                    }
+                });
+            }
+        });
+    }
+    
+    /**
+     * Sets whether photos are fetched from the database when they are shown, or
+     * whether only their thumbnails are shown (scaled up), e.g. on slow connections.
+     * Fires a "loadFullPhotos" property change, since loadPhoto() may also turn
+     * this off by itself.
+     * 
+     * @param loadFullPhotos <code>true</code> to fetch full photos, <code>false</code>
+     * to stop at thumbnails
+     */
+    public void setLoadFullPhotos(boolean loadFullPhotos)
+    {
+        boolean old = this.loadFullPhotos;
+        this.loadFullPhotos = loadFullPhotos;
+        firePropertyChange("loadFullPhotos", old, loadFullPhotos);
+        
+        // Fetch the photo being shown now, if only its thumbnail has been shown so far
+        if (loadFullPhotos && connected && currIndex != -1 && tiledPhoto == null
+                && thumbs != null && currIndex < thumbs.length && currPhoto == thumbs[currIndex])
+        {
+            loadPhoto(photoKeys[currIndex]);
+            repaint();
         }
     }
     
+    private void closeTiledPhoto()
+    {
+        if (tiledPhoto == null)
+            return;
+        
+        tiledPhoto.close();
+        tiledPhoto = null;
+        pendingTiles.clear();
+        failedTiles.clear();
+    }
+    
+    private static Long tileKey(int level, int col, int row)
+    {
+        return ((long) level << 48) | ((long) col << 24) | row;
+    }
+    
+    /**
+     * Sets the zoom so that all of tiledPhoto fits into the display area, and centers it.
+     */
+    private void zoomToFit()
+    {
+        int w = getWidth() - (thumbScroll != null ? thumbScroll.getWidth() : 0) - 10;
+        int h = getHeight() - south.getHeight() - 10;
+        zoom = Math.min((double) w / tiledPhoto.getWidth(), (double) h / tiledPhoto.getHeight());
+        if (zoom <= 0)
+            zoom = 1.0 / (1 << tiledPhoto.getTopLevel());
+        viewX = tiledPhoto.getWidth() / 2.0;
+        viewY = tiledPhoto.getHeight() / 2.0;
+    }
+    
     private void initSouthPanel()
     {
         left = new JButton("Prev");                                            //Setting up buttons, left/right disabled by default
@@ -418,6 +1196,8 @@ public class PhotoPanel extends JPanel
                     thumbScroll.setPreferredSize(new Dimension(100, getHeight() - propScroll.getHeight()));
                 if (propScroll != null)
                     propScroll.setPreferredSize(new Dimension(getWidth() - right.getWidth() - left.getWidth() - 20, 95));
+                resizing = true;                                            //Scale quickly until resizing settles
+                resizeTimer.restart();
                 south.revalidate();
                 south.repaint();
                 repaint();
@@ -425,48 +1205,592 @@ public class PhotoPanel extends JPanel
         });
     }
     
-    /**
-     * Whenever the database is updated (or the thumbnail pane has not yet
-     * been initialized), call this method to update the thumbnail pane.
-     *
-     * First, this method retrieves the thumbnails (no properties) and the
-     * unique keys. Then it creates the JPanel that will house the
-     * JScrollPane, creates it (scroll pane), and adds the the buttons
-     * made from the thumbnails one by one to the JPanel.
-     */
-    private void initThumbPane()    
-    {                            
-        thumbs = db.getPhotoThumbnails();                                    //Getting image thumbnails
-        photoKeys = db.getAllUniqueKeys();
-        thumbButtons = new JButton[thumbs.length];
-
-        thumbPanel = new JPanel();                                            //Setting up pane on left
-        thumbPanel.setBackground(Color.WHITE);
-        thumbPanel.setLayout(new BoxLayout(thumbPanel, BoxLayout.Y_AXIS));
-        thumbPanel.add(Box.createRigidArea(new Dimension(0, 5)));            //Initial space
-        
-        if (thumbScroll != null)                                            //So there's no overlap
-            this.remove(thumbScroll);
-        thumbScroll = new JScrollPane(thumbPanel);                            //ScrollPane
-        thumbScroll.setBackground(Color.WHITE);
-        thumbScroll.setVerticalScrollBarPolicy(JScrollPane.VERTICAL_SCROLLBAR_ALWAYS);        //Fixes alignment problems... thank god
-        thumbScroll.setHorizontalScrollBarPolicy(JScrollPane.HORIZONTAL_SCROLLBAR_NEVER);
-        add(thumbScroll, BorderLayout.WEST);
-
-        ActionListener al = new ButtonListener();
-        for (int i = 0; i < thumbs.length; i++)
+    private void initFilterPanel()
+    {
+        searchField = new JTextField();
+        searchField.setToolTipText("Words in the filename or description");
+        searchTimer = new Timer(SEARCH_DELAY_MS, new ActionListener() {
+            public void actionPerformed(ActionEvent e)
+            {
+                showKeys();                                                    //Once typing pauses
+            }
+        });
+        searchTimer.setRepeats(false);
+        searchField.getDocument().addDocumentListener(new DocumentListener() {
+            public void insertUpdate(DocumentEvent e) { searchTimer.restart(); }
+            public void removeUpdate(DocumentEvent e) { searchTimer.restart(); }
+            public void changedUpdate(DocumentEvent e) { searchTimer.restart(); }
+        });
+        
+        formatBox = new JComboBox<String>(new String[] { "" });
+        formatBox.setEditable(true);
+        fromField = new JTextField();
+        fromField.setToolTipText("yyyy-mm-dd");
+        toField = new JTextField();
+        toField.setToolTipText("yyyy-mm-dd");
+        minSizeField = new JTextField();
+        maxSizeField = new JTextField();
+        nearField = new JTextField();
+        nearField.setToolTipText("lat, lon[, radius in km] - empty for the current photo's location");
+        sortBox = new JComboBox<String>(new String[] { "", "DATE", "TAKEN", "SIZE", "FILENAME", "FORMAT" });
+        descendingBox = new JCheckBox("Descending");
+        descendingBox.setBackground(Color.WHITE);
+        
+        JPanel fields = new JPanel(new GridLayout(0, 2, 5, 5));               //Label, field on each row
+        fields.setBackground(Color.WHITE);
+        String[] labels = { "Search:", "Format:", "From date:", "To date:", "Min size (KB):", "Max size (KB):",
+                            "Sort by:", "", "Near:" };
+        Component[] inputs = { searchField, formatBox, fromField, toField, minSizeField, maxSizeField, sortBox,
+                                descendingBox, nearField };
+        for (int i = 0; i < labels.length; i++)
+        {
+            fields.add(new JLabel(labels[i]));
+            fields.add(inputs[i]);
+        }
+        
+        ActionListener al = new FilterListener();
+        applyButton = new JButton("Apply");
+        clearButton = new JButton("Clear");
+        indexButton = new JButton("Create index");
+        indexButton.setToolTipText("The table has no index for this filter, so the database scans all rows");
+        indexButton.setVisible(false);
+        similarButton = new JButton("Similar");
+        similarButton.setToolTipText("Show the photos that look like the current one");
+        nearbyButton = new JButton("Nearby");
+        nearbyButton.setToolTipText("Show the photos taken near the place in \"Near\", or near the current one");
+        JPanel buttons = new JPanel();
+        buttons.setBackground(Color.WHITE);
+        for (JButton button : new JButton[] { applyButton, clearButton, similarButton, nearbyButton, indexButton })
+        {
+            button.addActionListener(al);
+            button.setFocusable(false);                                        //Keep the key listener of PhotoPanel working
+            buttons.add(button);
+        }
+        filterStatus = new JLabel(" ");
+        
+        filterPanel = new JPanel();
+        filterPanel.setBackground(Color.WHITE);
+        filterPanel.setBorder(BorderFactory.createEmptyBorder(5, 5, 5, 5));
+        filterPanel.setLayout(new BorderLayout());
+        JPanel top = new JPanel();
+        top.setBackground(Color.WHITE);
+        top.setLayout(new BoxLayout(top, BoxLayout.Y_AXIS));
+        top.add(fields);
+        top.add(buttons);
+        top.add(filterStatus);
+        filterPanel.add(top, BorderLayout.NORTH);
+        filterPanel.setPreferredSize(new Dimension(240, 0));
+        filterPanel.setVisible(false);
+        add(filterPanel, BorderLayout.EAST);
+        setFilterEnabled(false);
+        
+        timelinePanel = new TimelinePanel();
+        timelinePanel.addActionListener(new ActionListener() {
+            public void actionPerformed(ActionEvent e)
+            {
+                showMonth(e.getActionCommand());
+            }
+        });
+        timelinePanel.setVisible(false);
+        add(timelinePanel, BorderLayout.NORTH);
+    }
+    
+    /**
+     * Shows or hides the timeline above the photo, a histogram of the number of
+     * photos per month (see TimelinePanel); hiding it does not clear the filter.
+     * 
+     * @param visible Whether to show the timeline
+     */
+    public void setTimelineVisible(boolean visible)
+    {
+        timelinePanel.setVisible(visible);
+        revalidate();
+        repaint();
+    }
+    
+    /**
+     * Filters the photos to those of <code>month</code> ("yyyy-mm"), chosen on
+     * the timeline, by putting its first and last day into the date fields of the
+     * sidebar and applying the filter, which is a range query on DATE. An empty
+     * month clears the dates again.
+     */
+    private void showMonth(String month)
+    {
+        if (!connected)
+            return;
+        if (month.isEmpty())
+        {
+            fromField.setText("");
+            toField.setText("");
+        }
+        else
+        {
+            Date[] range = Timeline.getRange(month);
+            fromField.setText(range[0].toString());
+            toField.setText(range[1].toString());
+        }
+        applyFilter();
+    }
+    
+    /**
+     * Shows or hides the sidebar that searches, filters and sorts the thumbnails
+     * by their properties; hiding it does not clear the search or the filter.
+     * 
+     * @param visible Whether to show the sidebar
+     */
+    public void setFiltersVisible(boolean visible)
+    {
+        filterPanel.setVisible(visible);
+        revalidate();
+        repaint();
+    }
+    
+    private void setFilterEnabled(boolean enabled)
+    {
+        for (Component c : new Component[] { searchField, formatBox, fromField, toField, minSizeField, maxSizeField,
+                                                sortBox, descendingBox, nearField, applyButton, clearButton,
+                                                similarButton, nearbyButton, indexButton })
+            c.setEnabled(enabled);
+    }
+    
+    /**
+     * Fills the format box of the sidebar with the formats of the photos.
+     */
+    private void updateFormats()
+    {
+        TreeSet<String> formats = new TreeSet<String>(String.CASE_INSENSITIVE_ORDER);
+        for (Properties p : photoProps.values())
+            if (p.getProperty(COL_NAMES[2]) != null)
+                formats.add(p.getProperty(COL_NAMES[2]));
+        
+        Object selected = formatBox.getSelectedItem();
+        formatBox.removeAllItems();
+        formatBox.addItem("");
+        for (String format : formats)
+            formatBox.addItem(format);
+        formatBox.setSelectedItem(selected);
+    }
+    
+    /**
+     * Builds the query of the filter in the sidebar and runs it (see runFilter()),
+     * or shows an error if one of the fields cannot be parsed.
+     */
+    private void applyFilter()
+    {
+        PhotoQuery query = db.query();
+        try {
+            Object format = formatBox.getSelectedItem();
+            if (format != null && !format.toString().trim().isEmpty())
+                query.equalTo(COL_NAMES[2], format.toString().trim());
+            if (!fromField.getText().trim().isEmpty())
+                query.atLeast(COL_NAMES[5], Date.valueOf(fromField.getText().trim()));
+            if (!toField.getText().trim().isEmpty())
+                query.atMost(COL_NAMES[5], Date.valueOf(toField.getText().trim()));
+            if (!minSizeField.getText().trim().isEmpty())
+                query.atLeast(COL_NAMES[4], Long.parseLong(minSizeField.getText().trim()) * 1024);
+            if (!maxSizeField.getText().trim().isEmpty())
+                query.atMost(COL_NAMES[4], Long.parseLong(maxSizeField.getText().trim()) * 1024);
+        } catch (IllegalArgumentException e) {                                //Also thrown for bad numbers
+            JOptionPane.showMessageDialog(this, "Dates must be yyyy-mm-dd and sizes whole numbers",
+                                            "Error", JOptionPane.ERROR_MESSAGE);
+            return;
+        }
+        if (sortBox.getSelectedIndex() > 0)
+            query.orderBy(sortBox.getSelectedItem().toString(), descendingBox.isSelected());
+        
+        filter = query;
+        runFilter(query);
+    }
+    
+    /**
+     * Runs <code>query</code> on loader, and then shows only the thumbnails of the
+     * matching photos, in the order of the query (see showKeys()). Also checks
+     * whether the table has an index for the query, and offers to create one if not.
+     */
+    private void runFilter(final PhotoQuery query)
+    {
+        final int load = displayLoad;
+        filterStatus.setText("Filtering...");
+        indexButton.setVisible(false);
+        
+        loader.execute(new Runnable() {
+            public void run()
+            {
+                Object[] keys = null;
+                String index = null;
+                try {
+                    Properties[] matches = query.execute();
+                    keys = new Object[matches.length];
+                    for (int i = 0; i < matches.length; i++)
+                        keys[i] = matches[i].getProperty(COL_NAMES[db.getUniqueKey()]);
+                    index = db.recommendIndex(query);
+                } catch (SQLException e) { e.printStackTrace(); }
+                
+                final Object[] result = keys;
+                final String missingIndex = index;
+                SwingUtilities.invokeLater(new Runnable() {
+                    public void run()
+                    {
+                        if (load != displayLoad || query != filter)
+                            return;
+                        if (result == null)
+                        {
+                            filterStatus.setText(" ");
+                            JOptionPane.showMessageDialog(PhotoPanel.this, "Error filtering photos",
+                                                            "Error", JOptionPane.ERROR_MESSAGE);
+                            return;
+                        }
+                        filterKeys = result;
+                        showKeys();
+                        indexButton.setVisible(missingIndex != null);
+                    }
+                });
+            }
+        });
+    }
+    
+    /**
+     * Shows only the current photo and the photos that look like it (see
+     * PhotoDB.findSimilar()), the most similar first, in place of the filter.
+     * The lookup runs on the local index, so it needs no round trip.
+     */
+    private void showSimilar()
+    {
+        if (currIndex == -1 || photoKeys == null || db.getSimilarityIndex() == null)
+            return;
+        
+        Object key = photoKeys[currIndex];
+        String[] similar = db.findSimilar(key, SIMILAR_DISTANCE);
+        Object[] keys = new Object[similar.length + 1];
+        keys[0] = key;
+        System.arraycopy(similar, 0, keys, 1, similar.length);
+        
+        filter = null;
+        filterKeys = keys;
+        indexButton.setVisible(false);
+        searchField.setText("");                                            //The search would hide them
+        searchTimer.stop();
+        showKeys();
+        filterStatus.setText(similar.length + " similar photo" + (similar.length == 1 ? "" : "s"));
+    }
+    
+    /**
+     * Shows only the photos taken within a radius of the place in the near field
+     * ("lat, lon" or "lat, lon, km"), or of where the current photo was taken if
+     * it is empty, the closest first, in place of the filter; see
+     * PhotoDB.findNear(). Like showSimilar(), it needs no round trip.
+     */
+    private void showNearby()
+    {
+        GeoIndex geo = db.getGeoIndex();
+        if (geo == null)
+            return;
+        
+        double[] place;
+        double radius = NEARBY_KM;
+        String near = nearField.getText().trim();
+        if (near.isEmpty())
+        {
+            place = (currIndex != -1 && photoKeys != null) ? geo.getLocation(photoKeys[currIndex]) : null;
+            if (place == null)
+            {
+                filterStatus.setText("The current photo has no location");
+                return;
+            }
+        }
+        else
+        {
+            try {
+                String[] parts = near.split("\\s*,\\s*");
+                if (parts.length < 2 || parts.length > 3)
+                    throw new NumberFormatException(near);
+                place = new double[] { Double.parseDouble(parts[0]), Double.parseDouble(parts[1]) };
+                if (parts.length == 3)
+                    radius = Double.parseDouble(parts[2]);
+            } catch (NumberFormatException e) {
+                JOptionPane.showMessageDialog(this, "Enter a place as: lat, lon[, radius in km]",
+                                                "Invalid place", JOptionPane.ERROR_MESSAGE);
+                return;
+            }
+        }
+        
+        String[] keys = db.findNear(place[0], place[1], radius);
+        filter = null;
+        filterKeys = keys;
+        indexButton.setVisible(false);
+        searchField.setText("");                                            //The search would hide them
+        searchTimer.stop();
+        showKeys();
+        filterStatus.setText(keys.length + " photo" + (keys.length == 1 ? "" : "s") + " within " + radius + " km");
+    }
+    
+    /**
+     * Removes the search and the filter, and shows all thumbnails again in their
+     * original order.
+     */
+    private void clearFilter()
+    {
+        filter = null;
+        filterKeys = null;
+        formatBox.setSelectedItem("");
+        for (JTextField field : new JTextField[] { fromField, toField, minSizeField, maxSizeField, nearField })
+            field.setText("");
+        sortBox.setSelectedIndex(0);
+        descendingBox.setSelected(false);
+        timelinePanel.clearSelection();
+        indexButton.setVisible(false);
+        searchField.setText("");
+        searchTimer.stop();
+        showKeys();
+    }
+    
+    /**
+     * Sets up the thumbnail pane with the photos that match the filter (all of
+     * them if there is none), in its order, less those that do not match the
+     * search box. The search runs on the local index of PhotoDB (see
+     * PhotoDB.search()), so it is fast enough to run as the user types. The
+     * thumbnails come from loadedThumbs, so none are fetched again.
+     */
+    private void showKeys()
+    {
+        Object[] keys = (filterKeys != null) ? filterKeys : allKeys;
+        if (keys == null)
+            return;
+        
+        String text = searchField.getText().trim();
+        if (!text.isEmpty() && db.getSearchIndex() != null)
         {
-            thumbButtons[i] = new JButton(new ImageIcon(thumbs[i]));
-            thumbButtons[i].setPreferredSize(new Dimension(100, 64));
-            thumbButtons[i].setBorder(BorderFactory.createEmptyBorder());
-            thumbButtons[i].setContentAreaFilled(false);                        //Make the icon the only button
-            thumbButtons[i].setAlignmentX(Component.CENTER_ALIGNMENT);
-            thumbButtons[i].setFocusable(false);                            //So that multiple selection works
-            thumbButtons[i].addActionListener(al);
+            HashSet<String> found = new HashSet<String>(Arrays.asList(db.search(text)));
+            ArrayList<Object> matches = new ArrayList<Object>();
+            for (Object key : keys)
+                if (found.contains(key.toString()))
+                    matches.add(key);
+            keys = matches.toArray();
+        }
+        
+        initThumbPane(keys);
+        if (allKeys == null || keys.length == allKeys.length)                //A filter may finish before the keys arrive
+            filterStatus.setText(" ");
+        else
+            filterStatus.setText(keys.length + " of " + allKeys.length + " photos");
+    }
+    
+    /**
+     * Creates the index that the current filter is missing (see
+     * PhotoDB.createIndex()) on loader.
+     */
+    private void createFilterIndex()
+    {
+        final PhotoQuery query = filter;
+        if (query == null)
+            return;
+        indexButton.setVisible(false);
+        
+        loader.execute(new Runnable() {
+            public void run()
+            {
+                boolean failed = false;
+                try {
+                    db.createIndex(query);                                    //Does nothing if one exists by now
+                } catch (SQLException e) {
+                    e.printStackTrace();
+                    failed = true;
+                }
+                
+                final boolean error = failed;
+                SwingUtilities.invokeLater(new Runnable() {
+                    public void run()
+                    {
+                        if (error)
+                            JOptionPane.showMessageDialog(PhotoPanel.this, "Error creating the index (check permissions)",
+                                                            "Error", JOptionPane.ERROR_MESSAGE);
+                    }
+                });
+            }
+        });
+    }
+    
+    /**
+     * Loads the properties, the unique keys and the thumbnails from the database
+     * on loader, all at once and each on their own connection. The thumbnails are
+     * fetched in pages of THUMB_PAGE_SIZE: the first page right away, the rest as
+     * soon as the keys (and so the number of photos) are known. The thumbnail pane
+     * is set up when the keys arrive and filled in page by page.
+     * 
+     * @param start When the load started (System.nanoTime()), for timeToFirstThumbnail
+     */
+    private void loadPhotoDisplay(long start)
+    {
+        final int load = ++displayLoad;
+        loadStart = start;
+        timeToFirstThumbnail = -1;
+        loadedThumbs = new HashMap<String, Image>();
+        keyIndices = null;
+        paneKeys = null;                                                    //The buttons show the old thumbnails
+        
+        loader.execute(new Runnable() {
+            public void run()
+            {
+                HashMap<String, Properties> props = null;
+                try {
+                    db.retrievePhotoPropertiesOnly();
+                    props = new HashMap<String, Properties>();
+                    String keyCol = db.getColumnNames()[db.getUniqueKey()];
+                    for (Properties p : db.getRetrievedPhotoProperties())
+                        props.put(p.getProperty(keyCol), p);
+                } catch (SQLException e) { e.printStackTrace(); }
+                
+                final HashMap<String, Properties> result = props;
+                SwingUtilities.invokeLater(new Runnable() {
+                    public void run()
+                    {
+                        if (load != displayLoad)
+                            return;
+                        if (result == null)
+                        {
+                            JOptionPane.showMessageDialog(PhotoPanel.this, "Error retrieving properties from database",
+                                                            "Error", JOptionPane.ERROR_MESSAGE);
+                            return;
+                        }
+                        photoProps = result;
+                        updateFormats();
+                        Timeline timeline = db.getTimeline();
+                        if (timeline != null)
+                            timelinePanel.setCounts(timeline.getCounts(Timeline.MONTH));
+                        if (!searchField.getText().trim().isEmpty() && allKeys != null)
+                            showKeys();                                        //The search index is loaded now
+                        if (photoKeys != null && currIndex != -1)
+                            updatePhotoProperties();
+                    }
+                });
+            }
+        });
+        
+        loader.execute(new Runnable() {
+            public void run()
+            {
+                final Object[] keys = db.getAllUniqueKeys();
+                SwingUtilities.invokeLater(new Runnable() {
+                    public void run()
+                    {
+                        if (load != displayLoad || keys == null)
+                            return;
+                        allKeys = keys;
+                        if (filter != null)
+                            runFilter(filter);                                //Keep the filter on the new photos
+                        else
+                            showKeys();
+                        for (int offset = THUMB_PAGE_SIZE; offset < keys.length; offset += THUMB_PAGE_SIZE)
+                            requestThumbPage(load, offset);
+                    }
+                });
+            }
+        });
+        
+        requestThumbPage(load, 0);
+    }
+    
+    /**
+     * Fetches the page of thumbnails starting at row <code>offset</code> on loader,
+     * and adds them to the thumbnail pane (unless a newer load has started since).
+     */
+    private void requestThumbPage(final int load, final int offset)
+    {
+        loader.execute(new Runnable() {
+            public void run()
+            {
+                final List<Object> keys = new ArrayList<Object>();
+                final Image[] page = db.getPhotoThumbnails(offset, THUMB_PAGE_SIZE, keys);
+                SwingUtilities.invokeLater(new Runnable() {
+                    public void run()
+                    {
+                        if (load != displayLoad || page == null)
+                            return;
+                        for (int i = 0; i < page.length; i++)
+                            addThumbnail(keys.get(i).toString(), page[i]);
+                    }
+                });
+            }
+        });
+    }
+    
+    /**
+     * Keeps <code>thumb</code> in loadedThumbs, and shows it on the button of the
+     * photo with <code>key</code> if the thumbnail pane has one.
+     */
+    private void addThumbnail(String key, Image thumb)
+    {
+        loadedThumbs.put(key, thumb);
+        Integer index = (keyIndices != null) ? keyIndices.get(key) : null;
+        if (index == null)
+            return;
+        
+        thumbs[index] = thumb;
+        if (thumb == null)
+            return;
+        thumbButtons[index].setIcon(new ImageIcon(thumb));
+        
+        if (timeToFirstThumbnail == -1)
+        {
+            timeToFirstThumbnail = (System.nanoTime() - loadStart) / 1000000;
+            firePropertyChange("timeToFirstThumbnail", -1L, timeToFirstThumbnail);
+        }
+        
+        // Show the thumbnail if its photo is being shown but has not been loaded yet
+        if (index == currIndex && currPhoto == null && tiledPhoto == null)
+        {
+            currPhoto = thumb;
+            repaint();
+        }
+    }
+    
+    /**
+     * Whenever the database is updated (or the thumbnail pane has not yet
+     * been initialized), the thumbnail pane is set up again with this method
+     * once the unique keys have been retrieved.
+     *
+     * The buttons on the pane are reused as long as <code>keys</code> are in
+     * the order they were made in (as they are when the search box narrows
+     * them down), so that only their visibility changes; otherwise the pane is
+     * made again by buildThumbPanel(). The thumbnails are set on the buttons by
+     * addThumbnail() as they arrive.
+     * 
+     * @param keys The unique keys of the photos to show (all of them, unless
+     * a filter is applied)
+     */
+    private void initThumbPane(Object[] keys)    
+    {                            
+        photoKeys = keys;
+        thumbs = new Image[keys.length];
+        thumbButtons = new JButton[keys.length];
+        keyIndices = new HashMap<String, Integer>();
+        currIndex = -1;
+        currPhoto = null;
+        multipleIndices.clear();
+        closeTiledPhoto();
 
-            thumbPanel.add(thumbButtons[i]);
-            thumbPanel.add(Box.createRigidArea(new Dimension(0, 5)));
+        if (!isInPaneOrder(keys))
+            buildThumbPanel(keys);
+        
+        int next = 0;                                                        //Index in keys of the next button to show
+        for (int i = 0; i < paneKeys.length; i++)
+        {
+            boolean shown = next < keys.length && paneKeys[i].toString().equals(keys[next].toString());
+            paneButtons[i].setVisible(shown);
+            paneButtons[i].setBorder(BorderFactory.createEmptyBorder());
+            paneGaps[i].setVisible(shown);
+            if (shown)
+            {
+                thumbButtons[next] = paneButtons[i];
+                keyIndices.put(keys[next].toString(), next);
+                next++;
+            }
         }
+        
+        // Thumbnails that arrived before the pane was set up
+        for (Object key : keys)
+            if (loadedThumbs.get(key.toString()) != null)
+                addThumbnail(key.toString(), loadedThumbs.get(key.toString()));
 
         // By default, show the first photo (if there is any)
         if (thumbButtons.length != 0)
@@ -479,22 +1803,60 @@ public class PhotoPanel extends JPanel
     }
     
     /**
-     * Retrieves a new array of photo properties from the database.
+     * Returns whether every key in <code>keys</code> has a button on the
+     * thumbnail pane, in the same order as the buttons.
+     */
+    private boolean isInPaneOrder(Object[] keys)
+    {
+        if (paneKeys == null)
+            return false;
+        int next = 0;
+        for (int i = 0; i < paneKeys.length && next < keys.length; i++)
+            if (paneKeys[i].toString().equals(keys[next].toString()))
+                next++;
+        return next == keys.length;
+    }
+    
+    /**
+     * Creates the JPanel that will house the JScrollPane, creates it (scroll
+     * pane), and adds one (empty) button per key to the JPanel.
      * 
-     * @throws SQLException If there is an error retrieving properties from
-     * the database
+     * @param keys The unique keys to make the buttons for
      */
-    private void retrievePropsFromDB() throws SQLException
+    private void buildThumbPanel(Object[] keys)
     {
-        try {
-            db.retrievePhotoPropertiesOnly();
-        } catch (SQLException e) {
-            e.printStackTrace();
-            JOptionPane.showMessageDialog(this, "Error retrieving properties from database",
-                                            "Error", JOptionPane.ERROR_MESSAGE);
-            return;
+        paneKeys = keys;
+        paneButtons = new JButton[keys.length];
+        paneGaps = new Component[keys.length];
+
+        thumbPanel = new JPanel();                                            //Setting up pane on left
+        thumbPanel.setBackground(Color.WHITE);
+        thumbPanel.setLayout(new BoxLayout(thumbPanel, BoxLayout.Y_AXIS));
+        thumbPanel.add(Box.createRigidArea(new Dimension(0, 5)));            //Initial space
+        
+        if (thumbScroll != null)                                            //So there's no overlap
+            this.remove(thumbScroll);
+        thumbScroll = new JScrollPane(thumbPanel);                            //ScrollPane
+        thumbScroll.setBackground(Color.WHITE);
+        thumbScroll.setVerticalScrollBarPolicy(JScrollPane.VERTICAL_SCROLLBAR_ALWAYS);        //Fixes alignment problems... thank god
+        thumbScroll.setHorizontalScrollBarPolicy(JScrollPane.HORIZONTAL_SCROLLBAR_NEVER);
+        add(thumbScroll, BorderLayout.WEST);
+
+        ActionListener al = new ButtonListener();
+        for (int i = 0; i < keys.length; i++)
+        {
+            paneButtons[i] = new JButton();                                    //Icon is set when the thumbnail arrives
+            paneButtons[i].setPreferredSize(new Dimension(100, 64));
+            paneButtons[i].setBorder(BorderFactory.createEmptyBorder());
+            paneButtons[i].setContentAreaFilled(false);                        //Make the icon the only button
+            paneButtons[i].setAlignmentX(Component.CENTER_ALIGNMENT);
+            paneButtons[i].setFocusable(false);                                //So that multiple selection works
+            paneButtons[i].addActionListener(al);
+            paneGaps[i] = Box.createRigidArea(new Dimension(0, 5));
+
+            thumbPanel.add(paneButtons[i]);
+            thumbPanel.add(paneGaps[i]);
         }
-        photoProps = db.getRetrievedPhotoProperties();
     }
     
     private void setThumbnailBorder(int index, Border border)
@@ -508,28 +1870,84 @@ public class PhotoPanel extends JPanel
      * 
      * @param folderPath The java.io.File that represents the folder, the photos
      * in which will be uploaded 
+     * @param queue The upload queue to add them to
      */
-    private void loadFolder(File folder)
+    private void loadFolder(File folder, UploadQueue queue)
     {
         // Does NOT load recursively - only files in this folder
         File[] files = new File(folder.getPath()).listFiles();
         
         for (File f : files)
             if (f.isFile())
-                loadFile(f);
+                loadFile(f, queue);
     }
     
     /**
-     * Uploads <code>file</code> into the database if it does not exist already.
+     * Returns <code>text</code> cut to MAX_TEXT_LENGTH characters (without
+     * splitting a surrogate pair), so that it fits its column.
+     */
+    private String truncate(String text)
+    {
+        if (text == null || text.length() <= MAX_TEXT_LENGTH)
+            return text;
+        int end = MAX_TEXT_LENGTH;
+        if (Character.isHighSurrogate(text.charAt(end - 1)))
+            end--;
+        return text.substring(0, end);
+    }
+    
+    /**
+     * Returns the name to upload <code>file</code> under: its own, unless a
+     * different photo (by content hash) is stored under that name already, in
+     * which case " (2)", " (3)", ... is added before the extension until the name
+     * is free or holds the same photo. The same photo keeps its name, so that
+     * insertRow() skips it as existing.
+     * 
+     * @param file The file being uploaded
+     * @param hash Its content hash
+     * @return The name to upload it under
+     */
+    private String uploadName(File file, String hash)
+    {
+        HashMap<String, Properties> props = photoProps;
+        String name = file.getName();
+        int dot = name.lastIndexOf('.');
+        String base = (dot != -1) ? name.substring(0, dot) : name, ext = (dot != -1) ? name.substring(dot) : "";
+        for (int i = 2; props != null && props.containsKey(name); i++)
+        {
+            if (hash.equals(props.get(name).getProperty(COL_NAMES[8])))
+                break;                                                        //The same photo
+            name = base + " (" + i + ")" + ext;
+        }
+        return name;
+    }
+    
+    /**
+     * Queues <code>file</code> to be uploaded into the database; it is skipped
+     * when it is inserted if it exists already. A different photo with the same
+     * name is uploaded under a name of its own (see uploadName()). This is called
+     * on loader, so the dialogs it shows are shown on the event dispatch thread.
      * 
      * @param file The java.io.File that represents the file being uploaded
+     * @param queue The upload queue to add it to
      */
-    private void loadFile(File file)
+    private void loadFile(File file, UploadQueue queue)
     {
+        if (queue != uploads)
+            return;                                                            //Disconnected since
+        
         Object[] data = new Object[COL_NAMES.length];
 
         // Preparing data
-        String filename = file.getName();
+        String contentHash;
+        try {
+            contentHash = PhotoDB.computeContentHash(file);
+        } catch (IOException e) {
+            e.printStackTrace();
+            showUploadError("Error reading file: " + file.toString());
+            return;
+        }
+        String filename = uploadName(file, contentHash);
         String format = filename.substring(filename.lastIndexOf(".") + 1, filename.length()).toUpperCase();
         long size = file.length();
         String description = "[none]";
@@ -542,13 +1960,113 @@ public class PhotoPanel extends JPanel
         data[5] = new Date(file.lastModified());
         data[6] = file;
         data[7] = file;
+        data[8] = contentHash;                                                //So PhotoDB need not hash it again
+        data[9] = null;
         
+        // Metadata from the file's headers, which does not decode the image
         try {
-            db.insertRow(data);
-        } catch (SQLException e) {
+            ImageMetadata meta = ImageMetadata.read(file);
+            if (meta.getDescription() != null)
+                data[3] = truncate(meta.getDescription());                    //IPTC captions may be longer
+            data[10] = meta.getCaptureTime();
+            data[11] = truncate(meta.getCamera());
+            data[12] = meta.getWidth() > 0 ? (Object) meta.getWidth() : null;
+            data[13] = meta.getHeight() > 0 ? (Object) meta.getHeight() : null;
+            data[14] = meta.getOrientation() > 0 ? (Object) meta.getOrientation() : null;
+            data[15] = meta.getLatitude();
+            data[16] = meta.getLongitude();
+            if (meta.getOrientation() > 1)                                    //Show sideways photos upright
+                data[17] = PhotoEdits.NONE.normalizeOrientation(meta.getOrientation()).toString();
+        } catch (IOException e) {                                            //Upload it without metadata
+            e.printStackTrace();
+        }
+        
+        // Warn about near-duplicates, which the unique key does not catch
+        SimilarityIndex similar = db.getSimilarityIndex();
+        if (similar != null)
+        {
+            try {
+                long hash = PerceptualHash.compute(file);
+                data[9] = hash;                                                //So PhotoDB need not decode it again
+                String[] matches = similar.search(hash, SIMILAR_DISTANCE);
+                if (matches.length > 0 && !confirmUpload(file.getName() + " looks like " + matches[0]
+                        + (matches.length > 1 ? " and " + (matches.length - 1) + " other photo(s)" : "")
+                        + " in the database. Upload it anyway?"))
+                    return;
+            } catch (IOException e) {                                        //Not an image; PhotoDB skips the hash too
+                e.printStackTrace();
+            }
+        }
+        
+        try {
+            queue.add(data);
+        } catch (IOException e) {
             e.printStackTrace();
-            JOptionPane.showMessageDialog(this, "Error uploading file: " + file.toString(),
-                            "Upload error", JOptionPane.ERROR_MESSAGE);
+            showUploadError("Error queueing file for upload: " + file.toString());
+        }
+    }
+    
+    /**
+     * Asks (on the event dispatch thread, waiting for the answer) whether to upload
+     * a photo that looks like others in the database.
+     */
+    private boolean confirmUpload(final String message)
+    {
+        final int[] result = { JOptionPane.NO_OPTION };
+        try {
+            SwingUtilities.invokeAndWait(new Runnable() {
+                public void run()
+                {
+                    result[0] = JOptionPane.showConfirmDialog(PhotoPanel.this, message, "Similar Photo",
+                                    JOptionPane.YES_NO_OPTION, JOptionPane.WARNING_MESSAGE);
+                }
+            });
+        } catch (Exception e) { e.printStackTrace(); }                        //Interrupted; don't upload it
+        return result[0] == JOptionPane.YES_OPTION;
+    }
+    
+    /**
+     * Shows an upload error (on the event dispatch thread).
+     */
+    private void showUploadError(final String message)
+    {
+        SwingUtilities.invokeLater(new Runnable() {
+            public void run()
+            {
+                JOptionPane.showMessageDialog(PhotoPanel.this, message, "Upload error", JOptionPane.ERROR_MESSAGE);
+            }
+        });
+    }
+    
+    /**
+     * Shows the progress of the upload queue as the upload status and its
+     * failures as errors, and refreshes the photos whenever the queue runs empty
+     * after inserting some.
+     */
+    private class UploadListener implements UploadQueue.Listener
+    {
+        public void progress(final int inserted, final int failed, final int pending)
+        {
+            SwingUtilities.invokeLater(new Runnable() {
+                public void run()
+                {
+                    if (!connected)
+                        return;
+                    setUploadStatus(pending == 0 ? "" : "Uploading: " + pending + " left"
+                                    + (failed > 0 ? " (" + failed + " failed)" : ""));
+                    if (pending == 0 && inserted > uploadsShown)
+                    {
+                        uploadsShown = inserted;
+                        updatePhotoDisplay();
+                    }
+                }
+            });
+        }
+        
+        public void failed(Object[] data, Exception cause)
+        {
+            cause.printStackTrace();
+            showUploadError("Error uploading file: " + data[6]);
         }
     }
     
@@ -574,6 +2092,68 @@ public class PhotoPanel extends JPanel
         public void keyTyped(KeyEvent arg0) {}
     }
     
+    /**
+     * Zooms tiledPhoto around the cursor with the mouse wheel and pans it by
+     * dragging; does nothing if the current photo is not tiled.
+     */
+    private class ZoomListener extends MouseAdapter
+    {
+        private int lastX, lastY;
+        
+        public void mousePressed(MouseEvent e)
+        {
+            lastX = e.getX();
+            lastY = e.getY();
+        }
+        
+        public void mouseDragged(MouseEvent e)
+        {
+            if (tiledPhoto == null)
+                return;
+            
+            viewX -= (e.getX() - lastX) / zoom;
+            viewY -= (e.getY() - lastY) / zoom;
+            lastX = e.getX();
+            lastY = e.getY();
+            repaint();
+        }
+        
+        public void mouseWheelMoved(MouseWheelEvent e)
+        {
+            if (tiledPhoto == null)
+                return;
+            
+            // Keep the image pixel under the cursor where it is
+            int w = getWidth() - thumbScroll.getWidth() - 10, h = getHeight() - south.getHeight() - 10;
+            double cx = e.getX() - thumbScroll.getWidth() - 5 - w / 2.0, cy = e.getY() - 5 - h / 2.0;
+            double px = viewX + cx / zoom, py = viewY + cy / zoom;
+            
+            double minZoom = Math.min((double) w / tiledPhoto.getWidth(), (double) h / tiledPhoto.getHeight());
+            zoom *= Math.pow(1.25, -e.getWheelRotation());
+            zoom = Math.max(minZoom, Math.min(4.0, zoom));                    //Between fit-to-window and 400%
+            viewX = px - cx / zoom;
+            viewY = py - cy / zoom;
+            repaint();
+        }
+    }
+    
+    private class FilterListener implements ActionListener
+    {
+        public void actionPerformed(ActionEvent e)
+        {
+            if (e.getSource() == applyButton)
+                applyFilter();
+            else if (e.getSource() == clearButton)
+                clearFilter();
+            else if (e.getSource() == indexButton)
+                createFilterIndex();
+            else if (e.getSource() == similarButton)
+                showSimilar();
+            else if (e.getSource() == nearbyButton)
+                showNearby();
+        }
+    }
+    
     private class ButtonListener implements ActionListener
     {
         public void actionPerformed(ActionEvent e)
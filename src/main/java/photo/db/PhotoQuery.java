@@ -0,0 +1,374 @@
+/**
+ * This file is part of PhotoDB - MySQL client/GUI for accessing photo databases
+ * 
+ * Copyright (C) 2014 by Michael Wang
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *   
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>. 
+ */
+package photo.db;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashSet;
+import java.util.Properties;
+
+/**
+ * A filtered and sorted query over the metadata (the non-BIN_STREAM columns)
+ * of a PhotoDB, built with PhotoDB.query(), e.g.
+ *
+ * <pre>
+ *     Properties[] props = db.query().between("DATE", from, to).equalTo("FORMAT", "JPG")
+ *                            .orderBy("SIZE", true).limit(50).execute();
+ * </pre>
+ *
+ * The query is run by the database as one parameterized statement (see getSql()
+ * and getParameters()), so only the matching rows are transferred. Values are
+ * checked against the DataType of their column as they are added (e.g. a DATE
+ * column takes a java.sql.Date), so type errors surface when the query is built
+ * rather than as SQL errors.
+ *
+ * getIndexColumns() tells which index would let the database answer the query
+ * without scanning the table: the columns compared for equality first, then the
+ * column sorted on, then the first column compared with a range. PhotoDB's
+ * recommendIndex() and createIndex() check it against the indexes of the table.
+ */
+public class PhotoQuery
+{
+    private PhotoDB db;
+    private ArrayList<Condition> conditions;
+    private int orderColumn = -1;
+    private boolean descending;
+    private int offset, limit = -1;
+
+    /**
+     * Initializes an empty query (i.e. one that matches all rows) over the table
+     * of <code>db</code>; see PhotoDB.query().
+     *
+     * @param db The PhotoDB whose schema and table the query is for
+     */
+    public PhotoQuery(PhotoDB db)
+    {
+        this.db = db;
+        conditions = new ArrayList<Condition>();
+    }
+
+    /**
+     * Only matches rows whose <code>column</code> equals <code>value</code>.
+     */
+    public PhotoQuery equalTo(String column, Object value)
+    {
+        return add(column, "=", value);
+    }
+
+    /**
+     * Only matches rows whose <code>column</code> is between <code>low</code> and
+     * <code>high</code> (both inclusive).
+     */
+    public PhotoQuery between(String column, Object low, Object high)
+    {
+        return add(column, "BETWEEN", low, high);
+    }
+
+    /**
+     * Only matches rows whose <code>column</code> is at least <code>value</code>.
+     */
+    public PhotoQuery atLeast(String column, Object value)
+    {
+        return add(column, ">=", value);
+    }
+
+    /**
+     * Only matches rows whose <code>column</code> is at most <code>value</code>.
+     */
+    public PhotoQuery atMost(String column, Object value)
+    {
+        return add(column, "<=", value);
+    }
+
+    /**
+     * Only matches rows whose (DataType.STRING) <code>column</code> matches the
+     * SQL LIKE <code>pattern</code>, e.g. "IMG_%". Patterns that start with a
+     * wildcard cannot use an index.
+     */
+    public PhotoQuery like(String column, String pattern)
+    {
+        return add(column, "LIKE", pattern);
+    }
+
+    /**
+     * Sorts the results by <code>column</code>; rows that are equal on it are
+     * sorted by the unique key, so that pages (see limit()) do not overlap.
+     *
+     * @param column The column to sort by
+     * @param descending Whether to sort from the largest value to the smallest
+     */
+    public PhotoQuery orderBy(String column, boolean descending)
+    {
+        orderColumn = columnIndex(column);
+        this.descending = descending;
+        return this;
+    }
+
+    /**
+     * Returns at most <code>count</code> rows.
+     */
+    public PhotoQuery limit(int count)
+    {
+        if (count < 0)
+            throw new IllegalArgumentException("Limit must not be negative");
+        limit = count;
+        return this;
+    }
+
+    /**
+     * Skips the first <code>count</code> matching rows.
+     */
+    public PhotoQuery offset(int count)
+    {
+        if (count < 0)
+            throw new IllegalArgumentException("Offset must not be negative");
+        offset = count;
+        return this;
+    }
+
+    /**
+     * Runs the query; same as PhotoDB.retrievePhotoProperties(this).
+     *
+     * @return The properties of the matching rows, in order
+     * @throws SQLException If there is an error executing the query
+     */
+    public Properties[] execute() throws SQLException
+    {
+        return db.retrievePhotoProperties(this);
+    }
+
+    /**
+     * Returns the SELECT statement for this query, with a ? for each of
+     * getParameters(). Rows are selected as by PhotoDB.selectRows(false).
+     *
+     * @return The parameterized SQL
+     */
+    public String getSql()
+    {
+        String sql = db.selectRows(false);
+        for (int i = 0; i < conditions.size(); i++)
+        {
+            Condition c = conditions.get(i);
+            sql += (i == 0 ? " WHERE " : " AND ") + column(c.column) + " " + c.op
+                    + (c.values.length == 2 ? " ? AND ?" : " ?");
+        }
+
+        String key = column(db.getUniqueKey());
+        if (orderColumn != -1 && orderColumn != db.getUniqueKey())
+            sql += " ORDER BY " + column(orderColumn) + (descending ? " DESC, " : ", ") + key + (descending ? " DESC" : "");
+        else if (orderColumn != -1 || limit != -1 || offset != 0)
+            sql += " ORDER BY " + key + (descending ? " DESC" : "");            //Paging needs a stable order
+        if (limit != -1 || offset != 0)
+            sql += " LIMIT " + offset + ", " + (limit != -1 ? limit : Long.MAX_VALUE);
+        return sql;
+    }
+
+    /**
+     * @return The values to set on the ? of getSql(), in order
+     */
+    public Object[] getParameters()
+    {
+        ArrayList<Object> params = new ArrayList<Object>();
+        for (Condition c : conditions)
+            params.addAll(Arrays.asList(c.values));
+        return params.toArray();
+    }
+
+    /**
+     * @return The column (index into the column names) of each of getParameters()
+     */
+    int[] getParameterColumns()
+    {
+        ArrayList<Integer> columns = new ArrayList<Integer>();
+        for (Condition c : conditions)
+            for (int i = 0; i < c.values.length; i++)
+                columns.add(c.column);
+
+        int[] result = new int[columns.size()];
+        for (int i = 0; i < result.length; i++)
+            result[i] = columns.get(i);
+        return result;
+    }
+
+    /**
+     * Returns the columns of the index that best serves this query (see the
+     * class description), e.g. FORMAT, DATE for
+     * <code>equalTo("FORMAT", ...).orderBy("DATE", ...)</code>.
+     *
+     * @return The column names, or an empty array if the query has neither
+     * conditions nor a sort order
+     */
+    public String[] getIndexColumns()
+    {
+        LinkedHashSet<Integer> columns = equalityColumns();
+        if (orderColumn != -1)
+            columns.add(orderColumn);
+        for (Condition c : conditions)
+            if (!c.op.equals("=") && !(c.op.equals("LIKE") && c.values[0].toString().matches("[%_].*")))
+            {
+                columns.add(c.column);
+                break;                                                        //Only the first range can use the index
+            }
+
+        String[] names = new String[columns.size()];
+        int i = 0;
+        for (int column : columns)
+            names[i++] = db.getColumnNames()[column];
+        return names;
+    }
+
+    /**
+     * @return How many of getIndexColumns() are compared for equality (they come
+     * first, and may be in any order in an index)
+     */
+    int getEqualityColumnCount()
+    {
+        return equalityColumns().size();
+    }
+
+    /**
+     * Returns a copy of this query, with the same conditions and sort order,
+     * for the table of <code>db</code> (which must have the same schema) and
+     * with the given page.
+     */
+    PhotoQuery copy(PhotoDB db, int offset, int limit)
+    {
+        PhotoQuery q = new PhotoQuery(db);
+        q.conditions.addAll(conditions);
+        q.orderColumn = orderColumn;
+        q.descending = descending;
+        q.offset = offset;
+        q.limit = limit;
+        return q;
+    }
+
+    int getOffset()
+    {
+        return offset;
+    }
+
+    int getLimit()
+    {
+        return limit;
+    }
+
+    /**
+     * Returns a Comparator that sorts the properties of rows (as returned by
+     * execute()) in the order of this query, as the database does; i.e. by the
+     * sort column and then by the unique key, with missing values first.
+     */
+    Comparator<Properties> getComparator()
+    {
+        final String[] names = db.getColumnNames();
+        final int[] columns = (orderColumn != -1) ? new int[] { orderColumn, db.getUniqueKey() }
+                                                  : new int[] { db.getUniqueKey() };
+        final DataType[] types = new DataType[columns.length];
+        for (int i = 0; i < columns.length; i++)
+            types[i] = db.getColumnTypes().get(names[columns[i]]);
+
+        return new Comparator<Properties>() {
+            public int compare(Properties a, Properties b)
+            {
+                for (int i = 0; i < columns.length; i++)
+                {
+                    String name = names[columns[i]];
+                    int cmp = compareValues(types[i], a.getProperty(name), b.getProperty(name));
+                    if (cmp != 0)
+                        return descending ? -cmp : cmp;
+                }
+                return 0;
+            }
+        };
+    }
+
+    private static int compareValues(DataType type, String a, String b)
+    {
+        if (a == null || b == null)
+            return (a == null) ? (b == null ? 0 : -1) : 1;
+
+        switch (type)
+        {
+            case INT:
+            case LONG:
+                return Long.valueOf(a).compareTo(Long.valueOf(b));
+            case DOUBLE:
+                return Double.valueOf(a).compareTo(Double.valueOf(b));
+            case STRING:
+                return a.compareToIgnoreCase(b);                            //As MySQL's default collation
+            default:
+                return a.compareTo(b);                                        //DATE, TIME and TIMESTAMP Strings sort as their values
+        }
+    }
+
+    private PhotoQuery add(String column, String op, Object... values)
+    {
+        int i = columnIndex(column);
+        DataType type = db.getColumnTypes().get(db.getColumnNames()[i]);
+        if (type == DataType.BIN_STREAM)
+            throw new IllegalArgumentException("Cannot filter on BIN_STREAM column " + column);
+        if (op.equals("LIKE") && type != DataType.STRING)
+            throw new IllegalArgumentException("LIKE needs a STRING column, not " + column);
+        for (Object value : values)
+            if (!type.getJavaClass().isInstance(value))
+                throw new IllegalArgumentException(column + " takes a " + type.getJavaClass().getName()
+                        + ", not " + (value == null ? "null" : value.getClass().getName()));
+
+        conditions.add(new Condition(i, op, values));
+        return this;
+    }
+
+    private LinkedHashSet<Integer> equalityColumns()
+    {
+        LinkedHashSet<Integer> columns = new LinkedHashSet<Integer>();
+        for (Condition c : conditions)
+            if (c.op.equals("="))
+                columns.add(c.column);
+        return columns;
+    }
+
+    private int columnIndex(String column)
+    {
+        String[] names = db.getColumnNames();
+        for (int i = 0; i < names.length; i++)
+            if (names[i].equalsIgnoreCase(column))
+                return i;
+        throw new IllegalArgumentException("No such column: " + column);
+    }
+
+    private String column(int i)
+    {
+        return "m.`" + db.getColumnNames()[i] + "`";
+    }
+
+    private static class Condition
+    {
+        final int column;
+        final String op;
+        final Object[] values;
+
+        Condition(int column, String op, Object[] values)
+        {
+            this.column = column;
+            this.op = op;
+            this.values = values;
+        }
+    }
+}
@@ -22,7 +22,11 @@ import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.awt.event.WindowAdapter;
 import java.awt.event.WindowEvent;
+import java.beans.PropertyChangeEvent;
+import java.beans.PropertyChangeListener;
+import java.util.HashMap;
 
+import javax.swing.JCheckBoxMenuItem;
 import javax.swing.JDialog;
 import javax.swing.JFrame;
 import javax.swing.JMenu;
@@ -35,7 +39,11 @@ public class PhotoViewer extends JFrame
     private PhotoPanel photoPanel;
     private JMenuBar menuBar;
     private JMenu fileMenu, editMenu;
-    private JMenuItem connectItem, uploadItem, settItem, disconnectItem, deleteItem, exitItem;
+    private JMenuItem connectItem, uploadItem, settItem, disconnectItem, deleteItem, editItem, exitItem;
+    private JCheckBoxMenuItem fullPhotosItem, filtersItem, timelineItem;
+    // Non-destructive edits of the selected photos, and the edit of each item (see PhotoPanel.transformPhotos())
+    private JMenu transformMenu;
+    private HashMap<JMenuItem, String> transformItems;
     
     // The dialog to change settings
     private SettingsDialog settingsDialog;
@@ -48,6 +56,9 @@ public class PhotoViewer extends JFrame
         } catch (Exception e) { e.printStackTrace(); }
         
         photoPanel = new PhotoPanel(db);                                    //Pass the db on
+        photoPanel.addPropertyChangeListener("connected", new ConnectionListener());
+        photoPanel.addPropertyChangeListener("uploadStatus", new UploadStatusListener());
+        photoPanel.addPropertyChangeListener("loadFullPhotos", new LoadFullPhotosListener());
         
         initMenu();
         add(photoPanel);
@@ -78,27 +89,56 @@ public class PhotoViewer extends JFrame
         uploadItem.setEnabled(false);                                       //Disable menu items that first require a connection
         deleteItem = new JMenuItem("Delete file");
         deleteItem.setEnabled(false);
+        editItem = new JMenuItem("Edit description...");                   //Of all selected photos at once
+        editItem.setEnabled(false);
+        transformMenu = new JMenu("Transform");                             //Rotate, flip or crop without re-uploading
+        transformMenu.setEnabled(false);
+        transformItems = new HashMap<JMenuItem, String>();
+        String[][] transforms = { { "Rotate left", "rotate:-90" }, { "Rotate right", "rotate:90" },
+                                    { "Flip horizontally", "flip:h" }, { "Flip vertically", "flip:v" },
+                                    { "Crop...", "crop" }, { "Upright (EXIF orientation)", "orient" },
+                                    { "Revert to original", "revert" } };
+        for (String[] transform : transforms)
+        {
+            JMenuItem item = new JMenuItem(transform[0]);
+            transformItems.put(item, transform[1]);
+            transformMenu.add(item);
+        }
         disconnectItem = new JMenuItem("Disconnect");
         disconnectItem.setEnabled(false);
         exitItem = new JMenuItem("Exit");
         fileMenu.add(connectItem);
         fileMenu.add(uploadItem);
         fileMenu.add(deleteItem);
+        fileMenu.add(editItem);
+        fileMenu.add(transformMenu);
         fileMenu.add(disconnectItem);
         fileMenu.add(exitItem);
         fileMenu.insertSeparator(1);
-        fileMenu.insertSeparator(5);
+        fileMenu.insertSeparator(7);
         
         settItem = new JMenuItem("Settings");                               //Edit menu
+        fullPhotosItem = new JCheckBoxMenuItem("Load full photos", true);   //Uncheck to only show thumbnails
         editMenu.add(settItem);
+        editMenu.add(fullPhotosItem);
+        filtersItem = new JCheckBoxMenuItem("Show search and filters", false); //Sidebar to search, filter and sort the photos
+        editMenu.add(filtersItem);
+        timelineItem = new JCheckBoxMenuItem("Show timeline", false);       //Photos per month; click one to filter by it
+        editMenu.add(timelineItem);
         
         ActionListener al = new ButtonListener();
         connectItem.addActionListener(al);
         uploadItem.addActionListener(al);
         deleteItem.addActionListener(al);
+        editItem.addActionListener(al);
         disconnectItem.addActionListener(al);
         exitItem.addActionListener(al);
         settItem.addActionListener(al);
+        fullPhotosItem.addActionListener(al);
+        filtersItem.addActionListener(al);
+        timelineItem.addActionListener(al);
+        for (JMenuItem item : transformItems.keySet())
+            item.addActionListener(al);
         
         menuBar.add(fileMenu);
         menuBar.add(editMenu);
@@ -127,8 +167,49 @@ public class PhotoViewer extends JFrame
         String tableName = settingsDialog.getTableName();
         String user = settingsDialog.getUsername();
         String passwd = settingsDialog.getPassword();
+        String[] replicas = settingsDialog.getReadReplicas();
         
-        photoPanel.updateDBSettings(host, dbName, tableName, user, passwd);
+        photoPanel.updateDBSettings(host, dbName, tableName, user, passwd, replicas);
+    }
+    
+    /**
+     * Enables the upload/disconnect/delete items once PhotoPanel has connected
+     * (which happens in the background), and disables them when it disconnects.
+     */
+    private class ConnectionListener implements PropertyChangeListener
+    {
+        public void propertyChange(PropertyChangeEvent e)
+        {
+            boolean connected = (Boolean) e.getNewValue();
+            uploadItem.setEnabled(connected);
+            disconnectItem.setEnabled(connected);
+            deleteItem.setEnabled(connected);
+            editItem.setEnabled(connected);
+            transformMenu.setEnabled(connected);
+        }
+    }
+    
+    /**
+     * Shows how far the uploads are (which happen in the background) in the title.
+     */
+    private class UploadStatusListener implements PropertyChangeListener
+    {
+        public void propertyChange(PropertyChangeEvent e)
+        {
+            setTitle((String) e.getNewValue());
+        }
+    }
+    
+    /**
+     * Keeps "Load full photos" checked or not when PhotoPanel turns it off by
+     * itself (on a slow connection).
+     */
+    private class LoadFullPhotosListener implements PropertyChangeListener
+    {
+        public void propertyChange(PropertyChangeEvent e)
+        {
+            fullPhotosItem.setSelected((Boolean) e.getNewValue());
+        }
     }
     
     private class ButtonListener implements ActionListener
@@ -136,34 +217,28 @@ public class PhotoViewer extends JFrame
         public void actionPerformed(ActionEvent e)
         {
             if (e.getSource() == connectItem)
-            {
-                // If the connection is successful, re-enable upload/disconnect buttons
-                if (photoPanel.connectToDB())
-                {
-                    uploadItem.setEnabled(true);
-                    disconnectItem.setEnabled(true);
-                    deleteItem.setEnabled(true);
-                }
-            }
+                photoPanel.connectToDB();                                    //Menu items are updated by ConnectionListener
             else if (e.getSource() == disconnectItem)
-            {
-                // If the disconnection is successful, disable upload/disconnect buttons
-                if (photoPanel.disconnectFromDB())
-                {
-                    uploadItem.setEnabled(false);    
-                    disconnectItem.setEnabled(false);
-                    deleteItem.setEnabled(false);
-                }
-            }
+                photoPanel.disconnectFromDB();
             else if (e.getSource() == uploadItem)
                 photoPanel.uploadPhotosIntoDB();
             else if (e.getSource() == deleteItem)
                 photoPanel.deletePhotosFromDB();
+            else if (e.getSource() == editItem)
+                photoPanel.editPhotosInDB();
             else if (e.getSource() == settItem)
             {
                 settingsDialog.setLocationRelativeTo(PhotoViewer.this);        //Doesn't work if put in constructor
                 settingsDialog.setVisible(true);
             }
+            else if (e.getSource() == fullPhotosItem)
+                photoPanel.setLoadFullPhotos(fullPhotosItem.isSelected());
+            else if (e.getSource() == filtersItem)
+                photoPanel.setFiltersVisible(filtersItem.isSelected());
+            else if (e.getSource() == timelineItem)
+                photoPanel.setTimelineVisible(timelineItem.isSelected());
+            else if (transformItems.containsKey(e.getSource()))
+                photoPanel.transformPhotos(transformItems.get(e.getSource()));
             else if (e.getSource() == exitItem)
                 PhotoViewer.this.dispose();
         }
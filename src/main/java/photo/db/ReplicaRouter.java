@@ -0,0 +1,229 @@
+/**
+ * This file is part of PhotoDB - MySQL client/GUI for accessing photo databases
+ * 
+ * Copyright (C) 2014 by Michael Wang
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *   
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>. 
+ */
+package photo.db;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Routes read-only work to a set of read replicas, each with its own
+ * ConnectionPool, and falls back to the primary when none of them can serve.
+ *
+ * Each lease goes to the healthy replica with the fewest connections leased
+ * (ties are broken round-robin, so idle replicas take turns). A replica that
+ * fails to hand out a connection is marked down and skipped until the retry
+ * interval has passed, after which the next lease tries it again; the pools
+ * themselves validate connections that have been idle for a while.
+ *
+ * Every probe interval, each replica is also probed in the background (see
+ * probe()), so that one that stops answering is marked down within seconds,
+ * rather than when a lease has waited for it to time out, and one that
+ * recovers is marked up again.
+ *
+ * All methods are thread-safe.
+ */
+public class ReplicaRouter
+{
+    private ConnectionPool[] replicas;
+    private ConnectionPool primary;
+    private long retryAfterMs = 10000;
+    private static final long PROBE_INTERVAL_MS = 5000;
+    private static final int PROBE_TIMEOUT_SECONDS = 2;
+
+    // When each replica was last marked down (0 if it is up), and where the round-robin is
+    private long[] downSince;
+    private int next;
+
+    // Runs probe() every PROBE_INTERVAL_MS, and the probes of the replicas (so that one that hangs can time out)
+    private ScheduledExecutorService prober;
+    private ExecutorService probes;
+
+    /**
+     * Initializes a new router and starts probing the replicas in the background.
+     *
+     * @param replicas The connection pool of each replica
+     * @param primary The pool to lease from when no replica can serve
+     */
+    public ReplicaRouter(ConnectionPool[] replicas, ConnectionPool primary)
+    {
+        this.replicas = replicas;
+        this.primary = primary;
+        downSince = new long[replicas.length];
+
+        ThreadFactory daemons = new ThreadFactory() {
+            public Thread newThread(Runnable r)
+            {
+                Thread t = new Thread(r, "ReplicaRouter prober");
+                t.setDaemon(true);
+                return t;
+            }
+        };
+        probes = Executors.newCachedThreadPool(daemons);
+        prober = Executors.newSingleThreadScheduledExecutor(daemons);
+        prober.scheduleWithFixedDelay(new Runnable() {
+            public void run()
+            {
+                probe();
+            }
+        }, PROBE_INTERVAL_MS, PROBE_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Leases a connection from a replica (see the class description), or from
+     * the primary if every replica is down or fails; close() it to return it.
+     *
+     * @return The leased connection
+     * @throws SQLException If neither a replica nor the primary can give a connection
+     */
+    public Connection getConnection() throws SQLException
+    {
+        for (int tries = 0; tries < replicas.length; tries++)
+        {
+            int i = pickReplica();
+            if (i == -1)
+                break;
+
+            try {
+                Connection conn = replicas[i].getConnection();
+                markUp(i);
+                return conn;
+            } catch (SQLException e) {
+                e.printStackTrace();
+                markDown(i);                                                //Skip it for a while
+            }
+        }
+        return primary.getConnection();
+    }
+
+    /**
+     * Checks every replica at once (see ConnectionPool.isReachable()), and marks
+     * the ones that answer within PROBE_TIMEOUT_SECONDS up and the others down.
+     * This runs in the background every PROBE_INTERVAL_MS, but can also be
+     * called directly.
+     */
+    public void probe()
+    {
+        List<Future<Boolean>> results = new ArrayList<Future<Boolean>>();
+        for (final ConnectionPool replica : replicas)
+        {
+            results.add(probes.submit(new Callable<Boolean>() {
+                public Boolean call()
+                {
+                    return replica.isReachable(PROBE_TIMEOUT_SECONDS);
+                }
+            }));
+        }
+
+        long deadline = System.currentTimeMillis() + PROBE_TIMEOUT_SECONDS * 1000L;
+        for (int i = 0; i < replicas.length; i++)
+        {
+            boolean up;
+            try {
+                up = results.get(i).get(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+            } catch (TimeoutException e) {
+                results.get(i).cancel(true);                                //E.g. a host that never answers the connect
+                up = false;
+            } catch (ExecutionException e) {
+                up = false;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+
+            if (up)
+                markUp(i);
+            else
+                markDown(i);
+        }
+    }
+
+    /**
+     * @return The number of replicas that are not currently marked down
+     */
+    public synchronized int getHealthyCount()
+    {
+        int count = 0;
+        for (long since : downSince)
+            if (since == 0)
+                count++;
+        return count;
+    }
+
+    /**
+     * Sets how long a replica that failed is skipped before it is tried again.
+     */
+    public void setRetryInterval(long ms)
+    {
+        retryAfterMs = ms;
+    }
+
+    /**
+     * Stops probing, and closes the pools of all replicas (but not the primary).
+     */
+    public void close()
+    {
+        prober.shutdownNow();
+        probes.shutdownNow();
+        for (ConnectionPool replica : replicas)
+            replica.close();
+    }
+
+    /**
+     * Returns the replica to lease from next, or -1 if all of them are down.
+     * Replicas that are due for a retry count as healthy.
+     */
+    private synchronized int pickReplica()
+    {
+        long now = System.currentTimeMillis();
+        int best = -1;
+        for (int k = 0; k < replicas.length; k++)
+        {
+            int i = (next + k) % replicas.length;
+            if (downSince[i] != 0 && now - downSince[i] < retryAfterMs)
+                continue;
+            if (best == -1 || replicas[i].getLeasedCount() < replicas[best].getLeasedCount())
+                best = i;
+        }
+
+        if (best != -1)
+            next = (best + 1) % replicas.length;
+        return best;
+    }
+
+    private synchronized void markDown(int i)
+    {
+        downSince[i] = System.currentTimeMillis();
+    }
+
+    private synchronized void markUp(int i)
+    {
+        downSince[i] = 0;
+    }
+}
@@ -0,0 +1,239 @@
+/**
+ * This file is part of PhotoDB - MySQL client/GUI for accessing photo databases
+ * 
+ * Copyright (C) 2014 by Michael Wang
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *   
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>. 
+ */
+package photo.db;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * A client-side inverted index over the free text columns of the photos (e.g.
+ * FILENAME and DESCRIPTION), so that they can be searched without a LIKE over
+ * the whole table; see PhotoDB.setSearchColumns() and PhotoDB.search().
+ *
+ * Text is split into lowercase tokens of letters and digits ("IMG_0042.jpg" is
+ * "img", "0042" and "jpg"). Each photo gets an ordinal, and each token maps to
+ * the ordinals of the photos that contain it, kept as a sorted int[] that only
+ * grows at the end (ordinals are handed out in increasing order); the first
+ * element of the array is the number of ordinals in it. Tokens are
+ * kept sorted, so the tokens that start with a prefix are a contiguous range.
+ *
+ * Removed photos are only marked as removed; their ordinals are dropped from the
+ * posting lists once a quarter of the ordinals are removed. All public methods
+ * are synchronized, since PhotoDB may insert and delete from several threads.
+ */
+public class SearchIndex
+{
+    private static final int MIN_POSTINGS = 4;
+
+    // Posting lists by token: { size, ordinal, ordinal, ... }
+    private TreeMap<String, int[]> postings;
+
+    // The key of each ordinal (null if removed), and the ordinal of each key
+    private ArrayList<String> keys;
+    private HashMap<String, Integer> ordinals;
+    private BitSet removed;
+    private int numRemoved;
+
+    public SearchIndex()
+    {
+        postings = new TreeMap<String, int[]>();
+        keys = new ArrayList<String>();
+        ordinals = new HashMap<String, Integer>();
+        removed = new BitSet();
+    }
+
+    /**
+     * Adds the photo with <code>key</code> to the index, replacing it if it is in
+     * the index already.
+     *
+     * @param key The unique key value of the photo
+     * @param texts The text to index for the photo (e.g. its filename and
+     * description); null values are skipped
+     */
+    public synchronized void add(Object key, String... texts)
+    {
+        String k = key.toString();
+        if (ordinals.containsKey(k))
+            remove(k);
+
+        int ordinal = keys.size();
+        keys.add(k);
+        ordinals.put(k, ordinal);
+        for (String text : texts)
+            if (text != null)
+                for (String token : tokenize(text))
+                    addPosting(token, ordinal);
+    }
+
+    /**
+     * Removes the photo with <code>key</code> from the index, if it is in it.
+     *
+     * @param key The unique key value of the photo
+     */
+    public synchronized void remove(Object key)
+    {
+        Integer ordinal = ordinals.remove(key.toString());
+        if (ordinal == null)
+            return;
+
+        keys.set(ordinal, null);
+        removed.set(ordinal);
+        if (++numRemoved > keys.size() / 4)
+            compact();
+    }
+
+    /**
+     * Returns the keys of the photos whose text contains a token starting with
+     * each of the tokens of <code>query</code> (e.g. "beach 20" finds a photo
+     * described as "Beach trip" named "20140612.jpg"), in the order they were
+     * added. An empty query matches all photos.
+     *
+     * @param query The text to search for
+     * @return The keys of the matching photos
+     */
+    public synchronized String[] search(String query)
+    {
+        BitSet matches = null;
+        for (String token : tokenize(query))
+        {
+            BitSet tokenMatches = new BitSet(keys.size());
+            SortedMap<String, int[]> range = postings.subMap(token, token + Character.MAX_VALUE);
+            for (int[] list : range.values())
+                for (int i = 1; i <= list[0]; i++)
+                    tokenMatches.set(list[i]);
+
+            if (matches == null)
+                matches = tokenMatches;
+            else
+                matches.and(tokenMatches);
+            if (matches.isEmpty())
+                return new String[0];
+        }
+
+        if (matches == null)                                                //No tokens at all
+        {
+            matches = new BitSet(keys.size());
+            matches.set(0, keys.size());
+        }
+        matches.andNot(removed);
+
+        String[] result = new String[matches.cardinality()];
+        int n = 0;
+        for (int i = matches.nextSetBit(0); i >= 0; i = matches.nextSetBit(i + 1))
+            result[n++] = keys.get(i);
+        return result;
+    }
+
+    /**
+     * @return The number of photos in the index
+     */
+    public synchronized int size()
+    {
+        return ordinals.size();
+    }
+
+    /**
+     * @return The number of distinct tokens in the index
+     */
+    public synchronized int getTokenCount()
+    {
+        return postings.size();
+    }
+
+    /**
+     * Splits <code>text</code> into lowercase tokens of letters and digits.
+     */
+    static ArrayList<String> tokenize(String text)
+    {
+        ArrayList<String> tokens = new ArrayList<String>();
+        int start = -1;
+        for (int i = 0; i <= text.length(); i++)
+        {
+            boolean inToken = i < text.length() && Character.isLetterOrDigit(text.charAt(i));
+            if (inToken && start == -1)
+                start = i;
+            else if (!inToken && start != -1)
+            {
+                tokens.add(text.substring(start, i).toLowerCase());
+                start = -1;
+            }
+        }
+        return tokens;
+    }
+
+    private void addPosting(String token, int ordinal)
+    {
+        int[] list = postings.get(token);
+        int size = (list != null) ? list[0] : 0;
+        if (size > 0 && list[size] == ordinal)
+            return;                                                            //Token appears twice in the photo
+
+        if (list == null || size + 1 == list.length)
+        {
+            int[] grown = new int[Math.max(MIN_POSTINGS, list != null ? list.length * 2 : 0)];
+            if (list != null)
+                System.arraycopy(list, 0, grown, 0, size + 1);
+            list = grown;
+            postings.put(token, list);
+        }
+        list[++size] = ordinal;
+        list[0] = size;
+    }
+
+    /**
+     * Renumbers the photos that are left so that removed ordinals are dropped
+     * from the posting lists (and tokens that no photo has anymore are dropped).
+     */
+    private void compact()
+    {
+        int[] renumber = new int[keys.size()];
+        ArrayList<String> kept = new ArrayList<String>(ordinals.size());
+        for (int i = 0; i < keys.size(); i++)
+        {
+            renumber[i] = kept.size();
+            if (!removed.get(i))
+            {
+                ordinals.put(keys.get(i), kept.size());
+                kept.add(keys.get(i));
+            }
+        }
+
+        TreeMap<String, int[]> compacted = new TreeMap<String, int[]>();
+        for (Map.Entry<String, int[]> entry : postings.entrySet())
+        {
+            int[] list = entry.getValue();
+            int n = 0;
+            for (int i = 1; i <= list[0]; i++)
+                if (!removed.get(list[i]))
+                    list[++n] = renumber[list[i]];
+            list[0] = n;
+            if (n > 0)
+                compacted.put(entry.getKey(), list);
+        }
+
+        postings = compacted;
+        keys = kept;
+        removed.clear();
+        numRemoved = 0;
+    }
+}
@@ -31,6 +31,7 @@ import javax.swing.JLabel;
 import java.awt.GridLayout;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
+import java.util.ArrayList;
 
 import javax.swing.JTextField;
 import javax.swing.JPasswordField;
@@ -39,6 +40,7 @@ public class SettingsDialog extends JDialog
 {
     private final JPanel contentPanel = new JPanel();
     private JTextField txtHostname;
+    private JTextField txtReplicas;
     private JTextField txtDBName;
     private JTextField txtUsername;
     private JTextField txtTableName;
@@ -53,11 +55,11 @@ public class SettingsDialog extends JDialog
      */
     private SettingsDialog()
     {
-        setBounds(300, 300, 450, 300);
+        setBounds(300, 300, 450, 340);
         getContentPane().setLayout(new BorderLayout());
         contentPanel.setBorder(new EmptyBorder(5, 5, 5, 5));
         getContentPane().add(contentPanel, BorderLayout.CENTER);
-        contentPanel.setLayout(new GridLayout(5, 2, 10, 10));
+        contentPanel.setLayout(new GridLayout(6, 2, 10, 10));
         {
             JLabel lblNewLabel_1 = new JLabel("URL:port");
             lblNewLabel_1.setHorizontalAlignment(SwingConstants.CENTER);
@@ -69,6 +71,18 @@ public class SettingsDialog extends JDialog
             contentPanel.add(txtHostname);
             txtHostname.setColumns(10);
         }
+        {
+            JLabel lblReplicas = new JLabel("Read replicas:");
+            lblReplicas.setHorizontalAlignment(SwingConstants.CENTER);
+            contentPanel.add(lblReplicas);
+        }
+        {
+            txtReplicas = new JTextField();
+            txtReplicas.setText("");
+            txtReplicas.setToolTipText("URL:port of each replica, separated by commas (optional)");
+            contentPanel.add(txtReplicas);
+            txtReplicas.setColumns(10);
+        }
         {
             JLabel lblNewLabel_2 = new JLabel("Database name:");
             lblNewLabel_2.setHorizontalAlignment(SwingConstants.CENTER);
@@ -132,7 +146,7 @@ public class SettingsDialog extends JDialog
                 buttonPane.add(cancelButton);
             }
         }
-        prevValues = new String[5];
+        prevValues = new String[6];
         storePrevValues();
     }
     
@@ -151,6 +165,18 @@ public class SettingsDialog extends JDialog
         return txtHostname.getText();
     }
     
+    /**
+     * @return The URL:port of each read replica that was entered (none if the field is empty)
+     */
+    public String[] getReadReplicas()
+    {
+        ArrayList<String> hosts = new ArrayList<String>();
+        for (String host : txtReplicas.getText().split(","))
+            if (!host.trim().isEmpty())
+                hosts.add(host.trim());
+        return hosts.toArray(new String[hosts.size()]);
+    }
+    
     public String getDBName()
     {
         return txtDBName.getText();
@@ -176,6 +202,11 @@ public class SettingsDialog extends JDialog
         txtHostname.setText(host);
     }
     
+    public void setReadReplicas(String hosts)
+    {
+        txtReplicas.setText(hosts);
+    }
+    
     public void setDBName(String db)
     {
         txtDBName.setText(db);
@@ -215,6 +246,7 @@ public class SettingsDialog extends JDialog
         prevValues[2] = getTableName();
         prevValues[3] = getUsername();
         prevValues[4] = getPassword();
+        prevValues[5] = txtReplicas.getText();
     }
     
     private void revertToPrevValues()
@@ -224,6 +256,7 @@ public class SettingsDialog extends JDialog
         setTableName(prevValues[2]);
         setUsername(prevValues[3]);
         setPassword(prevValues[4]);
+        setReadReplicas(prevValues[5]);
     }
     
     private class MyActionListener implements ActionListener
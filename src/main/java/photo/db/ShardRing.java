@@ -0,0 +1,77 @@
+/**
+ * This file is part of PhotoDB - MySQL client/GUI for accessing photo databases
+ * 
+ * Copyright (C) 2014 by Michael Wang
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *   
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>. 
+ */
+package photo.db;
+
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * A consistent hash ring that assigns unique key values to shards.
+ *
+ * Each shard is placed on the ring at VNODES points, derived from its name (so
+ * a shard keeps its points no matter which other shards there are), and a key
+ * belongs to the shard of the first point at or after the key's hash. Adding a
+ * shard therefore only takes over the keys that fall just before its own points,
+ * i.e. about 1/N of all keys for the Nth shard, and no key moves between the
+ * shards that were already there.
+ *
+ * Keys are hashed by their String value (as in KeyIndex), so keys of any
+ * DataType can be placed.
+ */
+public class ShardRing
+{
+    // Points per shard; more points spread the keys more evenly
+    private static final int VNODES = 128;
+
+    private TreeMap<Long, Integer> ring;
+    private int numShards;
+
+    /**
+     * @param shardNames A name per shard that identifies it, e.g. "host:port/db/table";
+     * the index of a name is the shard number returned by getShard()
+     */
+    public ShardRing(String[] shardNames)
+    {
+        if (shardNames.length == 0)
+            throw new IllegalArgumentException("Need at least one shard");
+
+        ring = new TreeMap<Long, Integer>();
+        numShards = shardNames.length;
+        for (int i = 0; i < shardNames.length; i++)
+            for (int v = 0; v < VNODES; v++)
+                ring.put(KeyIndex.fingerprint(shardNames[i] + "#" + v), i);
+    }
+
+    /**
+     * @param key The unique key value of a row
+     * @return The number of the shard that the row belongs to
+     */
+    public int getShard(Object key)
+    {
+        Map.Entry<Long, Integer> point = ring.ceilingEntry(KeyIndex.fingerprint(key));
+        if (point == null)
+            point = ring.firstEntry();                                      //Wrap around
+        return point.getValue();
+    }
+
+    public int getShardCount()
+    {
+        return numShards;
+    }
+}
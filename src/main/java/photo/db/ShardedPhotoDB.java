@@ -0,0 +1,825 @@
+/**
+ * This file is part of PhotoDB - MySQL client/GUI for accessing photo databases
+ * 
+ * Copyright (C) 2014 by Michael Wang
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *   
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>. 
+ */
+package photo.db;
+
+import java.awt.Image;
+import java.io.File;
+import java.io.InputStream;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * A PhotoDB whose rows are spread over several tables ("shards"), which can be
+ * in different databases on different hosts but all have the same schema.
+ *
+ * Each row is placed on a shard by a consistent hash of its unique key (see
+ * ShardRing). Operations on a single row (insertRow(), deleteRow(),
+ * getSpecificPhoto(), getEditedPhoto(), getPhotoFile(), getPhotoThumbnail(), getPhotoRange()) go
+ * straight to the shard that owns the key;
+ * operations on the whole table (retrieve*(), getPhotoThumbnails(),
+ * getAllUniqueKeys(), getRowCount()) run on all shards in parallel, and their
+ * results are merged shard after shard, in the order the shards were added;
+ * except for queries (see query()), whose results are merged in their order.
+ *
+ * Shards are added with addShard() and take effect on the next connect(). Since
+ * the new shards take over some of the existing keys, rebalance() should then be
+ * called to move those rows over. Each shard is a PhotoDB of its own with the
+ * schema and settings of this one, except that read replicas are not supported.
+ * Identical images are only stored once per shard (see setContentHashColumn()),
+ * or once overall with a blob store (see setBlobStore()); since the shards share
+ * the store, blobs are not deleted from it when their rows are. The tags of
+ * each photo (see setTagTable()) are kept on the shard of the photo.
+ */
+public class ShardedPhotoDB extends PhotoDB
+{
+    // Hostname, database name and table name of each shard, and the shards once connected
+    private ArrayList<String[]> shardSpecs;
+    private volatile PhotoDB[] shards;
+    private volatile ShardRing ring;
+    private ExecutorService fanOutPool;
+    private String user, password;
+
+    /**
+     * Initializes a new sharded PhotoDB with the default schema (see PhotoDB).
+     */
+    public ShardedPhotoDB()
+    {
+        super(null);
+        shardSpecs = new ArrayList<String[]>();
+    }
+
+    /**
+     * Initializes a new sharded PhotoDB with a custom schema; see
+     * PhotoDB(String, String[], HashMap, int) for the parameters.
+     */
+    public ShardedPhotoDB(String[] columnNames, HashMap<String, DataType> columnTypes, int uniqueKey)
+    {
+        super(null, columnNames, columnTypes, uniqueKey);
+        shardSpecs = new ArrayList<String[]>();
+    }
+
+    /**
+     * Adds a shard; takes effect on the next connect(). Shards cannot be removed,
+     * since the rows on them would have nowhere to go.
+     *
+     * @param hostname The hostname (and port) of the database of the shard
+     * @param dbName The name of the database
+     * @param tableName The name of the table
+     */
+    public void addShard(String hostname, String dbName, String tableName)
+    {
+        shardSpecs.add(new String[] { hostname, dbName, tableName });
+    }
+
+    /**
+     * Connects to all shards (see PhotoDB.connect()), each with a connection
+     * pool of getPoolSize(). If connecting to any of them fails, PhotoDB is
+     * disconnected from all of them again.
+     *
+     * @throws SQLException If there is an error connecting to one of the shards
+     */
+    public void connect() throws SQLException
+    {
+        disconnect();
+        if (shardSpecs.isEmpty())
+            throw new IllegalStateException("No shards have been added");
+        if (getReadHostnames().length > 0)
+            throw new IllegalStateException("Read replicas are not supported for shards");
+
+        PhotoDB[] newShards = new PhotoDB[shardSpecs.size()];
+        String[] names = new String[newShards.length];
+        for (int i = 0; i < newShards.length; i++)
+        {
+            String[] spec = shardSpecs.get(i);
+            newShards[i] = new PhotoDB(spec[0], getColumnNames(), getColumnTypes(), getUniqueKey());
+            newShards[i].setDBName(spec[1]);
+            newShards[i].setTableName(spec[2]);
+            newShards[i].setBlobTable(getBlobTable());                      //In the database of the shard
+            if (getChunkTable() != null)
+                newShards[i].setChunkTable(getChunkTable(), getChunkSize());
+            newShards[i].setTagTable(getTagTable(), getTagBatchSize());
+            newShards[i].setUser(user);
+            newShards[i].setPassword(password);
+            newShards[i].setContentHashColumn(getContentHashColumn());
+            newShards[i].setCodecColumn(getCodecColumn());
+            newShards[i].setPerceptualHashColumn(getPerceptualHashColumn());
+            newShards[i].setGeoColumns(getLatitudeColumn(), getLongitudeColumn());
+            newShards[i].setTimelineColumn(getTimelineColumn());
+            newShards[i].setEditsColumn(getEditsColumn());
+            newShards[i].setCompression(getCompressionLevel(), getMaxCompressedRatio());
+            newShards[i].setPhotoDirectory(getPhotoDirectory());
+            newShards[i].setPoolSize(getPoolSize());
+            newShards[i].setBlobStore(getBlobStore());
+            newShards[i].setDeleteUnreferencedBlobs(false);                 //Other shards may share the blob
+            names[i] = spec[0] + "/" + spec[1] + "/" + spec[2];
+        }
+
+        fanOutPool = Executors.newFixedThreadPool(newShards.length);
+        try {
+            fanOut(newShards, new ShardCall<Void>() {
+                public Void call(int index, PhotoDB shard) throws SQLException
+                {
+                    shard.connect();
+                    return null;
+                }
+            });
+        } catch (SQLException e) {
+            for (PhotoDB shard : newShards)
+                shard.disconnect();
+            fanOutPool.shutdown();
+            throw e;
+        }
+        ring = new ShardRing(names);
+        shards = newShards;
+    }
+
+    /**
+     * Disconnects from all shards, after writing the tag changes that have not
+     * been written yet (see PhotoDB.syncTags()).
+     *
+     * @throws SQLException If there is an error disconnecting from one of the shards
+     */
+    public void disconnect() throws SQLException
+    {
+        PhotoDB[] targets = shards;
+        try {
+            if (targets != null)
+                syncTags();
+        } finally {
+            shards = null;
+            if (fanOutPool != null)
+                fanOutPool.shutdown();
+            if (targets != null)
+                for (PhotoDB shard : targets)
+                    shard.disconnect();
+        }
+    }
+
+    /**
+     * Inserts the row on the shard that owns its unique key; see PhotoDB.insertRow().
+     * The shard reads the perceptual hash and the location from the image, and
+     * the row it returns with them goes into the local indexes.
+     */
+    public boolean insertRow(Object[] data) throws SQLException
+    {
+        Object[] described = shardFor(data[getUniqueKey()]).insertDescribedRow(data);
+        if (described == null)
+            return false;
+        addToLocalIndexes(described);
+        return true;
+    }
+
+    /**
+     * Deletes the row from the shard that owns <code>uniqueKeyValue</code>; see
+     * PhotoDB.deleteRow().
+     */
+    public boolean deleteRow(Object uniqueKeyValue) throws SQLException
+    {
+        if (!shardFor(uniqueKeyValue).deleteRow(uniqueKeyValue))
+            return false;
+        removeFromLocalIndexes(uniqueKeyValue);
+        return true;
+    }
+
+    /**
+     * Updates the rows on the shards that own them, in parallel; see
+     * PhotoDB.updateRows(). Each shard updates its rows in a transaction of its
+     * own, so if one shard fails, the rows on the others may still be updated.
+     */
+    public int updateRows(Object[] uniqueKeyValues, final Map<String, Object> values) throws SQLException
+    {
+        PhotoDB[] targets = connectedShards();
+        updateColumns(values);                                              //Fail before any shard is updated
+        final List<List<Object>> byShard = new ArrayList<List<Object>>();
+        for (int i = 0; i < targets.length; i++)
+            byShard.add(new ArrayList<Object>());
+        for (Object key : uniqueKeyValues)
+            byShard.get(ring.getShard(key)).add(key);
+
+        List<Integer> counts = fanOut(targets, new ShardCall<Integer>() {
+            public Integer call(int index, PhotoDB shard) throws SQLException
+            {
+                List<Object> keys = byShard.get(index);
+                return keys.isEmpty() ? 0 : shard.updateRows(keys.toArray(), values);
+            }
+        });
+
+        int updated = 0;
+        for (int count : counts)
+            updated += count;
+        updateLocalProperties(uniqueKeyValues, values);
+        return updated;
+    }
+
+    public Image getSpecificPhoto(Object uniqueKeyValue)
+    {
+        return shardFor(uniqueKeyValue).getSpecificPhoto(uniqueKeyValue);
+    }
+
+    public Image getSpecificPhoto(Object uniqueKeyValue, int maxWidth, int maxHeight)
+    {
+        return shardFor(uniqueKeyValue).getSpecificPhoto(uniqueKeyValue, maxWidth, maxHeight);
+    }
+
+    public Image getEditedPhoto(Object uniqueKeyValue, PhotoEdits edits, int maxWidth, int maxHeight)
+    {
+        return shardFor(uniqueKeyValue).getEditedPhoto(uniqueKeyValue, edits, maxWidth, maxHeight);
+    }
+
+    public Image getPhotoThumbnail(Object uniqueKeyValue)
+    {
+        return shardFor(uniqueKeyValue).getPhotoThumbnail(uniqueKeyValue);
+    }
+
+    public File getPhotoFile(Object uniqueKeyValue)
+    {
+        return shardFor(uniqueKeyValue).getPhotoFile(uniqueKeyValue);
+    }
+
+    public InputStream getPhotoRange(Object uniqueKeyValue, long offset, long length) throws SQLException
+    {
+        return shardFor(uniqueKeyValue).getPhotoRange(uniqueKeyValue, offset, length);
+    }
+
+    /**
+     * Retrieves the photos (and properties) of all shards in parallel; see
+     * PhotoDB.retrievePhotos().
+     */
+    public void retrievePhotos() throws SQLException
+    {
+        List<PhotoDB> results = fanOut(connectedShards(), new ShardCall<PhotoDB>() {
+            public PhotoDB call(int index, PhotoDB shard) throws SQLException
+            {
+                shard.retrievePhotos();
+                return shard;
+            }
+        });
+
+        ArrayList<File> paths = new ArrayList<File>();
+        ArrayList<Properties> props = new ArrayList<Properties>();
+        for (PhotoDB shard : results)
+        {
+            paths.addAll(Arrays.asList(shard.getRetrievedPhotoPaths()));
+            props.addAll(Arrays.asList(shard.getRetrievedPhotoProperties()));
+        }
+        currPhotos = paths.toArray(new File[paths.size()]);
+        currProps = props.toArray(new Properties[props.size()]);
+    }
+
+    /**
+     * Retrieves the properties of all shards in parallel; see
+     * PhotoDB.retrievePhotoPropertiesOnly().
+     */
+    public void retrievePhotoPropertiesOnly() throws SQLException
+    {
+        List<Properties[]> results = fanOut(connectedShards(), new ShardCall<Properties[]>() {
+            public Properties[] call(int index, PhotoDB shard) throws SQLException
+            {
+                shard.retrievePhotoPropertiesOnly();
+                return shard.getRetrievedPhotoProperties();
+            }
+        });
+
+        ArrayList<Properties> props = new ArrayList<Properties>();
+        for (Properties[] shardProps : results)
+            props.addAll(Arrays.asList(shardProps));
+        currProps = props.toArray(new Properties[props.size()]);
+        indexProperties(currProps);                                         //Shards have no search columns of their own
+    }
+
+    /**
+     * Runs <code>query</code> on all shards in parallel, each for the first
+     * offset + limit rows of its own, and merges their results in the order of
+     * the query before applying its offset and limit.
+     */
+    public Properties[] retrievePhotoProperties(final PhotoQuery query) throws SQLException
+    {
+        final int perShard = (query.getLimit() != -1) ? query.getOffset() + query.getLimit() : -1;
+        List<Properties[]> results = fanOut(connectedShards(), new ShardCall<Properties[]>() {
+            public Properties[] call(int index, PhotoDB shard) throws SQLException
+            {
+                return shard.retrievePhotoProperties(query.copy(shard, 0, perShard));
+            }
+        });
+
+        ArrayList<Properties> props = new ArrayList<Properties>();
+        for (Properties[] shardProps : results)
+            props.addAll(Arrays.asList(shardProps));
+        Collections.sort(props, query.getComparator());
+
+        int from = Math.min(query.getOffset(), props.size());
+        int to = (perShard != -1) ? Math.min(perShard, props.size()) : props.size();
+        List<Properties> page = props.subList(from, to);
+        return page.toArray(new Properties[page.size()]);
+    }
+
+    /**
+     * Returns the index recommended for <code>query</code> on the first shard
+     * that lacks one, or null if all of them have a suitable index.
+     */
+    public String recommendIndex(final PhotoQuery query) throws SQLException
+    {
+        List<String> results = fanOut(connectedShards(), new ShardCall<String>() {
+            public String call(int index, PhotoDB shard) throws SQLException
+            {
+                return shard.recommendIndex(query.copy(shard, 0, -1));
+            }
+        });
+
+        for (String create : results)
+            if (create != null)
+                return create;
+        return null;
+    }
+
+    /**
+     * Creates the index recommended for <code>query</code> on every shard that
+     * lacks one, and returns whether any was created.
+     */
+    public boolean createIndex(final PhotoQuery query) throws SQLException
+    {
+        boolean created = false;
+        for (boolean shardCreated : fanOut(connectedShards(), new ShardCall<Boolean>() {
+                public Boolean call(int index, PhotoDB shard) throws SQLException
+                {
+                    return shard.createIndex(query.copy(shard, 0, -1));
+                }
+            }))
+            created |= shardCreated;
+        return created;
+    }
+
+    /**
+     * Returns the thumbnails of all shards, retrieved in parallel; see
+     * PhotoDB.getPhotoThumbnails().
+     */
+    public Image[] getPhotoThumbnails()
+    {
+        try {
+            List<Image[]> results = fanOut(connectedShards(), new ShardCall<Image[]>() {
+                public Image[] call(int index, PhotoDB shard) throws SQLException
+                {
+                    Image[] thumbs = shard.getPhotoThumbnails();
+                    if (thumbs == null)
+                        throw new SQLException("Error retrieving thumbnails from shard " + index);
+                    return thumbs;
+                }
+            });
+
+            ArrayList<Image> thumbs = new ArrayList<Image>();
+            for (Image[] shardThumbs : results)
+                thumbs.addAll(Arrays.asList(shardThumbs));
+            return thumbs.toArray(new Image[thumbs.size()]);
+        } catch (SQLException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * Returns a page of the thumbnails of all shards, where the shards are laid
+     * out one after another (as in getPhotoThumbnails()); see
+     * PhotoDB.getPhotoThumbnails(int, int, List). The rows of each shard are
+     * counted first, so that only the shards the page covers are queried.
+     */
+    public Image[] getPhotoThumbnails(int offset, int count, List<Object> keys)
+    {
+        try {
+            PhotoDB[] targets = connectedShards();
+            List<Integer> sizes = fanOut(targets, new ShardCall<Integer>() {
+                public Integer call(int index, PhotoDB shard) throws SQLException
+                {
+                    return shard.getRowCount();
+                }
+            });
+
+            // Which part of each shard the page covers
+            final int[] from = new int[targets.length], to = new int[targets.length];
+            int start = 0;
+            for (int i = 0; i < targets.length; i++)
+            {
+                int size = sizes.get(i);
+                from[i] = Math.max(offset - start, 0);
+                to[i] = Math.min(offset + count - start, size);
+                start += size;
+            }
+
+            List<Object[]> results = fanOut(targets, new ShardCall<Object[]>() {
+                public Object[] call(int index, PhotoDB shard) throws SQLException
+                {
+                    List<Object> shardKeys = new ArrayList<Object>();
+                    if (from[index] >= to[index])
+                        return new Object[] { new Image[0], shardKeys };
+
+                    Image[] thumbs = shard.getPhotoThumbnails(from[index], to[index] - from[index], shardKeys);
+                    if (thumbs == null)
+                        throw new SQLException("Error retrieving thumbnails from shard " + index);
+                    return new Object[] { thumbs, shardKeys };
+                }
+            });
+
+            ArrayList<Image> thumbs = new ArrayList<Image>();
+            for (Object[] result : results)
+            {
+                thumbs.addAll(Arrays.asList((Image[]) result[0]));
+                keys.addAll((List<?>) result[1]);
+            }
+            return thumbs.toArray(new Image[thumbs.size()]);
+        } catch (SQLException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * Returns the unique keys of all shards, retrieved in parallel, in the same
+     * order as getPhotoThumbnails(); see PhotoDB.getAllUniqueKeys().
+     */
+    public Object[] getAllUniqueKeys()
+    {
+        try {
+            List<Object[]> results = fanOut(connectedShards(), new ShardCall<Object[]>() {
+                public Object[] call(int index, PhotoDB shard) throws SQLException
+                {
+                    Object[] keys = shard.getAllUniqueKeys();
+                    if (keys == null)
+                        throw new SQLException("Error retrieving unique keys from shard " + index);
+                    return keys;
+                }
+            });
+
+            ArrayList<Object> keys = new ArrayList<Object>();
+            for (Object[] shardKeys : results)
+                keys.addAll(Arrays.asList(shardKeys));
+            return keys.toArray();
+        } catch (SQLException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * @return The number of rows on all shards together
+     */
+    public int getRowCount() throws SQLException
+    {
+        int count = 0;
+        for (int size : fanOut(connectedShards(), new ShardCall<Integer>() {
+                public Integer call(int index, PhotoDB shard) throws SQLException
+                {
+                    return shard.getRowCount();
+                }
+            }))
+            count += size;
+        return count;
+    }
+
+    public void ensureContentHashColumn() throws SQLException
+    {
+        fanOut(connectedShards(), new ShardCall<Void>() {
+            public Void call(int index, PhotoDB shard) throws SQLException
+            {
+                shard.ensureContentHashColumn();
+                return null;
+            }
+        });
+    }
+
+    public void ensureCodecColumn() throws SQLException
+    {
+        fanOut(connectedShards(), new ShardCall<Void>() {
+            public Void call(int index, PhotoDB shard) throws SQLException
+            {
+                shard.ensureCodecColumn();
+                return null;
+            }
+        });
+    }
+
+    public void ensurePerceptualHashColumn() throws SQLException
+    {
+        fanOut(connectedShards(), new ShardCall<Void>() {
+            public Void call(int index, PhotoDB shard) throws SQLException
+            {
+                shard.ensurePerceptualHashColumn();
+                return null;
+            }
+        });
+    }
+
+    public void ensureColumns() throws SQLException
+    {
+        fanOut(connectedShards(), new ShardCall<Void>() {
+            public Void call(int index, PhotoDB shard) throws SQLException
+            {
+                shard.ensureColumns();
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Fills in the perceptual hashes of all shards in parallel; see
+     * PhotoDB.fillPerceptualHashes(). The hashes are added to the similarity
+     * index by the next retrievePhotoPropertiesOnly().
+     */
+    public int fillPerceptualHashes(final int batchSize) throws SQLException
+    {
+        int filled = 0;
+        for (int count : fanOut(connectedShards(), new ShardCall<Integer>() {
+                public Integer call(int index, PhotoDB shard) throws SQLException
+                {
+                    return shard.fillPerceptualHashes(batchSize);
+                }
+            }))
+            filled += count;
+        return filled;
+    }
+
+    public void createTables() throws SQLException
+    {
+        fanOut(connectedShards(), new ShardCall<Void>() {
+            public Void call(int index, PhotoDB shard) throws SQLException
+            {
+                shard.createTables();
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Migrates the BLOBs of all shards in parallel; see PhotoDB.migrateToBlobTable().
+     */
+    public int migrateToBlobTable(final int batchSize) throws SQLException
+    {
+        int copied = 0;
+        for (int count : fanOut(connectedShards(), new ShardCall<Integer>() {
+                public Integer call(int index, PhotoDB shard) throws SQLException
+                {
+                    return shard.migrateToBlobTable(batchSize);
+                }
+            }))
+            copied += count;
+        return copied;
+    }
+
+    public void deletePhotoDirectory()
+    {
+        PhotoDB[] targets = shards;
+        if (targets != null)
+            for (PhotoDB shard : targets)
+                shard.deletePhotoDirectory();
+        super.deletePhotoDirectory();
+    }
+
+    /**
+     * Moves every row that is not on the shard that owns its key to that shard.
+     * Call this after connecting with new shards: with consistent hashing, only
+     * the rows whose keys the new shards have taken over move (about 1/N of all
+     * rows for the Nth shard), and none move between the old shards.
+     *
+     * The shards are scanned in parallel. Each row is first inserted into its new
+     * shard and only then deleted from the old one, so it can always be found on
+     * one of them; if rebalancing is interrupted, calling this again finishes the
+     * job. Images that a row refers to by content hash are copied along with it.
+     *
+     * @return The number of rows that were moved
+     * @throws SQLException If there is an error reading or moving a row
+     */
+    public int rebalance() throws SQLException
+    {
+        final PhotoDB[] targets = connectedShards();
+        final ShardRing currRing = ring;
+        int moved = 0;
+
+        for (int count : fanOut(targets, new ShardCall<Integer>() {
+                public Integer call(int index, PhotoDB shard) throws SQLException
+                {
+                    Object[] keys = shard.getAllUniqueKeys();
+                    if (keys == null)
+                        throw new SQLException("Error retrieving unique keys from shard " + index);
+
+                    int count = 0;
+                    for (Object key : keys)
+                    {
+                        int owner = currRing.getShard(key);
+                        if (owner != index)
+                        {
+                            moveRow(shard, targets[owner], key);
+                            count++;
+                        }
+                    }
+                    return count;
+                }
+            }))
+            moved += count;
+        return moved;
+    }
+
+    /**
+     * @param uniqueKeyValue The unique key value of a row
+     * @return The number of the shard (in the order they were added) that owns the row
+     */
+    public int getShard(Object uniqueKeyValue)
+    {
+        if (ring == null)
+            throw new IllegalStateException("Not connected to any database");
+        return ring.getShard(uniqueKeyValue);
+    }
+
+    public int getShardCount()
+    {
+        return shardSpecs.size();
+    }
+
+    public void setUser(String user)
+    {
+        super.setUser(user);
+        this.user = user;
+    }
+
+    public void setPassword(String password)
+    {
+        super.setPassword(password);
+        this.password = password;
+    }
+
+    /**
+     * Copies the row with <code>uniqueKeyValue</code> from <code>from</code> to
+     * <code>to</code> (unless it is there already) and deletes it from <code>from</code>.
+     * The image is written to the photo directory on the way, as in retrievePhotos(),
+     * and the thumbnail is made from it again by insertRow().
+     */
+    private void moveRow(PhotoDB from, PhotoDB to, Object uniqueKeyValue) throws SQLException
+    {
+        String[] columnNames = getColumnNames();
+        HashMap<String, DataType> columnTypes = getColumnTypes();
+        String keyCol = columnNames[getUniqueKey()];
+        Object[] data = new Object[columnNames.length];
+
+        PreparedStatement stmt = null;
+        Connection conn = from.borrowConnection();                          //The primary, which has the latest rows
+        try {
+            stmt = conn.prepareStatement(from.selectRows(true) + " WHERE m.`" + keyCol + "`=?");
+            stmt.setObject(1, uniqueKeyValue, columnTypes.get(keyCol).getSqlType());
+            ResultSet rs = stmt.executeQuery();
+            if (!rs.next())
+                return;                                                     //Deleted in the meantime
+
+            File image = null;
+            for (int i = 0; i < columnNames.length; i++)
+            {
+                data[i] = from.getResultSetParam(rs, i + 1, columnTypes.get(columnNames[i]));
+                if (data[i] instanceof File)
+                    image = (File) data[i];
+            }
+            for (int i = 0; i < columnNames.length; i++)                   //Thumbnails are made from the image
+                if (columnTypes.get(columnNames[i]) == DataType.BIN_STREAM && data[i] == null)
+                    data[i] = image;
+        } catch (SQLException ex) { throw ex; }
+        finally {
+            if (stmt != null) stmt.close();
+            conn.close();
+        }
+
+        to.insertRow(data);                                                 //False if it was copied before
+        if (getTagTable() != null)
+            to.writeTagChanges(from.readTagRows(uniqueKeyValue));           //Deleted along with the row
+        from.deleteRow(uniqueKeyValue);
+    }
+
+    /**
+     * Reads the tag rows of all shards in parallel, or those of the photo with
+     * <code>uniqueKeyValue</code> from the shard that owns it.
+     */
+    protected List<TagIndex.Change> readTagRows(Object uniqueKeyValue) throws SQLException
+    {
+        if (uniqueKeyValue != null)
+            return shardFor(uniqueKeyValue).readTagRows(uniqueKeyValue);
+
+        List<TagIndex.Change> rows = new ArrayList<TagIndex.Change>();
+        for (List<TagIndex.Change> shardRows : fanOut(connectedShards(), new ShardCall<List<TagIndex.Change>>() {
+                public List<TagIndex.Change> call(int index, PhotoDB shard) throws SQLException
+                {
+                    return shard.readTagRows(null);
+                }
+            }))
+            rows.addAll(shardRows);
+        return rows;
+    }
+
+    /**
+     * Writes each change to the shard that owns its photo, all shards in
+     * parallel; each shard writes its changes in one transaction.
+     */
+    protected void writeTagChanges(List<TagIndex.Change> changes) throws SQLException
+    {
+        PhotoDB[] targets = connectedShards();
+        final List<List<TagIndex.Change>> byShard = new ArrayList<List<TagIndex.Change>>();
+        for (int i = 0; i < targets.length; i++)
+            byShard.add(new ArrayList<TagIndex.Change>());
+        for (TagIndex.Change c : changes)
+            byShard.get(ring.getShard(c.key)).add(c);
+
+        fanOut(targets, new ShardCall<Void>() {
+            public Void call(int index, PhotoDB shard) throws SQLException
+            {
+                if (!byShard.get(index).isEmpty())
+                    shard.writeTagChanges(byShard.get(index));
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Returns the shard that owns <code>uniqueKeyValue</code>.
+     */
+    private PhotoDB shardFor(Object uniqueKeyValue)
+    {
+        PhotoDB[] targets = connectedShards();
+        return targets[ring.getShard(uniqueKeyValue)];
+    }
+
+    private PhotoDB[] connectedShards()
+    {
+        PhotoDB[] targets = shards;
+        if (targets == null)
+            throw new IllegalStateException("Not connected to any database");
+        return targets;
+    }
+
+    /**
+     * Runs <code>task</code> on each of <code>targets</code> in parallel and
+     * returns the results in the same order.
+     *
+     * @throws SQLException If the task throws an exception on any of the shards
+     * (the first one, in shard order, is thrown)
+     */
+    private <T> List<T> fanOut(PhotoDB[] targets, final ShardCall<T> task) throws SQLException
+    {
+        List<Future<T>> futures = new ArrayList<Future<T>>();
+        for (int i = 0; i < targets.length; i++)
+        {
+            final int index = i;
+            final PhotoDB shard = targets[i];
+            futures.add(fanOutPool.submit(new Callable<T>() {
+                public T call() throws Exception
+                {
+                    return task.call(index, shard);
+                }
+            }));
+        }
+
+        List<T> results = new ArrayList<T>();
+        try {
+            for (Future<T> future : futures)
+                results.add(future.get());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for the shards", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof SQLException)
+                throw (SQLException) e.getCause();
+            throw new SQLException(e.getCause());
+        }
+        return results;
+    }
+
+    /**
+     * An operation to run on every shard with fanOut().
+     */
+    private interface ShardCall<T>
+    {
+        T call(int index, PhotoDB shard) throws SQLException;
+    }
+}
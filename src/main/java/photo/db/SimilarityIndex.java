@@ -0,0 +1,263 @@
+/**
+ * This file is part of PhotoDB - MySQL client/GUI for accessing photo databases
+ * 
+ * Copyright (C) 2014 by Michael Wang
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *   
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>. 
+ */
+package photo.db;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * A client-side index of the perceptual hashes of the photos (see
+ * PerceptualHash), to find the photos whose hash is within a Hamming distance of
+ * a given hash without comparing it to every photo; see PhotoDB.findSimilar().
+ *
+ * The index uses multi-index hashing: each 64-bit hash is split into CHUNKS
+ * chunks of 16 bits, and each chunk is indexed in a table of its own. If two
+ * hashes differ in at most d bits, then at least one of their chunks differs in
+ * at most d / CHUNKS bits, so a search only has to look up the chunk values
+ * within d / CHUNKS bits of those of the hash (137 values per chunk for d
+ * up to 11), and only compares the photos it finds there. For larger distances,
+ * when that would be more lookups than there are photos, all hashes are scanned.
+ *
+ * Each photo gets an ordinal, and each chunk value maps to the ordinals of the
+ * photos that have it, kept as in SearchIndex: an int[] whose first element is
+ * the number of ordinals in it. Removed photos are only marked as removed; their
+ * ordinals are dropped once a quarter of the ordinals are removed. All public
+ * methods are synchronized, since PhotoDB may insert and delete from several
+ * threads.
+ */
+public class SimilarityIndex
+{
+    private static final int CHUNKS = 4;
+    private static final int CHUNK_BITS = 64 / CHUNKS;
+    private static final int MIN_POSTINGS = 4;
+
+    // Posting lists by chunk and chunk value: { size, ordinal, ordinal, ... }
+    private int[][][] tables;
+
+    // The hash and the key (null if removed) of each ordinal, and the ordinal of each key
+    private long[] hashes;
+    private ArrayList<String> keys;
+    private HashMap<String, Integer> ordinals;
+    private BitSet removed;
+    private int numRemoved;
+
+    public SimilarityIndex()
+    {
+        tables = new int[CHUNKS][1 << CHUNK_BITS][];
+        hashes = new long[16];
+        keys = new ArrayList<String>();
+        ordinals = new HashMap<String, Integer>();
+        removed = new BitSet();
+    }
+
+    /**
+     * Adds the photo with <code>key</code> to the index, replacing it if it is in
+     * the index already.
+     *
+     * @param key The unique key value of the photo
+     * @param hash The perceptual hash of the photo
+     */
+    public synchronized void add(Object key, long hash)
+    {
+        String k = key.toString();
+        if (ordinals.containsKey(k))
+            remove(k);
+
+        int ordinal = keys.size();
+        if (ordinal == hashes.length)
+            hashes = Arrays.copyOf(hashes, ordinal * 2);
+        hashes[ordinal] = hash;
+        keys.add(k);
+        ordinals.put(k, ordinal);
+        for (int c = 0; c < CHUNKS; c++)
+            addPosting(c, chunk(hash, c), ordinal);
+    }
+
+    /**
+     * Removes the photo with <code>key</code> from the index, if it is in it.
+     *
+     * @param key The unique key value of the photo
+     */
+    public synchronized void remove(Object key)
+    {
+        Integer ordinal = ordinals.remove(key.toString());
+        if (ordinal == null)
+            return;
+
+        keys.set(ordinal, null);
+        removed.set(ordinal);
+        if (++numRemoved > keys.size() / 4)
+            compact();
+    }
+
+    /**
+     * Returns the keys of the photos whose hash differs from <code>hash</code>
+     * in at most <code>maxDistance</code> bits, the closest first (and those at
+     * the same distance in the order they were added).
+     *
+     * @param hash The perceptual hash to look for
+     * @param maxDistance The largest distance (see PerceptualHash.distance())
+     * @return The keys of the photos, by increasing distance
+     */
+    public synchronized String[] search(long hash, int maxDistance)
+    {
+        maxDistance = Math.min(maxDistance, 64);
+        BitSet matches = new BitSet(keys.size());
+        int radius = maxDistance / CHUNKS;
+
+        if ((long) CHUNKS * probes(radius) < keys.size())
+        {
+            for (int c = 0; c < CHUNKS; c++)
+                probe(c, chunk(hash, c), 0, radius, hash, maxDistance, matches);
+        }
+        else
+        {
+            for (int i = 0; i < keys.size(); i++)
+                if (PerceptualHash.distance(hash, hashes[i]) <= maxDistance)
+                    matches.set(i);
+        }
+        matches.andNot(removed);
+
+        List<List<String>> byDistance = new ArrayList<List<String>>();
+        for (int d = 0; d <= maxDistance; d++)
+            byDistance.add(new ArrayList<String>());
+        for (int i = matches.nextSetBit(0); i >= 0; i = matches.nextSetBit(i + 1))
+            byDistance.get(PerceptualHash.distance(hash, hashes[i])).add(keys.get(i));
+
+        ArrayList<String> result = new ArrayList<String>();
+        for (List<String> atDistance : byDistance)
+            result.addAll(atDistance);
+        return result.toArray(new String[result.size()]);
+    }
+
+    /**
+     * @return The hash of the photo with <code>key</code>, or null if it is not
+     * in the index
+     */
+    public synchronized Long getHash(Object key)
+    {
+        Integer ordinal = ordinals.get(key.toString());
+        return (ordinal != null) ? hashes[ordinal] : null;
+    }
+
+    /**
+     * @return The number of photos in the index
+     */
+    public synchronized int size()
+    {
+        return ordinals.size();
+    }
+
+    private static int chunk(long hash, int c)
+    {
+        return (int) (hash >>> (c * CHUNK_BITS)) & ((1 << CHUNK_BITS) - 1);
+    }
+
+    /**
+     * Returns the number of chunk values within <code>radius</code> bits of a
+     * chunk value.
+     */
+    private static long probes(int radius)
+    {
+        long count = 0, choose = 1;
+        for (int k = 0; k <= Math.min(radius, CHUNK_BITS); k++)
+        {
+            count += choose;
+            choose = choose * (CHUNK_BITS - k) / (k + 1);
+        }
+        return count;
+    }
+
+    /**
+     * Looks up <code>value</code> in the table of chunk <code>c</code>, and the
+     * values that differ from it in up to <code>flips</code> more bits from bit
+     * <code>from</code> on, and sets the ordinals there whose whole hash is within
+     * <code>maxDistance</code> of <code>hash</code> in <code>matches</code>.
+     */
+    private void probe(int c, int value, int from, int flips, long hash, int maxDistance, BitSet matches)
+    {
+        int[] list = tables[c][value];
+        if (list != null)
+            for (int i = 1; i <= list[0]; i++)
+                if (!matches.get(list[i]) && PerceptualHash.distance(hash, hashes[list[i]]) <= maxDistance)
+                    matches.set(list[i]);
+
+        if (flips > 0)
+            for (int bit = from; bit < CHUNK_BITS; bit++)
+                probe(c, value ^ (1 << bit), bit + 1, flips - 1, hash, maxDistance, matches);
+    }
+
+    private void addPosting(int c, int value, int ordinal)
+    {
+        int[] list = tables[c][value];
+        int size = (list != null) ? list[0] : 0;
+        if (list == null || size + 1 == list.length)
+        {
+            int[] grown = new int[Math.max(MIN_POSTINGS, list != null ? list.length * 2 : 0)];
+            if (list != null)
+                System.arraycopy(list, 0, grown, 0, size + 1);
+            list = grown;
+            tables[c][value] = list;
+        }
+        list[++size] = ordinal;
+        list[0] = size;
+    }
+
+    /**
+     * Renumbers the photos that are left so that removed ordinals are dropped
+     * from the hashes and the posting lists.
+     */
+    private void compact()
+    {
+        int[] renumber = new int[keys.size()];
+        ArrayList<String> kept = new ArrayList<String>(ordinals.size());
+        for (int i = 0; i < keys.size(); i++)
+        {
+            renumber[i] = kept.size();
+            if (!removed.get(i))
+            {
+                hashes[kept.size()] = hashes[i];
+                ordinals.put(keys.get(i), kept.size());
+                kept.add(keys.get(i));
+            }
+        }
+
+        for (int[][] table : tables)
+            for (int v = 0; v < table.length; v++)
+            {
+                int[] list = table[v];
+                if (list == null)
+                    continue;
+                int n = 0;
+                for (int i = 1; i <= list[0]; i++)
+                    if (!removed.get(list[i]))
+                        list[++n] = renumber[list[i]];
+                list[0] = n;
+                if (n == 0)
+                    table[v] = null;
+            }
+
+        keys = kept;
+        removed.clear();
+        numRemoved = 0;
+    }
+}
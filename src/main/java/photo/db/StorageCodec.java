@@ -0,0 +1,171 @@
+/**
+ * This file is part of PhotoDB - MySQL client/GUI for accessing photo databases
+ * 
+ * Copyright (C) 2014 by Michael Wang
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *   
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>. 
+ */
+package photo.db;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * The codecs that image bytes can be stored with, as recorded per row in the
+ * codec column of PhotoDB (see PhotoDB.setCodecColumn()).
+ *
+ * Only images that compress well are worth compressing: uncompressed scans
+ * (BMP, most TIFFs) shrink several times over, while JPEGs and most PNGs do not
+ * shrink at all and would only cost CPU time on every download. So before an
+ * image is compressed, a trial deflates a few samples spread over the file, and
+ * the image is only compressed if the samples shrink enough. The trial reads at
+ * most TRIAL_SAMPLES * TRIAL_SAMPLE_SIZE bytes, however large the file is.
+ */
+public class StorageCodec
+{
+    /** The bytes are stored as they are */
+    public static final int NONE = 0;
+    /** The bytes are stored as a zlib (Deflater) stream */
+    public static final int DEFLATE = 1;
+
+    private static final int TRIAL_SAMPLES = 3;
+    private static final int TRIAL_SAMPLE_SIZE = 64 * 1024;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private StorageCodec()
+    {
+    }
+
+    /**
+     * Deflates <code>file</code> into a temporary file at <code>level</code>, if
+     * the trial (see the class description) compresses its samples to at most
+     * <code>maxRatio</code> of their size.
+     *
+     * @param file The file to compress
+     * @param level The Deflater compression level (0-9, or Deflater.DEFAULT_COMPRESSION)
+     * @param maxRatio The compressed size, as a fraction of the original size, that
+     * the samples must not exceed (e.g. 0.9 to require a saving of at least 10%)
+     * @return The compressed file, which the caller must delete, or null if the
+     * file is not worth compressing
+     * @throws IOException If there is an error reading or writing the files
+     */
+    public static File compress(File file, int level, double maxRatio) throws IOException
+    {
+        long length = file.length();
+        if (length == 0)
+            return null;
+
+        Deflater deflater = new Deflater(level);
+        try {
+            if (trialRatio(file, length, deflater) > maxRatio)
+                return null;
+
+            // Worth it, so deflate the whole file
+            deflater.reset();
+            File compressed = File.createTempFile("photodb", ".deflate");
+            InputStream in = null;
+            OutputStream out = null;
+            try {
+                in = new FileInputStream(file);
+                out = new DeflaterOutputStream(new FileOutputStream(compressed), deflater, BUFFER_SIZE);
+                byte[] buf = new byte[BUFFER_SIZE];
+                int n;
+                while ((n = in.read(buf)) != -1)
+                    out.write(buf, 0, n);
+                out.close();                                                //Finishes the stream
+                out = null;
+            } catch (IOException e) {
+                compressed.delete();
+                throw e;
+            } finally {
+                if (in != null) in.close();
+                if (out != null) out.close();
+            }
+            return compressed;
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * Returns a stream of the original bytes of <code>in</code>, which was
+     * stored with <code>codec</code>. Compressed bytes are inflated as they are
+     * read, so the image is never held in memory as a whole.
+     *
+     * @param in The stored bytes
+     * @param codec The codec that the bytes were stored with
+     * @return The stream to read the image from (<code>in</code> itself for NONE)
+     */
+    public static InputStream decompress(InputStream in, int codec)
+    {
+        switch (codec)
+        {
+            case NONE:
+                return in;
+            case DEFLATE:
+                return new InflaterInputStream(in, new Inflater(), BUFFER_SIZE) {
+                    public void close() throws IOException
+                    {
+                        super.close();
+                        inf.end();                                            //Not done by close() for our own Inflater
+                    }
+                };
+            default:
+                throw new IllegalArgumentException("Unknown codec: " + codec);
+        }
+    }
+
+    /**
+     * Deflates up to TRIAL_SAMPLES samples of TRIAL_SAMPLE_SIZE bytes, spread
+     * evenly from the start to the end of <code>file</code>, and returns their
+     * compressed size as a fraction of their original size.
+     */
+    private static double trialRatio(File file, long length, Deflater deflater) throws IOException
+    {
+        int samples = (int) Math.min(TRIAL_SAMPLES, (length + TRIAL_SAMPLE_SIZE - 1) / TRIAL_SAMPLE_SIZE);
+        byte[] sample = new byte[TRIAL_SAMPLE_SIZE];
+        byte[] out = new byte[BUFFER_SIZE];
+        long sampled = 0, compressed = 0;
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+
+        try {
+            for (int i = 0; i < samples; i++)
+            {
+                long pos = (samples == 1) ? 0 : (length - TRIAL_SAMPLE_SIZE) * i / (samples - 1);
+                int n = (int) Math.min(TRIAL_SAMPLE_SIZE, length - pos);
+                raf.seek(pos);
+                raf.readFully(sample, 0, n);
+                sampled += n;
+
+                deflater.reset();
+                deflater.setInput(sample, 0, n);
+                deflater.finish();
+                while (!deflater.finished())
+                    compressed += deflater.deflate(out);
+            }
+        } finally {
+            raf.close();
+        }
+        return (double) compressed / sampled;
+    }
+}
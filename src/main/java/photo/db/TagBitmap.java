@@ -0,0 +1,450 @@
+/**
+ * This file is part of PhotoDB - MySQL client/GUI for accessing photo databases
+ * 
+ * Copyright (C) 2014 by Michael Wang
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *   
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>. 
+ */
+package photo.db;
+
+import java.util.Arrays;
+
+/**
+ * A compressed set of non-negative ints (photo ordinals, see TagIndex), in the
+ * manner of a Roaring bitmap: the ints are grouped by their upper 16 bits, and
+ * each group ("container") holds the lower 16 bits either as a sorted char[]
+ * (while it has at most ARRAY_MAX of them) or as a 65536-bit bitmap. A tag on a
+ * few photos thus takes a few bytes per photo, and one on most photos an eighth
+ * of a byte per photo, and set operations work a container at a time.
+ *
+ * and(), or() and andNot() return new bitmaps and leave their operands alone,
+ * so query results can be combined freely. Bitmaps are not thread-safe; those
+ * returned by TagIndex are copies, which the caller owns.
+ */
+public class TagBitmap
+{
+    private static final int ARRAY_MAX = 4096;
+    private static final int WORDS = 1024;
+
+    // The upper 16 bits of each container, in ascending order, and the containers
+    private char[] highs;
+    private Container[] containers;
+    private int size;
+
+    public TagBitmap()
+    {
+        highs = new char[4];
+        containers = new Container[4];
+    }
+
+    /**
+     * Adds <code>x</code> to the set.
+     *
+     * @return <code>true</code> if it was not in the set yet
+     */
+    public boolean add(int x)
+    {
+        char high = (char) (x >>> 16);
+        int i = find(high);
+        if (i < 0)
+        {
+            i = -i - 1;
+            if (size == highs.length)
+            {
+                highs = Arrays.copyOf(highs, size * 2);
+                containers = Arrays.copyOf(containers, size * 2);
+            }
+            System.arraycopy(highs, i, highs, i + 1, size - i);
+            System.arraycopy(containers, i, containers, i + 1, size - i);
+            highs[i] = high;
+            containers[i] = new Container();
+            size++;
+        }
+        return containers[i].add((char) x);
+    }
+
+    /**
+     * Removes <code>x</code> from the set.
+     *
+     * @return <code>true</code> if it was in the set
+     */
+    public boolean remove(int x)
+    {
+        int i = find((char) (x >>> 16));
+        if (i < 0 || !containers[i].remove((char) x))
+            return false;
+
+        if (containers[i].card == 0)
+        {
+            System.arraycopy(highs, i + 1, highs, i, size - i - 1);
+            System.arraycopy(containers, i + 1, containers, i, size - i - 1);
+            containers[--size] = null;
+        }
+        return true;
+    }
+
+    public boolean contains(int x)
+    {
+        int i = find((char) (x >>> 16));
+        return i >= 0 && containers[i].contains((char) x);
+    }
+
+    /**
+     * @return The number of ints in the set
+     */
+    public int cardinality()
+    {
+        int card = 0;
+        for (int i = 0; i < size; i++)
+            card += containers[i].card;
+        return card;
+    }
+
+    public boolean isEmpty()
+    {
+        return size == 0;
+    }
+
+    /**
+     * @return The ints in the set, in ascending order
+     */
+    public int[] toArray()
+    {
+        int[] result = new int[cardinality()];
+        int n = 0;
+        for (int i = 0; i < size; i++)
+            n = containers[i].copyTo(result, n, highs[i] << 16);
+        return result;
+    }
+
+    /**
+     * @return The ints that are in both this set and <code>other</code>
+     */
+    public TagBitmap and(TagBitmap other)
+    {
+        TagBitmap result = new TagBitmap();
+        int i = 0, j = 0;
+        while (i < size && j < other.size)
+        {
+            if (highs[i] < other.highs[j])
+                i++;
+            else if (highs[i] > other.highs[j])
+                j++;
+            else
+                result.append(highs[i], Container.and(containers[i++], other.containers[j++]));
+        }
+        return result;
+    }
+
+    /**
+     * @return The ints that are in this set, <code>other</code>, or both
+     */
+    public TagBitmap or(TagBitmap other)
+    {
+        TagBitmap result = new TagBitmap();
+        int i = 0, j = 0;
+        while (i < size || j < other.size)
+        {
+            if (j == other.size || (i < size && highs[i] < other.highs[j]))
+            {
+                result.append(highs[i], containers[i].copy());
+                i++;
+            }
+            else if (i == size || highs[i] > other.highs[j])
+            {
+                result.append(other.highs[j], other.containers[j].copy());
+                j++;
+            }
+            else
+                result.append(highs[i], Container.or(containers[i++], other.containers[j++]));
+        }
+        return result;
+    }
+
+    /**
+     * @return The ints that are in this set but not in <code>other</code>
+     */
+    public TagBitmap andNot(TagBitmap other)
+    {
+        TagBitmap result = new TagBitmap();
+        int j = 0;
+        for (int i = 0; i < size; i++)
+        {
+            while (j < other.size && other.highs[j] < highs[i])
+                j++;
+            if (j < other.size && other.highs[j] == highs[i])
+                result.append(highs[i], Container.andNot(containers[i], other.containers[j]));
+            else
+                result.append(highs[i], containers[i].copy());
+        }
+        return result;
+    }
+
+    /**
+     * @return A copy of this set
+     */
+    public TagBitmap copy()
+    {
+        return or(new TagBitmap());
+    }
+
+    /**
+     * @return The approximate number of bytes that the containers take up
+     */
+    public long getSizeInBytes()
+    {
+        long bytes = 0;
+        for (int i = 0; i < size; i++)
+            bytes += (containers[i].bits != null) ? WORDS * 8 : containers[i].array.length * 2;
+        return bytes;
+    }
+
+    private int find(char high)
+    {
+        return Arrays.binarySearch(highs, 0, size, high);
+    }
+
+    /**
+     * Adds a container after all others (so <code>high</code> must be the largest
+     * yet), unless it is empty.
+     */
+    private void append(char high, Container c)
+    {
+        if (c.card == 0)
+            return;
+        if (size == highs.length)
+        {
+            highs = Arrays.copyOf(highs, size * 2);
+            containers = Arrays.copyOf(containers, size * 2);
+        }
+        highs[size] = high;
+        containers[size++] = c;
+    }
+
+    /**
+     * The lower 16 bits of the ints in one group, as a sorted array or a bitmap.
+     */
+    private static class Container
+    {
+        char[] array;                                                        //If the container is an array
+        long[] bits;                                                        //If it is a bitmap
+        int card;
+
+        Container()
+        {
+            array = new char[4];
+        }
+
+        boolean contains(char v)
+        {
+            if (bits != null)
+                return (bits[v >>> 6] & (1L << v)) != 0;
+            return Arrays.binarySearch(array, 0, card, v) >= 0;
+        }
+
+        boolean add(char v)
+        {
+            if (bits != null)
+            {
+                if ((bits[v >>> 6] & (1L << v)) != 0)
+                    return false;
+                bits[v >>> 6] |= 1L << v;
+                card++;
+                return true;
+            }
+
+            int i = Arrays.binarySearch(array, 0, card, v);
+            if (i >= 0)
+                return false;
+            if (card == ARRAY_MAX)
+            {
+                toBits();
+                return add(v);
+            }
+            i = -i - 1;
+            if (card == array.length)
+                array = Arrays.copyOf(array, Math.min(ARRAY_MAX, card * 2));
+            System.arraycopy(array, i, array, i + 1, card - i);
+            array[i] = v;
+            card++;
+            return true;
+        }
+
+        boolean remove(char v)
+        {
+            if (bits != null)
+            {
+                if ((bits[v >>> 6] & (1L << v)) == 0)
+                    return false;
+                bits[v >>> 6] &= ~(1L << v);
+                if (--card <= ARRAY_MAX)
+                    toArray();
+                return true;
+            }
+
+            int i = Arrays.binarySearch(array, 0, card, v);
+            if (i < 0)
+                return false;
+            System.arraycopy(array, i + 1, array, i, card - i - 1);
+            card--;
+            return true;
+        }
+
+        /**
+         * Writes the ints of this container (<code>base</code> + each value) into
+         * <code>dst</code> from <code>pos</code> on, and returns the next position.
+         */
+        int copyTo(int[] dst, int pos, int base)
+        {
+            if (bits == null)
+            {
+                for (int i = 0; i < card; i++)
+                    dst[pos++] = base + array[i];
+                return pos;
+            }
+            for (int w = 0; w < WORDS; w++)
+                for (long word = bits[w]; word != 0; word &= word - 1)
+                    dst[pos++] = base + w * 64 + Long.numberOfTrailingZeros(word);
+            return pos;
+        }
+
+        Container copy()
+        {
+            Container c = new Container();
+            c.card = card;
+            c.array = (array != null) ? Arrays.copyOf(array, Math.max(card, 4)) : null;
+            c.bits = (bits != null) ? bits.clone() : null;
+            return c;
+        }
+
+        /**
+         * Returns the container as a bitmap, without changing it.
+         */
+        long[] words()
+        {
+            if (bits != null)
+                return bits;
+            long[] words = new long[WORDS];
+            for (int i = 0; i < card; i++)
+                words[array[i] >>> 6] |= 1L << array[i];
+            return words;
+        }
+
+        void toBits()
+        {
+            bits = words();
+            array = null;
+        }
+
+        void toArray()
+        {
+            char[] values = new char[Math.max(card, 4)];
+            int n = 0;
+            for (int w = 0; w < WORDS; w++)
+                for (long word = bits[w]; word != 0; word &= word - 1)
+                    values[n++] = (char) (w * 64 + Long.numberOfTrailingZeros(word));
+            array = values;
+            bits = null;
+        }
+
+        /**
+         * Returns a container of the bitmap <code>words</code> (which it takes
+         * over), as an array if it is small enough.
+         */
+        static Container ofWords(long[] words)
+        {
+            Container c = new Container();
+            c.bits = words;
+            c.array = null;
+            for (long word : words)
+                c.card += Long.bitCount(word);
+            if (c.card <= ARRAY_MAX)
+                c.toArray();
+            return c;
+        }
+
+        static Container and(Container a, Container b)
+        {
+            if (a.bits != null && b.bits != null)
+            {
+                long[] words = new long[WORDS];
+                for (int w = 0; w < WORDS; w++)
+                    words[w] = a.bits[w] & b.bits[w];
+                return ofWords(words);
+            }
+
+            // At least one is an array, so filter the (smaller) array by the other
+            if (a.bits != null || (b.bits == null && b.card < a.card))
+            {
+                Container t = a;
+                a = b;
+                b = t;
+            }
+            Container c = new Container();
+            c.array = new char[Math.max(a.card, 4)];
+            for (int i = 0; i < a.card; i++)
+                if (b.contains(a.array[i]))
+                    c.array[c.card++] = a.array[i];
+            return c;
+        }
+
+        static Container or(Container a, Container b)
+        {
+            if (a.bits == null && b.bits == null && a.card + b.card <= ARRAY_MAX)
+            {
+                Container c = new Container();
+                c.array = new char[Math.max(a.card + b.card, 4)];
+                int i = 0, j = 0;
+                while (i < a.card || j < b.card)
+                {
+                    if (j == b.card || (i < a.card && a.array[i] < b.array[j]))
+                        c.array[c.card++] = a.array[i++];
+                    else if (i == a.card || a.array[i] > b.array[j])
+                        c.array[c.card++] = b.array[j++];
+                    else
+                    {
+                        c.array[c.card++] = a.array[i++];
+                        j++;
+                    }
+                }
+                return c;
+            }
+
+            long[] words = a.words().clone();
+            long[] other = b.words();
+            for (int w = 0; w < WORDS; w++)
+                words[w] |= other[w];
+            return ofWords(words);
+        }
+
+        static Container andNot(Container a, Container b)
+        {
+            if (a.bits != null)
+            {
+                long[] words = a.bits.clone();
+                long[] other = b.words();
+                for (int w = 0; w < WORDS; w++)
+                    words[w] &= ~other[w];
+                return ofWords(words);
+            }
+
+            Container c = new Container();
+            c.array = new char[Math.max(a.card, 4)];
+            for (int i = 0; i < a.card; i++)
+                if (!b.contains(a.array[i]))
+                    c.array[c.card++] = a.array[i];
+            return c;
+        }
+    }
+}
@@ -0,0 +1,301 @@
+/**
+ * This file is part of PhotoDB - MySQL client/GUI for accessing photo databases
+ * 
+ * Copyright (C) 2014 by Michael Wang
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *   
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>. 
+ */
+package photo.db;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * The tags and albums of the photos, kept client-side as one TagBitmap per tag
+ * (or album) of the ordinals of its photos, so that queries such as "beach AND
+ * 2014 AND NOT private", and the number of photos per tag, need no round trip:
+ *
+ * <pre>
+ *     TagIndex tags = db.loadTags();
+ *     TagBitmap hits = tags.get(TagIndex.TAG, "beach").and(tags.get(TagIndex.TAG, "2014"))
+ *                          .andNot(tags.get(TagIndex.TAG, "private"));
+ *     Object[] keys = tags.getKeys(hits);
+ * </pre>
+ *
+ * A tag and an album are alike except for their kind (TAG or ALBUM); they are
+ * stored in the tag table of PhotoDB (see PhotoDB.setTagTable()) as rows of
+ * (unique key, KIND, NAME). Changes made with add() and remove() show up in the
+ * index right away, and are kept as pending changes until PhotoDB writes them to
+ * the tag table in a batch (see PhotoDB.syncTags()); only the last change to each
+ * (tag, photo) is kept. All public methods are synchronized.
+ */
+public class TagIndex
+{
+    public static final int TAG = 0;
+    public static final int ALBUM = 1;
+
+    // The photos of each tag and each album, by name
+    private ArrayList<TreeMap<String, TagBitmap>> bitmaps;
+
+    // The ordinal of each photo (by the String value of its key), the key of each
+    // ordinal (null once removed), and the ordinals of all photos with any tag
+    private HashMap<String, Integer> ordinals;
+    private ArrayList<Object> keys;
+    private TagBitmap all;
+
+    // The changes that have yet to be written to the tag table, by kind, name and key
+    private LinkedHashMap<String, Change> pending;
+
+    public TagIndex()
+    {
+        bitmaps = new ArrayList<TreeMap<String, TagBitmap>>();
+        bitmaps.add(new TreeMap<String, TagBitmap>());
+        bitmaps.add(new TreeMap<String, TagBitmap>());
+        ordinals = new HashMap<String, Integer>();
+        keys = new ArrayList<Object>();
+        all = new TagBitmap();
+        pending = new LinkedHashMap<String, Change>();
+    }
+
+    /**
+     * Tags the photo with <code>key</code> with the tag (or puts it in the album)
+     * <code>name</code>.
+     *
+     * @param kind TAG or ALBUM
+     * @param name The name of the tag or album
+     * @param key The unique key value of the photo
+     * @return <code>true</code> if the photo did not have the tag yet
+     */
+    public synchronized boolean add(int kind, String name, Object key)
+    {
+        if (!load(kind, name, key))
+            return false;
+        queue(new Change(kind, name, key, true));
+        return true;
+    }
+
+    /**
+     * Removes the tag (or album) <code>name</code> from the photo with <code>key</code>.
+     *
+     * @return <code>true</code> if the photo had the tag
+     */
+    public synchronized boolean remove(int kind, String name, Object key)
+    {
+        Integer ordinal = ordinals.get(key.toString());
+        TagBitmap bitmap = names(kind).get(name);
+        if (ordinal == null || bitmap == null || !bitmap.remove(ordinal))
+            return false;
+
+        if (bitmap.isEmpty())
+            names(kind).remove(name);
+        queue(new Change(kind, name, key, false));
+        return true;
+    }
+
+    /**
+     * Returns (a copy of) the ordinals of the photos with a tag (or in an album);
+     * combine them with TagBitmap.and(), or() and andNot(), and turn them into
+     * keys with getKeys().
+     *
+     * @param kind TAG or ALBUM
+     * @param name The name of the tag or album
+     * @return The photos with the tag, which is empty if there is no such tag
+     */
+    public synchronized TagBitmap get(int kind, String name)
+    {
+        TagBitmap bitmap = names(kind).get(name);
+        return (bitmap != null) ? bitmap.copy() : new TagBitmap();
+    }
+
+    /**
+     * @return (A copy of) the ordinals of all photos that have any tag or album,
+     * e.g. to take NOT of a tag with <code>getAll().andNot(...)</code>
+     */
+    public synchronized TagBitmap getAll()
+    {
+        return all.copy();
+    }
+
+    /**
+     * @return The number of photos with the tag (or in the album) <code>name</code>
+     */
+    public synchronized int count(int kind, String name)
+    {
+        TagBitmap bitmap = names(kind).get(name);
+        return (bitmap != null) ? bitmap.cardinality() : 0;
+    }
+
+    /**
+     * @param kind TAG or ALBUM
+     * @return The number of photos with each tag (or in each album), by name in
+     * alphabetical order
+     */
+    public synchronized TreeMap<String, Integer> getCounts(int kind)
+    {
+        TreeMap<String, Integer> counts = new TreeMap<String, Integer>();
+        for (Map.Entry<String, TagBitmap> entry : names(kind).entrySet())
+            counts.put(entry.getKey(), entry.getValue().cardinality());
+        return counts;
+    }
+
+    /**
+     * @param kind TAG or ALBUM
+     * @param key The unique key value of the photo
+     * @return The names of the tags (or albums) of the photo, in alphabetical order
+     */
+    public synchronized List<String> getNames(int kind, Object key)
+    {
+        ArrayList<String> names = new ArrayList<String>();
+        Integer ordinal = ordinals.get(key.toString());
+        if (ordinal != null)
+            for (Map.Entry<String, TagBitmap> entry : names(kind).entrySet())
+                if (entry.getValue().contains(ordinal))
+                    names.add(entry.getKey());
+        return names;
+    }
+
+    /**
+     * @param photos Ordinals from get() or getAll(), or a combination of them
+     * @return The unique key values of the photos
+     */
+    public synchronized Object[] getKeys(TagBitmap photos)
+    {
+        ArrayList<Object> result = new ArrayList<Object>();
+        for (int ordinal : photos.toArray())
+            if (ordinal < keys.size() && keys.get(ordinal) != null)
+                result.add(keys.get(ordinal));
+        return result.toArray();
+    }
+
+    /**
+     * Forgets the photo with <code>key</code>, along with its pending changes;
+     * call this after it has been deleted from the table (which deletes its tags).
+     */
+    public synchronized void removePhoto(Object key)
+    {
+        Integer ordinal = ordinals.remove(key.toString());
+        if (ordinal == null)
+            return;
+
+        keys.set(ordinal, null);
+        all.remove(ordinal);
+        for (TreeMap<String, TagBitmap> names : bitmaps)
+            for (Iterator<TagBitmap> it = names.values().iterator(); it.hasNext(); )
+            {
+                TagBitmap bitmap = it.next();
+                if (bitmap.remove(ordinal) && bitmap.isEmpty())
+                    it.remove();
+            }
+        for (Iterator<Change> it = pending.values().iterator(); it.hasNext(); )
+            if (it.next().key.toString().equals(key.toString()))
+                it.remove();
+    }
+
+    /**
+     * @return The number of changes that have yet to be written to the tag table
+     */
+    public synchronized int getPendingCount()
+    {
+        return pending.size();
+    }
+
+    /**
+     * Adds a tag that is already in the tag table, i.e. without making it a
+     * pending change, and returns whether the photo did not have it yet.
+     */
+    synchronized boolean load(int kind, String name, Object key)
+    {
+        Integer ordinal = ordinals.get(key.toString());
+        if (ordinal == null)
+        {
+            ordinal = keys.size();
+            keys.add(key);
+            ordinals.put(key.toString(), ordinal);
+            all.add(ordinal);
+        }
+
+        TagBitmap bitmap = names(kind).get(name);
+        if (bitmap == null)
+        {
+            bitmap = new TagBitmap();
+            names(kind).put(name, bitmap);
+        }
+        return bitmap.add(ordinal);
+    }
+
+    /**
+     * Takes all pending changes, in the order they were made, to write them.
+     */
+    synchronized List<Change> takePending()
+    {
+        ArrayList<Change> changes = new ArrayList<Change>(pending.values());
+        pending.clear();
+        return changes;
+    }
+
+    /**
+     * Puts back changes that failed to be written, unless a newer change to the
+     * same (tag, photo) has been made since.
+     */
+    synchronized void putBack(List<Change> changes)
+    {
+        LinkedHashMap<String, Change> merged = new LinkedHashMap<String, Change>();
+        for (Change c : changes)
+            merged.put(c.id(), c);
+        merged.putAll(pending);
+        pending = merged;
+    }
+
+    private TreeMap<String, TagBitmap> names(int kind)
+    {
+        if (kind != TAG && kind != ALBUM)
+            throw new IllegalArgumentException("Unknown kind: " + kind);
+        return bitmaps.get(kind);
+    }
+
+    private void queue(Change c)
+    {
+        pending.remove(c.id());                                                //So the order stays that of the changes
+        pending.put(c.id(), c);
+    }
+
+    /**
+     * A tag (or album) that was added to or removed from a photo.
+     */
+    static class Change
+    {
+        final int kind;
+        final String name;
+        final Object key;
+        final boolean added;
+
+        Change(int kind, String name, Object key, boolean added)
+        {
+            this.kind = kind;
+            this.name = name;
+            this.key = key;
+            this.added = added;
+        }
+
+        String id()
+        {
+            return kind + "\u0000" + name + "\u0000" + key;
+        }
+    }
+}
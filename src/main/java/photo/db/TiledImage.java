@@ -0,0 +1,206 @@
+/**
+ * This file is part of PhotoDB - MySQL client/GUI for accessing photo databases
+ * 
+ * Copyright (C) 2014 by Michael Wang
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *   
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>. 
+ */
+package photo.db;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+
+/**
+ * A view of an image file as a pyramid of tiles, for images too large to decode
+ * whole. Only the header is read on construction; each tile is then decoded on
+ * demand from its own region of the file, subsampled for the zoom level it is
+ * for, and kept in an LRU cache.
+ *
+ * At level <code>n</code>, every 2^n-th pixel (in each direction) is decoded,
+ * and each tile is TILE_SIZE x TILE_SIZE of those pixels, i.e. it covers a
+ * (TILE_SIZE * 2^n)-pixel square of the full image. The top level is the first
+ * one at which the whole image fits into a single tile.
+ *
+ * All methods are synchronized, since there is only one ImageReader per file.
+ */
+public class TiledImage
+{
+    public static final int TILE_SIZE = 256;
+
+    private File file;
+    private ImageInputStream iis;
+    private ImageReader reader;
+    private int width, height;
+    private int topLevel;
+
+    // Decoded tiles, least recently used first
+    private LinkedHashMap<Long, BufferedImage> tiles;
+
+    /**
+     * Opens <code>file</code> and reads the dimensions of the image from its header.
+     *
+     * @param file The image file
+     * @param maxTiles The maximum number of tiles to keep decoded; at 256x256
+     * (32-bit) pixels, each tile takes 256KB
+     * @throws IOException If the file cannot be read or is not a supported image
+     */
+    public TiledImage(File file, final int maxTiles) throws IOException
+    {
+        this.file = file;
+        iis = ImageIO.createImageInputStream(file);
+        if (iis == null)
+            throw new IOException("Cannot open " + file);
+
+        Iterator<ImageReader> readers = ImageIO.getImageReaders(iis);
+        if (!readers.hasNext())
+        {
+            iis.close();
+            throw new IOException("No image reader for " + file);
+        }
+        reader = readers.next();
+        reader.setInput(iis, false, true);                                  //Tiles are read in any order; ignore metadata
+
+        width = reader.getWidth(0);
+        height = reader.getHeight(0);
+        while (Math.max(width, height) > (TILE_SIZE << topLevel))
+            topLevel++;
+
+        tiles = new LinkedHashMap<Long, BufferedImage>(16, 0.75f, true) {
+            protected boolean removeEldestEntry(Map.Entry<Long, BufferedImage> eldest)
+            {
+                return size() > maxTiles;
+            }
+        };
+    }
+
+    public File getFile()
+    {
+        return file;
+    }
+
+    public synchronized int getWidth()
+    {
+        return width;
+    }
+
+    public synchronized int getHeight()
+    {
+        return height;
+    }
+
+    /**
+     * @return The level at which the whole image fits into tile (0, 0)
+     */
+    public synchronized int getTopLevel()
+    {
+        return topLevel;
+    }
+
+    /**
+     * Returns the level to draw tiles from when the image is displayed at
+     * <code>scale</code> (display pixels per image pixel), i.e. the coarsest level
+     * that still has at least one decoded pixel per display pixel.
+     *
+     * @param scale The display scale
+     * @return The level, from 0 to getTopLevel()
+     */
+    public synchronized int getLevelForScale(double scale)
+    {
+        int level = 0;
+        while (level < topLevel && (1 << (level + 1)) * scale <= 1)
+            level++;
+        return level;
+    }
+
+    /**
+     * Returns the number of tile columns (<code>[0]</code>) and rows
+     * (<code>[1]</code>) at <code>level</code>.
+     */
+    public synchronized int[] getTileCount(int level)
+    {
+        int span = TILE_SIZE << level;
+        return new int[] { (width + span - 1) / span, (height + span - 1) / span };
+    }
+
+    /**
+     * Returns the tile, if it has already been decoded (and not evicted).
+     *
+     * @return The tile, or null if it has to be decoded with decodeTile()
+     */
+    public synchronized BufferedImage getCachedTile(int level, int col, int row)
+    {
+        return tiles.get(tileKey(level, col, row));
+    }
+
+    /**
+     * Decodes the tile at column <code>col</code> and row <code>row</code> of
+     * <code>level</code> (unless it is cached) and caches it. Tiles on the right
+     * and bottom edges are smaller than TILE_SIZE.
+     *
+     * @return The tile
+     * @throws IOException If the region cannot be decoded
+     */
+    public synchronized BufferedImage decodeTile(int level, int col, int row) throws IOException
+    {
+        if (reader == null)
+            throw new IOException("Image has been closed");
+
+        Long key = tileKey(level, col, row);
+        BufferedImage tile = tiles.get(key);
+        if (tile != null)
+            return tile;
+
+        int span = TILE_SIZE << level;
+        Rectangle region = new Rectangle(col * span, row * span, span, span).intersection(
+                new Rectangle(0, 0, width, height));
+        ImageReadParam param = reader.getDefaultReadParam();
+        param.setSourceRegion(region);
+        param.setSourceSubsampling(1 << level, 1 << level, 0, 0);
+
+        tile = reader.read(0, param);
+        tiles.put(key, tile);
+        return tile;
+    }
+
+    /**
+     * Releases the file and all decoded tiles.
+     */
+    public synchronized void close()
+    {
+        if (reader == null)
+            return;
+
+        reader.dispose();
+        reader = null;
+        tiles.clear();
+        try {
+            iis.close();
+        } catch (IOException e) { e.printStackTrace(); }
+    }
+
+    private static Long tileKey(int level, int col, int row)
+    {
+        return ((long) level << 48) | ((long) col << 24) | row;
+    }
+}
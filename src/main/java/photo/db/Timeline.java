@@ -0,0 +1,171 @@
+/**
+ * This file is part of PhotoDB - MySQL client/GUI for accessing photo databases
+ * 
+ * Copyright (C) 2014 by Michael Wang
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *   
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>. 
+ */
+package photo.db;
+
+import java.sql.Date;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.TreeMap;
+
+/**
+ * The number of photos per day, month and year of a date column (see
+ * PhotoDB.setTimelineColumn()), kept client-side so that a histogram of the
+ * whole library can be drawn without a query. The counts are built from the
+ * properties by PhotoDB.retrievePhotoPropertiesOnly() and then kept up to date
+ * one photo at a time as rows are inserted and deleted, so they never need to be
+ * recounted.
+ *
+ * Buckets are named by the start of their date: "2014", "2014-05" and
+ * "2014-05-01"; getRange() turns a bucket back into its first and last day,
+ * e.g. for a range query on the date column. All public methods are synchronized.
+ */
+public class Timeline
+{
+    public static final int DAY = 0;
+    public static final int MONTH = 1;
+    public static final int YEAR = 2;
+    // The length of the bucket names of each resolution, which are prefixes of "yyyy-mm-dd"
+    private static final int[] NAME_LENGTHS = { 10, 7, 4 };
+
+    // The number of photos in each bucket, by resolution and bucket name
+    private ArrayList<TreeMap<String, Integer>> counts;
+
+    // The day of each photo, by (the String value of) its key
+    private HashMap<String, String> days;
+
+    public Timeline()
+    {
+        counts = new ArrayList<TreeMap<String, Integer>>();
+        for (int i = 0; i < NAME_LENGTHS.length; i++)
+            counts.add(new TreeMap<String, Integer>());
+        days = new HashMap<String, String>();
+    }
+
+    /**
+     * Counts the photo with <code>key</code> on the day of <code>date</code>,
+     * moving it if it was counted already.
+     *
+     * @param key The unique key value of the photo
+     * @param date A java.sql.Date or Timestamp, or its String value; only the day is used
+     * @throws IllegalArgumentException If <code>date</code> does not start with yyyy-mm-dd
+     */
+    public synchronized void add(Object key, Object date)
+    {
+        String day = date.toString();
+        if (day.length() < 10 || !day.substring(0, 10).matches("\\d{4}-\\d{2}-\\d{2}"))
+            throw new IllegalArgumentException("Not a date: " + date);
+        day = day.substring(0, 10);
+
+        String old = days.put(key.toString(), day);
+        if (old != null)
+            count(old, -1);
+        count(day, 1);
+    }
+
+    /**
+     * Stops counting the photo with <code>key</code>, if it is counted.
+     *
+     * @param key The unique key value of the photo
+     */
+    public synchronized void remove(Object key)
+    {
+        String day = days.remove(key.toString());
+        if (day != null)
+            count(day, -1);
+    }
+
+    /**
+     * @param resolution DAY, MONTH or YEAR
+     * @return The number of photos in each bucket that has any, in order of date
+     */
+    public synchronized TreeMap<String, Integer> getCounts(int resolution)
+    {
+        return new TreeMap<String, Integer>(buckets(resolution));
+    }
+
+    /**
+     * @param resolution DAY, MONTH or YEAR
+     * @param bucket The name of the bucket, e.g. "2014-05" for a month
+     * @return The number of photos in the bucket
+     */
+    public synchronized int count(int resolution, String bucket)
+    {
+        Integer count = buckets(resolution).get(bucket);
+        return (count != null) ? count : 0;
+    }
+
+    /**
+     * @return The number of photos that are counted
+     */
+    public synchronized int size()
+    {
+        return days.size();
+    }
+
+    /**
+     * Returns the first and last day of a bucket, e.g. 2014-05-01 and 2014-05-31
+     * for "2014-05".
+     *
+     * @param bucket The name of a day, month or year bucket
+     * @return { first day, last day }
+     * @throws IllegalArgumentException If <code>bucket</code> is not the name of a bucket
+     */
+    public static Date[] getRange(String bucket)
+    {
+        if (bucket.length() == NAME_LENGTHS[DAY])
+            return new Date[] { Date.valueOf(bucket), Date.valueOf(bucket) };
+        if (bucket.length() == NAME_LENGTHS[YEAR])
+            return new Date[] { Date.valueOf(bucket + "-01-01"), Date.valueOf(bucket + "-12-31") };
+        if (bucket.length() != NAME_LENGTHS[MONTH])
+            throw new IllegalArgumentException("Not a bucket: " + bucket);
+
+        int year = Integer.parseInt(bucket.substring(0, 4)), month = Integer.parseInt(bucket.substring(5, 7));
+        if (month < 1 || month > 12)
+            throw new IllegalArgumentException("Not a bucket: " + bucket);
+        int[] lengths = { 31, 28, 31, 30, 31, 30, 31, 31, 30, 31, 30, 31 };
+        boolean leap = (year % 4 == 0 && year % 100 != 0) || year % 400 == 0;
+        int last = lengths[month - 1] + (month == 2 && leap ? 1 : 0);
+        return new Date[] { Date.valueOf(bucket + "-01"), Date.valueOf(bucket + "-" + last) };
+    }
+
+    private TreeMap<String, Integer> buckets(int resolution)
+    {
+        if (resolution < DAY || resolution > YEAR)
+            throw new IllegalArgumentException("Unknown resolution: " + resolution);
+        return counts.get(resolution);
+    }
+
+    /**
+     * Adds <code>delta</code> to the buckets of <code>day</code> at each
+     * resolution, dropping buckets that become empty.
+     */
+    private void count(String day, int delta)
+    {
+        for (int i = 0; i < NAME_LENGTHS.length; i++)
+        {
+            String bucket = day.substring(0, NAME_LENGTHS[i]);
+            Integer count = counts.get(i).get(bucket);
+            int n = ((count != null) ? count : 0) + delta;
+            if (n > 0)
+                counts.get(i).put(bucket, n);
+            else
+                counts.get(i).remove(bucket);
+        }
+    }
+}
@@ -0,0 +1,186 @@
+/**
+ * This file is part of PhotoDB - MySQL client/GUI for accessing photo databases
+ * 
+ * Copyright (C) 2014 by Michael Wang
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *   
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>. 
+ */
+package photo.db;
+
+import java.awt.Color;
+import java.awt.Dimension;
+import java.awt.FontMetrics;
+import java.awt.Graphics;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.awt.event.MouseAdapter;
+import java.awt.event.MouseEvent;
+import java.util.ArrayList;
+import java.util.TreeMap;
+
+import javax.swing.JPanel;
+
+/**
+ * A histogram of the number of photos per month (see Timeline), one bar per
+ * month from the first month with photos to the last, empty months included.
+ * Clicking a bar selects its month and fires an ActionEvent whose command is the
+ * name of the month (e.g. "2014-05"); clicking the selected bar again deselects
+ * it and fires an empty command.
+ */
+public class TimelinePanel extends JPanel
+{
+    private static final long serialVersionUID = 1L;
+    
+    private static final int HEIGHT = 70, LABEL_HEIGHT = 14, PADDING = 5;
+    private static final Color BAR = new Color(120, 150, 200), SELECTED = new Color(220, 120, 50);
+
+    // The months shown, in order, and the number of photos in each
+    private String[] months = new String[0];
+    private int[] counts = new int[0];
+    private int maxCount;
+    private String selected = "";
+    private ArrayList<ActionListener> listeners = new ArrayList<ActionListener>();
+
+    public TimelinePanel()
+    {
+        setBackground(Color.WHITE);
+        setPreferredSize(new Dimension(0, HEIGHT));
+        setToolTipText("");                                                    //Tooltips come from getToolTipText(MouseEvent)
+
+        addMouseListener(new MouseAdapter() {
+            public void mouseClicked(MouseEvent e)
+            {
+                int i = monthAt(e.getX());
+                if (i == -1)
+                    return;
+                selected = months[i].equals(selected) ? "" : months[i];
+                repaint();
+                ActionEvent event = new ActionEvent(TimelinePanel.this, ActionEvent.ACTION_PERFORMED, selected);
+                for (ActionListener l : listeners)
+                    l.actionPerformed(event);
+            }
+        });
+    }
+
+    /**
+     * Shows the counts of the months in <code>monthCounts</code> (see
+     * Timeline.getCounts()), with the months in between as empty bars, and clears
+     * the selection.
+     *
+     * @param monthCounts The number of photos by month ("yyyy-mm"); may be empty
+     */
+    public void setCounts(TreeMap<String, Integer> monthCounts)
+    {
+        ArrayList<String> names = new ArrayList<String>();
+        ArrayList<Integer> values = new ArrayList<Integer>();
+        if (!monthCounts.isEmpty())
+        {
+            int first = monthNumber(monthCounts.firstKey()), last = monthNumber(monthCounts.lastKey());
+            for (int m = first; m <= last; m++)
+            {
+                String name = String.format("%04d-%02d", m / 12, m % 12 + 1);
+                Integer count = monthCounts.get(name);
+                names.add(name);
+                values.add((count != null) ? count : 0);
+            }
+        }
+
+        months = names.toArray(new String[names.size()]);
+        counts = new int[values.size()];
+        maxCount = 0;
+        for (int i = 0; i < counts.length; i++)
+        {
+            counts[i] = values.get(i);
+            maxCount = Math.max(maxCount, counts[i]);
+        }
+        selected = "";
+        repaint();
+    }
+
+    /**
+     * Clears the selection, without firing an event.
+     */
+    public void clearSelection()
+    {
+        selected = "";
+        repaint();
+    }
+
+    public void addActionListener(ActionListener l)
+    {
+        listeners.add(l);
+    }
+
+    public String getToolTipText(MouseEvent e)
+    {
+        int i = monthAt(e.getX());
+        return (i == -1) ? null : months[i] + ": " + counts[i] + " photo" + (counts[i] == 1 ? "" : "s");
+    }
+
+    protected void paintComponent(Graphics g)
+    {
+        super.paintComponent(g);
+        if (months.length == 0)
+            return;
+
+        int barHeight = getHeight() - LABEL_HEIGHT - 2 * PADDING;
+        int base = PADDING + barHeight;
+        FontMetrics fm = g.getFontMetrics();
+        int lastLabel = Integer.MIN_VALUE;
+        for (int i = 0; i < months.length; i++)
+        {
+            int x0 = barX(i), x1 = barX(i + 1);
+            int h = (counts[i] == 0) ? 0 : Math.max(1, counts[i] * barHeight / maxCount);
+            g.setColor(months[i].equals(selected) ? SELECTED : BAR);
+            g.fillRect(x0, base - h, Math.max(1, x1 - x0 - 1), h);
+
+            // Label each year where it starts, if there is room
+            if (months[i].endsWith("-01") || i == 0)
+            {
+                String year = months[i].substring(0, 4);
+                if (x0 > lastLabel && x0 + fm.stringWidth(year) <= getWidth())
+                {
+                    g.setColor(Color.DARK_GRAY);
+                    g.drawString(year, x0, base + LABEL_HEIGHT);
+                    g.drawLine(x0, base, x0, base + 3);
+                    lastLabel = x0 + fm.stringWidth(year) + 4;
+                }
+            }
+        }
+    }
+
+    private int barX(int i)
+    {
+        return PADDING + (int) ((long) i * (getWidth() - 2 * PADDING) / months.length);
+    }
+
+    /**
+     * Returns the index of the month whose bar is at <code>x</code>, or -1.
+     */
+    private int monthAt(int x)
+    {
+        if (months.length == 0 || x < PADDING || x >= getWidth() - PADDING)
+            return -1;
+        int i = (int) ((long) (x - PADDING) * months.length / (getWidth() - 2 * PADDING));
+        return Math.min(i, months.length - 1);
+    }
+
+    /**
+     * Returns the number of months from year 0 to the month "yyyy-mm".
+     */
+    private static int monthNumber(String month)
+    {
+        return Integer.parseInt(month.substring(0, 4)) * 12 + Integer.parseInt(month.substring(5, 7)) - 1;
+    }
+}
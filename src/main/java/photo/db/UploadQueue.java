@@ -0,0 +1,638 @@
+/**
+ * This file is part of PhotoDB - MySQL client/GUI for accessing photo databases
+ * 
+ * Copyright (C) 2014 by Michael Wang
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *   
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>. 
+ */
+package photo.db;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.sql.Date;
+import java.sql.SQLException;
+import java.sql.SQLNonTransientException;
+import java.sql.SQLRecoverableException;
+import java.sql.SQLTransientException;
+import java.sql.Time;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * A write-behind queue of rows to insert with PhotoDB.insertRow(), so that an
+ * upload returns as soon as its rows are queued. Each row is first appended to a
+ * journal file (and synced to disk), and a flusher thread then inserts the
+ * queued rows in batches, appending the outcome of each (INSERTED, EXISTED or
+ * FAILED) once a batch is done. A row whose insert throws a transient error
+ * (see isTransient(), e.g. a lost connection) is retried, with a delay that
+ * doubles each time, up to MAX_ATTEMPTS times; the rest of its batch waits for
+ * it, so rows are inserted in the order they were added. A row that cannot go
+ * in as it is (e.g. a value too long for its column) fails right away.
+ *
+ * Opening a queue replays its journal: rows that were added but have no outcome
+ * (e.g. because the program crashed) are queued again. A row whose insert went
+ * through before the crash but whose outcome was not written yet is inserted
+ * again, which insertRow() turns down since its unique key exists, so nothing is
+ * inserted twice. The image files of the rows are not copied into the journal,
+ * so they must still be there when the rows are inserted; rows whose files are
+ * gone fail right away.
+ *
+ * Each journal record is a type, an id, the length and bytes of its payload and
+ * a CRC-32 of the type, id and payload; a torn record at the end of the journal
+ * (from a crash while appending) is cut off when the journal is opened. The
+ * journal is emptied whenever no rows are left to insert. Only one queue at a
+ * time can have a journal open.
+ */
+public class UploadQueue
+{
+    // The outcomes of the rows, as written to the journal
+    public static final byte INSERTED = 1;
+    public static final byte EXISTED = 2;                                    //Its unique key was in the table already
+    public static final byte FAILED = 3;
+
+    public static final int BATCH_SIZE = 20;
+    public static final int MAX_ATTEMPTS = 5;
+    private static final long RETRY_DELAY_MS = 1000;
+
+    // Journal record types, and the bytes of a record besides its payload (type, id, length, CRC)
+    private static final byte ADD = 'A', OUTCOME = 'O';
+    private static final int RECORD_OVERHEAD = 1 + 8 + 4 + 4;
+
+    // Tags of the values in a row, by type
+    private static final byte NULL = 0, INT = 1, BOOLEAN = 2, LONG = 3, DOUBLE = 4, STRING = 5, DATE = 6,
+                                TIME = 7, TIMESTAMP = 8, FILE = 9;
+
+    // The queues whose journals are open, by journal (see close())
+    private static final HashMap<File, UploadQueue> openJournals = new HashMap<File, UploadQueue>();
+
+    /**
+     * Is told about the progress of an UploadQueue. The methods are called on the
+     * flusher thread, or on the thread that added a row.
+     */
+    public interface Listener
+    {
+        /**
+         * @param inserted The rows inserted (or found to be in the table already)
+         * since the queue was opened
+         * @param failed The rows given up on since the queue was opened
+         * @param pending The rows still to insert
+         */
+        void progress(int inserted, int failed, int pending);
+
+        /**
+         * Called when a row is given up on.
+         *
+         * @param data The row
+         * @param cause The exception of its last attempt
+         */
+        void failed(Object[] data, Exception cause);
+    }
+
+    private final PhotoDB db;
+    private final File journalFile;
+    private RandomAccessFile journal;
+
+    // The rows still to insert, by id, in the order they were added
+    private LinkedHashMap<Long, Object[]> pending;
+    private long nextId;
+    private int inserted, failed;
+    private ArrayList<Listener> listeners;
+
+    private Thread flusher;
+    private volatile boolean stopped;
+    private boolean flushing, closed;
+
+    /**
+     * Opens the queue of <code>journalFile</code> (creating it if it does not
+     * exist), and queues the rows that are in it without an outcome. Nothing is
+     * inserted until start() is called. If a queue of the same journal is still
+     * closing (see close()), this waits until it is closed.
+     *
+     * @param db The database to insert the rows into
+     * @param journalFile The journal of the queue
+     * @throws IOException If the journal cannot be read or created, or if
+     * another queue has it open
+     */
+    public UploadQueue(PhotoDB db, File journalFile) throws IOException
+    {
+        this.db = db;
+        this.journalFile = journalFile.getAbsoluteFile();
+        pending = new LinkedHashMap<Long, Object[]>();
+        listeners = new ArrayList<Listener>();
+
+        synchronized (openJournals)
+        {
+            UploadQueue other;
+            while ((other = openJournals.get(this.journalFile)) != null)
+            {
+                if (!other.stopped)
+                    throw new IOException("The upload journal " + journalFile + " is in use");
+                try {
+                    openJournals.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while waiting for the upload journal", e);
+                }
+            }
+            openJournals.put(this.journalFile, this);
+        }
+
+        try {
+            File dir = this.journalFile.getParentFile();
+            if (dir != null && !dir.exists())
+                dir.mkdirs();
+            long end = replay();
+            journal = new RandomAccessFile(journalFile, "rw");
+            if (journal.length() > end)
+                journal.setLength(end);                                        //Cut off a torn record
+            journal.seek(end);
+        } catch (IOException e) {
+            release();
+            throw e;
+        }
+    }
+
+    /**
+     * Starts inserting the queued rows, on a (daemon) flusher thread.
+     */
+    public synchronized void start()
+    {
+        if (flusher != null || stopped)
+            return;
+
+        flushing = true;
+        flusher = new Thread(new Runnable() {
+            public void run()
+            {
+                try {
+                    flush();
+                } finally {
+                    synchronized (UploadQueue.this)
+                    {
+                        flushing = false;
+                        try {
+                            if (stopped)
+                                closeJournal();                                //close() left it to the flusher
+                        } catch (IOException e) { e.printStackTrace(); }
+                    }
+                }
+            }
+        }, "UploadQueue flusher");
+        flusher.setDaemon(true);                                            //The journal keeps what it has not done
+        flusher.start();
+    }
+
+    /**
+     * Queues <code>data</code> to be inserted with PhotoDB.insertRow(); it is in
+     * the journal (on disk) when this method returns.
+     *
+     * @param data The row, as for PhotoDB.insertRow()
+     * @throws IOException If the row cannot be written to the journal
+     * @throws IllegalArgumentException If a value in the row is not of one of the
+     * types of PhotoDB.insertRow()
+     */
+    public void add(Object[] data) throws IOException
+    {
+        byte[] payload = encode(data);
+        synchronized (this)
+        {
+            long id = nextId++;
+            append(record(ADD, id, payload));
+            pending.put(id, data.clone());
+            notifyAll();
+        }
+        fireProgress();
+    }
+
+    public synchronized void addListener(Listener l)
+    {
+        listeners.add(l);
+    }
+
+    /**
+     * @return The number of rows still to insert
+     */
+    public synchronized int getPending()
+    {
+        return pending.size();
+    }
+
+    /**
+     * Stops the flusher once it has finished the row it is inserting (if any),
+     * and closes the journal; the rows that are left stay in it for the next time
+     * it is opened. If none are left, the journal is deleted.
+     *
+     * This returns right away, so it can be called on the event dispatch thread:
+     * if a row is being inserted, the flusher closes the journal once it is done,
+     * and a new queue of the same journal waits for that.
+     *
+     * @throws IOException If the journal cannot be closed
+     */
+    public synchronized void close() throws IOException
+    {
+        stopped = true;
+        notifyAll();
+        if (!flushing)
+            closeJournal();
+    }
+
+    /**
+     * Closes the journal (deleting it if no rows are left), unless it is closed
+     * already, and lets the next queue of it open it.
+     */
+    private synchronized void closeJournal() throws IOException
+    {
+        if (closed)
+            return;
+        closed = true;
+        try {
+            journal.close();
+            if (pending.isEmpty())
+                journalFile.delete();
+        } finally {
+            release();
+        }
+    }
+
+    private void release()
+    {
+        synchronized (openJournals)
+        {
+            if (openJournals.get(journalFile) == this)
+                openJournals.remove(journalFile);
+            openJournals.notifyAll();
+        }
+    }
+
+    /**
+     * The flusher: takes up to BATCH_SIZE rows at a time, inserts them, and then
+     * writes their outcomes at once. A row that fails with attempts left ends
+     * the batch early, and the flusher waits before trying it again.
+     */
+    private void flush()
+    {
+        HashMap<Long, Integer> attempts = new HashMap<Long, Integer>();
+        while (true)
+        {
+            ArrayList<Map.Entry<Long, Object[]>> batch = new ArrayList<Map.Entry<Long, Object[]>>();
+            synchronized (this)
+            {
+                while (!stopped && pending.isEmpty())
+                {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) { return; }
+                }
+                if (stopped)
+                    return;
+                for (Map.Entry<Long, Object[]> entry : pending.entrySet())
+                {
+                    batch.add(entry);
+                    if (batch.size() == BATCH_SIZE)
+                        break;
+                }
+            }
+
+            ByteArrayOutputStream outcomes = new ByteArrayOutputStream();
+            ArrayList<Long> done = new ArrayList<Long>();
+            int numInserted = 0;
+            long delay = 0;
+            for (Map.Entry<Long, Object[]> entry : batch)
+            {
+                if (stopped)
+                    break;
+
+                long id = entry.getKey();
+                Object[] data = entry.getValue();
+                byte outcome;
+                try {
+                    File missing = missingFile(data);
+                    if (missing != null)
+                        throw new FileNotFoundException(missing.getPath());
+                    outcome = db.insertRow(data) ? INSERTED : EXISTED;
+                    numInserted++;
+                } catch (Exception e) {
+                    if (stopped)
+                        break;                                                //E.g. disconnected; it is tried next time
+                    int attempt = (attempts.containsKey(id) ? attempts.get(id) : 0) + 1;
+                    if (attempt < MAX_ATTEMPTS && isTransient(e))
+                    {
+                        attempts.put(id, attempt);
+                        delay = RETRY_DELAY_MS << (attempt - 1);
+                        break;
+                    }
+                    outcome = FAILED;
+                    for (Listener l : getListeners())
+                        l.failed(data, e);
+                }
+
+                attempts.remove(id);
+                byte[] record = record(OUTCOME, id, new byte[] { outcome });
+                outcomes.write(record, 0, record.length);
+                done.add(id);
+            }
+
+            synchronized (this)
+            {
+                // If the outcomes cannot be written, the rows are replayed (and turned down) next time
+                try {
+                    if (!done.isEmpty())
+                        append(outcomes.toByteArray());
+                } catch (IOException e) { e.printStackTrace(); }
+                for (Long id : done)
+                    pending.remove(id);
+                inserted += numInserted;
+                failed += done.size() - numInserted;
+                
+                try {
+                    if (pending.isEmpty())
+                    {
+                        journal.setLength(0);                                //Nothing left to replay
+                        journal.seek(0);
+                    }
+                } catch (IOException e) { e.printStackTrace(); }
+            }
+            fireProgress();
+
+            if (delay > 0)
+            {
+                synchronized (this)
+                {
+                    long until = System.currentTimeMillis() + delay;
+                    while (!stopped && System.currentTimeMillis() < until)
+                    {
+                        try {
+                            wait(Math.max(1, until - System.currentTimeMillis()));
+                        } catch (InterruptedException e) { return; }
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads the journal, if there is one: queues the rows that were added without
+     * an outcome, and sets nextId past the ids in it.
+     *
+     * @return The length of the journal up to its last whole record
+     */
+    private long replay() throws IOException
+    {
+        if (!journalFile.exists())
+            return 0;
+
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(journalFile)));
+        long end = 0, length = journalFile.length();
+        try {
+            while (true)
+            {
+                byte type;
+                long id;
+                byte[] payload;
+                try {
+                    type = in.readByte();
+                    id = in.readLong();
+                    int size = in.readInt();
+                    if (size < 0 || end + RECORD_OVERHEAD + size > length)
+                        break;
+                    payload = new byte[size];
+                    in.readFully(payload);
+                    int crc = in.readInt();
+                    if (crc != (int) checksum(type, id, payload))
+                        break;
+                } catch (EOFException e) {
+                    break;
+                }
+
+                if (type == ADD)
+                    pending.put(id, decode(payload));
+                else if (type == OUTCOME)
+                    pending.remove(id);
+                nextId = Math.max(nextId, id + 1);
+                end += RECORD_OVERHEAD + payload.length;
+            }
+        } finally {
+            in.close();
+        }
+        return end;
+    }
+
+    /**
+     * Appends <code>records</code> to the journal and syncs it to disk. If that
+     * fails, the journal is cut back to where it ended, so that a partly written
+     * record does not hide the records appended after it.
+     */
+    private void append(byte[] records) throws IOException
+    {
+        long end = journal.getFilePointer();
+        try {
+            journal.write(records);
+            journal.getFD().sync();
+        } catch (IOException e) {
+            try {
+                journal.setLength(end);
+                journal.seek(end);
+            } catch (IOException ex) { ex.printStackTrace(); }
+            throw e;
+        }
+    }
+
+    /**
+     * Returns a journal record: type (1 byte), id (8), payload length (4),
+     * payload, and a CRC-32 of the type, id and payload (4).
+     */
+    private static byte[] record(byte type, long id, byte[] payload)
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(RECORD_OVERHEAD + payload.length);
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeByte(type);
+            out.writeLong(id);
+            out.writeInt(payload.length);
+            out.write(payload);
+            out.writeInt((int) checksum(type, id, payload));
+        } catch (IOException e) { throw new AssertionError(e); }            //Not from a ByteArrayOutputStream
+        return bytes.toByteArray();
+    }
+
+    private static long checksum(byte type, long id, byte[] payload)
+    {
+        CRC32 crc = new CRC32();
+        crc.update(type);
+        for (int i = 56; i >= 0; i -= 8)
+            crc.update((int) (id >>> i));
+        crc.update(payload);
+        return crc.getValue();
+    }
+
+    /**
+     * Returns the bytes of <code>data</code>: the number of values, then each
+     * value as its tag followed by the value.
+     *
+     * @throws IllegalArgumentException If a value is not of a type insertRow() takes
+     */
+    private static byte[] encode(Object[] data)
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeInt(data.length);
+            for (Object value : data)
+            {
+                if (value == null)
+                    out.writeByte(NULL);
+                else if (value instanceof Integer)
+                {
+                    out.writeByte(INT);
+                    out.writeInt((Integer) value);
+                }
+                else if (value instanceof Boolean)
+                {
+                    out.writeByte(BOOLEAN);
+                    out.writeBoolean((Boolean) value);
+                }
+                else if (value instanceof Long)
+                {
+                    out.writeByte(LONG);
+                    out.writeLong((Long) value);
+                }
+                else if (value instanceof Double)
+                {
+                    out.writeByte(DOUBLE);
+                    out.writeDouble((Double) value);
+                }
+                else if (value instanceof String || value instanceof File)
+                {
+                    byte[] s = value.toString().getBytes("UTF-8");
+                    out.writeByte(value instanceof String ? STRING : FILE);
+                    out.writeInt(s.length);
+                    out.write(s);
+                }
+                else if (value instanceof Timestamp)
+                {
+                    out.writeByte(TIMESTAMP);
+                    out.writeLong(((Timestamp) value).getTime());
+                    out.writeInt(((Timestamp) value).getNanos());
+                }
+                else if (value instanceof Date || value instanceof Time)
+                {
+                    out.writeByte(value instanceof Date ? DATE : TIME);
+                    out.writeLong(((java.util.Date) value).getTime());
+                }
+                else
+                    throw new IllegalArgumentException("Cannot queue a value of " + value.getClass());
+            }
+        } catch (IOException e) { throw new AssertionError(e); }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Returns the row whose bytes are <code>payload</code> (see encode()).
+     */
+    private static Object[] decode(byte[] payload) throws IOException
+    {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+        Object[] data = new Object[in.readInt()];
+        for (int i = 0; i < data.length; i++)
+        {
+            byte tag = in.readByte();
+            switch (tag)
+            {
+            case NULL:      data[i] = null; break;
+            case INT:       data[i] = in.readInt(); break;
+            case BOOLEAN:   data[i] = in.readBoolean(); break;
+            case LONG:      data[i] = in.readLong(); break;
+            case DOUBLE:    data[i] = in.readDouble(); break;
+            case DATE:      data[i] = new Date(in.readLong()); break;
+            case TIME:      data[i] = new Time(in.readLong()); break;
+            case STRING:
+            case FILE:
+                byte[] s = new byte[in.readInt()];
+                in.readFully(s);
+                data[i] = (tag == STRING) ? new String(s, "UTF-8") : new File(new String(s, "UTF-8"));
+                break;
+            case TIMESTAMP:
+                Timestamp t = new Timestamp(in.readLong());
+                t.setNanos(in.readInt());
+                data[i] = t;
+                break;
+            default:
+                throw new IOException("Unknown value in the upload journal: " + tag);
+            }
+        }
+        return data;
+    }
+
+    /**
+     * Returns whether an insert that threw <code>e</code> may go through if it is
+     * tried again: for SQLTransientException and SQLRecoverableException (e.g. a
+     * timeout or a lost connection), and for SQLExceptions that are not
+     * SQLNonTransientExceptions unless their SQL state says the row itself is at
+     * fault (class 22 for data, e.g. a value too long for its column, 23 for
+     * constraints and 42 for syntax or access). Anything else, such as a missing
+     * file or an IllegalArgumentException, fails the same way every time.
+     */
+    private static boolean isTransient(Exception e)
+    {
+        if (e instanceof SQLTransientException || e instanceof SQLRecoverableException)
+            return true;
+        if (!(e instanceof SQLException) || e instanceof SQLNonTransientException)
+            return false;
+        String state = ((SQLException) e).getSQLState();
+        return state == null || !(state.startsWith("22") || state.startsWith("23") || state.startsWith("42"));
+    }
+
+    /**
+     * Returns the first file in <code>data</code> that does not exist, or null.
+     */
+    private static File missingFile(Object[] data)
+    {
+        for (Object value : data)
+            if (value instanceof File && !((File) value).isFile())
+                return (File) value;
+        return null;
+    }
+
+    private synchronized List<Listener> getListeners()
+    {
+        return new ArrayList<Listener>(listeners);
+    }
+
+    private void fireProgress()
+    {
+        int numInserted, numFailed, numPending;
+        synchronized (this)
+        {
+            numInserted = inserted;
+            numFailed = failed;
+            numPending = pending.size();
+        }
+        for (Listener l : getListeners())
+            l.progress(numInserted, numFailed, numPending);
+    }
+}
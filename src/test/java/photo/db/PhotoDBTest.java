@@ -0,0 +1,410 @@
+/**
+ * This file is part of PhotoDB - MySQL client/GUI for accessing photo databases
+ * 
+ * Copyright (C) 2014 by Michael Wang
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *   
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>. 
+ */
+package photo.db;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.awt.Image;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.imageio.ImageIO;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Tests PhotoDB against an embedded H2 database in MySQL mode, which stands in
+ * for the MySQL server: the connection pool, and inserts and deletes from
+ * several threads at once.
+ */
+public class PhotoDBTest
+{
+    private static final int THREADS = 8;
+    
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+    private PhotoDB db;
+    private File image;
+    
+    /**
+     * Returns a PhotoDB with the default schema whose "host" is the in-memory
+     * database <code>name</code> (which lives until the JVM exits, so several
+     * PhotoDBs can share it). Rows are not deduplicated by content hash, since
+     * deleteRow() then hands the image over with a multi-table UPDATE, which
+     * only MySQL supports.
+     */
+    static PhotoDB embedded(String name, File photoDir)
+    {
+        PhotoDB db = new PhotoDB(name) {
+            protected String getDatabaseURL(String hostname)
+            {
+                return "jdbc:h2:mem:" + hostname + ";MODE=MySQL;DATABASE_TO_LOWER=TRUE;DB_CLOSE_DELAY=-1";
+            }
+        };
+        db.setDBName("photodb");
+        db.setTableName("photos");
+        db.setUser("sa");
+        db.setPassword("");
+        db.setPhotoDirectory(photoDir.getPath());
+        db.setContentHashColumn(-1);
+        return db;
+    }
+    
+    /**
+     * Returns a row of the default schema with unique key <code>key</code> and
+     * <code>image</code> as both the image and the thumbnail.
+     */
+    static Object[] row(int key, File image)
+    {
+        return new Object[] { key, "photo" + key + ".png", "png", null, image.length(), null, image, image, null };
+    }
+    
+    @Before
+    public void setUp() throws Exception
+    {
+        db = embedded("photodb_test_" + System.nanoTime(), tmp.newFolder());
+        db.setPoolSize(3);
+        db.connect();
+        db.createTables();
+        
+        image = tmp.newFile("image.png");
+        ImageIO.write(new BufferedImage(32, 32, BufferedImage.TYPE_INT_RGB), "png", image);
+    }
+    
+    @After
+    public void tearDown() throws SQLException
+    {
+        db.disconnect();
+    }
+    
+    @Test
+    public void insertsAndDeletesRows() throws SQLException
+    {
+        assertTrue(db.insertRow(row(1, image)));
+        assertTrue(db.insertRow(row(2, image)));
+        assertFalse(db.insertRow(row(1, image)));
+        assertEquals(2, db.getRowCount());
+        
+        assertTrue(db.deleteRow(1));
+        assertFalse(db.deleteRow(1));
+        assertEquals(1, db.getRowCount());
+        assertEquals(1, db.getAllUniqueKeys().length);
+    }
+    
+    /**
+     * Each key is inserted by every thread at once, with more threads than
+     * connections in the pool; exactly one insert of each key may succeed.
+     */
+    @Test
+    public void concurrentInsertsOfTheSameKeySucceedOnce() throws Exception
+    {
+        final int keys = 40;
+        final AtomicInteger inserted = new AtomicInteger();
+        db.getAllUniqueKeys();                                              //Use the KeyIndex as well
+        
+        ExecutorService threads = Executors.newFixedThreadPool(THREADS);
+        List<Future<Void>> results = new ArrayList<Future<Void>>();
+        for (int t = 0; t < THREADS; t++)
+        {
+            results.add(threads.submit(new Callable<Void>() {
+                public Void call() throws SQLException
+                {
+                    for (int k = 0; k < keys; k++)
+                        if (db.insertRow(row(k, image)))
+                            inserted.incrementAndGet();
+                    return null;
+                }
+            }));
+        }
+        for (Future<Void> f : results)
+            f.get();
+        threads.shutdown();
+        
+        assertEquals(keys, inserted.get());
+        assertEquals(keys, db.getRowCount());
+    }
+    
+    /**
+     * Reads and writes from more threads than there are connections: every call
+     * gets a connection eventually, and all of them are returned afterwards.
+     */
+    @Test
+    public void concurrentReadsAndWritesShareThePool() throws Exception
+    {
+        ExecutorService threads = Executors.newFixedThreadPool(THREADS);
+        List<Future<Void>> results = new ArrayList<Future<Void>>();
+        for (int t = 0; t < THREADS; t++)
+        {
+            final int first = t * 10;
+            results.add(threads.submit(new Callable<Void>() {
+                public Void call() throws SQLException, IOException
+                {
+                    for (int k = first; k < first + 10; k++)
+                    {
+                        assertTrue(db.insertRow(row(k, image)));
+                        assertEquals(1, db.getPhotoThumbnails(0, 1, new ArrayList<Object>()).length);
+                        if (k % 2 == 0)
+                            assertTrue(db.deleteRow(k));
+                    }
+                    return null;
+                }
+            }));
+        }
+        for (Future<Void> f : results)
+            f.get();
+        threads.shutdown();
+        
+        assertEquals(THREADS * 5, db.getRowCount());
+        assertEquals(0, db.pool.getLeasedCount());
+    }
+    
+    /**
+     * Pages of thumbnails read at once on different connections cover every
+     * row exactly once.
+     */
+    @Test
+    public void thumbnailPagesCoverEveryRowOnce() throws Exception
+    {
+        for (int k = 30; k > 0; k--)                                        //Not in key order
+            db.insertRow(row(k * 7 % 31, image));
+        
+        ExecutorService threads = Executors.newFixedThreadPool(THREADS);
+        List<Future<List<Object>>> pages = new ArrayList<Future<List<Object>>>();
+        for (int offset = 0; offset < 30; offset += 4)
+        {
+            final int first = offset;
+            pages.add(threads.submit(new Callable<List<Object>>() {
+                public List<Object> call()
+                {
+                    List<Object> keys = new ArrayList<Object>();
+                    assertEquals(Math.min(4, 30 - first), db.getPhotoThumbnails(first, 4, keys).length);
+                    return keys;
+                }
+            }));
+        }
+        List<Object> all = new ArrayList<Object>();
+        for (Future<List<Object>> page : pages)
+            all.addAll(page.get());
+        threads.shutdown();
+        
+        assertEquals(30, all.size());
+        assertEquals(30, new HashSet<Object>(all).size());
+    }
+    
+    /**
+     * Returns a connected PhotoDB, with a pool of 2 connections, that stores the
+     * images in chunks of 16 bytes in a database of its own.
+     */
+    private PhotoDB connectChunked() throws Exception
+    {
+        PhotoDB chunked = embedded("photodb_chunks_" + System.nanoTime(), tmp.newFolder());
+        chunked.setChunkTable("chunks", 16);
+        chunked.setPoolSize(2);
+        chunked.connect();
+        chunked.createTables();
+        return chunked;
+    }
+    
+    /**
+     * Each key is inserted in chunks by every thread at once; exactly one insert
+     * of each key may succeed, and the others return false instead of failing on
+     * the chunks the first one sent.
+     */
+    @Test
+    public void concurrentChunkedInsertsOfTheSameKeySucceedOnce() throws Exception
+    {
+        final PhotoDB chunked = connectChunked();
+        final AtomicInteger inserted = new AtomicInteger();
+        try {
+            ExecutorService threads = Executors.newFixedThreadPool(THREADS);
+            List<Future<Void>> results = new ArrayList<Future<Void>>();
+            for (int t = 0; t < THREADS; t++)
+            {
+                results.add(threads.submit(new Callable<Void>() {
+                    public Void call() throws SQLException
+                    {
+                        for (int k = 0; k < 10; k++)
+                            if (chunked.insertRow(row(k, image)))
+                                inserted.incrementAndGet();
+                        return null;
+                    }
+                }));
+            }
+            for (Future<Void> f : results)
+                f.get();
+            threads.shutdown();
+            
+            assertEquals(10, inserted.get());
+            assertEquals(10, chunked.getRowCount());
+        } finally {
+            chunked.disconnect();
+        }
+    }
+    
+    /**
+     * Photos stored in chunks are read from more threads than there are
+     * connections, none of which waits for a second lease while it holds one
+     * (which would stall them all until the lease timeout).
+     */
+    @Test(timeout = 20000)
+    public void chunkedPhotosAreReadFromManyThreads() throws Exception
+    {
+        final PhotoDB chunked = connectChunked();
+        try {
+            for (int k = 0; k < 4; k++)
+                assertTrue(chunked.insertRow(row(k, image)));
+            
+            ExecutorService threads = Executors.newFixedThreadPool(THREADS);
+            List<Future<Image>> photos = new ArrayList<Future<Image>>();
+            for (int t = 0; t < THREADS * 2; t++)
+            {
+                final int key = t % 4;
+                photos.add(threads.submit(new Callable<Image>() {
+                    public Image call()
+                    {
+                        return chunked.getSpecificPhoto(key, 32, 32);
+                    }
+                }));
+            }
+            for (Future<Image> photo : photos)
+                assertNotNull(photo.get());
+            threads.shutdown();
+        } finally {
+            chunked.disconnect();
+        }
+    }
+    
+    /**
+     * Chunks that a failed upload of another file left under a key are deleted
+     * before the key is uploaded, rather than taken for the first chunks of the
+     * new file.
+     */
+    @Test
+    public void staleChunksOfAnotherFileAreNotResumed() throws Exception
+    {
+        PhotoDB chunked = connectChunked();
+        try {
+            Connection conn = chunked.borrowConnection();
+            try {
+                PreparedStatement stmt = conn.prepareStatement("INSERT INTO chunks VALUES (?, ?, ?)");
+                for (int chunk = 0; chunk < 3; chunk++)
+                {
+                    stmt.setInt(1, 1);
+                    stmt.setInt(2, chunk);
+                    stmt.setBytes(3, new byte[16]);
+                    stmt.executeUpdate();
+                }
+                stmt.close();
+            } finally {
+                conn.close();
+            }
+            
+            assertTrue(chunked.insertRow(row(1, image)));
+            byte[] expected = Files.readAllBytes(image.toPath());
+            byte[] actual = new byte[expected.length];
+            InputStream in = chunked.getPhotoRange(1, 0, expected.length);
+            int n = 0, c;
+            while (n < actual.length && (c = in.read(actual, n, actual.length - n)) != -1)
+                n += c;
+            assertEquals(-1, in.read());
+            in.close();
+            assertArrayEquals(expected, actual);
+        } finally {
+            chunked.disconnect();
+        }
+    }
+    
+    /**
+     * getSpecificPhoto() both caches and decodes the image, but fetches it from
+     * the blob store only once.
+     */
+    @Test
+    public void specificPhotosAreFetchedOnce() throws Exception
+    {
+        final AtomicInteger opens = new AtomicInteger();
+        PhotoDB stored = embedded("photodb_blobs_" + System.nanoTime(), tmp.newFolder());
+        stored.setContentHashColumn(8);
+        stored.setBlobStore(new FileBlobStore(tmp.newFolder()) {
+            public InputStream open(String hash) throws IOException
+            {
+                opens.incrementAndGet();
+                return super.open(hash);
+            }
+        });
+        stored.connect();
+        try {
+            stored.createTables();
+            assertTrue(stored.insertRow(row(1, image)));
+            assertNotNull(stored.getSpecificPhoto(1));
+            assertEquals(1, opens.get());
+        } finally {
+            stored.disconnect();
+        }
+    }
+    
+    /**
+     * Statements and result sets of a leased connection lead back to the lease,
+     * not to the physical connection behind it.
+     */
+    @Test
+    public void statementsLeadBackToTheLease() throws SQLException
+    {
+        Connection conn = db.borrowConnection();
+        try {
+            PreparedStatement stmt = conn.prepareStatement("SELECT 1");
+            ResultSet rs = stmt.executeQuery();
+            assertSame(conn, stmt.getConnection());
+            assertSame(conn, rs.getStatement().getConnection());
+            
+            Statement plain = conn.createStatement();
+            assertSame(conn, plain.executeQuery("SELECT 1").getStatement().getConnection());
+            stmt.close();
+            plain.close();
+        } finally {
+            conn.close();
+        }
+        assertTrue(conn.isClosed());
+        assertEquals(0, db.pool.getLeasedCount());
+    }
+}
@@ -0,0 +1,156 @@
+/**
+ * This file is part of PhotoDB - MySQL client/GUI for accessing photo databases
+ * 
+ * Copyright (C) 2014 by Michael Wang
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *   
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>. 
+ */
+package photo.db;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.Arrays;
+
+import javax.imageio.ImageIO;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Tests read/write splitting with two embedded databases, a primary and a read
+ * replica. They are not replicated, so each test can tell from the rows it reads
+ * which of them answered, and a row that is only on the primary stands for a row
+ * the replica has yet to catch up on.
+ */
+public class ReplicaRouterTest
+{
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+    private String primaryName, replicaName;
+    // Write to each database directly, and through the router
+    private PhotoDB primary, replica, db;
+    private File image;
+    
+    @Before
+    public void setUp() throws Exception
+    {
+        long id = System.nanoTime();
+        primaryName = "primary_" + id;
+        replicaName = "replica_" + id;
+        primary = PhotoDBTest.embedded(primaryName, tmp.newFolder());
+        replica = PhotoDBTest.embedded(replicaName, tmp.newFolder());
+        for (PhotoDB each : new PhotoDB[] { primary, replica })
+        {
+            each.connect();
+            each.createTables();
+        }
+        
+        image = tmp.newFile("image.png");
+        ImageIO.write(new BufferedImage(32, 32, BufferedImage.TYPE_INT_RGB), "png", image);
+        primary.insertRow(PhotoDBTest.row(1, image));
+        replica.insertRow(PhotoDBTest.row(100, image));
+        replica.insertRow(PhotoDBTest.row(101, image));
+        
+        // Connects to databases that exist already, so that one that has been shut down stays down
+        final File photoDir = tmp.newFolder();
+        db = new PhotoDB("") {
+            protected String getDatabaseURL(String hostname)
+            {
+                return "jdbc:h2:mem:" + hostname + ";MODE=MySQL;DATABASE_TO_LOWER=TRUE;IFEXISTS=TRUE";
+            }
+        };
+        db.setHostname(primaryName);
+        db.setReadHostnames(replicaName);
+        db.setDBName("photodb");
+        db.setTableName("photos");
+        db.setUser("sa");
+        db.setPassword("");
+        db.setPhotoDirectory(photoDir.getPath());
+        db.setContentHashColumn(-1);
+        db.connect();
+    }
+    
+    @After
+    public void tearDown() throws SQLException
+    {
+        db.disconnect();
+        primary.disconnect();
+        replica.disconnect();
+    }
+    
+    @Test
+    public void readsGoToTheReplica() throws SQLException
+    {
+        assertEquals(2, db.getRowCount());
+        assertEquals(1, db.readers.getHealthyCount());
+    }
+    
+    /**
+     * Writes go to the primary, and reads right after a write do too, so that
+     * they see it.
+     */
+    @Test
+    public void writesGoToThePrimary() throws SQLException
+    {
+        assertTrue(db.insertRow(PhotoDBTest.row(5, image)));
+        assertEquals(2, primary.getRowCount());
+        assertEquals(2, replica.getRowCount());
+        assertEquals(Arrays.<Object>asList(100, 101), Arrays.asList(replica.getAllUniqueKeys()));
+        
+        assertTrue(db.deleteRow(1));
+        assertEquals(1, db.getRowCount());                                  //Read from the primary
+    }
+    
+    /**
+     * The keys that insertRow() trusts come from the primary, so a row that the
+     * replica has not caught up on yet is not inserted again.
+     */
+    @Test
+    public void keyIndexIsBuiltFromThePrimary() throws SQLException
+    {
+        assertEquals(Arrays.<Object>asList(1), Arrays.asList(db.getAllUniqueKeys()));
+        assertFalse(db.insertRow(PhotoDBTest.row(1, image)));
+        assertEquals(1, primary.getRowCount());
+    }
+    
+    /**
+     * A replica that goes down is found by the background probe (run directly
+     * here), and reads go to the primary without waiting for it.
+     */
+    @Test
+    public void probeMarksADeadReplicaDown() throws SQLException
+    {
+        assertEquals(2, db.getRowCount());
+        
+        replica.disconnect();
+        Connection conn = DriverManager.getConnection("jdbc:h2:mem:" + replicaName, "sa", "");
+        conn.createStatement().execute("SHUTDOWN");
+        db.readers.probe();
+        assertEquals(0, db.readers.getHealthyCount());
+        
+        long start = System.currentTimeMillis();
+        assertEquals(1, db.getRowCount());
+        assertTrue(System.currentTimeMillis() - start < 1000);
+    }
+}